@@ -215,6 +215,8 @@ public class UAIMServerInitializer extends ServerInitializer
         
         private P2PChannelFactory channelFactory = null;
         private Vector channels = new Vector();
+        // the Entity's SelectableSet, from buildSelectableSet()
+        private SelectableSet selectableSet = null;
 
 	
     	/**
@@ -251,7 +253,13 @@ public class UAIMServerInitializer extends ServerInitializer
 					// Ding! Dong!  U-AIM calling!
 					_LOG.debug("UAIMServer_ControlLogic SELECTABLE is channel factory method");
 					Selectable selectable = (Selectable) sel.read();
-                    channels.addElement(sel);
+                    if (null != selectable) {
+                        channels.addElement(selectable);
+                        // buildSelectableSet() isn't called again, so
+                        // add the new channel now.
+                        selectableSet.addSelectable(selectable, SignalType.READ, this);
+                        selectableSet.addSelectable(selectable, SignalType.ERROR, this);
+                    }
                 } else if (sel instanceof SelectableFutureResult) {
 					_LOG.debug("UAIMServer_ControlLogic SELECTABLE is SelectableFutureResult method");
 					// Must read the Object or else sel will remain in the READABLE state
@@ -271,12 +279,15 @@ public class UAIMServerInitializer extends ServerInitializer
                 _LOG.debug("UAIMServer_ControlLogic handle ERROR signal type");    
                 // remove it from the channels vector - this channel is no longer valid      
                 channels.remove(sel); 
+                selectableSet.removeSelectable(sel, SignalType.READ);
+                selectableSet.removeSelectable(sel, SignalType.ERROR);
             } else if (SignalType.WRITE == st) {
                 _LOG.debug("UAIMServer_ControlLogic handle WRITE signal type");            
             }
 		}
 
         protected void buildSelectableSet(SelectableSet ss) {
+            selectableSet = ss;
             ss.addSelectable(channelFactory, SignalType.READ, this);
             ss.addSelectable(channelFactory, SignalType.ERROR, this);
         
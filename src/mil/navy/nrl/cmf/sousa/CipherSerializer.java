@@ -0,0 +1,116 @@
+// File: CipherSerializer.java
+
+package mil.navy.nrl.cmf.sousa;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * CipherSerializer is a Serializer that encrypts what another
+ * Serializer makes with AES in counter mode and decrypts it again
+ * before the other Serializer reads it.  It is a {@link
+ * SerializerPipeline} with one {@link CipherStage}.  toObject()
+ * doesn't change its argument.
+ */
+public class CipherSerializer extends SerializerPipeline
+{
+	/** the length of a key, in bytes */
+	public static final int KEY_LENGTH = CipherStage.KEY_LENGTH;
+
+	private static final SecureRandom _random = new SecureRandom();
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param inner the Serializer whose output is encrypted
+	 * @param key the AES key, KEY_LENGTH bytes, usually from {@link
+	 * #newKey()}
+	 * @throws IllegalArgumentException if key isn't an AES key or the
+	 * platform has no AES
+	 */
+	public CipherSerializer(Serializer inner, byte[] key)
+	{
+		super(inner, new SerializerStage[] {new CipherStage(key)});
+	}
+
+	/**
+	 * Makes a new random key.
+	 *
+	 * @return KEY_LENGTH random bytes
+	 */
+	public static byte[] newKey()
+	{
+		return CipherStage.newKey();
+	}
+
+	//// comparison with XORSerializer
+
+	// Encodes and decodes payload count times and returns megabytes
+	// of payload per second.
+	private static long throughput(Serializer s, Object payload, int length,
+								   int count)
+		throws IOException, ClassNotFoundException
+	{
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			s.toObject(s.toByteArray(payload));
+		}
+		long nanos = Math.max(1, System.nanoTime() - start);
+		return (long)length * count * 1000L / nanos;
+	}
+
+	/*
+	 * Usage: CipherSerializer [length [count]]
+	 *
+	 * Round trips a byte[] of length bytes (default 65536) then
+	 * compares the rate at which ByteArray, XORSerializer, and
+	 * CipherSerializer encode and decode it count times (default
+	 * 2000).  The difference from ByteArray is the cost of the
+	 * encryption.
+	 */
+	public static void main(String[] args)
+		throws IOException, ClassNotFoundException
+	{
+		int length = (args.length > 0) ? Integer.parseInt(args[0]) : 65536;
+		int count = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+
+		byte[] payload = new byte[length];
+		_random.nextBytes(payload);
+
+		Serializer plain = new ByteArray();
+		Serializer xor = new XORSerializer(_random.nextInt());
+		Serializer aes = new CipherSerializer(new ByteArray(), newKey());
+
+		byte[] encrypted = aes.toByteArray(payload);
+		byte[] copy = encrypted.clone();
+		boolean ok =
+			Arrays.equals(payload, (byte[])aes.toObject(encrypted)) &&
+			Arrays.equals(copy, encrypted);
+		try {
+			plain.toObject(encrypted);
+			ok = false;
+		} catch (IOException ex) {
+			// Expected: the ciphertext isn't a serialized Object.
+		}
+		System.out.println("Round trip: " + (ok ? "passed" : "FAILED"));
+
+		// The first pass warms up the JIT.
+		for (int pass = 0; pass < 2; pass++) {
+			long p = throughput(plain, payload, length, count);
+			long x = throughput(xor, payload, length, count);
+			long a = throughput(aes, payload, length, count);
+			if (pass > 0) {
+				System.out.println("MB/s: ByteArray " + p +
+								   ", XORSerializer " + x +
+								   ", CipherSerializer " + a);
+			}
+		}
+
+		if (!ok) {
+			System.exit(1);
+		}
+	}
+}
+
+// File: CipherSerializer.java
@@ -0,0 +1,200 @@
+// File: CipherStage.java
+
+package mil.navy.nrl.cmf.sousa;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * CipherStage is a {@link SerializerStage} that encrypts with AES in
+ * counter mode.
+ *
+ * Every message begins with an eight byte message number.  The
+ * counter of block i of a message is the message number followed by
+ * i, so messages never share a keystream as long as only one
+ * CipherStage encrypts with a given key.  Each CipherStage numbers
+ * its messages from a random start.  A message is 8 bytes longer
+ * than its plaintext.
+ *
+ * The keystream is made a segment at a time with AES/ECB, in buffers
+ * that are kept for the next message, and XORed with the message in a
+ * loop that the JIT can do many bytes at a time.  That is faster than
+ * the platform's AES/CTR, which XORs a block at a time.
+ */
+public class CipherStage implements SerializerStage
+{
+	/** the length of a key, in bytes */
+	public static final int KEY_LENGTH = 16;
+
+	// the length of the message number that begins each message
+	private static final int HEADER_LENGTH = 8;
+
+	private static final int BLOCK_LENGTH = 16;
+
+	// the most keystream made at once, in bytes
+	private static final int SEGMENT_LENGTH = 16384;
+
+	private static final SecureRandom _random = new SecureRandom();
+
+	private final Keystream _encrypter;
+	private final Keystream _decrypter;
+
+	// the number of the next message to encrypt
+	private long _nextMessage = _random.nextLong();
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param key the AES key, KEY_LENGTH bytes, usually from {@link
+	 * #newKey()}
+	 * @throws IllegalArgumentException if key isn't an AES key or the
+	 * platform has no AES
+	 */
+	public CipherStage(byte[] key)
+	{
+		try {
+			SecretKeySpec k = new SecretKeySpec(key, "AES");
+			_encrypter = new Keystream(k);
+			_decrypter = new Keystream(k);
+		} catch (GeneralSecurityException ex) {
+			IllegalArgumentException e =
+				new IllegalArgumentException("Unusable key: " + ex);
+			e.initCause(ex);
+			throw e;
+		}
+	}
+
+	/**
+	 * Makes a new random key.
+	 *
+	 * @return KEY_LENGTH random bytes
+	 */
+	public static byte[] newKey()
+	{
+		byte[] answer = new byte[KEY_LENGTH];
+		_random.nextBytes(answer);
+		return answer;
+	}
+
+	/**
+	 * Encrypts into a new array, which the message number begins.
+	 */
+	public ByteBuffer encode(ByteBuffer in, boolean last)
+		throws IOException
+	{
+		int length = in.remaining();
+		byte[] answer = new byte[HEADER_LENGTH + length];
+		ByteBuffer header = ByteBuffer.wrap(answer);
+
+		synchronized (_encrypter) {
+			long message = _nextMessage++;
+			header.putLong(0, message);
+			_encrypter.apply(message, in.array(), offset(in), length,
+							 answer, HEADER_LENGTH);
+		}
+
+		return header;
+	}
+
+	/**
+	 * Decrypts in place, unless last, when it decrypts into a new
+	 * array.
+	 */
+	public ByteBuffer decode(ByteBuffer in, boolean last)
+		throws IOException
+	{
+		int length = in.remaining() - HEADER_LENGTH;
+		if (length < 0) {
+			throw new IOException("Message too short: " + in.remaining() +
+								  " bytes");
+		}
+
+		long message = in.getLong(in.position());
+		byte[] data = in.array();
+		int offset = offset(in) + HEADER_LENGTH;
+		ByteBuffer answer;
+
+		synchronized (_decrypter) {
+			if (last) {
+				byte[] plain = new byte[length];
+				_decrypter.apply(message, data, offset, length, plain, 0);
+				answer = ByteBuffer.wrap(plain);
+			}
+			else {
+				_decrypter.apply(message, data, offset, length, data, offset);
+				answer = in.duplicate();
+				answer.position(in.position() + HEADER_LENGTH);
+			}
+		}
+
+		return answer;
+	}
+
+	// the index in b's array of b's first remaining byte
+	private static int offset(ByteBuffer b) {
+		return b.arrayOffset() + b.position();
+	}
+
+	// An AES counter mode keystream and the buffers to make it in.
+	// Callers synchronize on it.
+	private static final class Keystream
+	{
+		private final Cipher _cipher;
+
+		// the counter blocks of one segment
+		private final byte[] _counters = new byte[SEGMENT_LENGTH];
+		private final ByteBuffer _counterBuffer = ByteBuffer.wrap(_counters);
+
+		// the keystream of one segment
+		private final byte[] _stream = new byte[SEGMENT_LENGTH];
+
+		Keystream(SecretKeySpec key)
+			throws GeneralSecurityException
+		{
+			_cipher = Cipher.getInstance("AES/ECB/NoPadding");
+			_cipher.init(Cipher.ENCRYPT_MODE, key);
+		}
+
+		// XORs in[inOff .. inOff + length) with the keystream of
+		// message into out at outOff.  Encrypts and decrypts alike.
+		// in and out may be the same bytes.
+		void apply(long message, byte[] in, int inOff, int length,
+				   byte[] out, int outOff)
+			throws IOException
+		{
+			long block = 0;
+
+			for (int done = 0; done < length; ) {
+				int n = Math.min(SEGMENT_LENGTH, length - done);
+				int blocks = (n + BLOCK_LENGTH - 1) / BLOCK_LENGTH;
+				for (int i = 0; i < blocks; i++) {
+					_counterBuffer.putLong(i * BLOCK_LENGTH, message);
+					_counterBuffer.putLong(i * BLOCK_LENGTH + 8, block++);
+				}
+
+				try {
+					_cipher.doFinal(_counters, 0, blocks * BLOCK_LENGTH,
+									_stream, 0);
+				} catch (GeneralSecurityException ex) {
+					IOException e = new IOException("Cipher failed: " + ex);
+					e.initCause(ex);
+					throw e;
+				}
+
+				int in0 = inOff + done;
+				int out0 = outOff + done;
+				for (int i = 0; i < n; i++) {
+					out[out0 + i] = (byte)(in[in0 + i] ^ _stream[i]);
+				}
+
+				done += n;
+			}
+		}
+	}
+}
+
+// File: CipherStage.java
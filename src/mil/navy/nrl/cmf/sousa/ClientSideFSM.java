@@ -29,10 +29,10 @@ import org.apache.log4j.Logger;
  * The STATE data members are static singletons representing logical
  * states within the finite state machine.
  *
- * The ClientSideFSM is delegated to by the Focus in order to build
- * its SelectableSet (via buildSelectableSet).  Later, when some
- * Selectable becomes triggered for I/O, the Focus delegates the
- * responsibility of addressing the event via its handle() method.
+ * The ClientSideFSM adds its control channel to the Entity's
+ * SelectableSet when it is constructed.  Later, when some Selectable
+ * becomes triggered for I/O, the Entity delegates the responsibility
+ * of addressing the event via its handle() method.
  * 
  * @version 	%I%, %G%
  * @see     EntityFSM
@@ -51,6 +51,9 @@ public final class ClientSideFSM extends EntityFSM {
      * <ul>
      * <li> QoS -- quality of service requested from the server
      * <li> ServerContact -- address of the server
+     * <li> whether the client can read compressed P2PChannel frames,
+     * P2PChannel chunks and streamed P2PChannel frames.  A FetchRequest from an older client
+     * doesn't say, so the server sees false.
      * </ul>
      * <p>
      *
@@ -65,10 +68,16 @@ public final class ClientSideFSM extends EntityFSM {
 	private static final long serialVersionUID = 1L;
 	final QoS _qos;
 	final ServerContact _revContact;
+	final boolean _readsCompressedFrames;
+	final boolean _readsChunkedFrames;
+	final boolean _readsStreams;
 	
 	FetchRequest(QoS qos, ServerContact revContact) {
 	    _qos = qos;
 	    _revContact = revContact;
+	    _readsCompressedFrames = true;
+	    _readsChunkedFrames = true;
+	    _readsStreams = true;
 	}
     };
     
@@ -151,7 +160,16 @@ public final class ClientSideFSM extends EntityFSM {
 		// SIP XML
 		//
 		if (msg instanceof ServerSideFSM.FetchResponse) {
-		    con._receptor = ((ServerSideFSM.FetchResponse)msg)._receptor;
+		    ServerSideFSM.FetchResponse fmsg = (ServerSideFSM.FetchResponse)msg;
+		    // Compress, chunk and stream what we send if the server can
+		    // read it.
+		    con._channel.setPeerReadsCompressedFrames(fmsg._readsCompressedFrames);
+		    con._channel.setPeerReadsChunkedFrames(fmsg._readsChunkedFrames);
+		    con._channel.setPeerReadsStreams(fmsg._readsStreams);
+		    // Later connections to the server may share the
+		    // P2PChannel if the server reads P2PSessions.
+		    con._channel.setPeerReadsSessions(fmsg._readsSessions);
+		    con._receptor = fmsg._receptor;
 		    if (null != con._receptor) {
 			try {
 			    con._receptor.start(con, 
@@ -240,19 +258,27 @@ public final class ClientSideFSM extends EntityFSM {
     
     // receptor received from the server
     private Receptor _receptor = null;
+
+    // the remote server
+    private final ServerContact _serverContact;
     
     /** 
      * Constructor
      *
-     * @param cc            the P2P control channel
+     * @param cc            the P2P control channel: a P2PConnection
+     *                      or a P2PSession on one
+     * @param channel       the P2PConnection that carries cc
+     * @param addr          the remote server
      * @param focus         the Focus managing this client side FSM
      */
-    ClientSideFSM(P2PChannel cc, Focus focus) {
-	super(cc);
+    ClientSideFSM(Selectable cc, P2PConnection channel, ServerContact addr,
+		  Focus focus) {
+	super(cc, channel);
 	_focus = focus;
+	_serverContact = addr;
 	_currentState = INIT_STATE;
-	// DAVID: _cc is initialized by super(cc).  _cc.equals(cc).
-	this.handleRequest(makeFetchRequest(_cc.getServerContact().getQoS(),
+	registerChannel();
+	this.handleRequest(makeFetchRequest(_serverContact.getQoS(),
 						_focus._entity.getServerContact()));
     }
     
@@ -282,7 +308,7 @@ public final class ClientSideFSM extends EntityFSM {
      * @return                 ServerContact of the remote Server
      **/
     public final ServerContact getServerContact() {
-	return _cc.getServerContact();
+	return _serverContact;
     }
     
     /** 
@@ -320,21 +346,11 @@ public final class ClientSideFSM extends EntityFSM {
     //// package methods
 
     /** 
-     * Augment a SelectableSet to include communication channels that
-     * this FSM wishes to be notified about.
-     * @param ss    the SelectableSet which is to be augmented.
+     * Return the SelectableSet of the Entity in which this FSM resides.
+     * @return the Entity's SelectableSet
      **/
-    void buildSelectableSet(SelectableSet ss) {
-	ss.addSelectable(_cc, SignalType.READ, this);
-	ss.addSelectable(_cc, SignalType.ERROR, this);
-	if (_outQ.size() > 0)
-	    // there is something to write out
-	    ss.addSelectable(_cc, SignalType.WRITE, this);
-	
-	if (_receptor != null) {
-	    // ask the Receptor to add the data channel if needed
-	    _receptor.buildSelectableSet(ss);
-	}
+    SelectableSet getSelectableSet() {
+	return _focus._entity.getSelectableSet();
     }
     
     /** 
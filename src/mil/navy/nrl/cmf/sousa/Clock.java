@@ -35,6 +35,12 @@ public final class Clock {
 	final boolean _recurring;
 	boolean _enabled;
 	long _expiry;
+
+	// TimingWheel links.  _slot is -1 when the Alarm is not in a
+	// TimingWheel.
+	Alarm _prev;
+	Alarm _next;
+	int _slot = -1;
 	
 	/** 
 	 * Constructor
@@ -131,19 +137,60 @@ public final class Clock {
 	void handle(Alarm m);
     };
     
+    /**
+     * The name of the system property that chooses how an Entity's
+     * Clocks keep their Alarms.  When it is "true", each Clock keeps
+     * them in a TimingWheel: setting, enabling and disabling an Alarm
+     * take constant time and allocate nothing, and processAlarms()
+     * collects every expired Alarm in one pass.  Otherwise each Clock
+     * keeps them in a TreeMap ordered by expiry time.  The property
+     * is read when the Entity is constructed.
+     */
+    public static final String TIMING_WHEEL_PROPERTY =
+	"mil.navy.nrl.cmf.sousa.Clock.timingWheel";
+
     // Clock internals follow
 
     private final long SELECT_TIME_NO_ALARMS = 10000;
-    // Long --> List of Clock.Alarm
-    private final TreeMap _alarms = new TreeMap();
+    // Long --> List of Clock.Alarm.  null if _wheel is used.
+    private final TreeMap _alarms;
+    // the Alarms.  null if _alarms is used.
+    private final TimingWheel _wheel;
+    // guards _alarms or _wheel
+    private final Object _lock = new Object();
     private final Entity _entity;
+    // the SelectableSet whose select() waits for the next Alarm
+    private final SelectableSet _ss;
     
     /** 
-     * Constructor
+     * Constructor.  Alarms may be set from any thread.  Setting an
+     * Alarm that expires before all of the others wakes up the
+     * thread that is waiting in <CODE>ss.select()</CODE> so that it
+     * can wait again for the right amount of time.
+     *
      * @param e the Entity with which the Alarm is associated
+     * @param ss the SelectableSet of the thread that processes the Alarms
+     * @param timingWheel keep the Alarms in a TimingWheel instead of
+     * a TreeMap
+     * @see #TIMING_WHEEL_PROPERTY
      */
-    Clock(Entity e) {
+    Clock(Entity e, SelectableSet ss, boolean timingWheel) {
 	_entity = e;
+	_ss = ss;
+	if (timingWheel) {
+	    _alarms = null;
+	    _wheel = new TimingWheel(System.currentTimeMillis());
+	} else {
+	    _alarms = new TreeMap();
+	    _wheel = null;
+	}
+    }
+
+    /**
+     * @return true if this Clock keeps its Alarms in a TimingWheel
+     */
+    boolean usesTimingWheel() {
+	return (null != _wheel);
     }
     
     /** 
@@ -167,14 +214,32 @@ public final class Clock {
      * @param a the Alarm
      */
     private void register(Alarm a) {
-	MapUtil.addToMapSet(_alarms, new Long(a._expiry), a);	
+	boolean first;
+	synchronized (_lock) {
+	    if (null != _wheel) {
+		first = _wheel.add(a);
+	    } else {
+		MapUtil.addToMapSet(_alarms, new Long(a._expiry), a);
+		first = (((Long)_alarms.firstKey()).longValue() == a._expiry);
+	    }
+	}
+	
+	if (first) {
+	    _ss.wakeup();
+	}
     }
     
     /** 
      * Deregister an Alarm from this Clock
      */
     private void deregister(Alarm a) {
-	MapUtil.removeFromMapSet(_alarms, new Long(a._expiry), a);	
+	synchronized (_lock) {
+	    if (null != _wheel) {
+		_wheel.remove(a);
+	    } else {
+		MapUtil.removeFromMapSet(_alarms, new Long(a._expiry), a);
+	    }
+	}
     }
     
     /** 
@@ -185,11 +250,19 @@ public final class Clock {
     // Entity calls timeToNextAlarm()
     long timeToNextAlarm() {
 	long t = SELECT_TIME_NO_ALARMS;
-	if (_alarms.size() > 0) {
-	    long now = System.currentTimeMillis();
-	    Long next = (Long)_alarms.firstKey();
-	    t = (next.longValue() - now);
-	    if (t < 1) t = 1;
+	synchronized (_lock) {
+	    if (null != _wheel) {
+		if (_wheel.size() > 0) {
+		    t = _wheel.nextExpiry() - System.currentTimeMillis();
+		    if (t < 1) t = 1;
+		    else if (t > SELECT_TIME_NO_ALARMS) t = SELECT_TIME_NO_ALARMS;
+		}
+	    } else if (_alarms.size() > 0) {
+		long now = System.currentTimeMillis();
+		Long next = (Long)_alarms.firstKey();
+		t = (next.longValue() - now);
+		if (t < 1) t = 1;
+	    }
 	}
 	return t;
     }
@@ -198,22 +271,138 @@ public final class Clock {
      * Process all the alarms that have expired since the last time this method was called.
      */
     void processAlarms() {
+	if (null != _wheel) {
+	    processWheelAlarms();
+	    return;
+	}
+
 	boolean done = false;
 	long now = System.currentTimeMillis();
 	
 	// Always check _alarms.size() because TreeMap.firstKey() throws
 	// NoSuchElementException when the Map is empty.
-	while (!done && (_alarms.size() > 0)) {
-	    Long firstKey = (Long)_alarms.firstKey();
-	    if (firstKey.longValue() > now) done = true;
+	while (!done) {
+	    Set alarms = null;
+	    synchronized (_lock) {
+		if (_alarms.size() > 0) {
+		    Long firstKey = (Long)_alarms.firstKey();
+		    if (firstKey.longValue() <= now) {
+			alarms = (Set)_alarms.remove(firstKey);
+		    }
+		}
+	    }
+	    
+	    if (null == alarms) done = true;
 	    else {
-		Set alarms = (Set)_alarms.remove(firstKey);
+		// Trigger outside of the lock.  Handlers may set and
+		// enable Alarms.
 		for (Iterator i = alarms.iterator(); i.hasNext(); ) {
 		    ((Alarm)i.next()).trigger();
 		}
 	    }
 	}
     }
+
+    /**
+     * processAlarms() for a TimingWheel.  Takes every expired Alarm
+     * out of the wheel under one acquisition of the lock, then
+     * triggers them.
+     */
+    private void processWheelAlarms() {
+	long now = System.currentTimeMillis();
+	int count;
+
+	synchronized (_lock) {
+	    count = _wheel.expire(now);
+	}
+
+	// Trigger outside of the lock.  Handlers may set and enable
+	// Alarms.  Only this thread calls expire(), so the expired
+	// Alarms stay put.
+	for (int i = 0; i < count; i++) {
+	    _wheel.expired(i).trigger();
+	}
+    }
+
+    /**
+     * Compare the TreeMap Clock with the TimingWheel Clock.
+     *
+     * Usage: Clock [alarms [rounds]]
+     *
+     * For each kind of Clock, sets <CODE>alarms</CODE> Alarms with
+     * periods of up to a minute and disables them again, then sets
+     * <CODE>alarms</CODE> recurring Alarms with periods of up to 50
+     * milliseconds and processes them until each has gone off
+     * <CODE>rounds</CODE> times, as a heartbeat does.
+     */
+    public static void main(String[] args) {
+	int alarms = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+	int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+
+	// warm up, then measure
+	for (int pass = 0; pass < 2; pass++) {
+	    boolean report = (pass > 0);
+	    benchmark(false, alarms, rounds, report);
+	    benchmark(true, alarms, rounds, report);
+	}
+    }
+
+    // One run of main() for one kind of Clock.
+    private static void benchmark(boolean timingWheel, int alarms,
+				  final int rounds, boolean report) {
+	String name = timingWheel ? "TimingWheel" : "TreeMap";
+	Clock c = new Clock(null, new SelectableSet(), timingWheel);
+	java.util.Random random = new java.util.Random(4246);
+	Alarm[] set = new Alarm[alarms];
+	AlarmHandler ignore = new AlarmHandler() {
+		public void handle(Alarm m) {}
+	    };
+
+	long start = System.currentTimeMillis();
+	for (int i = 0; i < alarms; i++) {
+	    set[i] = c.setAlarm(1000 + random.nextInt(59000), false, 
+				null, ignore);
+	}
+	long scheduled = System.currentTimeMillis();
+	for (int i = 0; i < alarms; i++) {
+	    set[i].disable();
+	}
+	long cancelled = System.currentTimeMillis();
+
+	final int[] fired = new int[1];
+	final int[] early = new int[1];
+	AlarmHandler heartbeat = new AlarmHandler() {
+		public void handle(Alarm m) {
+		    if (System.currentTimeMillis() < m._expiry) early[0]++;
+		    fired[0]++;
+		    int[] remaining = (int[])m.getAssoc();
+		    if (--remaining[0] <= 0) m.disable();
+		}
+	    };
+	for (int i = 0; i < alarms; i++) {
+	    c.setAlarm(1 + random.nextInt(50), true, new int[] {rounds},
+		       heartbeat);
+	}
+	long processing = System.currentTimeMillis();
+	while (fired[0] < alarms * rounds) {
+	    try {
+		Thread.sleep(c.timeToNextAlarm());
+	    } catch (InterruptedException ex) {
+		break;
+	    }
+	    c.processAlarms();
+	}
+	long end = System.currentTimeMillis();
+
+	if (report) {
+	    System.out.println(name + ": " + alarms + " alarms set in " +
+			       (scheduled - start) + " ms, disabled in " +
+			       (cancelled - scheduled) + " ms; " + fired[0] +
+			       " recurring expirations in " +
+			       (end - processing) + " ms (" + early[0] +
+			       " early)");
+	}
+    }
 }
 
 // Clock.java
@@ -0,0 +1,455 @@
+// File: CompactSerializer.java
+
+package mil.navy.nrl.cmf.sousa;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * CompactSerializer converts the messages that carry State changes
+ * to and from byte[] in a tagged binary format that is much smaller
+ * than Java serialization.  A {@link State.ChangeMessage}, its
+ * {@link Field.ChangeMessage}s, and values that are Strings, boxed
+ * primitives or GregorianCalendars are written as a tag byte followed
+ * by their contents, with no class descriptors.  Any other
+ * Serializable is written with Java serialization inside a tagged,
+ * length-prefixed block, so every object that ByteArray can convert,
+ * CompactSerializer can too.
+ *
+ * <P>
+ *
+ * Subclasses add tags of their own for other classes by overriding
+ * {@link #writeExtension(DataOutput, Object)} and {@link
+ * #readExtension(int, DataInput)}.  Their tags are at least {@link
+ * #FIRST_EXTENSION_TAG}.  Both ends must use the same class.
+ *
+ * <P>
+ *
+ * ints and longs are written as variable-length zig-zag integers, so
+ * small magnitudes take one or two bytes.  Strings are written as
+ * their length and their UTF-8 bytes.
+ */
+public class CompactSerializer implements Serializer
+{
+	//// tags
+
+	/** null */
+	protected static final int NULL = 0;
+	/** a State.ChangeMessage: count, then each Field.ChangeMessage */
+	protected static final int STATE_CHANGE = 1;
+	/** a Field.ChangeMessage: field name, then value */
+	protected static final int FIELD_CHANGE = 2;
+	/** a String */
+	protected static final int STRING = 3;
+	/** Boolean.TRUE */
+	protected static final int TRUE = 4;
+	/** Boolean.FALSE */
+	protected static final int FALSE = 5;
+	/** a Byte */
+	protected static final int BYTE = 6;
+	/** a Short */
+	protected static final int SHORT = 7;
+	/** a Character */
+	protected static final int CHAR = 8;
+	/** an Integer */
+	protected static final int INT = 9;
+	/** a Long */
+	protected static final int LONG = 10;
+	/** a Float */
+	protected static final int FLOAT = 11;
+	/** a Double */
+	protected static final int DOUBLE = 12;
+	/** a GregorianCalendar: milliseconds, then time zone id */
+	protected static final int CALENDAR = 13;
+	/** anything else, in Java serialization */
+	protected static final int SERIALIZED = 14;
+	/** a keyframe or a Delta of a delta encoded field: keyframe
+	 * number, then value */
+	protected static final int DELTA_FRAME = 15;
+
+	/** the first tag that a subclass may use */
+	protected static final int FIRST_EXTENSION_TAG = 64;
+
+	public CompactSerializer() {}
+
+	/**
+	 * Encodes <CODE>ob</CODE>.
+	 *
+	 * @param ob the object to encode, which must be Serializable or
+	 * null
+	 * @return the encoding
+	 * @throws IOException if ob or something in it can't be
+	 * serialized
+	 */
+    public byte[] toByteArray(Object ob)
+		throws IOException
+    {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		writeValue(out, ob);
+		out.flush();
+		return bytes.toByteArray();
+    }
+
+	/**
+	 * Decodes an object encoded by <CODE>toByteArray()</CODE>.
+	 * <CODE>data</CODE> is unchanged.
+	 *
+	 * @param data the encoding
+	 * @return the object
+	 * @throws IOException if data isn't an encoding
+	 * @throws ClassNotFoundException if an object in data that was
+	 * written with Java serialization has an unknown class
+	 */
+	public Object toObject(byte[] data)
+		throws IOException, ClassNotFoundException
+    {
+		DataInputStream in =
+			new DataInputStream(new ByteArrayInputStream(data));
+		return readValue(in);
+    }
+
+	//// values
+
+	/**
+	 * Writes a tagged value.
+	 *
+	 * @param out where to write
+	 * @param value the value, which must be Serializable or null
+	 * @throws IOException if out fails or value can't be serialized
+	 */
+	protected final void writeValue(DataOutput out, Object value)
+		throws IOException
+	{
+		if (null == value) {
+			out.writeByte(NULL);
+		}
+		else if (value instanceof State.ChangeMessage) {
+			List fcms = ((State.ChangeMessage)value).getMessages();
+			out.writeByte(STATE_CHANGE);
+			writeVarInt(out, fcms.size());
+			for (Iterator i = fcms.iterator(); i.hasNext(); ) {
+				writeFieldChange(out, (Field.ChangeMessage)i.next());
+			}
+		}
+		else if (value instanceof Field.ChangeMessage) {
+			out.writeByte(FIELD_CHANGE);
+			writeFieldChange(out, (Field.ChangeMessage)value);
+		}
+		else if (value instanceof String) {
+			out.writeByte(STRING);
+			writeString(out, (String)value);
+		}
+		else if (value instanceof Boolean) {
+			out.writeByte(((Boolean)value).booleanValue() ? TRUE : FALSE);
+		}
+		else if (value instanceof Byte) {
+			out.writeByte(BYTE);
+			out.writeByte(((Byte)value).byteValue());
+		}
+		else if (value instanceof Short) {
+			out.writeByte(SHORT);
+			writeVarLong(out, ((Short)value).shortValue());
+		}
+		else if (value instanceof Character) {
+			out.writeByte(CHAR);
+			out.writeChar(((Character)value).charValue());
+		}
+		else if (value instanceof Integer) {
+			out.writeByte(INT);
+			writeVarLong(out, ((Integer)value).intValue());
+		}
+		else if (value instanceof Long) {
+			out.writeByte(LONG);
+			writeVarLong(out, ((Long)value).longValue());
+		}
+		else if (value instanceof Float) {
+			out.writeByte(FLOAT);
+			out.writeFloat(((Float)value).floatValue());
+		}
+		else if (value instanceof Double) {
+			out.writeByte(DOUBLE);
+			out.writeDouble(((Double)value).doubleValue());
+		}
+		else if (value instanceof DeltaFrame) {
+			DeltaFrame frame = (DeltaFrame)value;
+			out.writeByte(DELTA_FRAME);
+			writeVarInt(out, frame._keyframe);
+			writeValue(out, frame._value);
+		}
+		else if (GregorianCalendar.class == value.getClass()) {
+			Calendar c = (Calendar)value;
+			out.writeByte(CALENDAR);
+			writeVarLong(out, c.getTimeInMillis());
+			writeString(out, c.getTimeZone().getID());
+		}
+		else if (!writeExtension(out, value)) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream objects = new ObjectOutputStream(bytes);
+			objects.writeObject(value);
+			objects.close();
+			out.writeByte(SERIALIZED);
+			writeVarInt(out, bytes.size());
+			out.write(bytes.toByteArray());
+		}
+	}
+
+	/**
+	 * Reads a value written by <CODE>writeValue()</CODE>.
+	 *
+	 * @param in where to read
+	 * @return the value
+	 * @throws IOException if in fails or holds no value
+	 * @throws ClassNotFoundException if a value written with Java
+	 * serialization has an unknown class
+	 */
+	protected final Object readValue(DataInput in)
+		throws IOException, ClassNotFoundException
+	{
+		Object answer = null;
+		int tag = in.readUnsignedByte();
+		switch (tag) {
+		case NULL:
+			break;
+		case STATE_CHANGE: {
+			State.ChangeMessage cm = new State.ChangeMessage();
+			for (int n = readVarInt(in); n > 0; n--) {
+				cm.addFieldChangeMessage(readFieldChange(in));
+			}
+			answer = cm;
+			break;
+		}
+		case FIELD_CHANGE:
+			answer = readFieldChange(in);
+			break;
+		case STRING:
+			answer = readString(in);
+			break;
+		case TRUE:
+			answer = Boolean.TRUE;
+			break;
+		case FALSE:
+			answer = Boolean.FALSE;
+			break;
+		case BYTE:
+			answer = new Byte(in.readByte());
+			break;
+		case SHORT:
+			answer = new Short((short)readVarLong(in));
+			break;
+		case CHAR:
+			answer = new Character(in.readChar());
+			break;
+		case INT:
+			answer = new Integer((int)readVarLong(in));
+			break;
+		case LONG:
+			answer = new Long(readVarLong(in));
+			break;
+		case FLOAT:
+			answer = new Float(in.readFloat());
+			break;
+		case DOUBLE:
+			answer = new Double(in.readDouble());
+			break;
+		case CALENDAR: {
+			long millis = readVarLong(in);
+			Calendar c = new GregorianCalendar(TimeZone.getTimeZone(readString(in)));
+			c.setTimeInMillis(millis);
+			answer = c;
+			break;
+		}
+		case DELTA_FRAME: {
+			int keyframe = readVarInt(in);
+			answer = new DeltaFrame(keyframe, (Serializable)readValue(in));
+			break;
+		}
+		case SERIALIZED: {
+			byte[] bytes = new byte[readVarInt(in)];
+			in.readFully(bytes);
+			ObjectInputStream objects =
+				new ObjectInputStream(new ByteArrayInputStream(bytes));
+			answer = objects.readObject();
+			objects.close();
+			break;
+		}
+		default:
+			if (tag < FIRST_EXTENSION_TAG) {
+				throw new StreamCorruptedException("Unknown tag " + tag);
+			}
+			answer = readExtension(tag, in);
+		}
+		return answer;
+	}
+
+	/**
+	 * Writes a value of a class that a subclass knows.  The
+	 * CompactSerializer knows none.
+	 *
+	 * @param out where to write
+	 * @param value neither null nor a class that CompactSerializer
+	 * knows
+	 * @return true if value was written: a tag of at least
+	 * FIRST_EXTENSION_TAG, then its contents.  false if nothing was
+	 * written, so that value will be written with Java serialization.
+	 * @throws IOException if out fails
+	 */
+	protected boolean writeExtension(DataOutput out, Object value)
+		throws IOException
+	{
+		return false;
+	}
+
+	/**
+	 * Reads a value written by <CODE>writeExtension()</CODE>.
+	 *
+	 * @param tag the tag that was read, at least FIRST_EXTENSION_TAG
+	 * @param in where to read the rest
+	 * @return the value
+	 * @throws IOException if in fails or tag is unknown
+	 * @throws ClassNotFoundException if a value written with Java
+	 * serialization has an unknown class
+	 */
+	protected Object readExtension(int tag, DataInput in)
+		throws IOException, ClassNotFoundException
+	{
+		throw new StreamCorruptedException("Unknown tag " + tag);
+	}
+
+	//// Field.ChangeMessages
+
+	// A Field.ChangeMessage whose field is named by its id in a
+	// FieldDictionary is written with a null name and then the id.
+	private void writeFieldChange(DataOutput out, Field.ChangeMessage fcm)
+		throws IOException
+	{
+		writeString(out, fcm._fname);
+		if (null == fcm._fname) {
+			writeVarInt(out, fcm._fid);
+		}
+		writeValue(out, fcm._value);
+	}
+
+	private Field.ChangeMessage readFieldChange(DataInput in)
+		throws IOException, ClassNotFoundException
+	{
+		String fname = readString(in);
+		int fid = (null == fname) ? readVarInt(in) : Field.NO_ID;
+		return new Field.ChangeMessage(fname, fid, (Serializable)readValue(in));
+	}
+
+	//// primitives
+
+	/**
+	 * Writes a String, which may be null, as its length plus one and
+	 * its UTF-8 bytes.
+	 */
+	protected static final void writeString(DataOutput out, String s)
+		throws IOException
+	{
+		if (null == s) {
+			writeVarInt(out, 0);
+		}
+		else {
+			byte[] utf8 = s.getBytes("UTF-8");
+			writeVarInt(out, utf8.length + 1);
+			out.write(utf8);
+		}
+	}
+
+	/**
+	 * Reads a String written by <CODE>writeString()</CODE>.
+	 */
+	protected static final String readString(DataInput in)
+		throws IOException
+	{
+		String answer = null;
+		int length = readVarInt(in) - 1;
+		if (length >= 0) {
+			byte[] utf8 = new byte[length];
+			in.readFully(utf8);
+			answer = new String(utf8, "UTF-8");
+		}
+		return answer;
+	}
+
+	/**
+	 * Writes a non-negative int in seven-bit groups, least
+	 * significant first, with the high bit of each byte set if
+	 * another follows.
+	 */
+	protected static final void writeVarInt(DataOutput out, int v)
+		throws IOException
+	{
+		while ((v & ~0x7F) != 0) {
+			out.writeByte((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out.writeByte(v);
+	}
+
+	/**
+	 * Reads an int written by <CODE>writeVarInt()</CODE>.
+	 */
+	protected static final int readVarInt(DataInput in)
+		throws IOException
+	{
+		int answer = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			answer |= (b & 0x7F) << shift;
+			if (0 == (b & 0x80)) {
+				return answer;
+			}
+		}
+		throw new StreamCorruptedException("Malformed variable-length int");
+	}
+
+	/**
+	 * Writes a long of either sign in zig-zag order, so that small
+	 * magnitudes are short, with <CODE>writeVarInt()</CODE>'s groups.
+	 */
+	protected static final void writeVarLong(DataOutput out, long v)
+		throws IOException
+	{
+		long zigzag = (v << 1) ^ (v >> 63);
+		while ((zigzag & ~0x7FL) != 0) {
+			out.writeByte((int)((zigzag & 0x7F) | 0x80));
+			zigzag >>>= 7;
+		}
+		out.writeByte((int)zigzag);
+	}
+
+	/**
+	 * Reads a long written by <CODE>writeVarLong()</CODE>.
+	 */
+	protected static final long readVarLong(DataInput in)
+		throws IOException
+	{
+		long zigzag = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			zigzag |= (long)(b & 0x7F) << shift;
+			if (0 == (b & 0x80)) {
+				return (zigzag >>> 1) ^ -(zigzag & 1);
+			}
+		}
+		throw new StreamCorruptedException("Malformed variable-length long");
+	}
+};
+
+// File: CompactSerializer.java
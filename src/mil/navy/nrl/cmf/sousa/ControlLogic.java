@@ -186,7 +186,9 @@ public class ControlLogic implements Selectable.Handler {
     }
 
     /**
-	 * Add Selectables to the SelectableSet.
+	 * Add Selectables to the SelectableSet.  The Entity calls it
+	 * once, before its first select.  A Selectable made later must be
+	 * added to <CODE>ss</CODE> when it is made.
 	 *
      * @param ss the SelectableSet
      */
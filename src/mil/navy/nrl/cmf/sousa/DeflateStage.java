@@ -0,0 +1,127 @@
+// File: DeflateStage.java
+
+package mil.navy.nrl.cmf.sousa;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * DeflateStage is a {@link SerializerStage} that compresses with a
+ * Deflater.  A message is the length of the original bytes, four
+ * bytes, then the deflated bytes, so that they can be inflated
+ * straight into an array of the right size.
+ *
+ * The Deflater, the Inflater and the buffer that the Deflater writes
+ * into are kept for the next message.
+ */
+public class DeflateStage implements SerializerStage
+{
+	// the length of the original length that begins each message
+	private static final int HEADER_LENGTH = 4;
+
+	private final Deflater _deflater;
+	private final Inflater _inflater = new Inflater();
+
+	// where _deflater writes.  It grows to fit the largest message.
+	private byte[] _deflated = new byte[1024];
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param level the Deflater compression level, from
+	 * Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION, or
+	 * Deflater.DEFAULT_COMPRESSION
+	 * @throws IllegalArgumentException if level is not a compression
+	 * level
+	 */
+	public DeflateStage(int level)
+	{
+		_deflater = new Deflater(level);
+	}
+
+	/**
+	 * Deflates into the reused buffer, or, if last, into a new array
+	 * that fits.
+	 */
+	public synchronized ByteBuffer encode(ByteBuffer in, boolean last)
+		throws IOException
+	{
+		int length = in.remaining();
+		ByteBuffer.wrap(_deflated).putInt(0, length);
+
+		_deflater.reset();
+		_deflater.setInput(in.array(), in.arrayOffset() + in.position(),
+						   length);
+		_deflater.finish();
+
+		int n = HEADER_LENGTH;
+		while (!_deflater.finished()) {
+			if (n == _deflated.length) {
+				byte[] bigger = new byte[2 * _deflated.length];
+				System.arraycopy(_deflated, 0, bigger, 0, n);
+				_deflated = bigger;
+			}
+			n += _deflater.deflate(_deflated, n, _deflated.length - n);
+		}
+
+		ByteBuffer answer;
+		if (last) {
+			byte[] a = new byte[n];
+			System.arraycopy(_deflated, 0, a, 0, n);
+			answer = ByteBuffer.wrap(a);
+		}
+		else {
+			answer = ByteBuffer.wrap(_deflated, 0, n);
+		}
+
+		return answer;
+	}
+
+	/**
+	 * Inflates into a new array that fits.
+	 */
+	public synchronized ByteBuffer decode(ByteBuffer in, boolean last)
+		throws IOException
+	{
+		if (in.remaining() < HEADER_LENGTH) {
+			throw new IOException("Message too short: " + in.remaining() +
+								  " bytes");
+		}
+
+		int length = in.getInt(in.position());
+		if (length < 0) {
+			throw new IOException("Bad inflated length " + length);
+		}
+
+		byte[] answer = new byte[length];
+		_inflater.reset();
+		_inflater.setInput(in.array(),
+						   in.arrayOffset() + in.position() + HEADER_LENGTH,
+						   in.remaining() - HEADER_LENGTH);
+
+		try {
+			int n = 0;
+			while (n < length) {
+				int m = _inflater.inflate(answer, n, length - n);
+				if ((0 == m) &&
+					(_inflater.finished() || _inflater.needsInput() ||
+					 _inflater.needsDictionary())) {
+					throw new IOException("Inflated " + n +
+										  " bytes, expected " + length);
+				}
+				n += m;
+			}
+		} catch (DataFormatException ex) {
+			IOException e = new IOException("Can't inflate: " + ex);
+			e.initCause(ex);
+			throw e;
+		}
+
+		return ByteBuffer.wrap(answer);
+	}
+}
+
+// File: DeflateStage.java
@@ -0,0 +1,27 @@
+// File: Delta.java
+
+package mil.navy.nrl.cmf.sousa;
+
+import java.io.Serializable;
+
+/**
+ * A Delta is a small description of a field value relative to an
+ * earlier value of the same field, its keyframe.  A Projector sends a
+ * Delta instead of a value of a field whose values are {@link
+ * DeltaEncodable}, and the Receptor applies it to the keyframe it
+ * holds for the field.
+ */
+public interface Delta extends Serializable
+{
+	/**
+	 * Computes the value that this Delta describes.
+	 *
+	 * @param keyframe the value from which this Delta was made
+	 * @return the value, or an approximation of it
+	 * @throws IllegalArgumentException if keyframe is not of the
+	 * kind from which this Delta was made
+	 */
+	public Serializable applyTo(Serializable keyframe);
+}
+
+// File: Delta.java
@@ -0,0 +1,28 @@
+// File: DeltaEncodable.java
+
+package mil.navy.nrl.cmf.sousa;
+
+import java.io.Serializable;
+
+/**
+ * A DeltaEncodable field value can describe itself relative to an
+ * earlier value with a {@link Delta}, to a given precision.  A
+ * Projector does so for the fields that are given a precision with
+ * {@link Projector#PRECISION_PROPERTY}.
+ */
+public interface DeltaEncodable extends Serializable
+{
+	/**
+	 * Describes this value relative to keyframe.
+	 *
+	 * @param keyframe an earlier value of the same field
+	 * @param precision the largest error allowed in any part of this
+	 * value, greater than zero
+	 * @return a Delta whose applyTo(keyframe) is within precision of
+	 * this value, or null if there is none, for instance because
+	 * keyframe is of another kind or too far away.
+	 */
+	public Delta deltaFrom(Serializable keyframe, double precision);
+}
+
+// File: DeltaEncodable.java
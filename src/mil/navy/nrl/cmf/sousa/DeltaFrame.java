@@ -0,0 +1,34 @@
+package mil.navy.nrl.cmf.sousa;
+
+import java.io.Serializable;
+
+/**
+ * A DeltaFrame is the value of a Field.ChangeMessage of a field that
+ * a Projector delta encodes.  It is either a keyframe, a value that
+ * later DeltaFrames refer to by its number, or a {@link Delta} from
+ * the keyframe with its number.  The Receptor replaces it with the
+ * value before anyone else sees it.
+ */
+final class DeltaFrame implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // the number of the keyframe, unique within the Projector
+    final int _keyframe;
+
+    // the keyframe's value, or a Delta from it
+    final Serializable _value;
+
+    DeltaFrame(int keyframe, Serializable value) {
+	_keyframe = keyframe;
+	_value = value;
+    }
+
+    boolean isKeyframe() {
+	return !(_value instanceof Delta);
+    }
+
+    public String toString() {
+	return (isKeyframe() ? "Keyframe[" : "Delta[") + _keyframe + ", " +
+	    _value + "]";
+    }
+}
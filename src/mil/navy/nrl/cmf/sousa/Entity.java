@@ -43,21 +43,22 @@ public final class Entity implements Selectable.Handler, Runnable {
     // here.
     private final QoS _nonCommandLogicQoSClasses = new QoS();
     
-    // timer management
-    private final Clock _clock = new Clock(this);
-    
     // contact point for incoming and outgoing connections from/to
     // clients [contains its own running thread]
     private final P2PChannelFactory _contactPort;
+
+    // the traffic of all of the Entity's connections, to which each
+    // adds its own
+    private final TrafficStats _trafficStats = new TrafficStats(null, null);
     
     // List of ServerContact, pending high-level connections
     final LinkedList _pendingConnections = new LinkedList();
     
     // _pendingRMI contains all of the SelectableFutureResults that have
     // neither value nor Exception.  They're all awaiting an answer
-    // from a server.  buildSelectableSet() adds each one into a
-    // SelectableSet, specifying the Entity ControlLogic as the
-    // Selectable.Handler.
+    // from a server.  register() adds each one into the
+    // SelectableSet, specifying the Entity as the Selectable.Handler.
+    // The Entity delegates to the ControlLogic.
     // UID->SelectableFutureResult
     // DAVID: Tell why it's a Map
     private final HashMap _pendingRMI = new HashMap();
@@ -89,6 +90,28 @@ public final class Entity implements Selectable.Handler, Runnable {
     // the SelectableSet for high-level asynchronous event handling
     private final SelectableSet _ss = new SelectableSet();
     
+    // timer management
+    private final Clock _clock =
+	new Clock(this, _ss, Boolean.getBoolean(Clock.TIMING_WHEEL_PROPERTY));
+    
+    /**
+     * The name of the system property that sets the number of
+     * EventLoops over which the Nimbus spreads its clients.  When it
+     * is absent or zero, every client is served by the Entity's own
+     * thread.  When it is positive, each new client's ServerSideFSM
+     * and Projector run in the least loaded EventLoop, each of which
+     * has its own thread, SelectableSet and Clock.  The authoritative
+     * State, the ControlLogic and the CommandLogics are shared by all
+     * of the threads, so the Entity serializes calls into the
+     * ControlLogic and the CommandLogics.
+     */
+    public static final String EVENT_LOOPS_PROPERTY =
+	"mil.navy.nrl.cmf.sousa.Entity.eventLoops";
+    
+    // the server-side event loops.  Empty unless
+    // EVENT_LOOPS_PROPERTY is positive.
+    private final EventLoop[] _eventLoops;
+    
     // _executor handles all of the RMI that isn't handled by a
     // ViewInterpreter in a Projector.
     private final Executor _executor = new Executor();
@@ -150,8 +173,20 @@ public final class Entity implements Selectable.Handler, Runnable {
 		// TODO: The ServerSideFSM or the Projector must know when a
 		// client leaves or joins so that it can cause the the shared
 		// key to be changed.
+		int numLoops = Integer.getInteger(EVENT_LOOPS_PROPERTY, 0).intValue();
+		_eventLoops = new EventLoop[(numLoops > 0) ? numLoops : 0];
+		for (int i = 0; i < _eventLoops.length; i++) {
+			_eventLoops[i] = new EventLoop(_nimbus, i);
+			_eventLoops[i].start();
+		}
+
+		_trafficStats.register("Entity", "port " + contactPort);
 		_contactPort = P2PChannelFactory.newInstance(contactPort, this);
-		_entity_mcastThread.start();
+		if (!_contactPort.hasOwnThread()) {
+			// The Entity thread drives the contact port's Selector,
+			// so reading and handling a message happen together.
+			_ss.setPoller(_contactPort);
+		}
 		_mcastAddress = ((null == mcastAddress) ? 
 						 mcastAddress : new String(mcastAddress));
 		_mcastPort = baseMcastPort;
@@ -172,6 +207,9 @@ public final class Entity implements Selectable.Handler, Runnable {
 		if (null != qosClasses) {
 			this.addNonCommandLogicQoSClasses(qosClasses);
 		}
+
+		// Start last.  run() uses _state and _controlLogic.
+		_entity_mcastThread.start();
     }
     
     
@@ -258,42 +296,20 @@ public final class Entity implements Selectable.Handler, Runnable {
     public final void run() {
 	// start running
 	_running = true;
+
+	// we are always interested in reading about incoming/outgoing
+	// connections established by the ContactPort.  Everything else
+	// registers with _ss when it is created and removes itself when
+	// it goes away, so _ss isn't rebuilt on each pass.  Projectors
+	// become interested in writing when their ViewInterpreters hear
+	// a change.  ControlLogic adds Selectables of its own once.
+	_ss.addSelectable(_contactPort, SignalType.READ, this);
+	synchronized (_controlLogic) {
+	    _controlLogic.buildSelectableSet(_ss);
+	}
 	
 	while (_running) {
 	    
-	    _ss.clearAllSelectables(SignalType.READ);
-	    _ss.clearAllSelectables(SignalType.WRITE);
-	    _ss.clearAllSelectables(SignalType.ERROR);
-	    
-	    // we are always interested in reading about incoming/outgoing
-	    // connections established by the ContactPort
-	    _ss.addSelectable(_contactPort, SignalType.READ, this);
-	    
-	    // we are interested in writing to the ContactPort when
-	    // there are pending outgoing requests.
-	    synchronized (_pendingConnections) {
-		if (_pendingConnections.size() > 0) {
-		    _ss.addSelectable(_contactPort, SignalType.WRITE, this);
-		}
-	    }
-	    
-	    // allow the Focus/Nimbus to add P2PChannels (from FSMs)
-	    // as necessary
-	    _focus.buildSelectableSet(_ss);
-	    _nimbus.buildSelectableSet(_ss);
-	    _controlLogic.buildSelectableSet(_ss);
-
-	    // I deal with the result of RMI.  I delegate to
-	    // ControlLogic.handle()
-	    synchronized(_pendingRMI) {
-		// DAVID: Do I have to check values() against null?
-		for (Iterator i = _pendingRMI.values().iterator(); i.hasNext(); ) {
-		    SelectableFutureResult r = (SelectableFutureResult)i.next();
-		    _ss.addSelectable(r, SignalType.READ, this);
-		    _ss.addSelectable(r, SignalType.ERROR, this);
-		}
-	    }
-	    
 	    // how long until the next timer
 	    long selectTime = _clock.timeToNextAlarm();
 	    
@@ -302,19 +318,7 @@ public final class Entity implements Selectable.Handler, Runnable {
 	    
 	    // handle the Selectables which have events
 	    if (changed > 0) {
-		// for each SignalType
-		for (Iterator itst = SignalType.iterator(); itst.hasNext();) {
-		    SignalType st = (SignalType)itst.next();
-		    // for each Selectable
-		    for (Iterator it = _ss.iterator(st); it.hasNext();) {
-			Selectable sel = (Selectable)it.next();
-			// get the Handler
-			Selectable.Handler h = _ss.getHandler(sel, st);
-			// delegate
-			// System.out.println("Processing:"+sel+" sig:"+st+ " at: "+h);
-			h.handle(sel, st);
-		    }			
-		}
+		_ss.handleSelected();
 	    }
 	    
 	    // handle timer expiration callbacks
@@ -323,8 +327,20 @@ public final class Entity implements Selectable.Handler, Runnable {
 	
 	// TODO: Each Projector and each Receptor must call session.close().
 	_normInstance.destroyInstance();
+	_trafficStats.close();
     }
     
+    /** 
+     * Get the traffic of all of the Entity's P2PChannels,
+     * MappedChannels and SelectableNormSessions.  It is registered
+     * as an MBean of type Entity named for the contact port.
+     *
+     * @return the Entity's TrafficStats
+     */
+    public TrafficStats getTrafficStats() {
+	return _trafficStats;
+    }
+
     /** 
      * force a synchronous break out of select()
      */
@@ -338,6 +354,36 @@ public final class Entity implements Selectable.Handler, Runnable {
      */
     public final void stop() {
 	_running = false;
+	for (int i = 0; i < _eventLoops.length; i++) {
+	    _eventLoops[i].stop();
+	}
+    }
+    
+    /** 
+     * Choose the EventLoop for a new client.
+     * @return the least loaded EventLoop, or null if the Entity
+     * serves all of its clients itself.
+     */
+    final EventLoop nextEventLoop() {
+	EventLoop answer = null;
+	int size = Integer.MAX_VALUE;
+	for (int i = 0; i < _eventLoops.length; i++) {
+	    int s = _eventLoops[i].size();
+	    if (s < size) {
+		answer = _eventLoops[i];
+		size = s;
+	    }
+	}
+	return answer;
+    }
+    
+    /** 
+     * Expose the SelectableSet of the Entity.  Selectables remain in
+     * it until they are removed.
+     * @return the SelectableSet
+     */
+    final SelectableSet getSelectableSet() {
+	return _ss;
     }
     
     /** 
@@ -348,6 +394,8 @@ public final class Entity implements Selectable.Handler, Runnable {
 	synchronized (_pendingRMI) {
 	    _pendingRMI.put(r.getUID(), r);
 	}
+	_ss.addSelectable(r, SignalType.READ, this);
+	_ss.addSelectable(r, SignalType.ERROR, this);
     }
     
     /** 
@@ -358,6 +406,8 @@ public final class Entity implements Selectable.Handler, Runnable {
 	synchronized (_pendingRMI) {
 	    _pendingRMI.remove(r.getUID());
 	}
+	_ss.removeSelectable(r, SignalType.READ);
+	_ss.removeSelectable(r, SignalType.ERROR);
     }
     
     /** 
@@ -374,7 +424,9 @@ public final class Entity implements Selectable.Handler, Runnable {
      * @param fsm the server side FSM that is now ready
      */
     public void projectorReadyIndication(ServerSideFSM fsm) {
-	_controlLogic.projectorReadyIndication(fsm);
+	synchronized (_controlLogic) {
+	    _controlLogic.projectorReadyIndication(fsm);
+	}
     }
     
     /** 
@@ -382,7 +434,9 @@ public final class Entity implements Selectable.Handler, Runnable {
      * @param fsm the server side FSM that is now dead
      */
     public void projectorNotReadyIndication(ServerSideFSM fsm) {
-	_controlLogic.projectorNotReadyIndication(fsm);
+	synchronized (_controlLogic) {
+	    _controlLogic.projectorNotReadyIndication(fsm);
+	}
     }
     
     /** 
@@ -390,7 +444,9 @@ public final class Entity implements Selectable.Handler, Runnable {
      * @param fsm the client side FSM that is now ready
      */
     public void receptorReadyIndication(ClientSideFSM fsm) {
-	_controlLogic.receptorReadyIndication(fsm);
+	synchronized (_controlLogic) {
+	    _controlLogic.receptorReadyIndication(fsm);
+	}
     }
     
     /** 
@@ -399,7 +455,9 @@ public final class Entity implements Selectable.Handler, Runnable {
      */
     // DAVID: Nothing calls receptorNotReadyIndication()
     public void receptorNotReadyIndication(ClientSideFSM fsm) {
-	_controlLogic.receptorNotReadyIndication(fsm);
+	synchronized (_controlLogic) {
+	    _controlLogic.receptorNotReadyIndication(fsm);
+	}
     }
     
     /** 
@@ -408,7 +466,9 @@ public final class Entity implements Selectable.Handler, Runnable {
      * @return true iff the ControlLogic admits the client
      */
     public boolean admitClient(ClientSideFSM.FetchRequest msg) {
-	return _controlLogic.admitClient(msg);
+	synchronized (_controlLogic) {
+	    return _controlLogic.admitClient(msg);
+	}
     }
     
     /** 
@@ -416,7 +476,9 @@ public final class Entity implements Selectable.Handler, Runnable {
      * @param r the Receptor whose state has changed
      */
     public void receptorStateChangeIndication(Receptor r) {
-	_controlLogic.receptorStateChangeIndication(r);
+	synchronized (_controlLogic) {
+	    _controlLogic.receptorStateChangeIndication(r);
+	}
     }
     
     
@@ -433,13 +495,16 @@ public final class Entity implements Selectable.Handler, Runnable {
 			{"Entity.createMcastSession(", _mcastAddress, ", ",
 			 new Integer(_mcastPort), ")"}));
 	
-		int port = nextPort();
+		int port;
+		synchronized (_freePorts) {
+			port = nextPort();
+		}
 	
 		SelectableNormSession answer =
 			new SelectableNormSession(_normInstance, 
 									  _mcastAddress, port, 
 									  createUniqueNodeId(),
-									  s);
+									  s, _trafficStats);
 	
 		return answer;
     }
@@ -451,7 +516,9 @@ public final class Entity implements Selectable.Handler, Runnable {
     void returnMcastAddress(String address, int port) {
 		_LOG.debug(new Strings(new Object[]
 			{"Entity.returnMcastAddress(", address, ":", new Integer(port), ")"}));
-		returnPort(port);
+		synchronized (_freePorts) {
+			returnPort(port);
+		}
     }
     
     /** 
@@ -501,6 +568,9 @@ public final class Entity implements Selectable.Handler, Runnable {
     public void scheduleConnectTo(ServerContact addr) {
 	synchronized (_pendingConnections) {
 	    _pendingConnections.addLast(addr);
+	    // we are interested in writing to the ContactPort while
+	    // there are pending outgoing requests.
+	    _ss.addSelectable(_contactPort, SignalType.WRITE, this);
 	}
     }
     
@@ -541,7 +611,10 @@ public final class Entity implements Selectable.Handler, Runnable {
      */
     Object execute(String signature, Object[] args) 
 	throws IllegalAccessException, InvocationTargetException, NoSuchMethodException {
-	return _executor.execute(signature, args);
+	// Projectors in different EventLoops share the CommandLogics.
+	synchronized (_executor) {
+	    return _executor.execute(signature, args);
+	}
     }
     
     //// Selectable.Handler
@@ -554,19 +627,24 @@ public final class Entity implements Selectable.Handler, Runnable {
     public void handle(Selectable sel, SignalType st) {
 	// the ContactPort is readable
 	if ((sel == _contactPort) && (st == SignalType.READ)) {
-	    P2PChannel ch = (P2PChannel)_contactPort.read();
-	    // ch is non-null since handle is only called when
+	    Object obj = _contactPort.read();
+	    // obj is non-null since handle is only called when
 	    // select() indicates that the ContactPort is readable.
 		_LOG.debug(new Strings(new Object[]
-			{"Connection established: ", ch}));
-	    
+			{"Connection established: ", obj}));
+
+	    // is this a session opened by a client on a connection
+	    // that it already has?
+	    if (obj instanceof P2PSession) {
+		_nimbus.addSessionToClient((P2PSession)obj);
+	    }
 	    // is this a connection to a client?
-	    if (ch.getServerContact() == null) {
-		_nimbus.addConnectionToClient(ch);
+	    else if (((P2PConnection)obj).getServerContact() == null) {
+		_nimbus.addConnectionToClient((Selectable)obj);
 	    }
 	    // or is this a connection to a server?
 	    else {
-		_focus.addConnectionToServer(ch);
+		_focus.addConnectionToServer((Selectable)obj);
 	    }
 	}
 	// the ContactPort is writable
@@ -578,14 +656,23 @@ public final class Entity implements Selectable.Handler, Runnable {
 		// non-empty
 		_LOG.debug(new Strings(new Object[]
 			{"Attempting connection: ", addr}));
-		// contactPort is writable since handle is called
-		// after a select() indicates that the ContactPort is
-		// writable.
-		_contactPort.write(addr);
+		// Share a connection to the server if there is one that
+		// carries P2PSessions.  Otherwise, contactPort is
+		// writable since handle is called after a select()
+		// indicates that the ContactPort is writable.
+		if (null == _focus.addSessionToServer(addr)) {
+		    _contactPort.write(addr);
+		}
+
+		if (_pendingConnections.size() == 0) {
+		    _ss.removeSelectable(_contactPort, SignalType.WRITE);
+		}
 	    }
 	} else if (sel instanceof SelectableFutureResult) {
 	    deregister((SelectableFutureResult)sel);
-	    _controlLogic.handle(sel, st);
+	    synchronized (_controlLogic) {
+		_controlLogic.handle(sel, st);
+	    }
 	} else {
 	    _LOG.error(new Strings(new Object[]
 			{sel, " for ", st, " WHY AM I INTERESTED IN THIS?"}));
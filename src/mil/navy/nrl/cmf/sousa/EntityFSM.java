@@ -16,7 +16,7 @@ import org.apache.log4j.Logger;
  *
  * An EntityFSM object includes the following state information:
  * <ul>
- * <li> P2PChannel control channel
+ * <li> control channel: a P2PConnection or a P2PSession on one
  * <li> EntityFSM.State representing the current state of the FSM
  * <li> LinkedList serving as the outbound queue
  * <li> boolean deathWarrant indicating the FSM is about to be freed
@@ -176,10 +176,34 @@ public abstract class EntityFSM implements Selectable.Handler,
 				next = state.handleIndication(x, this);
 			}
 			else if (st == SignalType.WRITE) {
-				Serializable x = (Serializable)_outQ.removeFirst();
-				_LOG.debug(new Strings(new Object[] {"EntityFSM wrote: ", x}));
-				_cc.write(x);
+				// Pipeline as many messages as the control channel
+				// has room for.  A full channel isn't WRITE-ready, so
+				// it holds the rest in _outQ until it drains.
+				boolean wrote = false;
+				while (_cc.spaceWrite() > 0) {
+					Serializable x = null;
+					synchronized (_outQ) {
+						if (_outQ.size() > 0) {
+							x = (Serializable)_outQ.removeFirst();
+						}
+					}
+
+					if (null == x) {
+						break;
+					}
+
+					_LOG.debug(new Strings(new Object[] {"EntityFSM wrote: ", x}));
+					_cc.write(x);
+					wrote = true;
+				}
+
+				if (!wrote) {
+					// Nothing of our own to write.  Give the
+					// writable control channel to the subclass.
+					writeIdle();
+				}
 				next = state;
+				updateWriteInterest();
 
 				if (_deathWarrant) {
 				    attemptKill();
@@ -196,9 +220,15 @@ public abstract class EntityFSM implements Selectable.Handler,
 
 	/** 
 	 * The point-to-point control channel connection to the remote
-	 * entity.
+	 * entity: a P2PChannel or a P2PSession on one.
 	 */
-    final P2PChannel _cc;
+    final Selectable _cc;
+	/** 
+	 * The P2PConnection that carries the control channel: a
+	 * P2PChannel, a LoopbackChannel or a MappedChannel.  It is the
+	 * control channel unless that is a P2PSession.
+	 */
+    final P2PConnection _channel;
 	/** 
 	 * The current State of this FSM.
 	 */
@@ -218,9 +248,11 @@ public abstract class EntityFSM implements Selectable.Handler,
 	 * over a given control channel.
 	 *
 	 * @param cc          the point-to-point control channel.
+	 * @param channel     the P2PConnection that carries cc.
 	 */
-	EntityFSM(P2PChannel cc) {
+	EntityFSM(Selectable cc, P2PConnection channel) {
 		_cc = cc;
+		_channel = channel;
 	}
 
 	//// schedule actions
@@ -228,19 +260,87 @@ public abstract class EntityFSM implements Selectable.Handler,
 	/** 
 	 * Schedule the writing of a serializable on the control channel.
 	 * How is this implemented?  We put the message in the outbound
-	 * queue, break select, causing it to rebuild the selectableset so
-	 * that the control channel of this FSM is included in the write
-	 * set.
+	 * queue.  When the queue becomes non-empty, the control channel
+	 * of this FSM joins the write set of the Entity's SelectableSet,
+	 * which wakes up any pending select.
 	 *
 	 * @param ser          the serializable object to write.
 	 */
 	final void scheduleWrite(Serializable ser) {
+		boolean wasEmpty;
 		synchronized (_outQ) {
+			wasEmpty = (_outQ.size() == 0);
 			_outQ.addLast(ser);
-			wakeup();
+		}
+
+		if (wasEmpty) {
+			updateWriteInterest();
+		}
+	}
+
+	/** 
+	 * Add the control channel to the Entity's SelectableSet for READ
+	 * and ERROR.  It stays there until {@link #deregisterChannel()}.
+	 */
+	final void registerChannel() {
+		SelectableSet ss = getSelectableSet();
+		ss.addSelectable(_cc, SignalType.READ, this);
+		ss.addSelectable(_cc, SignalType.ERROR, this);
+	}
+
+	/** 
+	 * Remove the control channel from the Entity's SelectableSet.
+	 */
+	final void deregisterChannel() {
+		SelectableSet ss = getSelectableSet();
+		ss.removeSelectable(_cc, SignalType.READ);
+		ss.removeSelectable(_cc, SignalType.ERROR);
+		ss.removeSelectable(_cc, SignalType.WRITE);
+	}
+
+	/** 
+	 * Add the control channel to the write set of the Entity's
+	 * SelectableSet if this FSM has something to write.  Remove it
+	 * otherwise.  It may be called from any thread: a Projector
+	 * calls it when its ViewInterpreters hear a change.
+	 */
+	final void updateWriteInterest() {
+		SelectableSet ss = getSelectableSet();
+		// Decide and act under one monitor, so that a thread that
+		// finds nothing to write can't undo the interest of one that
+		// has just found something.
+		synchronized (_outQ) {
+			if (wantsWrite()) {
+				ss.addSelectable(_cc, SignalType.WRITE, this);
+			} else {
+				ss.removeSelectable(_cc, SignalType.WRITE);
+			}
 		}
 	}
 
+	/** 
+	 * Does this FSM have something to write on the control channel?
+	 *
+	 * @return true if the outbound queue is not empty
+	 */
+	boolean wantsWrite() {
+		synchronized (_outQ) {
+			return (_outQ.size() > 0);
+		}
+	}
+
+	/** 
+	 * Use the writable control channel when the outbound queue is
+	 * empty.  The default does nothing.
+	 */
+	void writeIdle() {
+	}
+
+	/** 
+	 * Return the SelectableSet of the Entity in which this FSM resides.
+	 */
+	abstract SelectableSet getSelectableSet();
+
 	/** 
 	 * Wait until the outQ is empty, then kill this FSM.  This method
 	 * must be called repeatedly--once in each call to handle(), until
@@ -0,0 +1,135 @@
+// EventLoop.java
+
+package mil.navy.nrl.cmf.sousa;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An EventLoop runs a share of the server side of an Entity on a
+ * Thread of its own.  It has its own SelectableSet and Clock.  The
+ * Nimbus assigns each new ServerSideFSM to an EventLoop; the FSM's
+ * control channel and the Projector it creates live in that
+ * EventLoop until they go away.
+ *
+ * EventLoops are optional.  See {@link Entity#EVENT_LOOPS_PROPERTY}.
+ */
+final class EventLoop implements Runnable {
+    private static final Logger _LOG =
+	Logger.getLogger(EventLoop.class);
+
+    // the Nimbus whose FSMs and Projectors run here
+    private final Nimbus _nimbus;
+
+    // the SelectableSet for this loop's asynchronous event handling
+    private final SelectableSet _ss = new SelectableSet();
+
+    // timer management for this loop
+    private final Clock _clock;
+
+    // the thread that runs this loop
+    private final Thread _thread;
+
+    // is the loop running?
+    private volatile boolean _running = false;
+
+    // how many ServerSideFSMs have been assigned to this loop?
+    private int _numberOfClients = 0;
+
+    /**
+     * Construct an EventLoop for a Nimbus.  It doesn't run until
+     * start() is called.
+     *
+     * @param nimbus the Nimbus
+     * @param index distinguishes the name of this loop's Thread
+     */
+    EventLoop(Nimbus nimbus, int index) {
+	_nimbus = nimbus;
+	_clock = new Clock(nimbus._entity, _ss,
+			   nimbus._entity.getClock().usesTimingWheel());
+	_thread = new Thread(this, "Entity Event Loop " + index);
+    }
+
+    /**
+     * Start the loop's Thread.
+     */
+    void start() {
+	_running = true;
+	_thread.start();
+    }
+
+    /**
+     * End the life cycle of the loop.
+     */
+    void stop() {
+	_running = false;
+	wakeup();
+    }
+
+    /**
+     * Force a synchronous break out of select().
+     */
+    void wakeup() {
+	_ss.interrupt();
+    }
+
+    /**
+     * @return the SelectableSet of this loop
+     */
+    SelectableSet getSelectableSet() {
+	return _ss;
+    }
+
+    /**
+     * @return the Clock of this loop
+     */
+    Clock getClock() {
+	return _clock;
+    }
+
+    /**
+     * Count a ServerSideFSM assigned to this loop.
+     */
+    synchronized void addClient() {
+	_numberOfClients ++;
+    }
+
+    /**
+     * Count a ServerSideFSM removed from this loop.
+     */
+    synchronized void removeClient() {
+	_numberOfClients --;
+    }
+
+    /**
+     * @return the number of ServerSideFSMs in this loop
+     */
+    synchronized int size() {
+	return _numberOfClients;
+    }
+
+    /**
+     * The main execution loop.  It is the server-side half of
+     * Entity.run().
+     */
+    public void run() {
+	_LOG.debug(_thread.getName() + " running");
+
+	// Projectors in this loop become interested in writing when
+	// their ViewInterpreters hear a change, so nothing is polled.
+	while (_running) {
+
+	    // wait for asynchronous events on one of the Selectable
+	    int changed = _ss.select(_clock.timeToNextAlarm());
+
+	    // handle the Selectables which have events
+	    if (changed > 0) {
+		_ss.handleSelected();
+	    }
+
+	    // handle timer expiration callbacks
+	    _clock.processAlarms();
+	}
+
+	_LOG.debug(_thread.getName() + " stopped");
+    }
+}
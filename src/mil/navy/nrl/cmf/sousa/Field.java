@@ -1,8 +1,6 @@
 package mil.navy.nrl.cmf.sousa;
 
 import java.io.Serializable;
-import java.util.HashSet;
-import java.util.Iterator;
 
 /**
  * A single key-value pair within a State
@@ -12,6 +10,9 @@ public final class Field implements Serializable {
     //// nested classes
     
     private static final long serialVersionUID = 1L;
+
+    // the id of a Field.ChangeMessage that carries the field's name
+    static final int NO_ID = -1;
     
     /**
      * Message which encapsulates an atomic change to the Field
@@ -20,12 +21,28 @@ public final class Field implements Serializable {
 	private static final long serialVersionUID = 1L;
 	public final String _fname;
 	public final Serializable _value;
+
+	// The id of the field in the FieldDictionary of the data
+	// channel, or NO_ID.  A Projector sends the id instead of the
+	// name when there is one.  The Receptor puts the name back
+	// before anyone else sees the message.
+	final int _fid;
 	
 	/**
 	 * The field-name and its new value, in a message format
 	 */
 	public ChangeMessage(String fname, Serializable value) {
+	    this(fname, NO_ID, value);
+	}
+
+	/*
+	 * PURPOSE: Make a message that names the field by its id in a
+	 * FieldDictionary.
+	 * PRECONDITION: Either fname is non-null or fid isn't NO_ID.
+	 */
+	ChangeMessage(String fname, int fid, Serializable value) {
 	    _fname = fname;
+	    _fid = fid;
 	    _value = value;
 	}
     }
@@ -36,26 +53,37 @@ public final class Field implements Serializable {
     private final State _state;
     // The name of this Field
     private final String  _name;
+    // The slot of this Field in _state, from 0 in the order the
+    // Fields were added.  FieldListeners keep their dirty Fields as
+    // a BitSet of slots.
+    private final int _slot;
     // the value of this Field
     private Serializable _value;
-    // the FieldListener objects attached to this Field
-    private final HashSet _listeners = new HashSet();
+    // the version of _state in which _value was set
+    private long _version;
+    // the FieldListener objects attached to this Field.  Replaced,
+    // never changed, so that fireNotifications() needn't copy it or
+    // make an Iterator.
+    private FieldListener[] _listeners = NO_LISTENERS;
+
+    private static final FieldListener[] NO_LISTENERS = new FieldListener[0];
     
     //// package methods
     
     /*
      * Construct a new Field with a given name and Value, associated with State s
      * @param s the field name
+     * @param slot the slot of the Field in state
      * @param value the current value
      * @param state the owning State
+     * @param version the version of state in which value was set
      */
-    /*
-
-     */
-    Field(String s, Serializable value, State state) {
+    Field(String s, int slot, Serializable value, State state, long version) {
 	_name = s;
+	_slot = slot;
 	_value = value;
 	_state = state;
+	_version = version;
     }
     
     /*
@@ -63,8 +91,18 @@ public final class Field implements Serializable {
      * @param fl the field listener which receives synchronous callback on changes to value
      */
     final void attachFieldListener(FieldListener fl) {
-	_listeners.add(fl);
-	fl.attachFieldNotification(_name);
+	for (int i = 0; i < _listeners.length; i++) {
+	    if (_listeners[i] == fl) {
+		fl.attachFieldNotification(this);
+		return;
+	    }
+	}
+
+	FieldListener[] listeners = new FieldListener[_listeners.length + 1];
+	System.arraycopy(_listeners, 0, listeners, 0, _listeners.length);
+	listeners[_listeners.length] = fl;
+	_listeners = listeners;
+	fl.attachFieldNotification(this);
     }
     
     /*
@@ -72,8 +110,18 @@ public final class Field implements Serializable {
      * @param fl the field listener which receives synchronous callback on changes to value
      */
     final void detachFieldListener(FieldListener fl) {
-	_listeners.remove(fl);
-	fl.detachFieldNotification(_name);
+	for (int i = 0; i < _listeners.length; i++) {
+	    if (_listeners[i] == fl) {
+		FieldListener[] listeners = (1 == _listeners.length) ?
+		    NO_LISTENERS : new FieldListener[_listeners.length - 1];
+		System.arraycopy(_listeners, 0, listeners, 0, i);
+		System.arraycopy(_listeners, i + 1, listeners, i,
+				 listeners.length - i);
+		_listeners = listeners;
+		break;
+	    }
+	}
+	fl.detachFieldNotification(this);
     }
     
     /*
@@ -82,9 +130,36 @@ public final class Field implements Serializable {
      */
     final void setValue(Serializable newValue) {
 	_value = newValue;
+	_version = _state.changed(_slot, newValue);
 	fireNotifications();
     }
     
+    /*
+     * Get the name of this Field
+     * @return the name
+     */
+    final String getName() {
+	return _name;
+    }
+
+    /*
+     * Get the slot of this Field in its State
+     * @return the slot, from 0 in the order the Fields were added
+     */
+    final int getSlot() {
+	return _slot;
+    }
+
+    /*
+     * Get the version of the State in which the value of this Field
+     * was last set.  Versions only increase, so the Field has changed
+     * since version N if and only if getVersion() > N.
+     * @return the version
+     */
+    final long getVersion() {
+	return _version;
+    }
+
     /*
      * Get the value of this Field as an immutable Serializable
      * @return the current value of this field
@@ -97,10 +172,9 @@ public final class Field implements Serializable {
      * Inform all listeners of this Field that it has changed.
      */
     final void fireNotifications() {
-	Field.ChangeMessage fcm = new Field.ChangeMessage(_name, _value);
-	for (Iterator it = _listeners.iterator(); it.hasNext();) {
-	    FieldListener fl = (FieldListener)it.next();
-	    fl.recvNotification( _name );
+	FieldListener[] listeners = _listeners;
+	for (int i = 0; i < listeners.length; i++) {
+	    listeners[i].recvNotification(_slot);
 	}
     }
     
@@ -0,0 +1,94 @@
+package mil.navy.nrl.cmf.sousa;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * A FieldDictionary numbers the qualified field names of a
+ * Projector's Receptors so that Field.ChangeMessages can carry a
+ * small integer instead of the name.  The Projector makes it from
+ * the State of its first Receptor and gives the same one to every
+ * Receptor it makes, inside the Receptor, so that the ids mean the
+ * same thing to every client of the data channel.  A name that isn't
+ * in the dictionary is still sent as a String.
+ *
+ * A FieldDictionary never changes.
+ */
+final class FieldDictionary implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // id -> name
+    private final String[] _names;
+
+    // name -> Integer id.  Only the Projector uses it, so it isn't
+    // sent to the clients.
+    private transient HashMap _ids = null;
+
+    /*
+     * PURPOSE: Number the names.
+     * PRECONDITION: names is a Set of String.
+     * POSTCONDITION: The ids are 0 to names.size() - 1 in the order
+     * of names' Iterator.
+     */
+    FieldDictionary(Set names) {
+	_names = new String[names.size()];
+	int id = 0;
+	for (Iterator i = names.iterator(); i.hasNext(); ) {
+	    _names[id++] = (String)i.next();
+	}
+    }
+
+    /*
+     * PURPOSE: Make the Field.ChangeMessage to send for a change of
+     * the field called name.
+     * POSTCONDITION: The answer carries name's id and no name, or
+     * name if it has no id.
+     */
+    Field.ChangeMessage encode(String name, Serializable value) {
+	Integer id = (Integer)ids().get(name);
+	Field.ChangeMessage answer;
+	if (null != id) {
+	    answer = new Field.ChangeMessage(null, id.intValue(), value);
+	}
+	else {
+	    answer = new Field.ChangeMessage(name, value);
+	}
+	return answer;
+    }
+
+    /*
+     * PURPOSE: Look up the name of an id.
+     * POSTCONDITION: Answers null if id isn't in the dictionary.
+     */
+    String nameOf(int id) {
+	return ((id >= 0) && (id < _names.length)) ? _names[id] : null;
+    }
+
+    /*
+     * PURPOSE: Answer the names in id order.
+     * POSTCONDITION: The answer is a copy.
+     */
+    String[] getNames() {
+	return _names.clone();
+    }
+
+    int size() {
+	return _names.length;
+    }
+
+    private synchronized HashMap ids() {
+	if (null == _ids) {
+	    _ids = new HashMap();
+	    for (int id = 0; id < _names.length; id++) {
+		_ids.put(_names[id], new Integer(id));
+	    }
+	}
+	return _ids;
+    }
+
+    public String toString() {
+	return "FieldDictionary[" + _names.length + " names]";
+    }
+}
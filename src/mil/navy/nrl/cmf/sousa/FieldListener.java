@@ -1,8 +1,10 @@
 package mil.navy.nrl.cmf.sousa;
 
 import java.io.Serializable;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Set;
 
 /**
@@ -16,10 +18,25 @@ public class FieldListener {
     // can be attached.
     private final State _state;
     // the (String) names of the Fields to which this FieldListener is
-    // listening, all residing in the State _state.
+    // listening, all residing in the State _state.  _state is its
+    // monitor, as it is of the rest but _projector.
     private final HashSet _fields = new HashSet();
-    // the subset of Fields named in _fields which are dirty.
-    private final HashSet _dirty = new HashSet();
+    // the slots of the Fields named in _fields.  See
+    // State.getSlot().
+    private final BitSet _slots = new BitSet();
+    // the version of _state when makeMessage() last collected the
+    // changes.  The Fields that have changed since then are dirty.
+    private long _since = 0;
+    // the slots of the Fields attached since then.  They are dirty
+    // whatever their versions.
+    private final BitSet _attached = new BitSet();
+    // true if a Field has changed since makeMessage() last collected
+    // the changes.
+    private boolean _changed = false;
+    // the Projector, if any, that writes what this FieldListener
+    // hears.  Each notification asks it to write.  See
+    // Projector.fieldsChanged().
+    private volatile Projector _projector = null;
     
     
     //// public methods
@@ -33,60 +50,118 @@ public class FieldListener {
     }
     
     /*
-     * Build a State.ChangeMessage for the changed fields. Returns
-     * null if there are no Fields.
+     * Build a State.ChangeMessage for the changed fields: those that
+     * have changed since the last call, and those attached since
+     * then.  Returns null if there are no Fields.  It asks the State
+     * for the changes since a version, so it looks at the changes
+     * rather than at every Field.
      * @return a State.ChangeMessage which bundles Field.ChangeMessages
      */
     public State.ChangeMessage makeMessage() {
-	State.ChangeMessage scm = _makeMessage(_dirty);
-	_dirty.clear();
+	State.ChangeMessage scm;
+	
+	// _state is the monitor of _since.  See State.
+	synchronized (_state) {
+	    if (_attached.isEmpty()) {
+		scm = _makeMessage(_slots, _since);
+	    } else {
+		BitSet slots = (BitSet)_slots.clone();
+		slots.andNot(_attached);
+		scm = _makeMessage(slots, _since);
+
+		State.ChangeMessage attached = _makeMessage(_attached, 0);
+		if (null == scm) {
+		    scm = attached;
+		} else {
+		    for (Iterator i = attached.getMessages().iterator(); 
+			 i.hasNext(); ) {
+			scm.addFieldChangeMessage((Field.ChangeMessage)i.next());
+		    }
+		}
+	    }
+	    clean();
+	}
 	
 	return scm;
     }
+
+    /*
+     * Build a State.ChangeMessage for the Fields that have changed
+     * since a version of the State, whether or not they are dirty.
+     * Doesn't change which Fields are dirty.  Returns null if none
+     * has changed.
+     * @param version a version from getVersion()
+     * @return a State.ChangeMessage which bundles Field.ChangeMessages
+     */
+    public State.ChangeMessage makeMessageSince(long version) {
+	synchronized (_state) {
+	    return _makeMessage(_slots, version);
+	}
+    }
+
+    /*
+     * Return the version of the State, for a later
+     * makeMessageSince().
+     * @return the version of the last change to any Field of the State
+     */
+    public final long getVersion() {
+	return _state.getVersion();
+    }
     
     //// package methods
     
     
     /*
      * Confirm that this FieldListener has been attached to a Field.
-     * @param fname the name of the Field
+     * @param f the Field
      */
-    final void attachFieldNotification(String fname) {
-	_fields.add(fname);
-	
-	// Record as dirty to ensure that there is a value for the
-	// fname in the output of makeMessage().
-	_dirty.add(fname);
+    final void attachFieldNotification(Field f) {
+	synchronized (_state) {
+	    _fields.add(f.getName());
+	    _slots.set(f.getSlot());
+	    
+	    // Record as dirty to ensure that there is a value for the
+	    // Field in the output of makeMessage().
+	    _attached.set(f.getSlot());
+	}
     }
     
     /*
      * Confirm that this FieldListener is no longer attached to a Field.
      *
-     * If you intend to detach all fields by iterating over
-     * getFields() and calling detachFieldNotification() once per
-     * field, you'll get a ConcurrentModificationException.  Try
-     * this instead:
-     *
-     * Object[] fields = someFieldListener.getFields().toArray();
-     * for (int i=0; i < fields.length; i++) {
-     *    detachFieldNotification(fields[i]);
-     * }
-     *
-     * @param fcm the Field.ChangeMessage to be applied
-     * @return a Field.ChangeMessage with the field's present value
+     * @param f the Field
      */
-    final void detachFieldNotification(String fname) {
-	_fields.remove(fname);
-	_dirty.remove(fname);
+    final void detachFieldNotification(Field f) {
+	synchronized (_state) {
+	    _fields.remove(f.getName());
+	    _slots.clear(f.getSlot());
+	    _attached.clear(f.getSlot());
+	}
     }
     
     /*
      * Notify this FieldListener that a Field has changed.
      *
-     * @param fname the name of the field
+     * @param slot the slot of the field
+     */
+    final void recvNotification(int slot) {
+	synchronized (_state) {
+	    _changed = true;
+	}
+
+	Projector p = _projector;
+	if (null != p) {
+	    p.fieldsChanged(this);
+	}
+    }
+
+    /*
+     * Tell a Projector about each change to the Fields to which this
+     * FieldListener listens, or no one if it's null.
+     * @param p the Projector
      */
-    final void recvNotification(String fname) {
-	_dirty.add(fname);
+    final void setProjector(Projector p) {
+	_projector = p;
     }
     
     /*
@@ -95,17 +170,23 @@ public class FieldListener {
      * @return true if there are any dirty Fields; false otherwise.
      */
     protected final boolean isDirty() {
-	return (_dirty.size() > 0);
+	synchronized (_state) {
+	    return (_changed || !_attached.isEmpty());
+	}
     }
     
     //// protected methods
     
     /*
-     * Return the immutable set of Fields that the FieldListener listens to.
+     * Return the immutable set of Fields that the FieldListener
+     * listens to.  It is a copy, so it may be iterated while other
+     * threads attach and detach Fields, or detach them in turn.
      * @return a Set of Fields
      */
     protected final Set getFields() {
-	return Collections.unmodifiableSet(_fields);
+	synchronized (_state) {
+	    return Collections.unmodifiableSet(new HashSet(_fields));
+	}
     }
     
     /**
@@ -123,35 +204,94 @@ public class FieldListener {
     protected final Serializable getField(String name) 
 	throws NoSuchFieldException 
     {
-	if (! _fields.contains(name))
-	    throw new NoSuchFieldException(name);
+	synchronized (_state) {
+	    if (! _fields.contains(name))
+		throw new NoSuchFieldException(name);
+	}
 	
 	return _state.getField(name);
     }
+
+    /**
+     * Like {@link #getField(String)}, for a Field found by its slot.
+     *
+     * @param slot the slot of a Field.  See {@link #getSlot(String)}.
+     * @return the value of the Field
+     * @throws NoSuchFieldException if not listening to the Field in
+     * <code>slot</code>
+     * @see State#getField(int)
+    */
+    protected final Serializable getField(int slot) 
+	throws NoSuchFieldException 
+    {
+	synchronized (_state) {
+	    if ((slot < 0) || !_slots.get(slot))
+		throw new NoSuchFieldException("slot " + slot);
+	}
+	
+	return _state.getField(slot);
+    }
+
+    /**
+     * Delegates to State.getSlot() to find the slot of a Field that
+     * this FieldListener is listening to, for getField(int).
+     *
+     * @param name the name of a Field
+     * @return the slot of the Field
+     * @throws NoSuchFieldException if not listening to
+     * <code>name</code>
+     * @see State#getSlot(String)
+    */
+    protected final int getSlot(String name) 
+	throws NoSuchFieldException 
+    {
+	synchronized (_state) {
+	    if (! _fields.contains(name))
+		throw new NoSuchFieldException(name);
+	}
+	
+	return _state.getSlot(name);
+    }
     
     /*
      * Build a State.ChangeMessage for the current values of all fields. Returns null if there are no Fields.
      * @return a State.ChangeMessage containing Field.ChangeMessages for all changed fields.
      */
     protected State.ChangeMessage getCurrentFieldValues() {
-	State.ChangeMessage scm = _makeMessage(_fields);
-	_dirty.clear();
+	State.ChangeMessage scm;
+	
+	synchronized (_state) {
+	    scm = _makeMessage(_slots, 0);
+	    clean();
+	}
 	
 	return scm;
     }
     
     //// private methods
+
+    /*
+     * PURPOSE: Forget the changes, once they have been collected.
+     * PRECONDITION: The caller holds the monitor of _state.
+     * POSTCONDITION: No Field is dirty until the next change.
+     */
+    private void clean() {
+	_since = _state.getVersion();
+	_attached.clear();
+	_changed = false;
+    }
     
     /*
-     * Build a State.ChangeMessage for a Set of Fields.  Returns null if there are no Fields.
-     * @param fields the fields of interest
+     * Build a State.ChangeMessage for a set of Fields that have changed since a version.  Returns null if there are no such Fields.
+     * @param slots the slots of the fields of interest
+     * @param version the version; 0 for every field
      * @return a Field.ChangeMessage with the field's present value
      */
-    private final State.ChangeMessage _makeMessage(Set fields) {
+    private final State.ChangeMessage _makeMessage(BitSet slots, long version) {
 	State.ChangeMessage scm = null;
 	
-	if (fields.size() > 0) {
-	    scm = _state.makeMessage(fields);
+	if (!slots.isEmpty()) {
+	    scm = _state.makeMessage(slots, version);
 	}
 	
 	return scm;
@@ -15,7 +15,8 @@ public final class Focus {
 
     // the Entity within which this Focus resides.
     final Entity _entity;
-    // the client side FSMs, map: P2PChannel->CFSM
+    // the client side FSMs, map: control channel (P2PConnection or
+    // P2PSession)->CFSM
     private final HashMap _cfsms = new HashMap();
     
     /*
@@ -29,17 +30,47 @@ public final class Focus {
     /**
      * Add a clientside FSM to this Focus on behest of the connection to a server.
      *
-     * @param cc the P2PChannel
+     * @param cc the P2PConnection: a P2PChannel, a LoopbackChannel or a MappedChannel
      * @return the ClientSideFSM managing this connection to the server.
      */
-    final ClientSideFSM addConnectionToServer(P2PChannel cc) {
-	ClientSideFSM fsm = new ClientSideFSM(cc, this);
+    final ClientSideFSM addConnectionToServer(Selectable cc) {
+	P2PConnection connection = (P2PConnection)cc;
+	ClientSideFSM fsm = new ClientSideFSM(cc, connection, 
+					      connection.getServerContact(), this);
 	_cfsms.put( cc, fsm );
 	// fsm.scheduleWrite( new Integer(666) );
 	_entity.wakeup();
 	return fsm;
     }
     
+    /**
+     * Add a clientside FSM to this Focus for a P2PSession to a
+     * server on a P2PConnection that the Focus already has to it.
+     * The P2PConnection must be a P2PChannel on which the server said
+     * it reads P2PSessions.
+     *
+     * @param addr the server
+     * @return the ClientSideFSM managing the P2PSession, or null if
+     * there is no such P2PConnection.
+     */
+    final ClientSideFSM addSessionToServer(ServerContact addr) {
+	for (Iterator i = _cfsms.values().iterator(); i.hasNext(); ) {
+	    P2PConnection channel = ((ClientSideFSM)i.next())._channel;
+	    ServerContact server = channel.getServerContact();
+	    if ((server.getPort() == addr.getPort()) &&
+		server.getHost().equals(addr.getHost())) {
+		P2PSession s = channel.openSession(addr);
+		if (null != s) {
+		    ClientSideFSM fsm = new ClientSideFSM(s, channel, addr, this);
+		    _cfsms.put( s, fsm );
+		    _entity.wakeup();
+		    return fsm;
+		}
+	    }
+	}
+	return null;
+    }
+    
     /**
      * Remove a client side FSM.  
      *
@@ -49,22 +80,10 @@ public final class Focus {
 		_LOG.debug(new Strings(new Object[]
 			{"removeConnectionToServer(): ", fsm}));
 	_cfsms.remove(fsm._cc);
+	fsm.deregisterChannel();
 	_entity.wakeup();
     }
     
-    //// building the SelectableSet
-    
-    /**
-     * Allow FSMs to add their P2PChannels to the SelectableSet
-     *
-     * @param ss the SelectableSet to which P2PChannels are to be added
-     */
-    void buildSelectableSet(SelectableSet ss) {
-	for (Iterator it=_cfsms.values().iterator(); it.hasNext(); ) {
-	    ClientSideFSM cfsm=(ClientSideFSM)it.next();
-	    cfsm.buildSelectableSet(ss);
-	}
-    }
 }
 // Focus.java
 
@@ -0,0 +1,129 @@
+package mil.navy.nrl.cmf.sousa;
+
+import java.io.Serializable;
+import java.util.HashMap;
+
+/**
+ * Keyframes holds the last keyframe of each delta encoded field.  A
+ * Projector uses one to decide when to send a keyframe and to make
+ * the DeltaFrames.  Each Receptor gets a copy when it's made, so that
+ * it can decode Deltas from keyframes that were sent before it
+ * joined, and keeps it up to date with the keyframes that follow.
+ *
+ * A Delta always refers to a keyframe, never to another Delta, so
+ * quantization errors don't accumulate.  A Receptor that doesn't
+ * hold a Delta's keyframe, for instance because it joined the data
+ * channel late, ignores it and catches up at the next keyframe.
+ */
+final class Keyframes implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // qualified field name -> DeltaFrame, the field's last keyframe
+    private final HashMap _frames;
+
+    // the most Deltas from one keyframe.  Only the Projector uses it.
+    private final transient int _interval;
+
+    // qualified field name -> int[1], the number of Deltas sent since
+    // the field's last keyframe.  null at the Receptor.
+    private final transient HashMap _deltasSent;
+
+    // the number of the next keyframe
+    private transient int _nextKeyframe = 0;
+
+    /*
+     * PURPOSE: Make the Keyframes of a Projector.
+     * POSTCONDITION: After interval Deltas from a keyframe, the next
+     * value is a keyframe.  If interval <= 0, every value is.
+     */
+    Keyframes(int interval) {
+	_frames = new HashMap();
+	_interval = interval;
+	_deltasSent = new HashMap();
+    }
+
+    // a copy of frames, for a Receptor
+    private Keyframes(HashMap frames) {
+	_frames = frames;
+	_interval = 0;
+	_deltasSent = null;
+    }
+
+    /*
+     * PURPOSE: Make the value to send for a change of a delta encoded
+     * field.
+     * PRECONDITION: precision > 0.
+     * POSTCONDITION: Answers a Delta from the field's keyframe within
+     * precision of value, if value has one and fewer than the interval
+     * have been sent since the keyframe.  Otherwise answers value as
+     * the field's new keyframe.  value itself if it isn't
+     * DeltaEncodable.
+     */
+    synchronized Serializable encode(String name, Serializable value,
+				     double precision) {
+	if (!(value instanceof DeltaEncodable)) {
+	    _frames.remove(name);
+	    _deltasSent.remove(name);
+	    return value;
+	}
+
+	DeltaFrame keyframe = (DeltaFrame)_frames.get(name);
+	int[] sent = (int[])_deltasSent.get(name);
+
+	if ((null != keyframe) && (sent[0] < _interval)) {
+	    Delta delta = ((DeltaEncodable)value).deltaFrom(keyframe._value,
+							     precision);
+	    if (null != delta) {
+		sent[0]++;
+		return new DeltaFrame(keyframe._keyframe, delta);
+	    }
+	}
+
+	keyframe = new DeltaFrame(_nextKeyframe++, value);
+	_frames.put(name, keyframe);
+	_deltasSent.put(name, new int[1]);
+	return keyframe;
+    }
+
+    /*
+     * PURPOSE: Find the value that a Field.ChangeMessage's value
+     * stands for.
+     * POSTCONDITION: Answers value unless it's a DeltaFrame.  A
+     * keyframe becomes the field's keyframe and answers its value.  A
+     * Delta from the field's keyframe answers the value that it
+     * describes.  A Delta from any other keyframe is answered
+     * unchanged, to be ignored.
+     */
+    synchronized Object decode(String name, Object value) {
+	Object answer = value;
+
+	if (value instanceof DeltaFrame) {
+	    DeltaFrame frame = (DeltaFrame)value;
+	    if (frame.isKeyframe()) {
+		_frames.put(name, frame);
+		answer = frame._value;
+	    }
+	    else {
+		DeltaFrame keyframe = (DeltaFrame)_frames.get(name);
+		if ((null != keyframe) &&
+		    (keyframe._keyframe == frame._keyframe)) {
+		    answer = ((Delta)frame._value).applyTo(keyframe._value);
+		}
+	    }
+	}
+
+	return answer;
+    }
+
+    /*
+     * PURPOSE: Copy the keyframes for a new Receptor.
+     * POSTCONDITION: The copy decodes but doesn't encode.
+     */
+    synchronized Keyframes copy() {
+	return new Keyframes(new HashMap(_frames));
+    }
+
+    public synchronized String toString() {
+	return "Keyframes" + _frames;
+    }
+}
@@ -0,0 +1,262 @@
+package mil.navy.nrl.cmf.sousa;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.net.SocketException;
+import java.util.Iterator;
+import org.apache.log4j.Logger;
+
+/**
+ * A LoopbackChannel is one end of a P2PConnection between two
+ * Entities in the same JVM.  An Object written at one end goes
+ * straight into the read queue of the other, as a deep copy made by
+ * serializing it or, if it can't change, by reference.  Nothing
+ * passes through a socket or a Selector.
+ *
+ * The P2PChannelFactory makes a pair of LoopbackChannels instead of
+ * a P2PChannel when the ServerContact it is asked to connect to is
+ * the port of another P2PChannelFactory in the JVM.
+ *
+ * By default, a LoopbackChannel copies everything but Strings, boxed
+ * primitives, and State.ChangeMessages whose values are all
+ * Strings or boxed primitives.  Those can't change, so the two
+ * Entities may share them.  Anything else, such as a Vector3d in a
+ * State.ChangeMessage, is copied.  Otherwise a change to it by
+ * either Entity would silently show up in the other's State, as it
+ * never would over a P2PChannel.
+ *
+ * An end made not to copy hands everything over by reference, and
+ * then neither Entity may change an Object after writing or reading
+ * it.  Even so, the fetch handshake, an EntityFSM.Request and its
+ * EntityFSM.Response, is always copied, because each side keeps
+ * and changes what it receives: the server sets the local UID of
+ * the QoS in a FetchRequest and the client starts the Receptor in
+ * a FetchResponse.
+ */
+final class LoopbackChannel extends Selectable implements P2PConnection {
+	private static final Logger _LOG =
+		Logger.getLogger(LoopbackChannel.class);
+
+    // the other end
+    private LoopbackChannel _peer;
+
+    // the remote server, or null if the remote endpoint is our client
+    private final ServerContact _addr;
+
+    // are Objects that can change copied on their way to the other
+    // end?
+    private final boolean _copy;
+
+    // has this end been closed?
+    private volatile boolean _closed = false;
+
+    /*
+     * PURPOSE: Make the two ends of a LoopbackChannel
+     * PRECONDITION: capacities > 0.
+     * POSTCONDITION: Returns the end for the client, whose server is
+     * addr, and the end for the server, in that order.  Objects
+     * written at the client's end are copied if clientCopies is true
+     * and likewise at the server's.
+     */
+    static LoopbackChannel[] newPair(ServerContact addr,
+				     int clientCapacity, boolean clientCopies,
+				     int serverCapacity, boolean serverCopies) {
+	LoopbackChannel client =
+	    new LoopbackChannel(addr, clientCapacity, clientCopies);
+	LoopbackChannel server =
+	    new LoopbackChannel(null, serverCapacity, serverCopies);
+	client._peer = server;
+	server._peer = client;
+	return new LoopbackChannel[] { client, server };
+    }
+
+    private LoopbackChannel(ServerContact addr, int capacity, boolean copy) {
+	super(capacity, capacity);
+	_addr = addr;
+	_copy = copy;
+    }
+
+    public String toString() {
+	String s = "";
+	if (_addr != null) {
+	    s = "LoopbackChannel to server "+_addr+"";
+	}
+	else {
+	    s = "LoopbackChannel from client";
+	}
+	return s;
+    }
+
+    //// P2PConnection
+
+    public ServerContact getServerContact() {
+	return _addr;
+    }
+
+    // Objects aren't framed, so there's nothing to compress or chunk
+    public void setPeerReadsCompressedFrames(boolean b) {
+    }
+
+    public void setPeerReadsChunkedFrames(boolean b) {
+    }
+
+    public void setPeerReadsStreams(boolean b) {
+    }
+
+    // Another LoopbackChannel costs no more than a P2PSession would
+    public void setPeerReadsSessions(boolean b) {
+    }
+
+    public P2PSession openSession(ServerContact addr) {
+	return null;
+    }
+
+    //// over-rides to Selectable methods
+
+    /*
+     * PURPOSE: Get an Object written at the other end.
+     * POSTCONDITION: Returns the Object, or null if there is none.
+     * If the read queue was full, the other end may write again.
+     */
+    public Object read() {
+	boolean wakeup = (spaceRead() == 0);
+	Object ser = super.read();
+	if (wakeup) {
+	    _peer.broadcastNotification(SignalType.WRITE);
+	}
+	return ser;
+    }
+
+    /*
+     * PURPOSE: Hand an Object to the other end.
+     * PRECONDITION: ser!=null and spaceWrite() > 0.
+     * POSTCONDITION: ser, or a copy of it, is in the read queue of
+     * the other end, unless either end has been closed.  Requests
+     * and Responses are always copied, and so is anything that can
+     * change, unless this end doesn't copy.
+     */
+    public void write(Object ser) {
+	if (spaceWrite() <= 0) {
+	    // The caller didn't wait for WRITE.
+	    _LOG.error(this + ": Output queue is full");
+	    throw new IllegalStateException("Output queue is full");
+	}
+
+	if (_closed || _peer._closed) {
+	    return;
+	}
+
+	// Copying also runs the readObject() methods that a
+	// P2PChannel would, which reset the QoS and replace the wildcard
+	// address of a ServerContact.
+	if ((ser instanceof EntityFSM.Request) ||
+	    (ser instanceof EntityFSM.Response) ||
+	    (_copy && !isImmutable(ser))) {
+	    ser = copy(ser);
+	}
+	if (null != ser) {
+	    _peer.put_inQ(ser);
+	}
+    }
+
+    // Nothing waits here.  The other end's read queue is our write
+    // queue.
+    protected int dataWrite() {
+	return 0;
+    }
+
+    protected int spaceWrite() {
+	return _peer.spaceRead();
+    }
+
+    // is the LoopbackChannel closed?
+    boolean isClosed() {
+	return _closed;
+    }
+
+    // close this end and tell the other
+    void close() {
+	if (!_closed) {
+	    _closed = true;
+	    _peer.closedByPeer();
+	}
+    }
+
+    /*
+     * PURPOSE: Close this end because the other end was closed.
+     * POSTCONDITION: This end is in error, as a P2PChannel is when
+     * its socket is closed by the remote peer.
+     */
+    private void closedByPeer() {
+	_closed = true;
+	setError(new SocketException("Socket closed by remote peer"));
+    }
+
+    /*
+     * PURPOSE: Tell whether an Object can be shared by two Entities.
+     * POSTCONDITION: Returns true if ser is null, a String or a boxed
+     * primitive, or a State.ChangeMessage or Field.ChangeMessage of
+     * them.  The classes are compared exactly, because a subclass
+     * could add something that changes.
+     */
+    private static boolean isImmutable(Object ser) {
+	boolean answer = true;
+
+	if (null != ser) {
+	    Class c = ser.getClass();
+	    if (State.ChangeMessage.class == c) {
+		Iterator i = ((State.ChangeMessage)ser).getMessages().iterator();
+		while (answer && i.hasNext()) {
+		    answer = isImmutable(i.next());
+		}
+	    }
+	    else if (Field.ChangeMessage.class == c) {
+		Serializable value = ((Field.ChangeMessage)ser)._value;
+		answer = isImmutable(value);
+	    }
+	    else {
+		answer = (String.class == c) || (Integer.class == c) ||
+		    (Long.class == c) || (Double.class == c) ||
+		    (Float.class == c) || (Short.class == c) ||
+		    (Byte.class == c) || (Character.class == c) ||
+		    (Boolean.class == c);
+	    }
+	}
+
+	return answer;
+    }
+
+    /*
+     * PURPOSE: Make a deep copy of an Object.
+     * POSTCONDITION: Returns what reading ser back from its
+     * serialized form makes, or null if it couldn't be serialized.
+     * Then this end is in error.
+     */
+    private Object copy(Object ser) {
+	Object answer = null;
+	try {
+	    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	    ObjectOutputStream out = new ObjectOutputStream(bytes);
+	    out.writeObject(ser);
+	    out.close();
+
+	    ObjectInputStream in = new ObjectInputStream
+		(new ByteArrayInputStream(bytes.toByteArray()));
+	    answer = in.readObject();
+	    in.close();
+	}
+	catch (IOException ex) {
+	    _LOG.error(ex);
+	    setError(ex);
+	}
+	catch (ClassNotFoundException ex) {
+	    _LOG.error(ex);
+	    setError(ex);
+	}
+	return answer;
+    }
+}
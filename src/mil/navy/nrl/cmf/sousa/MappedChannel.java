@@ -0,0 +1,899 @@
+package mil.navy.nrl.cmf.sousa;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.log4j.Logger;
+import mil.navy.nrl.cmf.sousa.util.Strings;
+
+/**
+ * A MappedChannel is one end of a P2PConnection between two Entities
+ * in different JVMs on the same host.  The two ends share a file
+ * that both have mapped into memory with FileChannel.map().  The
+ * file holds two rings of bytes, one for each direction, and each
+ * ring carries the same length-prefixed frames as a P2PChannel's
+ * socket.  Nothing passes through the TCP stack.
+ *
+ * The body of each frame is made by a Serializer.  Frames are never
+ * compressed or chunked: a frame of any size streams through the
+ * ring as the reader makes room for it.
+ *
+ * A P2PChannelFactory whose shared memory directory is set listens
+ * for MappedChannels in the subdirectory named for its port as well
+ * as on its socket.  A client in another JVM on the host that has
+ * the same directory connects by putting a new ring file there.  The
+ * server maps the file and removes its name, so the memory goes away
+ * when both ends are done with it.
+ *
+ * Each MappedChannel has a thread that moves frames between its
+ * queues and the rings.  There is no way for one process to wake a
+ * thread of another through a mapped file, so the thread polls,
+ * yielding and then sleeping longer each time it finds nothing to
+ * do.
+ *
+ * The layout of the file:
+ *
+ *   0  int   MAGIC
+ *   4  int   the capacity of each ring, a power of two
+ *   8  int   the client has closed its end (0 or 1)
+ *  12  int   the server has closed its end (0 or 1)
+ *  64  long  bytes put into the client's ring, ever
+ * 128  long  bytes taken from the client's ring, ever
+ * 192  long  bytes put into the server's ring, ever
+ * 256  long  bytes taken from the server's ring, ever
+ * 512        the client's ring, then the server's ring
+ *
+ * The client writes into the client's ring and the server reads from
+ * it.  The counters are on cache lines of their own so that the two
+ * processes don't contend for them.
+ */
+final class MappedChannel extends Selectable implements P2PConnection, Runnable {
+	private static final Logger _LOG =
+		Logger.getLogger(MappedChannel.class);
+
+    // a ring file starts with this int
+    private static final int MAGIC = 0x534f5553; // "SOUS"
+
+    // the offsets of the header fields
+    private static final int CAPACITY_AT = 4;
+    private static final int CLIENT_CLOSED_AT = 8;
+    private static final int SERVER_CLOSED_AT = 12;
+    private static final int CLIENT_PUT_AT = 64;
+    private static final int CLIENT_TAKEN_AT = 128;
+    private static final int SERVER_PUT_AT = 192;
+    private static final int SERVER_TAKEN_AT = 256;
+    private static final int HEADER_BYTES = 512;
+
+    // the same as P2PChannel's
+    private static final int PREFIX_BYTES = 4;
+    private static final int FLAGS = 0xC0000000;
+
+    // A thread that has found nothing to do this many times in a row
+    // starts to sleep, from MIN_SLEEP doubling up to MAX_SLEEP
+    // nanoseconds.
+    private static final int IDLE_YIELDS = 64;
+    private static final long MIN_SLEEP = 10000L;
+    private static final long MAX_SLEEP = 1000000L;
+
+    // how often an idle thread makes sure the other end is alive,
+    // in milliseconds
+    private static final long LIVENESS_INTERVAL = 1000L;
+
+    // the file names
+    private static final String LISTENER = "listener";
+    private static final String NEW_SUFFIX = ".tmp";
+    private static final String RING_SUFFIX = ".ring";
+
+    // The rings are shared with another process, and a mapped
+    // ByteBuffer has no ordered puts or gets, so fence() orders them.
+    // A producer puts the bytes, calls fence(), then puts the counter
+    // that hands them over.  A consumer gets the counter, calls
+    // fence(), then gets the bytes.  The same goes for the closed
+    // flags, which hand over the last counters.
+    //
+    // A write of a volatile alone wouldn't do.  The JSR-133 rules let
+    // a normal put after a volatile write move before it, and a
+    // normal get before a volatile read move after it, so the counter
+    // could be put before the bytes or got after them.  They don't let
+    // a normal get or put move after a volatile write, a volatile read
+    // move before a volatile write, or a normal get or put move
+    // before a volatile read.  So a volatile write followed by a read
+    // keeps everything before it before everything after it.
+    // HotSpot does that with a full fence of the processor, which
+    // orders the accesses of the mapped memory to the other process
+    // too.
+    private static volatile int _fence = 0;
+
+    // order every get and put before this before every one after it
+    private static void fence() {
+	_fence = 0;
+	int f = _fence;
+    }
+
+    // the open file, kept so that its locks are held
+    private final RandomAccessFile _file;
+
+    // our lock of the file, which says that this end is alive
+    private final FileLock _lock;
+
+    // the part of the file locked by the other end while it's alive
+    private final long _peerLockAt;
+
+    // the mapped file
+    private final MappedByteBuffer _map;
+
+    // the ring we write into and the ring we read from
+    private final Ring _outRing;
+    private final Ring _inRing;
+
+    // where our closed flag and the other end's are
+    private final int _closedAt;
+    private final int _peerClosedAt;
+
+    // The longest frame, prefix and all, that we take from the other
+    // end.  The length of a frame is whatever the other process put
+    // in the ring, so it is checked before the body is allocated.
+    private final int _maxFrameBytes;
+
+    // makes frame bodies of Objects and Objects of frame bodies
+    private final Serializer _serializer;
+
+    // the remote server, or null if the remote endpoint is our client
+    private final ServerContact _addr;
+
+    // the thread that moves frames between the queues and the rings
+    private final Thread _thread;
+
+    // has this end been closed?
+    private volatile boolean _closed = false;
+
+    // the frame being put into _outRing: its prefix, then its body
+    private final ByteBuffer _outPrefix = ByteBuffer.allocate(PREFIX_BYTES);
+    private ByteBuffer _outBody = null;
+
+    // the frame being taken from _inRing: its prefix, then its body
+    private final ByteBuffer _inPrefix = ByteBuffer.allocate(PREFIX_BYTES);
+    private ByteBuffer _inBody = null;
+
+    // when the other end was last found to be alive
+    private long _peerAlive = System.currentTimeMillis();
+
+    // the traffic of this MappedChannel
+    private final TrafficStats _stats;
+
+    // when _outRing last filled up with bytes of the frame being
+    // put, in nanoseconds, or 0 if it hasn't since the last frame
+    private long _stallStartTime = 0;
+
+    /*
+     * PURPOSE: A Ring is a single-producer single-consumer queue of
+     * bytes in a mapped file.  Both ends count the bytes put and the
+     * bytes taken, and only the producer puts the former and only
+     * the consumer puts the latter.
+     */
+    private static final class Ring {
+	private final ByteBuffer _buf;
+	private final int _putAt;
+	private final int _takenAt;
+	private final int _data;
+	private final int _capacity;
+
+	Ring(MappedByteBuffer map, int putAt, int takenAt,
+	     int data, int capacity) {
+	    _buf = map.duplicate();
+	    _putAt = putAt;
+	    _takenAt = takenAt;
+	    _data = data;
+	    _capacity = capacity;
+	}
+
+	// how many bytes may be put?
+	int free() {
+	    return _capacity - used();
+	}
+
+	// how many bytes may be taken?
+	int used() {
+	    long put = _buf.getLong(_putAt);
+	    long taken = _buf.getLong(_takenAt);
+	    // before the caller gets or puts the bytes
+	    fence();
+	    return (int)(put - taken);
+	}
+
+	/*
+	 * PURPOSE: Put as much of src as there is room for.
+	 * PRECONDITION: Called only by the producer.
+	 * POSTCONDITION: Returns the number of bytes put, which the
+	 * consumer may now take.
+	 */
+	int put(ByteBuffer src) {
+	    int n = Math.min(src.remaining(), free());
+	    if (n > 0) {
+		long put = _buf.getLong(_putAt);
+		int at = (int)(put & (_capacity - 1));
+		int first = Math.min(n, _capacity - at);
+		copy(src, first, _data + at);
+		copy(src, n - first, _data);
+
+		// the bytes, then the counter that hands them over
+		fence();
+		_buf.putLong(_putAt, put + n);
+	    }
+	    return n;
+	}
+
+	/*
+	 * PURPOSE: Take as many bytes as dst has room for.
+	 * PRECONDITION: Called only by the consumer.
+	 * POSTCONDITION: Returns the number of bytes taken, whose room
+	 * the producer may now reuse.
+	 */
+	int take(ByteBuffer dst) {
+	    int n = Math.min(dst.remaining(), used());
+	    if (n > 0) {
+		long taken = _buf.getLong(_takenAt);
+		int at = (int)(taken & (_capacity - 1));
+		int first = Math.min(n, _capacity - at);
+		_buf.limit(_data + at + first).position(_data + at);
+		dst.put(_buf);
+		_buf.limit(_data + n - first).position(_data);
+		dst.put(_buf);
+		_buf.clear();
+
+		// the bytes, then the counter that gives back their room
+		fence();
+		_buf.putLong(_takenAt, taken + n);
+	    }
+	    return n;
+	}
+
+	// put the next len bytes of src at index at of _buf
+	private void copy(ByteBuffer src, int len, int at) {
+	    int limit = src.limit();
+	    src.limit(src.position() + len);
+	    _buf.position(at);
+	    _buf.put(src);
+	    _buf.clear();
+	    src.limit(limit);
+	}
+    }
+
+    /*
+     * PURPOSE: An Acceptor makes the server ends of the MappedChannels
+     * that clients open to a P2PChannelFactory.
+     */
+    static final class Acceptor implements Runnable {
+	// how often to look for new ring files, in milliseconds
+	private static final long ACCEPT_INTERVAL = 20L;
+
+	private final File _dir;
+	private final P2PChannelFactory _factory;
+	private final RandomAccessFile _listener;
+	private final FileLock _lock;
+	private final Thread _thread;
+	private volatile boolean _closed = false;
+
+	/*
+	 * PURPOSE: Listen for MappedChannels to a P2PChannelFactory.
+	 * PRECONDITION: No other Acceptor listens in dir.
+	 * POSTCONDITION: dir exists and holds a locked listener file,
+	 * which tells clients that the P2PChannelFactory is alive.
+	 * Each new ring file in dir becomes a MappedChannel in the
+	 * incoming connections queue of factory.
+	 */
+	Acceptor(File dir, P2PChannelFactory factory) throws IOException {
+	    _dir = dir;
+	    _factory = factory;
+	    if (!dir.isDirectory() && !dir.mkdirs()) {
+		throw new IOException("Can't make " + dir);
+	    }
+	    _listener = new RandomAccessFile(new File(dir, LISTENER), "rw");
+	    FileLock lock = null;
+	    try {
+		lock = _listener.getChannel().tryLock();
+	    }
+	    catch (OverlappingFileLockException ex) {
+		// another P2PChannelFactory of this JVM holds it
+	    }
+	    _lock = lock;
+	    if (null == _lock) {
+		_listener.close();
+		throw new IOException("Someone else listens in " + dir);
+	    }
+	    _thread = new Thread(this, "MappedChannel-Accept");
+	    _thread.setDaemon(true);
+	    _thread.start();
+	}
+
+	public String toString() {
+	    return "MappedChannel.Acceptor in " + _dir;
+	}
+
+	public void run() {
+	    FilenameFilter rings = new FilenameFilter() {
+		    public boolean accept(File dir, String name) {
+			return name.endsWith(RING_SUFFIX);
+		    }
+		};
+
+	    while (!_closed) {
+		File[] files = _dir.listFiles(rings);
+		for (int i = 0; (null != files) && (i < files.length); i++) {
+		    try {
+			MappedChannel ch =
+			    new MappedChannel(files[i], null, 0,
+					      _factory.getSharedMemoryMaxFrameBytes(),
+					      _factory.getChannelQueueCapacity(),
+					      new ByteArray(),
+					      _factory.getTrafficStats());
+			_LOG.info(new Strings(new Object[]
+			    {this, ": accepted ", ch}));
+			_factory.acceptMapped(ch);
+		    }
+		    catch (IOException ex) {
+			_LOG.error(new Strings(new Object[]
+			    {this, ": ", files[i], ": ", ex}));
+		    }
+		    finally {
+			files[i].delete();
+		    }
+		}
+		LockSupport.parkNanos(ACCEPT_INTERVAL * 1000000L);
+	    }
+	}
+
+	/*
+	 * PURPOSE: Stop listening.
+	 * POSTCONDITION: The listener file is gone.  Clients connect to
+	 * the P2PChannelFactory through its socket.
+	 */
+	void close() {
+	    _closed = true;
+	    new File(_dir, LISTENER).delete();
+	    try {
+		_lock.release();
+		_listener.close();
+	    }
+	    catch (IOException ex) {
+		_LOG.error(ex);
+	    }
+	}
+    }
+
+    /*
+     * PURPOSE: Tell whether a P2PChannelFactory listens for
+     * MappedChannels in a directory.
+     * POSTCONDITION: Returns true if dir holds a listener file that
+     * a live process has locked.
+     */
+    static boolean isListening(File dir) {
+	boolean answer = false;
+	File f = new File(dir, LISTENER);
+	if (f.isFile()) {
+	    RandomAccessFile listener = null;
+	    try {
+		listener = new RandomAccessFile(f, "rw");
+		FileLock lock = listener.getChannel().tryLock();
+		if (null == lock) {
+		    // another process holds it
+		    answer = true;
+		}
+		else {
+		    // its owner is gone
+		    lock.release();
+		}
+	    }
+	    catch (OverlappingFileLockException ex) {
+		// this JVM holds it
+		answer = true;
+	    }
+	    catch (IOException ex) {
+		_LOG.error(ex);
+	    }
+	    finally {
+		if (null != listener) {
+		    try {
+			listener.close();
+		    }
+		    catch (IOException ex) {
+			_LOG.error(ex);
+		    }
+		}
+	    }
+	}
+	return answer;
+    }
+
+    /*
+     * PURPOSE: Open a MappedChannel to a server that listens in a
+     * directory.
+     * PRECONDITION: isListening(dir), ringBytes > 0.
+     * POSTCONDITION: Returns the client's end of a new MappedChannel
+     * whose rings hold at least ringBytes each.  The server will
+     * accept it when it next looks in dir.  Until then, what is
+     * written waits in the ring.  It fails if the server puts a
+     * frame longer than maxFrameBytes or a ring.  Its traffic is
+     * added to parent, if it isn't null.
+     */
+    static MappedChannel connect(File dir, ServerContact addr,
+				 int ringBytes, int maxFrameBytes,
+				 int queueCapacity,
+				 TrafficStats parent)
+	throws IOException {
+	int capacity = Integer.highestOneBit(ringBytes);
+	if (capacity < ringBytes) {
+	    capacity <<= 1;
+	}
+
+	File tmp = File.createTempFile("sousa", NEW_SUFFIX, dir);
+	MappedChannel answer = null;
+	try {
+	    answer = new MappedChannel(tmp, addr, capacity, maxFrameBytes,
+				       queueCapacity,
+				       new ByteArray(), parent);
+	    String name = tmp.getName();
+	    File ring = new File(dir,
+				 name.substring(0, name.length() - NEW_SUFFIX.length())
+				 + RING_SUFFIX);
+	    if (!tmp.renameTo(ring)) {
+		answer.close();
+		throw new IOException("Can't rename " + tmp + " to " + ring);
+	    }
+	}
+	finally {
+	    tmp.delete();
+	}
+	return answer;
+    }
+
+    /*
+     * PURPOSE: Map a ring file.
+     * PRECONDITION: If addr!=null, f is new and capacity is a power
+     * of two.  Otherwise f was made by a client.
+     * POSTCONDITION: This is the client's end, whose server is addr,
+     * or the server's end if addr is null.  It fails if the other
+     * end puts a frame longer than maxFrameBytes or a ring.  Its
+     * thread is running.
+     */
+    private MappedChannel(File f, ServerContact addr, int capacity,
+			  int maxFrameBytes,
+			  int queueCapacity, Serializer serializer,
+			  TrafficStats parent)
+	throws IOException {
+	super(queueCapacity, queueCapacity);
+	_addr = addr;
+	_serializer = serializer;
+
+	boolean client = (null != addr);
+	_file = new RandomAccessFile(f, "rw");
+	FileChannel fc = _file.getChannel();
+	try {
+	    if (client) {
+		_file.setLength(HEADER_BYTES + 2L * capacity);
+	    }
+	    else if (_file.length() < HEADER_BYTES) {
+		throw new IOException("Not a ring file");
+	    }
+	    _map = fc.map(FileChannel.MapMode.READ_WRITE, 0, _file.length());
+
+	    if (client) {
+		_map.putInt(CAPACITY_AT, capacity);
+		_map.putInt(0, MAGIC);
+	    }
+	    else {
+		capacity = _map.getInt(CAPACITY_AT);
+		if ((MAGIC != _map.getInt(0)) || (capacity <= 0) ||
+		    (capacity != Integer.highestOneBit(capacity)) ||
+		    (_file.length() != HEADER_BYTES + 2L * capacity)) {
+		    throw new IOException("Not a ring file");
+		}
+	    }
+
+	    // Each end locks one byte beyond the end of the mapping.
+	    long lockAt = HEADER_BYTES + 2L * capacity;
+	    _lock = fc.tryLock(client ? lockAt : lockAt + 1, 1, false);
+	    if (null == _lock) {
+		throw new IOException("Ring file in use");
+	    }
+	    _peerLockAt = client ? lockAt + 1 : lockAt;
+	}
+	catch (IOException ex) {
+	    _file.close();
+	    throw ex;
+	}
+
+	Ring clientRing = new Ring(_map, CLIENT_PUT_AT, CLIENT_TAKEN_AT,
+				   HEADER_BYTES, capacity);
+	Ring serverRing = new Ring(_map, SERVER_PUT_AT, SERVER_TAKEN_AT,
+				   HEADER_BYTES + capacity, capacity);
+	_maxFrameBytes = Math.max(maxFrameBytes, capacity);
+	_outRing = client ? clientRing : serverRing;
+	_inRing = client ? serverRing : clientRing;
+	_closedAt = client ? CLIENT_CLOSED_AT : SERVER_CLOSED_AT;
+	_peerClosedAt = client ? SERVER_CLOSED_AT : CLIENT_CLOSED_AT;
+
+	_stats = new TrafficStats(this, parent);
+	_stats.register("MappedChannel", toString() + " " + f.getName());
+
+	_thread = new Thread(this, "MappedChannel-IO");
+	_thread.setDaemon(true);
+	_thread.start();
+    }
+
+    public String toString() {
+	String s = "";
+	if (_addr != null) {
+	    s = "MappedChannel to server "+_addr+"";
+	}
+	else {
+	    s = "MappedChannel from client";
+	}
+	return s;
+    }
+
+    //// P2PConnection
+
+    public ServerContact getServerContact() {
+	return _addr;
+    }
+
+    // The ring costs nothing per byte but a copy, so there's no
+    // reason to compress or chunk.
+    public void setPeerReadsCompressedFrames(boolean b) {
+    }
+
+    public void setPeerReadsChunkedFrames(boolean b) {
+    }
+
+    // Frames are encoded by the Serializer, one whole object each
+    public void setPeerReadsStreams(boolean b) {
+    }
+
+    // Another MappedChannel costs no more than a P2PSession would
+    public void setPeerReadsSessions(boolean b) {
+    }
+
+    public P2PSession openSession(ServerContact addr) {
+	return null;
+    }
+
+    /*
+     * PURPOSE: Get the traffic of this MappedChannel.
+     */
+    TrafficStats getTrafficStats() {
+	return _stats;
+    }
+
+    //// over-rides to Selectable methods
+
+    /*
+     * PURPOSE: Get an Object that arrived.
+     * POSTCONDITION: Returns the Object, or null if there is none.
+     * If the read queue was full, the thread takes frames again.
+     */
+    public Object read() {
+	boolean wakeup = (spaceRead() == 0);
+	Object ser = super.read();
+	if (wakeup) {
+	    LockSupport.unpark(_thread);
+	}
+	return ser;
+    }
+
+    /*
+     * PURPOSE: Put an Object into the write queue.
+     * PRECONDITION: ser!=null and spaceWrite() > 0.
+     * POSTCONDITION: The thread will put ser into the ring.
+     */
+    public void write(Object ser) {
+	super.write(ser);
+	LockSupport.unpark(_thread);
+    }
+
+    // is the MappedChannel closed?
+    boolean isClosed() {
+	return _closed;
+    }
+
+    // close this end and tell the other
+    void close() {
+	if (!_closed) {
+	    _closed = true;
+	    fence();
+	    _map.putInt(_closedAt, 1);
+	    LockSupport.unpark(_thread);
+	}
+    }
+
+    //// the thread
+
+    /*
+     * PURPOSE: Move frames between the queues and the rings until
+     * either end is closed.
+     * POSTCONDITION: The file is unlocked and closed.  The memory
+     * stays mapped until the MappedChannel is garbage.
+     */
+    public void run() {
+	int idle = 0;
+	while (!_closed) {
+	    boolean busy = false;
+	    boolean gone = false;
+	    try {
+		busy |= putFrames();
+		busy |= takeFrames();
+		gone = !busy && peerClosed();
+	    }
+	    catch (IOException ex) {
+		_LOG.error(new Strings(new Object[] {this, ": ", ex}));
+		fail(ex);
+		break;
+	    }
+	    catch (ClassNotFoundException ex) {
+		_LOG.error(new Strings(new Object[] {this, ": ", ex}));
+		fail(ex);
+		break;
+	    }
+
+	    if (busy) {
+		idle = 0;
+	    }
+	    else if (gone) {
+		// The other end put nothing more before closing.
+		fail(new SocketException("Socket closed by remote peer"));
+	    }
+	    else if (++idle <= IDLE_YIELDS) {
+		Thread.yield();
+	    }
+	    else {
+		int doublings = Math.min(idle - IDLE_YIELDS, 30);
+		LockSupport.parkNanos(Math.min(MIN_SLEEP << doublings, MAX_SLEEP));
+	    }
+	}
+
+	try {
+	    _lock.release();
+	    _file.close();
+	}
+	catch (IOException ex) {
+	    _LOG.error(ex);
+	}
+	_stats.close();
+    }
+
+    /*
+     * PURPOSE: Put frames into _outRing.
+     * POSTCONDITION: Returns true if any bytes were put.  Either the
+     * write queue is empty or the ring is full.
+     */
+    private boolean putFrames() throws IOException {
+	boolean answer = false;
+	while (true) {
+	    if (null == _outBody) {
+		if (dataWrite() == 0) {
+		    break;
+		}
+		long startTime = System.nanoTime();
+		byte[] body = _serializer.toByteArray(take_outQ());
+		_stats.frameOut(System.nanoTime() - startTime, dataWrite());
+		_outPrefix.clear();
+		_outPrefix.putInt(PREFIX_BYTES + body.length).flip();
+		_outBody = ByteBuffer.wrap(body);
+	    }
+
+	    int n = 0;
+	    if (_outPrefix.hasRemaining()) {
+		n += _outRing.put(_outPrefix);
+	    }
+	    if (!_outPrefix.hasRemaining()) {
+		n += _outRing.put(_outBody);
+	    }
+	    if (n > 0) {
+		answer = true;
+		_stats.bytesOut(n);
+	    }
+
+	    if (_outBody.hasRemaining()) {
+		// The ring is full.
+		if (0 == _stallStartTime) {
+		    _stallStartTime = System.nanoTime();
+		}
+		break;
+	    }
+	    _outBody = null;
+	    if (0 != _stallStartTime) {
+		_stats.writeStall(System.nanoTime() - _stallStartTime);
+		_stallStartTime = 0;
+	    }
+	}
+	return answer;
+    }
+
+    /*
+     * PURPOSE: Take frames from _inRing.
+     * POSTCONDITION: Returns true if any bytes were taken.  The
+     * Objects of the whole frames are in the read queue.  Either the
+     * ring is empty or the read queue is full.  Throws IOException,
+     * having allocated nothing, if the next frame is longer than
+     * _maxFrameBytes.
+     */
+    private boolean takeFrames()
+	throws IOException, ClassNotFoundException {
+	boolean answer = false;
+	while (spaceRead() > 0) {
+	    if (null == _inBody) {
+		int n = _inRing.take(_inPrefix);
+		if (n > 0) {
+		    answer = true;
+		    _stats.bytesIn(n);
+		}
+		if (_inPrefix.hasRemaining()) {
+		    break;
+		}
+		int length = _inPrefix.getInt(0);
+		_inPrefix.clear();
+		if ((0 != (length & FLAGS)) || (length < PREFIX_BYTES)) {
+		    throw new IOException("Bad frame length " + length);
+		}
+		if (length > _maxFrameBytes) {
+		    throw new IOException("Frame length " + length +
+					  " is more than " + _maxFrameBytes);
+		}
+		_inBody = ByteBuffer.allocate(length - PREFIX_BYTES);
+	    }
+
+	    int n = _inRing.take(_inBody);
+	    if (n > 0) {
+		answer = true;
+		_stats.bytesIn(n);
+	    }
+	    if (_inBody.hasRemaining()) {
+		break;
+	    }
+	    long startTime = System.nanoTime();
+	    Object ser = _serializer.toObject(_inBody.array());
+	    _stats.frameIn(System.nanoTime() - startTime);
+	    _inBody = null;
+	    put_inQ(ser);
+	}
+	return answer;
+    }
+
+    /*
+     * PURPOSE: Tell whether the other end has gone.
+     * POSTCONDITION: Returns true if the other end closed its end or,
+     * no more often than LIVENESS_INTERVAL, if the process at the
+     * other end has no lock of its part of the file.
+     */
+    private boolean peerClosed() throws IOException {
+	int closed = _map.getInt(_peerClosedAt);
+	// before the counters of _inRing
+	fence();
+	boolean answer = (0 != closed);
+
+	long now = System.currentTimeMillis();
+	if (!answer && (now - _peerAlive > LIVENESS_INTERVAL)) {
+	    _peerAlive = now;
+	    try {
+		FileLock lock = _file.getChannel().tryLock(_peerLockAt, 1, false);
+		if (null != lock) {
+		    // No one holds it.
+		    lock.release();
+		    answer = true;
+		}
+	    }
+	    catch (OverlappingFileLockException ex) {
+		// The other end is in this JVM and holds it.
+	    }
+	}
+	// Whatever it put before going has to be taken first.
+	return answer && (0 == _inRing.used());
+    }
+
+    // close this end because of ex
+    private void fail(Exception ex) {
+	_closed = true;
+	fence();
+	_map.putInt(_closedAt, 1);
+	setError(ex);
+    }
+
+    /*
+     * Usage: MappedChannel [round trips [directory]]
+     *
+     * Round trips through a MappedChannel between two JVMs.  This one
+     * is a P2PChannelFactory on port 9004 that listens in directory,
+     * java.io.tmpdir by default.  It starts a second JVM with the
+     * same class path, which connects to it through directory and
+     * sends byte[]s filled with their numbers, every 64th bigger than
+     * a ring, the rest up to 1 KB.  This one sends each back.  The
+     * second JVM checks every byte of each it gets back, then reports
+     * how many were wrong and the mean time of a round trip.  round
+     * trips defaults to 10000.
+     */
+    public static void main(String[] args) throws Exception {
+	int count = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+	File dir = new File((args.length > 1) ? args[1] :
+			    System.getProperty("java.io.tmpdir"));
+	boolean client = (args.length > 2) && args[2].equals("-c");
+	int port = client ? 9005 : 9004;
+
+	P2PChannelFactory f = P2PChannelFactory.newInstance(port, null);
+	f.setSharedMemoryDirectory(dir);
+
+	if (!client) {
+	    String java = System.getProperty("java.home") + File.separator +
+		"bin" + File.separator + "java";
+	    Process peer = new ProcessBuilder(new String[] {
+		java, "-cp", System.getProperty("java.class.path"),
+		MappedChannel.class.getName(),
+		Integer.toString(count), dir.getPath(), "-c"
+	    }).inheritIO().start();
+
+	    Selectable ch = (Selectable)next(f);
+	    for (int i = 0; i < count; i++) {
+		Object echo = next(ch);
+		while (ch.spaceWrite() <= 0) {
+		    Thread.yield();
+		}
+		ch.write(echo);
+	    }
+	    System.exit(peer.waitFor());
+	}
+
+	while (f.spaceWrite() <= 0) {
+	    Thread.yield();
+	}
+	f.write(new ServerContact(java.net.InetAddress.getByName("localhost"),
+				  9004, (QoS)null));
+	Selectable ch = (Selectable)next(f);
+	if (!(ch instanceof MappedChannel)) {
+	    System.out.println("Connected through " + ch + ", not a MappedChannel");
+	    System.exit(1);
+	}
+
+	int bad = 0;
+	long start = System.nanoTime();
+	for (int i = 0; i < count; i++) {
+	    byte[] out = new byte[(0 == i % 64) ?
+				  f.getSharedMemoryRingBytes() + 1 + i :
+				  i % 1024];
+	    java.util.Arrays.fill(out, (byte)i);
+	    ch.write(out);
+
+	    byte[] in = (byte[])next(ch);
+	    if (!java.util.Arrays.equals(out, in)) {
+		bad++;
+	    }
+	}
+	long elapsed = System.nanoTime() - start;
+
+	System.out.println(count + " round trips through a MappedChannel, " +
+			   bad + " wrong, " + (elapsed / count / 1000) +
+			   " microseconds each");
+	System.exit((0 == bad) ? 0 : 1);
+    }
+
+    // the next Object read from s.  Waits up to 10 seconds.
+    private static Object next(Selectable s) throws IOException {
+	long deadline = System.currentTimeMillis() + 10000L;
+	while ((s.dataRead() <= 0) && (System.currentTimeMillis() < deadline)) {
+	    if (null != s.getError()) {
+		throw new IOException(s + ": " + s.getError());
+	    }
+	    Thread.yield();
+	}
+	if (s.dataRead() <= 0) {
+	    throw new IOException(s + ": nothing to read");
+	}
+	return s.read();
+    }
+}
@@ -3,7 +3,6 @@ package mil.navy.nrl.cmf.sousa;
 
 import java.lang.reflect.InvocationTargetException;
 import java.util.HashMap;
-import java.util.Iterator;
 import mil.navy.nrl.cmf.sousa.util.Strings;
 import org.apache.log4j.Logger;
 
@@ -15,10 +14,13 @@ public final class Nimbus {
 	protected static final Logger _LOG = Logger.getLogger(Nimbus.class);
 
     // the server side FSMs
-    // P2PChannel->ServerSideFSM
+    // control channel (P2PChannel or P2PSession)->ServerSideFSM
     private final HashMap _sfsms = new HashMap();
-    // the projectors, stored by QoS
-    // Comparable->Projector
+    // the projectors, stored by SelectableSet then by QoS
+    // SelectableSet->(Comparable->Projector)
+    // The SelectableSet belongs to the Entity or to the EventLoop in
+    // which the Projector runs.  A Projector is shared only by the
+    // clients of its own SelectableSet.
     // The Comparable is returned by the Projector's QoS.getKey()
     private final HashMap _projectors = new HashMap();
     // the Entity in which this Nimbus resides
@@ -34,6 +36,9 @@ public final class Nimbus {
     /**
      * Construct a Focus for Entity e
      *
+     * All of the methods of a Nimbus are safe to call from the
+     * Entity's thread and from its EventLoops.
+     *
      * @param e the owning Entity
      */
     Nimbus(Entity e) {
@@ -43,18 +48,48 @@ public final class Nimbus {
     
     /**
      * Add a serverside FSM to this Nimbus on behest of the arrival of
-     * a new client.  The P2PChannel cc has been obtained by the
+     * a new client.  The P2PConnection cc has been obtained by the
      * P2PChannelFactory.  After this method call, a new serverside
      * FSM has been installed in the Nimbus, which manages all data on
-     * the P2PChannel cc.
+     * the P2PConnection cc.
      *
-     * @param cc the P2PChannel
+     * @param cc the P2PConnection: a P2PChannel, a LoopbackChannel or a MappedChannel
      * @return the ServerSideFSM managing the connection to the new client
      */
-    final ServerSideFSM addConnectionToClient(P2PChannel cc) {
-	ServerSideFSM fsm = new ServerSideFSM(cc, this);
-	_sfsms.put( cc, fsm );
-	_entity.wakeup();
+    final ServerSideFSM addConnectionToClient(Selectable cc) {
+	return addClient(cc, (P2PConnection)cc);
+    }
+    
+    
+    /**
+     * Add a serverside FSM to this Nimbus on behest of a new
+     * P2PSession from a client.  The P2PSession s has been obtained
+     * by the P2PChannelFactory.  After this method call, a new
+     * serverside FSM has been installed in the Nimbus, which manages
+     * all data on s.  Other FSMs manage the P2PChannel that carries
+     * s and its other P2PSessions.
+     *
+     * @param s the P2PSession
+     * @return the ServerSideFSM managing the session with the client
+     */
+    final ServerSideFSM addSessionToClient(P2PSession s) {
+	return addClient(s, s.getChannel());
+    }
+    
+    
+    // Add a serverside FSM for the control channel cc carried by
+    // the P2PConnection channel.
+    private ServerSideFSM addClient(Selectable cc, P2PConnection channel) {
+	EventLoop loop = _entity.nextEventLoop();
+	if (null != loop) {
+	    loop.addClient();
+	}
+	
+	ServerSideFSM fsm = new ServerSideFSM(cc, channel, this, loop);
+	synchronized (this) {
+	    _sfsms.put( cc, fsm );
+	}
+	fsm.wakeup();
 	return fsm;
     }
     
@@ -72,7 +107,18 @@ public final class Nimbus {
     final void removeConnectionToClient(ServerSideFSM fsm) {
 	Projector proj = fsm.getProjector();
 	
-	_sfsms.remove(fsm._cc);
+	synchronized (this) {
+	    if (null == _sfsms.remove(fsm._cc)) {
+		// Already removed.
+		return;
+	    }
+	}
+	fsm.deregisterChannel();
+	
+	EventLoop loop = fsm.getEventLoop();
+	if (null != loop) {
+	    loop.removeClient();
+	}
 	
 	_LOG.debug(new Strings(new Object[]
 		{"removeConnectionToClient(): proj=", proj}));
@@ -81,27 +127,19 @@ public final class Nimbus {
 	    if (0 == proj.size()) {
 		// There won't be a Projector without a QoS, so it's
 		// not necessary to check that proj.getQoS() != null.
-		_projectors.remove(proj.getQoS().getKey());
+		synchronized (this) {
+		    HashMap projectors = 
+			(HashMap)_projectors.get(fsm.getSelectableSet());
+		    if (null != projectors) {
+			projectors.remove(proj.getQoS().getKey());
+		    }
+		}
 	    }
 	}
 	
-	_entity.wakeup();
+	fsm.wakeup();
     }
     
-    //// building the SelectableSet
-        
-    /**
-     * Allow the FSMs to add their P2PChannels to the SelectableSet
-     *
-     * @param ss the SelectableSet
-     */
-    void buildSelectableSet(SelectableSet ss) {
-	for (Iterator it=_sfsms.values().iterator(); it.hasNext(); ) {
-	    ServerSideFSM sfsm=(ServerSideFSM)it.next();
-	    sfsm.buildSelectableSet(ss);
-	}
-    }
-        
     /**
      * Get a Projector for a specified QoS, making a new/ Projector if
      * needed.  A Projector is returned (newly made if necessary)
@@ -109,16 +147,18 @@ public final class Nimbus {
      * if the QoS contains anything other than Class objects.
      *
      * @param qos the desired QoS for the Projector
+     * @param ss the SelectableSet in which the Projector must run
      * @return the Projector
      */
-    final Projector getProjector(QoS qos) {
+    final synchronized Projector getProjector(QoS qos, SelectableSet ss) {
 	Projector proj = null;
 	Comparable key = qos.getKey();
 	_LOG.debug(new Strings(new Object[]
 		{"Nimbus.getProjector(): key= ", key}));
 	
-	if (null != key) {
-	    proj = (Projector) _projectors.get(key);
+	HashMap projectors = (HashMap)_projectors.get(ss);
+	if ((null != key) && (null != projectors)) {
+	    proj = (Projector) projectors.get(key);
 	}
 	
 	_LOG.debug(new Strings(new Object[]
@@ -132,15 +172,21 @@ public final class Nimbus {
      * @param key the QoS
      * @param p the Projector
     */
-    final void addProjector(QoS key, Projector p) {
-	_projectors.put(key.getKey(), p);
+    final synchronized void addProjector(QoS key, Projector p) {
+	SelectableSet ss = p.getSelectableSet();
+	HashMap projectors = (HashMap)_projectors.get(ss);
+	if (null == projectors) {
+	    projectors = new HashMap();
+	    _projectors.put(ss, projectors);
+	}
+	projectors.put(key.getKey(), p);
     }
     
     /**
      * Get another local UID for use in the Nimbus
      * @return the next available UID
     */
-    final int nextLocalUID() {
+    final synchronized int nextLocalUID() {
 	int answer = _localUID;
 	_localUID++;
 	return answer;
@@ -21,6 +21,14 @@ abstract class NonBlockingObjectChannel extends Selectable {
     protected NonBlockingObjectChannel() {
     }
 
+    /* 
+     * PURPOSE: Construct a new NonBlockingObjectChannel with the
+     * given queue capacities.
+     */
+    protected NonBlockingObjectChannel(int inQCapacity, int outQCapacity) {
+	super(inQCapacity, outQCapacity);
+    }
+
     /* 
      * PURPOSE: Register this Channel with a Selector.
      * PRECONDITION: selector!=null.
@@ -1,8 +1,9 @@
 package mil.navy.nrl.cmf.sousa;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
@@ -12,14 +13,29 @@ import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import mil.navy.nrl.cmf.sousa.util.BufferPool;
+import mil.navy.nrl.cmf.sousa.util.ByteBufferInputStream;
+import mil.navy.nrl.cmf.sousa.util.ByteBufferOutputStream;
+import mil.navy.nrl.cmf.sousa.util.ClassCachingObjectInputStream;
+import mil.navy.nrl.cmf.sousa.util.ClassCachingObjectOutputStream;
+import mil.navy.nrl.cmf.sousa.util.FrameInputStream;
+import mil.navy.nrl.cmf.sousa.util.RingBuffer;
 import mil.navy.nrl.cmf.sousa.util.Strings;
 import org.apache.log4j.Logger;
 
 /**
  * A P2PChannel is a full-duplex reliable point to point
- * Channel.
+ * Channel.  It is the P2PConnection between Entities over TCP.
  */
-class P2PChannel extends NonBlockingObjectChannel {
+class P2PChannel extends NonBlockingObjectChannel implements P2PConnection {
 	private static final Logger _LOG = 
 		Logger.getLogger(P2PChannel.class);
 
@@ -33,37 +49,221 @@ class P2PChannel extends NonBlockingObjectChannel {
     
     // length prefix (integer) size in bytes
     private static final int INT_SIZE = 4;
+
+    // The length prefix of a compressed frame has this bit set.  The
+    // frame is the prefix, the length of the uncompressed frame, and
+    // the Deflater output.  Only peers that said they could read
+    // compressed frames are sent them.
+    private static final int COMPRESSED = 0x80000000;
+
+    // The length prefix of a chunk has this bit set.  A chunk is the
+    // prefix, a stream id, a byte that is 1 in the last chunk of the
+    // stream, and a piece of an ordinary frame.  The pieces of the
+    // chunks with the same stream id make up the frame.  Only peers
+    // that said they could read chunks are sent them.
+    private static final int CHUNKED = 0x40000000;
+
+    // The length prefix of a frame that continues an object stream
+    // has this bit set.  Its body is the lane the frame was sent in
+    // and the bytes that a long-lived ObjectOutputStream of that lane
+    // wrote for one object.  The first frame of each lane also holds
+    // the stream header.  Only peers that said they could read
+    // streams are sent them.
+    private static final int STREAMED = 0x20000000;
+
+    // the bits of a length prefix that hold the length
+    private static final int LENGTH = ~(COMPRESSED | CHUNKED | STREAMED);
+
+    // the size of a chunk's stream id and last-chunk byte
+    private static final int CHUNK_HEADER = INT_SIZE + 1;
+
+    // returned by reassemble() until a frame is complete
+    private static final Object INCOMPLETE = new Object();
+
+    /* 
+     * The priority classes of outgoing objects, highest first.  The
+     * FSM handshake and RMI messages are CONTROL_LANE.  Everything
+     * else, such as State.ChangeMessages, is BULK_LANE.  Each batch
+     * takes from CONTROL_LANE before BULK_LANE, except that a lane
+     * which has had frames waiting through STARVATION_LIMIT batches
+     * without getting into any goes first in the next one.  Objects
+     * in the same lane are sent in order.
+     *
+     * Each lane holds at most about _writeBatchBytes serialized
+     * bytes.  A BULK_LANE object taken while BULK_LANE is full waits
+     * in _heldBulk, unserialized, while the CONTROL_LANE objects
+     * behind it are taken and serialized, and a batch holds at most
+     * one chunk of a lane's frame.  So a CONTROL_LANE object never
+     * waits for more than the batch being sent, which holds at most
+     * one chunk of any large frame.
+     */
+    static final int CONTROL_LANE = 0;
+    static final int BULK_LANE = 1;
+    static final int LANES = 2;
+    private static final int STARVATION_LIMIT = 4;
+
+    // the size of the byte arrays through which frames go to the
+    // Deflater and come from the Inflater
+    private static final int ZIP_BUFFER = 8192;
+
+    // frames with bodies of at least this many bytes are compressed
+    // when the peer can read them.  Negative means never.
+    private final int _compressionThreshold;
+
+    // does the peer read compressed frames?
+    private volatile boolean _compress = false;
+
+    // compresses outgoing frames; made when first needed
+    private Deflater _deflater = null;
+
+    // decompresses incoming frames; made when first needed
+    private Inflater _inflater = null;
+
+    // carries frame bodies from direct buffers to the Deflater
+    private byte[] _zipbuf = null;
+
+    // is the frame being read compressed?
+    private boolean _readCompressed = false;
+
+    // frames larger than this are sent in chunks whose bodies,
+    // stream id included, are this many bytes, when the peer can
+    // read them.  Zero or negative means never.
+    private final int _chunkSize;
+
+    // does the peer read chunks?
+    private volatile boolean _chunk = false;
+
+    // is the frame being read a chunk?
+    private boolean _readChunk = false;
+
+    // objects written to a lane's object stream between reset()s.
+    // Zero or negative means each frame is a stream of its own.
+    private final int _streamResetInterval;
+
+    // does the peer read streamed frames?
+    private volatile boolean _stream = false;
+
+    // the object stream of each lane, made with its first frame
+    private final ObjectOutputStream[] _streamsOut = new ObjectOutputStream[LANES];
+
+    // the objects written to each lane's stream since its last reset()
+    private final int[] _sinceReset = new int[LANES];
+
+    // the object stream from each of the peer's lanes, made with its
+    // first frame, and what each one reads the frames through
+    private final ObjectInputStream[] _streamsIn = new ObjectInputStream[LANES];
+    private final FrameInputStream[] _streamFrames = new FrameInputStream[LANES];
+
+    // is the frame being read streamed?
+    private boolean _readStreamed = false;
+
+    // the frames whose chunks are arriving: stream id (Integer) ->
+    // Reassembly
+    private final HashMap _reassembly = new HashMap();
+
+    // the stream id of the next frame sent in chunks
+    private int _nextStreamId = 0;
+
+    // Compression statistics.  Written only by the I/O thread.
+    private volatile long _framesCompressed = 0;
+    private volatile long _bytesBeforeCompression = 0;
+    private volatile long _bytesAfterCompression = 0;
+    private volatile long _framesDecompressed = 0;
+    private volatile long _bytesBeforeDecompression = 0;
+    private volatile long _bytesAfterDecompression = 0;
     
-    // Indirect byte buffer for reading from the SocketChannel
-    private  ByteBuffer _readbuf = null; // allocated by NIO_read()
+    // the factory's pool of direct buffers for frame bodies
+    private final BufferPool _pool;
+
+    // the length prefix of each incoming frame is read into this
+    private final ByteBuffer _prefixbuf = ByteBuffer.allocate(INT_SIZE);
+
+    // byte buffer for reading from the SocketChannel: _prefixbuf
+    // or, while reading a frame body, a buffer from _pool
+    private  ByteBuffer _readbuf = null; // set by readbuf_reset() and NIO_read()
     private int _readBytesExpected;
     private int _readBytesReceived;
     private boolean _readPrefix;
 
-	//
-	// For gathering timing info.  Turn on log4j INFO level to see.
-	//
-	// time of reading first byte
-    private long _readStartTime = 0;
-
-	// time in milliseconds to deserialize an object after reading
-	private long _deserializeTime = -1; 
-
-	// time of writing first byte
-	private long _writeStartTime = 0;
+    // the traffic of this P2PChannel and its P2PSessions, which is
+    // also the factory's Entity's
+    private final TrafficStats _stats;
 
-	// time in milliseconds to deserialize an object after reading
-	private long _serializeTime = -1;
+    // when the socket last stopped taking the bytes of the batch, in
+    // nanoseconds, or 0 if it took all of them
+    private long _stallStartTime = 0;
 
-    // Indirect byte buffer for writing to the SocketChannel
-    private ByteBuffer _writebuf = null; // allocated by serialize()
-    private final ByteArrayOutputStream _writebytestream = new ByteArrayOutputStream();
+    // Direct byte buffers from _pool for writing to the
+    // SocketChannel, one frame each.  NIO_write() fills
+    // _writebufs[0.._writeBatch-1] with a batch of frames and writes
+    // them with one gathering write.  _writebufs[_writeNext] is the
+    // first frame not yet completely sent.
+    private ByteBuffer[] _writebufs = new ByteBuffer[4];
+    // what to give back to _pool when each of _writebufs has been
+    // sent: the frame itself, the frame of its final chunk, or null
+    private ByteBuffer[] _writeowners = new ByteBuffer[4];
+    private int _writeBatch = 0;
+    private int _writeNext = 0;
+    // the most bytes in a batch, unless its first frame is larger
+    private final int _writeBatchBytes;
+    // frames serialized but not yet in a batch, highest priority
+    // first.  See priorityOf().
+    private final Lane[] _lanes = new Lane[] { new Lane(), new Lane() };
+    // the number of bytes in _lanes
+    private int _queuedBytes = 0;
+    // BULK_LANE objects taken while BULK_LANE was full, in order.
+    // No more than the capacity of the write queue.
+    private final LinkedList _heldBulk = new LinkedList();
+    // serialize() writes frames into buffers from _pool through this
+    private final ByteBufferOutputStream _writebytestream;
+    // the length of the last frame written, a hint to the size of
+    // the next one
+    private int _lastWriteLength = MIN_WRITE_BUFFER;
+    // the smallest buffer to serialize into
+    private static final int MIN_WRITE_BUFFER = 1024;
     private int _writeBytesExpected;
     private int _writeBytesSent;
 
 	// the remote server, or null if the remote endpoint is our client
 	private final ServerContact _addr;
 
+    // may this end open P2PSessions once the peer reads them?
+    private final boolean _multiplexes;
+
+    // does the peer read P2PSessions, and may we open them?
+    private volatile boolean _multiplex = false;
+
+    // the open P2PSessions: id (Integer) -> P2PSession.  Guards
+    // _writableSessions, _closedSessions, _nextSessionId, _retired
+    // and _closing, too.
+    private final HashMap _sessions = new HashMap();
+
+    // the P2PSessions with objects to write, in turn
+    private final LinkedList _writableSessions = new LinkedList();
+
+    // the ids (Integers) of the P2PSessions closed here whose peers
+    // haven't been told
+    private final LinkedList _closedSessions = new LinkedList();
+
+    // the P2PSessions whose read queues were full when last given an
+    // object.  The P2PChannel doesn't read while any still is.  Used
+    // only by the I/O thread.
+    private final ArrayList _fullSessions = new ArrayList();
+
+    // the id of the next P2PSession opened here
+    private int _nextSessionId = 1;
+
+    // Has session 0, the P2PChannel's own traffic, been closed while
+    // P2PSessions were open?  The connection stays up for them.
+    private boolean _retired = false;
+
+    // Is the connection closing?  It has been retired here and its
+    // last P2PSession has been closed.
+    private boolean _closing = false;
+
+    // the error reported to session 0 when the peer retired it
+    private Exception _retirement = null;
+
     /* 
      * PURPOSE: Make a P2PChannel over a SocketChannel
      * PRECONDITION: SocketChannel is an active connected Channel.
@@ -72,11 +272,21 @@ class P2PChannel extends NonBlockingObjectChannel {
      * sends them as buffers.
      */
     P2PChannel(SocketChannel sc, ServerContact addr, P2PChannelFactory fac) {
+		super(fac.getChannelQueueCapacity(), fac.getChannelQueueCapacity());
 		_sc = sc;
 		_addr = addr;
 		_factory = fac;
+		_pool = fac.getBufferPool();
+		_writeBatchBytes = fac.getWriteBatchBytes();
+		_compressionThreshold = fac.getCompressionThreshold();
+		_chunkSize = fac.getChunkSize();
+		_streamResetInterval = fac.getStreamResetInterval();
+		_multiplexes = fac.getMultiplex();
+		_writebytestream = new ByteBufferOutputStream(_pool);
 		readbuf_reset();
 		writebuf_reset();
+		_stats = new TrafficStats(this, fac.getTrafficStats());
+		_stats.register("P2PChannel", toString());
     }
 
     /* 
@@ -98,21 +308,238 @@ class P2PChannel extends NonBlockingObjectChannel {
      * P2PChannel to a server, and null if this is a P2PChannel to a
      * client.
 	 */
-	ServerContact getServerContact() {
+	public ServerContact getServerContact() {
 		return _addr;
 	}
 
-    // is the P2PChannel closed?
+    /* 
+     * PURPOSE: Tell the P2PChannel whether the peer can read
+     * compressed frames.  The ClientSideFSM and the ServerSideFSM
+     * learn it from the FetchRequest and the FetchResponse.
+     * POSTCONDITION: If b is true and compression isn't turned off
+     * (see P2PChannelFactory.COMPRESSION_THRESHOLD_PROPERTY), frames
+     * serialized hereafter whose bodies reach the threshold are
+     * compressed.
+     */
+    public void setPeerReadsCompressedFrames(boolean b) {
+		_compress = b && (_compressionThreshold >= 0);
+    }
+
+    /* 
+     * PURPOSE: Tell the P2PChannel whether the peer can read chunks.
+     * The ClientSideFSM and the ServerSideFSM learn it from the
+     * FetchRequest and the FetchResponse.
+     * POSTCONDITION: If b is true and chunking isn't turned off (see
+     * P2PChannelFactory.CHUNK_SIZE_PROPERTY), frames queued
+     * hereafter that are larger than the chunk size are sent in
+     * chunks, and RMI messages go ahead of other messages.
+     */
+    public void setPeerReadsChunkedFrames(boolean b) {
+		_chunk = b && (_chunkSize > CHUNK_HEADER);
+    }
+
+    /*
+     * PURPOSE: Tell the P2PChannel whether the peer can read streamed
+     * frames.  The ClientSideFSM and the ServerSideFSM learn it from
+     * the FetchRequest and the FetchResponse.
+     * POSTCONDITION: If b is true and streaming isn't turned off (see
+     * P2PChannelFactory.STREAM_RESET_INTERVAL_PROPERTY), objects
+     * serialized hereafter are written to a long-lived object stream
+     * per lane, which sends each class descriptor only once.
+     */
+    public void setPeerReadsStreams(boolean b) {
+		_stream = b && (_streamResetInterval > 0);
+    }
+
+    /*
+     * PURPOSE: Tell the P2PChannel whether the peer reads
+     * P2PSessions.  The ClientSideFSM learns it from the
+     * FetchResponse.
+     * POSTCONDITION: If b is true and multiplexing is turned on (see
+     * P2PChannelFactory.MULTIPLEX_PROPERTY), openSession() opens
+     * P2PSessions hereafter.
+     */
+    public void setPeerReadsSessions(boolean b) {
+		_multiplex = b && _multiplexes;
+    }
+
+    /*
+     * PURPOSE: Open a P2PSession to the server at the other end.
+     * PRECONDITION: This is a P2PChannel to a server.  addr is at
+     * the same host and port as getServerContact().
+     * POSTCONDITION: Returns a new P2PSession, or null if the server
+     * doesn't read P2PSessions or the connection is going away.
+     */
+    public P2PSession openSession(ServerContact addr) {
+		synchronized (_sessions) {
+			if (!_multiplex || _closing || !isOpen() ||
+				(null != super.getError())) {
+				return null;
+			}
+			P2PSession s = new P2PSession(this, _nextSessionId++, addr);
+			_sessions.put(new Integer(s.getId()), s);
+			return s;
+		}
+    }
+
+    /*
+     * PURPOSE: Returns the number of open P2PSessions.
+     */
+    int getSessionCount() {
+		synchronized (_sessions) {
+			return _sessions.size();
+		}
+    }
+
+    /*
+     * PURPOSE: Learn that a P2PSession has something to write.
+     * POSTCONDITION: The P2PSession takes its turn in the batches
+     * until its write queue is empty.
+     */
+    void sessionWritable(P2PSession s) {
+		boolean wakeup = false;
+		synchronized (_sessions) {
+			if (!s._writable && (s == _sessions.get(new Integer(s.getId())))) {
+				s._writable = true;
+				_writableSessions.addLast(s);
+				wakeup = true;
+			}
+		}
+		if (wakeup) {
+			wakeup();
+		}
+    }
+
+    /*
+     * PURPOSE: Close a P2PSession that was closed at this end.
+     * POSTCONDITION: The P2PSession's unsent objects are dropped and
+     * the peer will be told that it is closed.  If it was the last
+     * P2PSession of a retired P2PChannel to a server, the connection
+     * closes once the peer has been told.
+     */
+    void closeSession(P2PSession s) {
+		synchronized (_sessions) {
+			if (null == _sessions.remove(new Integer(s.getId()))) {
+				return;
+			}
+			if (s._writable) {
+				s._writable = false;
+				_writableSessions.remove(s);
+			}
+			_closedSessions.addLast(new Integer(s.getId()));
+			_closing = _retired && _sessions.isEmpty() && (null != _addr);
+		}
+		wakeup();
+    }
+
+    /*
+     * PURPOSE: Make the I/O thread look at this P2PChannel again.
+     */
+    void wakeup() {
+		Selector selector = _selector;
+		if (null != selector) {
+			selector.wakeup();
+		}
+    }
+
+    /* 
+     * PURPOSE: Compression statistics.  "Before" counts the frames
+     * as serialized and "after" as sent, prefixes included, for the
+     * frames that were compressed.  Likewise for the frames received
+     * compressed.
+     */
+    long getFramesCompressed() {
+		return _framesCompressed;
+    }
+
+    long getBytesBeforeCompression() {
+		return _bytesBeforeCompression;
+    }
+
+    long getBytesAfterCompression() {
+		return _bytesAfterCompression;
+    }
+
+    long getFramesDecompressed() {
+		return _framesDecompressed;
+    }
+
+    long getBytesBeforeDecompression() {
+		return _bytesBeforeDecompression;
+    }
+
+    long getBytesAfterDecompression() {
+		return _bytesAfterDecompression;
+    }
+
+    /* 
+     * PURPOSE: Get the traffic of this P2PChannel and its
+     * P2PSessions.
+     */
+    TrafficStats getTrafficStats() {
+		return _stats;
+    }
+
+    // is the P2PChannel closed?  A retired P2PChannel is closed to
+    // its own traffic though its P2PSessions go on.
     boolean isClosed() {
-	return (!_sc.isOpen());
+		synchronized (_sessions) {
+			return (_retired || !_sc.isOpen());
+		}
+    }
+
+    // is the connection open?
+    boolean isOpen() {
+		return _sc.isOpen();
     }
 
-    // close this P2PChannel
+    // Close this P2PChannel.  While P2PSessions are open, only retire
+    // it and tell the peer.
     void close() throws IOException {
+		synchronized (_sessions) {
+			if (!_sessions.isEmpty()) {
+				if (!_retired) {
+					_retired = true;
+					_closedSessions.addLast(new Integer(0));
+					wakeup();
+				}
+				return;
+			}
+		}
 		_sc.close();
 		deregister();
     }
 
+    /*
+     * PURPOSE: Get the error of the P2PChannel's own traffic.
+     * POSTCONDITION: Returns the error of the connection or, if the
+     * peer retired the P2PChannel, an error saying so.
+     */
+    public synchronized Exception getError() {
+		Exception answer = super.getError();
+		return (null == answer) ? _retirement : answer;
+    }
+
+    /*
+     * PURPOSE: Record the failure of the connection.
+     * POSTCONDITION: The P2PChannel and all of its P2PSessions are
+     * in error.
+     */
+    void setError(Exception e) {
+		super.setError(e);
+
+		Object[] sessions;
+		synchronized (_sessions) {
+			sessions = _sessions.values().toArray();
+			_sessions.clear();
+			_writableSessions.clear();
+			_closedSessions.clear();
+		}
+		for (int i = 0; i < sessions.length; i++) {
+			((P2PSession)sessions[i]).setError(e);
+		}
+    }
+
     // sousa.P2PChannel
     
     /* 
@@ -151,7 +578,8 @@ class P2PChannel extends NonBlockingObjectChannel {
 		if (null != _skread) {
 			synchronized(_skread) {
 				// Recording _sc to selector (type OP_READ)
-				if ((_readBytesReceived < _readBytesExpected) && (spaceRead() > 0)) {
+				if ((_readBytesReceived < _readBytesExpected) && (spaceRead() > 0) &&
+					!sessionsFull()) {
 					// save the key
 					_skread.interestOps(SelectionKey.OP_READ);
 				}
@@ -177,7 +605,9 @@ class P2PChannel extends NonBlockingObjectChannel {
 				//System.out.println("P2PChannel register: dataWrite()="+dataWrite());
 
 				// Recording _sc to selector (type OP_WRITE)
-				if ((_writeBytesSent < _writeBytesExpected) || (dataWrite() > 0)) {
+				if ((_writeBytesSent < _writeBytesExpected) || (dataWrite() > 0) ||
+					(_queuedBytes > 0) || !_heldBulk.isEmpty() ||
+					sessionsWritable()) {
 					_skwrite.interestOps(SelectionKey.OP_WRITE);
 					// System.out.println("P2PChannel registered for write");
 				}
@@ -208,6 +638,7 @@ class P2PChannel extends NonBlockingObjectChannel {
 			}
 		}
 		_factory.deregisterP2PChannel(this);
+		_stats.close();
     }
     
     /* 
@@ -231,31 +662,53 @@ class P2PChannel extends NonBlockingObjectChannel {
     /* 
      * PURPOSE: Give the P2PChannel time to handle the WRITEs.
      * PRECONDITION: Called by handle().
-     * POSTCONDITION: Data for the Object being currently transmitted
-     * is written out, and if that is completed, then another enqueued
-     * Object is serialized in preparation for writing.
+     * POSTCONDITION: Data for the batch of Objects being currently
+     * transmitted is written out, and if that is completed, then the
+     * enqueued Objects are serialized into a new batch in
+     * preparation for writing.
      */
     private void NIO_write() {
-		if (null != getError()) return;
+		if (null != super.getError()) return;
 		//System.out.println("NIO write");
 	
 		if (_writeBytesSent == _writeBytesExpected) {
-			Object ser = take_outQ();
 			writebuf_reset();
-			serialize(ser);
-			_writeStartTime = System.currentTimeMillis();
+			fillWriteBatch();
 		}
+
+		// nothing to write, or serialize() failed
+		if (_writeNext == _writeBatch) return;
 	
 		try {
-			int numBytesWritten = _sc.write(_writebuf);
+			long numBytesWritten = 
+				_sc.write(_writebufs, _writeNext, _writeBatch - _writeNext);
 			_writeBytesSent += numBytesWritten;
+			_stats.bytesOut(numBytesWritten);
+
+			// give back the frames that have been sent
+			while ((_writeNext < _writeBatch) && 
+				   !_writebufs[_writeNext].hasRemaining()) {
+				_pool.release(_writeowners[_writeNext]);
+				_writeowners[_writeNext] = null;
+				_writebufs[_writeNext++] = null;
+			}
+
+			if (_writeBytesSent < _writeBytesExpected) {
+				// The socket's send buffer is full.
+				if (0 == _stallStartTime) {
+					_stallStartTime = System.nanoTime();
+				}
+			}
+			else {
+				if (0 != _stallStartTime) {
+					_stats.writeStall(System.nanoTime() - _stallStartTime);
+					_stallStartTime = 0;
+				}
 
-			if (_writeBytesSent == _writeBytesExpected) {
-				long writeTime = System.currentTimeMillis() - _writeStartTime;
-				_LOG.info(new Strings(new Object[]
-					{"Time writing ", new Long(writeTime), " ms serializing ",
-					 new Long(_serializeTime), " ms ", 
-					 new Integer(_writeBytesExpected), " bytes" }));
+				if (closed()) {
+					_sc.close();
+					deregister();
+				}
 			}
 		}
 		catch (IOException e) {
@@ -263,7 +716,371 @@ class P2PChannel extends NonBlockingObjectChannel {
 			// Connection may have been closed
 			setError(e);
 			deregister();
+			writebuf_reset();
+			lanes_reset();
+		}
+    }
+
+    /* 
+     * PURPOSE: Serialize the Objects in the write queue and gather
+     * the frames into a batch.
+     * PRECONDITION: The previous batch has been sent.
+     * POSTCONDITION: Held BULK_LANE objects are serialized while
+     * BULK_LANE has room.  Then objects are taken from the write
+     * queue until it is empty, CONTROL_LANE is full, or the most
+     * BULK_LANE objects are held; each is serialized into its lane
+     * unless it is a BULK_LANE object and BULK_LANE is full, or
+     * objects are held before it, when it is held too.  _writebufs
+     * holds frames and at most one chunk from each lane, highest
+     * priority first, until the lanes are empty or the batch holds at
+     * least _writeBatchBytes bytes.
+     */
+    private void fillWriteBatch() {
+		long startTime = System.currentTimeMillis();
+		Lane bulk = _lanes[BULK_LANE];
+
+		while (!_heldBulk.isEmpty() && (bulk._bytes < _writeBatchBytes)) {
+			if (!queue(_heldBulk.removeFirst(), BULK_LANE, startTime)) {
+				break;
+			}
+		}
+
+		while ((_lanes[CONTROL_LANE]._bytes < _writeBatchBytes) &&
+			   (_heldBulk.size() < _outQCapacity)) {
+			Object obj = takeNext();
+			if (null == obj) break;
+			int lane = priorityOf(obj);
+
+			if ((BULK_LANE == lane) &&
+				(!_heldBulk.isEmpty() || (bulk._bytes >= _writeBatchBytes))) {
+				_heldBulk.addLast(obj);
+			}
+			else if (!queue(obj, lane, startTime)) {
+				break;
+			}
+		}
+
+		long now = System.currentTimeMillis();
+
+		// A starved lane goes first.  Otherwise the highest priority
+		// lane does.
+		int first = 0;
+		for (int i = _lanes.length - 1; i > 0; i--) {
+			if (_lanes[i]._skipped >= STARVATION_LIMIT) {
+				first = i;
+				break;
+			}
+		}
+
+		fillFromLane(_lanes[first], now);
+		for (int i = 0; i < _lanes.length; i++) {
+			if (i != first) {
+				fillFromLane(_lanes[i], now);
+			}
+		}
+    }
+
+    /* 
+     * PURPOSE: Serialize an Object into a lane.
+     * POSTCONDITION: Returns true if the Object's frame is in the
+     * lane, false if serialize() failed.
+     */
+    private boolean queue(Object obj, int lane, long now) {
+		ByteBuffer frame = serialize(obj, lane);
+		if (null == frame) return false;
+
+		_lanes[lane].add(frame, now);
+		_queuedBytes += frame.remaining();
+		return true;
+    }
+
+    /* 
+     * PURPOSE: Take the next Object to send.
+     * POSTCONDITION: Returns a notice that a P2PSession has been
+     * closed, or an Object from the write queue, or an Object from
+     * the next P2PSession in turn, in an Envelope.  Returns null if
+     * there's nothing to send.
+     */
+    private Object takeNext() {
+		synchronized (_sessions) {
+			if (!_closedSessions.isEmpty()) {
+				int id = ((Integer)_closedSessions.removeFirst()).intValue();
+				return new P2PSession.Envelope(id, null);
+			}
+		}
+
+		if (dataWrite() > 0) {
+			return take_outQ();
+		}
+
+		P2PSession s = null;
+		synchronized (_sessions) {
+			if (_writableSessions.isEmpty()) {
+				return null;
+			}
+			s = (P2PSession)_writableSessions.removeFirst();
+		}
+
+		Object obj = s.take_outQ();
+
+		synchronized (_sessions) {
+			if (s.dataWrite() > 0) {
+				_writableSessions.addLast(s);
+			} else {
+				s._writable = false;
+			}
+		}
+		return new P2PSession.Envelope(s.getId(), (Serializable)obj);
+    }
+
+    /* 
+     * PURPOSE: Does a P2PSession have something to send?
+     */
+    private boolean sessionsWritable() {
+		synchronized (_sessions) {
+			return !(_closedSessions.isEmpty() && _writableSessions.isEmpty());
+		}
+    }
+
+    /* 
+     * PURPOSE: Is the connection to close now?
+     * POSTCONDITION: Returns true if the last P2PSession of a
+     * retired P2PChannel has been closed and everything has been
+     * sent.
+     */
+    private boolean closed() {
+		synchronized (_sessions) {
+			return _closing && _closedSessions.isEmpty() && 
+				(0 == dataWrite()) && (0 == _queuedBytes) &&
+				_heldBulk.isEmpty();
+		}
+    }
+
+    /* 
+     * PURPOSE: Is the read queue of a P2PSession full?
+     * POSTCONDITION: Returns true if any P2PSession that was full
+     * when last given an object still is.  Forgets the others.
+     */
+    private boolean sessionsFull() {
+		for (Iterator i = _fullSessions.iterator(); i.hasNext(); ) {
+			P2PSession s = (P2PSession)i.next();
+			if ((s.spaceRead() > 0) || s.isClosed()) {
+				i.remove();
+			}
+		}
+		return !_fullSessions.isEmpty();
+    }
+
+    /* 
+     * PURPOSE: Hand an Object that arrived to whoever reads it.
+     * POSTCONDITION: An Envelope's Object is in the read queue of its
+     * P2PSession, which is made and given to the P2PChannelFactory
+     * if it's new and this is a P2PChannel from a client.  An
+     * Envelope without an Object closes its P2PSession.  Anything
+     * else is in the read queue of the P2PChannel.
+     */
+    private void deliver(Object obj) {
+		if (!(obj instanceof P2PSession.Envelope)) {
+			put_inQ(obj);
+			return;
+		}
+
+		P2PSession.Envelope e = (P2PSession.Envelope)obj;
+		if ((0 == e._session) && (null == e._msg)) {
+			retire();
+			return;
+		}
+
+		Integer id = new Integer(e._session);
+		P2PSession s = null;
+		boolean accepted = false;
+		synchronized (_sessions) {
+			s = (P2PSession)_sessions.get(id);
+			if ((null == s) && (null == _addr) && (null != e._msg)) {
+				s = new P2PSession(this, e._session, null);
+				_sessions.put(id, s);
+				accepted = true;
+			}
+			if ((null != s) && (null == e._msg)) {
+				_sessions.remove(id);
+				if (s._writable) {
+					s._writable = false;
+					_writableSessions.remove(s);
+				}
+			}
+		}
+
+		if (null == s) {
+			// It was closed here.
+			_LOG.debug(new Strings(new Object[]
+				{this, " dropping ", e._msg, " for closed session ", id}));
+		} else if (null == e._msg) {
+			s.closedByPeer();
+		} else {
+			s.put_inQ(e._msg);
+			if (s.spaceRead() <= 0) {
+				_fullSessions.add(s);
+			}
+			if (accepted) {
+				_factory.acceptSession(s);
+			}
+		}
+    }
+
+    /* 
+     * PURPOSE: Retire the P2PChannel because the peer did.
+     * POSTCONDITION: Nothing more will arrive for the P2PChannel's
+     * own reader, which sees an error.  Its P2PSessions go on.
+     */
+    private void retire() {
+		synchronized (_sessions) {
+			_retired = true;
+		}
+		synchronized (this) {
+			_retirement = new SocketException("Channel closed by remote peer");
+		}
+		broadcastNotification(SignalType.ERROR);
+    }
+
+    /* 
+     * PURPOSE: Put frames and a chunk from a lane into the batch.
+     * POSTCONDITION: The lane's frames up to its first chunked one,
+     * and that frame's next chunk, are in the batch, or the batch
+     * holds at least _writeBatchBytes bytes.  The lane's starvation
+     * count is up to date.
+     */
+    private void fillFromLane(Lane lane, long now) {
+		if (lane.isEmpty()) {
+			lane._skipped = 0;
+			return;
+		}
+
+		int before = _writeBatch;
+		while (_writeBytesExpected < _writeBatchBytes) {
+			if (null == lane._chunking) {
+				ByteBuffer frame = lane.poll(now);
+				if (null == frame) break;
+
+				if (_chunk && (frame.remaining() > _chunkSize)) {
+					lane._chunking = frame;
+					lane._streamId = _nextStreamId++;
+				} else {
+					_queuedBytes -= frame.remaining();
+					lane._bytes -= frame.remaining();
+					addToBatch(frame, frame);
+					lane._depth--;
+					continue;
+				}
+			}
+
+			// One chunk per batch, so that what the other lanes
+			// queue meanwhile goes out after it.
+			addChunk(lane);
+			break;
+		}
+		lane._skipped = (_writeBatch == before) ? lane._skipped + 1 : 0;
+    }
+
+    /* 
+     * PURPOSE: Choose the priority class of an Object.
+     * POSTCONDITION: Returns CONTROL_LANE or BULK_LANE.
+     */
+    static int priorityOf(Object obj) {
+		if (obj instanceof P2PSession.Envelope) {
+			obj = ((P2PSession.Envelope)obj)._msg;
+			if (null == obj) {
+				return CONTROL_LANE;
+			}
+		}
+		if ((obj instanceof MethodInvocationMessage) ||
+			(obj instanceof MethodResponseMessage) ||
+			(obj instanceof EntityFSM.Request) ||
+			(obj instanceof EntityFSM.Response)) {
+			return CONTROL_LANE;
+		}
+		return BULK_LANE;
+    }
+
+    /* 
+     * PURPOSE: Per-lane statistics.  lane is CONTROL_LANE or
+     * BULK_LANE.  The depth counts the frames in the lane.  A frame's
+     * wait is the time from its serialization until it, or its first
+     * chunk, goes into a batch.
+     */
+    int getLaneDepth(int lane) {
+		return _lanes[lane]._depth;
+    }
+
+    int getLaneMaxDepth(int lane) {
+		return _lanes[lane]._maxDepth;
+    }
+
+    long getLaneFrames(int lane) {
+		return _lanes[lane]._sent;
+    }
+
+    long getLaneMaxWait(int lane) {
+		return _lanes[lane]._maxWait;
+    }
+
+    double getLaneMeanWait(int lane) {
+		Lane l = _lanes[lane];
+		long sent = l._sent;
+		return (0 == sent) ? 0.0 : ((double)l._totalWait / sent);
+    }
+
+    /* 
+     * PURPOSE: Put the next chunk of a lane's chunked frame into the
+     * batch.
+     * PRECONDITION: lane._chunking != null.
+     * POSTCONDITION: The batch ends with the chunk's header and the
+     * next piece of the frame, so that the chunk's body fills a
+     * _chunkSize buffer at the receiver.  After the last chunk,
+     * lane._chunking is null and the frame goes back to the pool
+     * once the chunk has been sent.
+     */
+    private void addChunk(Lane lane) {
+		ByteBuffer frame = lane._chunking;
+		int n = Math.min(_chunkSize - CHUNK_HEADER, frame.remaining());
+		boolean last = (n == frame.remaining());
+
+		ByteBuffer header = ByteBuffer.allocate(INT_SIZE + CHUNK_HEADER);
+		header.putInt((INT_SIZE + CHUNK_HEADER + n) | CHUNKED);
+		header.putInt(lane._streamId);
+		header.put(last ? (byte)1 : (byte)0);
+		header.flip();
+
+		ByteBuffer piece = frame.duplicate();
+		piece.limit(frame.position() + n);
+		frame.position(frame.position() + n);
+
+		addToBatch(header, null);
+		addToBatch(piece, last ? frame : null);
+		_queuedBytes -= n;
+		lane._bytes -= n;
+		if (last) {
+			lane._chunking = null;
+			lane._depth--;
+		}
+    }
+
+    /* 
+     * PURPOSE: Append a buffer to the batch.
+     * POSTCONDITION: owner, if not null, goes back to the pool when
+     * buf has been sent.
+     */
+    private void addToBatch(ByteBuffer buf, ByteBuffer owner) {
+		if (_writeBatch == _writebufs.length) {
+			ByteBuffer[] bufs = new ByteBuffer[_writeBatch * 2];
+			System.arraycopy(_writebufs, 0, bufs, 0, _writeBatch);
+			_writebufs = bufs;
+			bufs = new ByteBuffer[_writeBatch * 2];
+			System.arraycopy(_writeowners, 0, bufs, 0, _writeBatch);
+			_writeowners = bufs;
 		}
+		_writebufs[_writeBatch] = buf;
+		_writeowners[_writeBatch++] = owner;
+		_writeBytesExpected += buf.remaining();
     }
     
     /* 
@@ -272,15 +1089,13 @@ class P2PChannel extends NonBlockingObjectChannel {
      * POSTCONDITION: Data is read and processed into Objects if possible.
      */
     private void NIO_read() {
-		if (null != getError()) return;
+		if (null != super.getError()) return;
 		try {
-			if ((_readPrefix) && (_readBytesReceived == 0)) 
-				_readStartTime = System.currentTimeMillis();
-
 			int numBytesRead = _sc.read(_readbuf);
 
 			if (numBytesRead > 0) {
 				_readBytesReceived += numBytesRead;
+				_stats.bytesIn(numBytesRead);
 		
 				// reading the prefix?
 				if (_readPrefix) {
@@ -290,10 +1105,12 @@ class P2PChannel extends NonBlockingObjectChannel {
 						// It's the length of the buffer, returned by
 						// _readbuf.getInt(0) minus the size of an int.
 						int prefix = _readbuf.getInt(0);
-						_readBytesExpected = prefix - INT_SIZE;
+						_readCompressed = (0 != (prefix & COMPRESSED));
+						_readChunk = (0 != (prefix & CHUNKED));
+						_readStreamed = (0 != (prefix & STREAMED));
+						_readBytesExpected = (prefix & LENGTH) - INT_SIZE;
 						_readBytesReceived -= INT_SIZE;
-						_readbuf = ByteBuffer.allocate(_readBytesExpected);
-						_readbuf.limit(_readBytesExpected);
+						_readbuf = _pool.acquire(_readBytesExpected);
 						_readPrefix = false;
 					}
 				}
@@ -301,16 +1118,21 @@ class P2PChannel extends NonBlockingObjectChannel {
 				else {
 					// has the object arrived in its entirety?
 					if (_readBytesReceived == _readBytesExpected) {
-						long readTime = System.currentTimeMillis() - _readStartTime;
-						Object ser = deserialize();
-						put_inQ(ser);
+						Object ser = null;
+						_readbuf.flip();
+						if (_readChunk) {
+							// reassemble() gives the chunk back to _pool
+							ByteBuffer chunk = _readbuf;
+							_readbuf = null;
+							ser = reassemble(chunk);
+						} else {
+							ser = deserialize(new ByteBufferInputStream(_readbuf),
+											  _readbuf.limit() + INT_SIZE,
+											  _readCompressed, _readStreamed);
+						}
 						readbuf_reset();
-
-						_LOG.info(new Strings(new Object[]
-							{"Time reading ", new Long(readTime), " ms deserializing ", 
-							 new Long(_deserializeTime), " ms ",
-							 new Integer(_readBytesExpected), " bytes"}));
-
+						if (INCOMPLETE == ser) return;
+						deliver(ser);
 					} else if (_readBytesReceived > _readBytesExpected) {
 						_LOG.error("_readBytesReceived=" + _readBytesReceived + " > _readBytesExpected=" + _readBytesExpected);
 					}
@@ -324,6 +1146,8 @@ class P2PChannel extends NonBlockingObjectChannel {
 			else if (numBytesRead < 0) {
 				// Socket closed by remote peer.  No more bytes can be
 				// read from the channel
+				readbuf_reset();
+				reassembly_reset();
 				close();
 				setError(new SocketException("Socket closed by remote peer"));
 				_LOG.error("Socket closed by remote peer");
@@ -333,41 +1157,129 @@ class P2PChannel extends NonBlockingObjectChannel {
 			// Connection may have been closed
 			setError( e );
 			deregister();
+			readbuf_reset();
+			reassembly_reset();
 			_LOG.error(e);
 		}
     }
     
     /* 
-     * PURPOSE: Reconstitute an Object from the _readbuf
-     * PRECONDITION: Enough data has been received to reconstitute an
-     * entire object.
-     * POSTCONDITION: A Java object is deserialized.
+     * PURPOSE: Add a chunk to the frame it is part of
+     * PRECONDITION: chunk is a complete chunk from _pool, flipped,
+     * without its length prefix.
+     * POSTCONDITION: The chunk's piece of the frame has been copied
+     * into the stream's Reassembly and chunk has gone back to _pool,
+     * so the pool holds no more than one chunk of any frame.  If
+     * chunk is the last of its stream, returns the Object
+     * reconstituted from the stream's frame.  Otherwise returns
+     * INCOMPLETE, as it does after an error.
+     *
+     * The whole frame is still held until its last chunk arrives,
+     * because ObjectInputStream reads from a blocking stream and the
+     * I/O thread must not block waiting for the next chunk.
+     */
+    private Object reassemble(ByteBuffer chunk) {
+		Object answer = INCOMPLETE;
+		try {
+			Integer streamId = new Integer(chunk.getInt());
+			boolean last = (0 != chunk.get());
+
+			Reassembly frame = (Reassembly)_reassembly.get(streamId);
+			if (null == frame) {
+				frame = new Reassembly();
+				_reassembly.put(streamId, frame);
+			}
+			frame.add(chunk);
+			if (last) {
+				_reassembly.remove(streamId);
+				if (!frame.isComplete()) {
+					throw new java.io.StreamCorruptedException("Chunked frame " + 
+																streamId + 
+																" is short");
+				}
+				answer = deserialize(new ByteArrayInputStream(frame._body),
+									 frame._body.length + INT_SIZE,
+									 0 != (frame._prefix & COMPRESSED),
+									 0 != (frame._prefix & STREAMED));
+			}
+		}
+		catch (IOException e) {
+			setError( e );
+			deregister();
+			_LOG.error(e);
+		}
+		finally {
+			_pool.release(chunk);
+		}
+		return answer;
+    }
+
+    /* 
+     * PURPOSE: Reconstitute an Object from a frame
+     * PRECONDITION: bytes holds the frame after its length prefix.
+     * frameLength is the length of the frame.  The frames of each of
+     * the peer's lanes arrive in the order they were streamed.
+     * POSTCONDITION: A Java object is deserialized, from the object
+     * stream of its lane if the frame is streamed.
      */
-    private Object deserialize() {
+    private Object deserialize(InputStream bytes, int frameLength, 
+							   boolean compressed, boolean streamed) {
 		Serializable obj = null;
 		try {
-			long startTime = System.currentTimeMillis();
-			_deserializeTime = -1;
-			// save the size
-			int readBufSize = _readbuf.position();
-			// To read the bytes, flip the buffer
-			_readbuf.flip();
-			ByteArrayInputStream readbytestream = new ByteArrayInputStream(_readbuf.array());
-			readbytestream.reset();
-			ObjectInputStream in = new ObjectInputStream(readbytestream) ;
+			long startTime = System.nanoTime();
+			if (compressed) {
+				// the length of the uncompressed frame
+				int length = new DataInputStream(bytes).readInt();
+				_framesDecompressed++;
+				_bytesBeforeDecompression += frameLength;
+				_bytesAfterDecompression += length;
+				if (null == _inflater) {
+					_inflater = new Inflater();
+				}
+				_inflater.reset();
+				bytes = new InflaterInputStream(bytes, _inflater, ZIP_BUFFER);
+			}
+
+			ObjectInputStream in;
+			FrameInputStream frame = null;
+			if (streamed) {
+				int lane = bytes.read();
+				if ((lane < 0) || (lane >= LANES)) {
+					throw new java.io.StreamCorruptedException("No lane " + lane);
+				}
+				frame = _streamFrames[lane];
+				if (null == frame) {
+					frame = new FrameInputStream();
+					_streamFrames[lane] = frame;
+				}
+				frame.setFrame(bytes);
+				if (null == _streamsIn[lane]) {
+					// reads the stream header
+					_streamsIn[lane] = new ClassCachingObjectInputStream(frame);
+				}
+				in = _streamsIn[lane];
+			} else {
+				in = new ObjectInputStream(bytes);
+			}
 
 			try {
 				// read the Serializable in
 				obj = (Serializable)in.readObject();
-				_deserializeTime = System.currentTimeMillis() - startTime;
+				_stats.frameIn(System.nanoTime() - startTime);
 			}
 			catch (ClassNotFoundException ex) {
 				setError( ex );
 				deregister();
 				_LOG.error(ex);
 			}
-			// close the ObjectInputStream
-			in.close();
+
+			if (streamed) {
+				// The stream lives on, but not the frame.
+				frame.setFrame(null);
+			} else {
+				// close the ObjectInputStream
+				in.close();
+			}
     	}
 		catch (IOException e) {
 			setError( e );
@@ -378,75 +1290,184 @@ class P2PChannel extends NonBlockingObjectChannel {
     }
     
     /* 
-     * PURPOSE: Write an Object into the _writebuf
-     * PRECONDITION: 
-     * POSTCONDITION: Creates a new _writebuf.  The Java object obj is serialized.
+     * PURPOSE: Write an Object into a frame
+     * PRECONDITION: lane is the Object's lane.
+     * POSTCONDITION: Returns a buffer from the pool that holds the
+     * length prefix and the serialized Java object obj, ready to be
+     * written, or null if obj can't be serialized.  If the peer reads
+     * streamed frames, obj was written to the lane's object stream,
+     * and nothing written later refers to it once the stream has been
+     * reset.
      */
-    private void serialize(Object obj) {
+    private ByteBuffer serialize(Object obj, int lane) {
+		ByteBuffer answer = null;
 		try {
-			long startTime = System.currentTimeMillis();
-			_serializeTime = -1;
+			long startTime = System.nanoTime();
+			boolean streamed = _stream;
 
-			// reset the ByteArrayOutputStream
-			_writebytestream.reset();
-	    
-			// build an ObjectOutputStream
-			ObjectOutputStream out = new ObjectOutputStream(_writebytestream) ;
-			// write the Serializable out
-			out.writeObject(obj);
-			// close the ObjectOutputStream
-			out.close();
-	    
-			// Get the bytes of the serialized object and its byte length
-			byte[] buf = _writebytestream.toByteArray();
-			int length = _writebytestream.size();
-	    
-			_writebuf = ByteBuffer.allocate(length + INT_SIZE);
+			// start a pooled buffer as big as the last frame and
+			// leave room for the length prefix
+			_writebytestream.begin(_lastWriteLength);
+			_writebytestream.buffer().putInt(0);
 
-			// write the length of the serialized object into the outbound ByteBuffer
-			_writebuf.putInt(length + INT_SIZE);
-			// write the serialized object into the outbound ByteBuffer
-			_writebuf.put(buf);
+			if (streamed) {
+				_writebytestream.buffer().put((byte)lane);
+				ObjectOutputStream out = _streamsOut[lane];
+				if (null == out) {
+					// writes the stream header into this frame
+					out = new ClassCachingObjectOutputStream(_writebytestream);
+					_streamsOut[lane] = out;
+				}
+				if (_sinceReset[lane] >= _streamResetInterval) {
+					// The reset goes at the start of the frame so
+					// that the peer reads it with this object.
+					out.reset();
+					_sinceReset[lane] = 0;
+				}
+				out.writeObject(obj);
+				_sinceReset[lane]++;
+				out.flush();
+			} else {
+				// build an ObjectOutputStream
+				ObjectOutputStream out = new ObjectOutputStream(_writebytestream) ;
+				// write the Serializable out
+				out.writeObject(obj);
+				// close the ObjectOutputStream
+				out.close();
+			}
 	    
-			// set the number of bytes that need to be transmitted
-			_writeBytesExpected = length + INT_SIZE;
-			// shorten the buffer
-			_writebuf.limit(_writeBytesExpected);
+			answer = _writebytestream.detach();
+			int length = answer.position();
 
-			_writebuf.flip();
-			_serializeTime = System.currentTimeMillis() - startTime;
+			// write the length of the frame into the prefix
+			answer.putInt(0, streamed ? (length | STREAMED) : length);
+			_lastWriteLength = (length < MIN_WRITE_BUFFER) ? MIN_WRITE_BUFFER : length;
+
+			answer.flip();
+
+			if (_compress && (length - INT_SIZE >= _compressionThreshold)) {
+				answer = compress(answer);
+			}
+			_stats.frameOut(System.nanoTime() - startTime, dataWrite());
 		}
 		catch (IOException e) {
 			_LOG.error(e);
 			setError( e );
 			deregister();
 		}
+		return answer;
+    }
+
+    /* 
+     * PURPOSE: Compress a frame
+     * PRECONDITION: frame is ready to be written.
+     * POSTCONDITION: Returns a compressed frame ready to be written
+     * and releases frame to the pool, or returns frame if compressing
+     * doesn't make it smaller.
+     */
+    private ByteBuffer compress(ByteBuffer frame) throws IOException {
+		int length = frame.remaining();
+		int flags = frame.getInt(0) & STREAMED;
+
+		_writebytestream.begin(length / 2);
+		_writebytestream.buffer().putInt(0);
+		_writebytestream.buffer().putInt(length);
+
+		if (null == _deflater) {
+			_deflater = new Deflater(Deflater.BEST_SPEED);
+			_zipbuf = new byte[ZIP_BUFFER];
+		}
+		_deflater.reset();
+		DeflaterOutputStream out = 
+			new DeflaterOutputStream(_writebytestream, _deflater, ZIP_BUFFER);
+
+		frame.position(INT_SIZE);
+		while (frame.hasRemaining()) {
+			int n = Math.min(frame.remaining(), _zipbuf.length);
+			frame.get(_zipbuf, 0, n);
+			out.write(_zipbuf, 0, n);
+		}
+		out.finish();
+
+		ByteBuffer answer = _writebytestream.detach();
+		int compressedLength = answer.position();
+		if (compressedLength >= length) {
+			_pool.release(answer);
+			frame.position(0);
+			return frame;
+		}
+
+		answer.putInt(0, compressedLength | COMPRESSED | flags);
+		answer.flip();
+		_pool.release(frame);
+
+		_framesCompressed++;
+		_bytesBeforeCompression += length;
+		_bytesAfterCompression += compressedLength;
+		return answer;
     }
     
     /* 
      * PURPOSE: Reset the read ByteBuffer
      * PRECONDITION: The readByteBuffer contents have been processed.
-     * POSTCONDITION: The read ByteBuffer is reset.
+     * POSTCONDITION: The read ByteBuffer is the prefix buffer.  Any
+     * frame body buffer has gone back to the pool.
      */
     private void readbuf_reset() {
-		_readbuf = ByteBuffer.allocate(INT_SIZE);
+		if (_readbuf != _prefixbuf) {
+			_pool.release(_readbuf);
+		}
+		_readbuf = _prefixbuf;
 		_readbuf.clear();
 		_readBytesReceived = 0;
 		_readBytesExpected = INT_SIZE;
 		_readbuf.limit(_readBytesExpected);
 		_readPrefix = true;
+		_readCompressed = false;
+		_readStreamed = false;
     }
     
     /* 
-     * PURPOSE: Reset the read ByteBuffer
-     * PRECONDITION: The readByteBuffer contents have been processed.
-     * POSTCONDITION: The read ByteBuffer is reset.
+     * PURPOSE: Reset the write ByteBuffers
+     * PRECONDITION: The batch has been sent, or never will be.
+     * POSTCONDITION: The batch is empty.  Its buffers have gone back
+     * to the pool.
      */
     private void writebuf_reset() {
+		for (int i = _writeNext; i < _writeBatch; i++) {
+			_pool.release(_writeowners[i]);
+			_writeowners[i] = null;
+			_writebufs[i] = null;
+		}
+		_writeBatch = 0;
+		_writeNext = 0;
 		_writeBytesSent = 0;
 		_writeBytesExpected = 0;
     }
 
+    /* 
+     * PURPOSE: Discard the frames not yet sent
+     * PRECONDITION: The P2PChannel has failed.
+     * POSTCONDITION: The lanes are empty.  Their frames have gone
+     * back to the pool.
+     */
+    private void lanes_reset() {
+		for (int i = 0; i < _lanes.length; i++) {
+			_lanes[i].clear(_pool);
+		}
+		_queuedBytes = 0;
+		_heldBulk.clear();
+    }
+
+    /* 
+     * PURPOSE: Discard partly received frames
+     * PRECONDITION: The P2PChannel has failed.
+     * POSTCONDITION: There are no partly received frames.
+     */
+    private void reassembly_reset() {
+		_reassembly.clear();
+    }
+
     /* 
 	 * DEBUGGING
      */
@@ -487,4 +1508,205 @@ class P2PChannel extends NonBlockingObjectChannel {
 			}
 		}
     }
+
+    /* 
+     * PURPOSE: A Reassembly collects the pieces of a chunked frame as
+     * its chunks arrive.  The first INT_SIZE bytes are the frame's
+     * length prefix, which sizes the array that the rest are copied
+     * into.
+     */
+    private static final class Reassembly {
+		// the frame's length prefix and how many of its bytes have
+		// arrived
+		int _prefix = 0;
+		private int _prefixBytes = 0;
+		// the frame after its length prefix, once the prefix has
+		// arrived
+		byte[] _body = null;
+		// the number of bytes of _body that have arrived
+		private int _filled = 0;
+
+		// copy the rest of piece into the frame
+		void add(ByteBuffer piece) throws java.io.StreamCorruptedException {
+			while ((_prefixBytes < INT_SIZE) && piece.hasRemaining()) {
+				_prefix = (_prefix << 8) | (piece.get() & 0xFF);
+				if (INT_SIZE == ++_prefixBytes) {
+					int length = (_prefix & LENGTH) - INT_SIZE;
+					if (length < 0) {
+						throw new java.io.StreamCorruptedException("Chunked frame of length " +
+																	length);
+					}
+					_body = new byte[length];
+				}
+			}
+
+			int n = piece.remaining();
+			if (n > 0) {
+				if (_filled + n > _body.length) {
+					throw new java.io.StreamCorruptedException("Chunked frame is long");
+				}
+				piece.get(_body, _filled, n);
+				_filled += n;
+			}
+		}
+
+		// has all of the frame arrived?
+		boolean isComplete() {
+			return (null != _body) && (_filled == _body.length);
+		}
+    }
+
+    /* 
+     * PURPOSE: A Lane holds serialized frames waiting to be put in a
+     * batch, in order, and the frame it is sending in chunks.  It
+     * keeps its statistics where other threads can read them.
+     */
+    private static final class Lane {
+		// the frames (ByteBuffers from _pool) waiting to be sent and
+		// the times (Longs) they were queued
+		private final RingBuffer _frames = new RingBuffer(4);
+		private final RingBuffer _times = new RingBuffer(4);
+		// the frame being sent in chunks, or null.  Its position is
+		// the start of the next chunk.
+		ByteBuffer _chunking = null;
+		// the stream id of _chunking
+		int _streamId;
+		// the number of batches in a row that this lane had frames
+		// waiting but got nothing into
+		int _skipped = 0;
+		// the bytes of the lane's frames not yet in a batch
+		int _bytes = 0;
+
+		// statistics
+		volatile int _depth = 0;
+		volatile int _maxDepth = 0;
+		volatile long _sent = 0;
+		volatile long _totalWait = 0;
+		volatile long _maxWait = 0;
+
+		// queue a frame serialized at time now
+		void add(ByteBuffer frame, long now) {
+			_frames.add(frame);
+			_times.add(new Long(now));
+			_bytes += frame.remaining();
+			_depth++;
+			if (_depth > _maxDepth) {
+				_maxDepth = _depth;
+			}
+		}
+
+		// dequeue the oldest frame at time now, or return null.  It
+		// leaves the depth when it has been sent, or all of its
+		// chunks have.
+		ByteBuffer poll(long now) {
+			ByteBuffer answer = (ByteBuffer)_frames.poll();
+			if (null != answer) {
+				long wait = now - ((Long)_times.poll()).longValue();
+				_sent++;
+				_totalWait += wait;
+				if (wait > _maxWait) {
+					_maxWait = wait;
+				}
+			}
+			return answer;
+		}
+
+		// release everything in the lane to pool
+		void clear(BufferPool pool) {
+			while (!_frames.isEmpty()) {
+				pool.release((ByteBuffer)_frames.poll());
+				_times.poll();
+			}
+			pool.release(_chunking);
+			_chunking = null;
+			_depth = 0;
+			_bytes = 0;
+		}
+
+		// does the lane have anything left to send?
+		boolean isEmpty() {
+			return _frames.isEmpty() && (null == _chunking);
+		}
+    }
+
+	// Usage: P2PChannel [megabytes]
+	//
+	// Writes a State.ChangeMessage of about megabytes, 4 by default,
+	// to a P2PChannel whose peer reads chunks and, once it is being
+	// sent, a MethodInvocationMessage.  Then reads what the
+	// P2PChannel sent from a plain Socket.  Reports how many chunks
+	// of the large frame the P2PChannel sent ahead of the
+	// MethodInvocationMessage after it was written, which must be no
+	// more than one.  Listens on port 9002.
+	//
+	public static void main(String[] args) throws Exception {
+		int megabytes = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+		P2PChannelFactory f = P2PChannelFactory.newInstance(9002, null);
+		java.net.Socket peer = new java.net.Socket();
+		peer.setReceiveBufferSize(64 * 1024);
+		peer.connect(new java.net.InetSocketAddress("localhost", 9002));
+
+		// Read only once the connection is there.  Reading an empty
+		// queue is an error.
+		for (int tries = 0; (f.dataRead() <= 0) && (tries < 1000); tries++) {
+			Thread.sleep(10);
+		}
+		P2PChannel ch = (f.dataRead() > 0) ? (P2PChannel)f.read() : null;
+		if (null == ch) {
+			System.err.println("No connection");
+			System.exit(1);
+		}
+		ch.setPeerReadsChunkedFrames(true);
+		ch._sc.socket().setSendBufferSize(64 * 1024);
+
+		// a large result set, then a small RMI message behind it
+		State.ChangeMessage results = new State.ChangeMessage();
+		results.addFieldChangeMessage(new Field.ChangeMessage("results",
+			new int[megabytes << 18]));
+		ch.write(results);
+
+		// Let the P2PChannel serialize the results and fill the
+		// socket's buffers, which the peer doesn't read yet.
+		while (ch.dataWrite() > 0) {
+			Thread.sleep(1);
+		}
+		Thread.sleep(200);
+
+		// The chunks in batches so far, which may be in the socket's
+		// buffers already.  The P2PChannel is waiting for the peer.
+		int piece = f.getChunkSize() - CHUNK_HEADER;
+		ByteBuffer chunking = ch._lanes[BULK_LANE]._chunking;
+		int chunksBatched = (null == chunking) ? 0 :
+			(chunking.position() + piece - 1) / piece;
+		ch.write(new MethodInvocationMessage("ping()", null, new Object[0]));
+
+		DataInputStream in = 
+			new DataInputStream(new java.io.BufferedInputStream(peer.getInputStream()));
+		int chunks = 0;
+		int chunksAhead = -1;
+		boolean lastChunk = false;
+		while ((chunksAhead < 0) || !lastChunk) {
+			int prefix = in.readInt();
+			byte[] body = new byte[(prefix & LENGTH) - INT_SIZE];
+			in.readFully(body);
+
+			if (0 != (prefix & CHUNKED)) {
+				chunks++;
+				lastChunk = (0 != body[INT_SIZE]);
+			} else {
+				Object obj = new ObjectInputStream(new ByteArrayInputStream(body)).readObject();
+				if (obj instanceof MethodInvocationMessage) {
+					chunksAhead = chunks;
+				}
+			}
+		}
+
+		int late = chunksAhead - chunksBatched;
+		System.out.println("Chunks of the " + megabytes + 
+						   " MB frame sent ahead of the MethodInvocationMessage" +
+						   " after it was written: " + late + " (" +
+						   chunksAhead + " of " + chunks + " in all)");
+		peer.close();
+		System.exit((late <= 1) ? 0 : 1);
+	}
 }
@@ -1,7 +1,10 @@
 package mil.navy.nrl.cmf.sousa;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
@@ -13,6 +16,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
 
+import mil.navy.nrl.cmf.sousa.util.BufferPool;
 import org.apache.log4j.Logger;
 
 /**
@@ -20,15 +24,23 @@ import org.apache.log4j.Logger;
  * incoming connections from clients and outgoing connections to
  * servers.
  */
-public class P2PChannelFactory extends NonBlockingObjectChannel implements Runnable {
+public class P2PChannelFactory extends NonBlockingObjectChannel 
+	implements Runnable, SelectableSet.Poller {
 	private static final Logger _LOG = 
 		Logger.getLogger(P2PChannelFactory.class);
 
     // the Entity in which this P2PChannelFactory resides.
     protected final Entity _entity;
 	
-    // the low-level I/O thread
-    private final Thread _io_thread = new Thread(this, "P2PChannelFactory-NIO");
+    // the name of the system property that, when "true", makes
+    // newInstance(int, Entity) build P2PChannelFactories without an
+    // I/O thread of their own.  See SelectableSet.Poller.
+    public static final String SINGLE_THREADED_PROPERTY =
+	"mil.navy.nrl.cmf.sousa.P2PChannelFactory.singleThreaded";
+
+    // the low-level I/O thread, or null if the owner of a
+    // SelectableSet drives the Selector by calling poll().
+    private final Thread _io_thread;
     // default select time for the NIO thread
     private final long DEFAULT_SELECT_TIME_NIO = 10000;
 
@@ -45,6 +57,178 @@ public class P2PChannelFactory extends NonBlockingObjectChannel implements Runna
 	
     // the listening port
     private final int _port;
+
+    // the name of the system property that sets the capacity of the
+    // read and write queues of each P2PChannel.  When it is absent,
+    // P2PChannels use the capacity of any other Selectable.
+    public static final String CHANNEL_QUEUE_CAPACITY_PROPERTY =
+	"mil.navy.nrl.cmf.sousa.P2PChannel.queueCapacity";
+
+    // the capacity of the read and write queues of each new P2PChannel
+    private int _channelQueueCapacity = 
+	queueCapacity(CHANNEL_QUEUE_CAPACITY_PROPERTY);
+
+    // the name of the system property that bounds the number of
+    // bytes each P2PChannel sends in one gathering write.  A
+    // P2PChannel serializes everything in its write queue into one
+    // batch of frames, up to this many bytes, and writes them
+    // together.  Each frame keeps its own length prefix.
+    public static final String WRITE_BATCH_BYTES_PROPERTY =
+	"mil.navy.nrl.cmf.sousa.P2PChannel.writeBatchBytes";
+
+    // the default bound on the bytes in a P2PChannel's write batch
+    private static final int DEFAULT_WRITE_BATCH_BYTES = 256 * 1024;
+
+    // the bound on the bytes in each new P2PChannel's write batch
+    private int _writeBatchBytes = 
+	Integer.getInteger(WRITE_BATCH_BYTES_PROPERTY, 
+			   DEFAULT_WRITE_BATCH_BYTES).intValue();
+
+    // the name of the system property that sets the size in bytes
+    // at which a P2PChannel starts compressing frames.  A P2PChannel
+    // compresses a frame whose serialized object is at least this
+    // large, provided the peer said during the fetch that it can
+    // read compressed frames.  A negative value turns compression
+    // off.
+    public static final String COMPRESSION_THRESHOLD_PROPERTY =
+	"mil.navy.nrl.cmf.sousa.P2PChannel.compressionThreshold";
+
+    // the default compression threshold
+    private static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+    // the compression threshold of each new P2PChannel
+    private int _compressionThreshold = 
+	Integer.getInteger(COMPRESSION_THRESHOLD_PROPERTY, 
+			   DEFAULT_COMPRESSION_THRESHOLD).intValue();
+
+    // the name of the system property that sets the size in bytes
+    // of the chunks a P2PChannel splits large frames into.  Once the
+    // peer has said during the fetch that it can read chunks, a
+    // P2PChannel sends each frame larger than this in chunks and
+    // sends RMI messages ahead of the chunks of other frames.  Zero
+    // or a negative value turns chunking off.
+    public static final String CHUNK_SIZE_PROPERTY =
+	"mil.navy.nrl.cmf.sousa.P2PChannel.chunkSize";
+
+    // the default chunk size
+    private static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+
+    // the chunk size of each new P2PChannel
+    private int _chunkSize = 
+	Integer.getInteger(CHUNK_SIZE_PROPERTY, DEFAULT_CHUNK_SIZE).intValue();
+
+    // the name of the system property that sets how many objects a
+    // P2PChannel writes to each of its long-lived object streams
+    // between calls to reset().  Once the peer has said during the
+    // fetch that it can read streamed frames, a P2PChannel writes
+    // the objects of each lane to one ObjectOutputStream, which sends
+    // each class descriptor only once, and each frame holds one
+    // object.  An object written again before the reset() arrives as
+    // the object received before, unchanged, so the default resets
+    // after every object.  Zero or a negative value turns streaming
+    // off, making each frame a stream of its own.
+    public static final String STREAM_RESET_INTERVAL_PROPERTY =
+	"mil.navy.nrl.cmf.sousa.P2PChannel.streamResetInterval";
+
+    // the default stream reset interval
+    private static final int DEFAULT_STREAM_RESET_INTERVAL = 1;
+
+    // the stream reset interval of each new P2PChannel
+    private int _streamResetInterval = 
+	Integer.getInteger(STREAM_RESET_INTERVAL_PROPERTY,
+			   DEFAULT_STREAM_RESET_INTERVAL).intValue();
+
+    // the name of the system property that, when "true", lets an
+    // Entity's clients share one P2PChannel to a server.  Once a
+    // server has said during the fetch that it reads P2PSessions,
+    // each later connection to it opens a P2PSession on the
+    // P2PChannel instead of a socket of its own.  Servers read
+    // P2PSessions whether or not it is set.
+    public static final String MULTIPLEX_PROPERTY =
+	"mil.navy.nrl.cmf.sousa.P2PChannel.multiplex";
+
+    // do new P2PChannels carry P2PSessions?
+    private boolean _multiplex = Boolean.getBoolean(MULTIPLEX_PROPERTY);
+
+    // the name of the system property that, when "false", stops a
+    // P2PChannelFactory from connecting to a server in the same JVM
+    // through a LoopbackChannel.  By default, a ServerContact whose
+    // port is that of another P2PChannelFactory in the JVM, on one of
+    // this host's addresses, gets a LoopbackChannel instead of a
+    // P2PChannel.
+    public static final String LOOPBACK_PROPERTY =
+	"mil.navy.nrl.cmf.sousa.P2PChannel.loopback";
+
+    // do connections to servers in the same JVM use LoopbackChannels?
+    private boolean _loopback = 
+	Boolean.valueOf(System.getProperty(LOOPBACK_PROPERTY, "true")).booleanValue();
+
+    // the name of the system property that, when "false", makes the
+    // LoopbackChannels of a P2PChannelFactory hand over the objects
+    // written on them rather than deep copies.  By default they copy
+    // everything but Strings, boxed primitives, and
+    // State.ChangeMessages of them, by serialization, as a
+    // P2PChannel would, so that the Entities never share an object
+    // that either might change.  The fetch handshake is copied
+    // whether or not it is set.
+    public static final String LOOPBACK_COPY_PROPERTY =
+	"mil.navy.nrl.cmf.sousa.P2PChannel.loopbackCopy";
+
+    // do new LoopbackChannels copy what is written on them?
+    private boolean _loopbackCopy = 
+	Boolean.valueOf(System.getProperty(LOOPBACK_COPY_PROPERTY, "true")).booleanValue();
+
+    // the name of the system property that names a directory, such
+    // as /dev/shm, through which P2PChannelFactories on this host
+    // connect with MappedChannels instead of sockets.  A
+    // P2PChannelFactory with the directory listens in its
+    // subdirectory sousa-<port>, and a ServerContact on one of this
+    // host's addresses whose subdirectory has a listener gets a
+    // MappedChannel.  Unset, every connection to another JVM is a
+    // P2PChannel.
+    public static final String SHARED_MEMORY_PROPERTY =
+	"mil.navy.nrl.cmf.sousa.P2PChannel.sharedMemory";
+
+    // the directory for MappedChannels, or null if there are none
+    private File _sharedMemory = sharedMemoryDirectory(System.getProperty(SHARED_MEMORY_PROPERTY));
+
+    // listens for MappedChannels in _sharedMemory
+    private MappedChannel.Acceptor _acceptor = null;
+
+    // the name of the system property that holds the number of bytes
+    // in each direction of a new MappedChannel, rounded up to a power
+    // of two
+    public static final String SHARED_MEMORY_RING_BYTES_PROPERTY =
+	"mil.navy.nrl.cmf.sousa.P2PChannel.sharedMemoryRingBytes";
+
+    private static final int DEFAULT_SHARED_MEMORY_RING_BYTES = 1024 * 1024;
+
+    // how many bytes each ring of a new MappedChannel holds
+    private int _sharedMemoryRingBytes =
+	Integer.getInteger(SHARED_MEMORY_RING_BYTES_PROPERTY,
+			   DEFAULT_SHARED_MEMORY_RING_BYTES).intValue();
+
+    // the name of the system property that holds the largest frame,
+    // in bytes, that a MappedChannel takes from its peer.  A longer
+    // one fails the MappedChannel.  It is never less than the
+    // capacity of a ring.
+    public static final String SHARED_MEMORY_MAX_FRAME_BYTES_PROPERTY =
+	"mil.navy.nrl.cmf.sousa.P2PChannel.sharedMemoryMaxFrameBytes";
+
+    private static final int DEFAULT_SHARED_MEMORY_MAX_FRAME_BYTES = 64 * 1024 * 1024;
+
+    // the largest frame a new MappedChannel takes from its peer
+    private int _sharedMemoryMaxFrameBytes =
+	Integer.getInteger(SHARED_MEMORY_MAX_FRAME_BYTES_PROPERTY,
+			   DEFAULT_SHARED_MEMORY_MAX_FRAME_BYTES).intValue();
+
+    // the P2PChannelFactories of the JVM that are listening, by port:
+    // Integer->P2PChannelFactory
+    private static final HashMap _listening = new HashMap();
+
+    // the direct buffers that the P2PChannels read and write frames
+    // through: 1 KB to 16 MB in powers of two, up to 8 of each size
+    private final BufferPool _bufferPool = new BufferPool(1 << 10, 1 << 24, 8);
 	
     /* 
      * PURPOSE: Make P2PChannelFactory which can produce outbound
@@ -56,7 +240,24 @@ public class P2PChannelFactory extends NonBlockingObjectChannel implements Runna
      * synchronously upon request.  
      */
     public static P2PChannelFactory newInstance(int port, Entity e) throws IOException {
-		return new P2PChannelFactory(port, e);
+		return new P2PChannelFactory(port, e, 
+									 !Boolean.getBoolean(SINGLE_THREADED_PROPERTY));
+    }
+
+    /* 
+     * PURPOSE: Make P2PChannelFactory which can produce outbound
+     * inbound and outbound P2PChannels, choosing whether it has an
+     * I/O thread of its own.
+     * PRECONDITION: port>1024 is unbound.
+     * POSTCONDITION: As newInstance(int, Entity).  If ownThread is
+     * false, no I/O happens until the new P2PChannelFactory is given
+     * to SelectableSet.setPoller() and someone calls select() on
+     * that SelectableSet.
+     */
+    public static P2PChannelFactory newInstance(int port, Entity e, 
+												boolean ownThread) 
+		throws IOException {
+		return new P2PChannelFactory(port, e, ownThread);
     }
 	
 
@@ -69,7 +270,8 @@ public class P2PChannelFactory extends NonBlockingObjectChannel implements Runna
      * connections on the specified port.  Outgoing socket channels
      * are made synchronously upon request.
      */
-    private P2PChannelFactory(int port, Entity e) throws IOException {
+    private P2PChannelFactory(int port, Entity e, boolean ownThread) 
+		throws IOException {
 		// save a reference to the owning Entity
 		_entity = e;
 		// save the port 
@@ -80,8 +282,32 @@ public class P2PChannelFactory extends NonBlockingObjectChannel implements Runna
 		_ss.socket().bind(new java.net.InetSocketAddress(port));
 		// _ss uses nonblocking I/O
 		_ss.configureBlocking(false);
+		_selector = Selector.open();
+
+		synchronized (_listening) {
+			_listening.put(new Integer(port), this);
+		}
+
+		// listen for MappedChannels, too
+		setSharedMemoryDirectory(getSharedMemoryDirectory());
+
 		// start running
-		_io_thread.start();
+		if (ownThread) {
+			_io_thread = new Thread(this, "P2PChannelFactory-NIO");
+			_io_thread.start();
+		} else {
+			_io_thread = null;
+		}
+    }
+
+    /* 
+     * PURPOSE: Tell whether this P2PChannelFactory has an I/O thread
+     * of its own.
+     * POSTCONDITION: Returns false if the Selector must be driven by
+     * calling poll().
+     */
+    boolean hasOwnThread() {
+		return (null != _io_thread);
     }
 
     // get the port number
@@ -89,6 +315,255 @@ public class P2PChannelFactory extends NonBlockingObjectChannel implements Runna
 	return _port;
     }
 
+    /* 
+     * PURPOSE: Get the capacity of the read and write queues of each
+     * new P2PChannel.
+     */
+    public synchronized int getChannelQueueCapacity() {
+	return _channelQueueCapacity;
+    }
+
+    /* 
+     * PURPOSE: Set the capacity of the read and write queues of each
+     * new P2PChannel.  Existing P2PChannels are unaffected.
+     * PRECONDITION: capacity > 0.
+     * POSTCONDITION: P2PChannels made hereafter can pipeline up to
+     * capacity objects in each direction.
+     */
+    public synchronized void setChannelQueueCapacity(int capacity) {
+	if (capacity <= 0) {
+	    throw new IllegalArgumentException("queue capacity " + capacity + " <= 0");
+	}
+	_channelQueueCapacity = capacity;
+    }
+
+    /* 
+     * PURPOSE: Get the bound on the bytes in each new P2PChannel's
+     * write batch.
+     */
+    public synchronized int getWriteBatchBytes() {
+	return _writeBatchBytes;
+    }
+
+    /* 
+     * PURPOSE: Set the bound on the bytes in each new P2PChannel's
+     * write batch.  Existing P2PChannels are unaffected.
+     * PRECONDITION: bytes > 0.
+     * POSTCONDITION: P2PChannels made hereafter stop adding frames to
+     * a batch once it holds at least this many bytes.  A batch always
+     * holds at least one frame.
+     */
+    public synchronized void setWriteBatchBytes(int bytes) {
+	if (bytes <= 0) {
+	    throw new IllegalArgumentException("write batch " + bytes + " <= 0");
+	}
+	_writeBatchBytes = bytes;
+    }
+
+    /* 
+     * PURPOSE: Get the compression threshold of each new P2PChannel.
+     */
+    public synchronized int getCompressionThreshold() {
+	return _compressionThreshold;
+    }
+
+    /* 
+     * PURPOSE: Set the compression threshold of each new P2PChannel.
+     * Existing P2PChannels are unaffected.
+     * POSTCONDITION: P2PChannels made hereafter compress the frames
+     * of objects that serialize to at least bytes bytes, once the
+     * peer says it can read them.  Negative bytes turns compression
+     * off.
+     */
+    public synchronized void setCompressionThreshold(int bytes) {
+	_compressionThreshold = bytes;
+    }
+
+    /* 
+     * PURPOSE: Get the chunk size of each new P2PChannel.
+     */
+    public synchronized int getChunkSize() {
+	return _chunkSize;
+    }
+
+    /* 
+     * PURPOSE: Set the chunk size of each new P2PChannel.  Existing
+     * P2PChannels are unaffected.
+     * POSTCONDITION: P2PChannels made hereafter send frames larger
+     * than bytes bytes in chunks, once the peer says it can read
+     * them.  Zero or negative bytes turns chunking off.
+     */
+    public synchronized void setChunkSize(int bytes) {
+	_chunkSize = bytes;
+    }
+
+    /* 
+     * PURPOSE: Get the stream reset interval of each new P2PChannel.
+     */
+    public synchronized int getStreamResetInterval() {
+	return _streamResetInterval;
+    }
+
+    /* 
+     * PURPOSE: Set the stream reset interval of each new P2PChannel.
+     * Existing P2PChannels are unaffected.
+     * POSTCONDITION: P2PChannels made hereafter reset each of their
+     * object streams after every objects objects, once the peer says
+     * it can read streamed frames.  Zero or negative objects turns
+     * streaming off.
+     */
+    public synchronized void setStreamResetInterval(int objects) {
+	_streamResetInterval = objects;
+    }
+
+    /* 
+     * PURPOSE: Tell whether new P2PChannels to servers carry
+     * P2PSessions.
+     */
+    public synchronized boolean getMultiplex() {
+	return _multiplex;
+    }
+
+    /* 
+     * PURPOSE: Choose whether new P2PChannels to servers carry
+     * P2PSessions.  Existing P2PChannels are unaffected.
+     * POSTCONDITION: If b is true, connections hereafter to a server
+     * that reads P2PSessions share a P2PChannel made hereafter.
+     */
+    public synchronized void setMultiplex(boolean b) {
+	_multiplex = b;
+    }
+
+    /* 
+     * PURPOSE: Tell whether connections to servers in the same JVM
+     * use LoopbackChannels.
+     */
+    public synchronized boolean getLoopback() {
+	return _loopback;
+    }
+
+    /* 
+     * PURPOSE: Choose whether connections to servers in the same JVM
+     * use LoopbackChannels.
+     * POSTCONDITION: If b is true, connections made hereafter to a
+     * server in the same JVM are LoopbackChannels.  Otherwise they
+     * are P2PChannels.
+     */
+    public synchronized void setLoopback(boolean b) {
+	_loopback = b;
+    }
+
+    /* 
+     * PURPOSE: Tell whether new LoopbackChannels copy the objects
+     * written on them.
+     */
+    public synchronized boolean getLoopbackCopy() {
+	return _loopbackCopy;
+    }
+
+    /* 
+     * PURPOSE: Choose whether new LoopbackChannels copy the objects
+     * written on them.  Existing LoopbackChannels are unaffected.
+     * POSTCONDITION: If b is true, the end of each LoopbackChannel
+     * made hereafter that belongs to this P2PChannelFactory hands
+     * over deep copies of everything that can change.  Otherwise it
+     * hands over references to all but the fetch handshake.
+     */
+    public synchronized void setLoopbackCopy(boolean b) {
+	_loopbackCopy = b;
+    }
+
+    /* 
+     * PURPOSE: Tell which directory MappedChannels are made in.
+     * POSTCONDITION: Returns null if there are no MappedChannels.
+     */
+    public synchronized File getSharedMemoryDirectory() {
+	return _sharedMemory;
+    }
+
+    /* 
+     * PURPOSE: Choose the directory MappedChannels are made in.
+     * Existing MappedChannels are unaffected.
+     * POSTCONDITION: If dir is not null, this P2PChannelFactory
+     * listens for MappedChannels in it, and connections made
+     * hereafter to a server on this host that does the same are
+     * MappedChannels.  Otherwise, they are P2PChannels.
+     */
+    public synchronized void setSharedMemoryDirectory(File dir) {
+	if (null != _acceptor) {
+	    _acceptor.close();
+	    _acceptor = null;
+	}
+	_sharedMemory = dir;
+	if (null != dir) {
+	    try {
+		_acceptor = new MappedChannel.Acceptor(listeningDirectory(dir, _port), 
+						       this);
+	    }
+	    catch (IOException ex) {
+		_LOG.error(ex);
+	    }
+	}
+    }
+
+    /* 
+     * PURPOSE: Tell how many bytes each ring of a new MappedChannel
+     * holds.
+     */
+    public synchronized int getSharedMemoryRingBytes() {
+	return _sharedMemoryRingBytes;
+    }
+
+    /* 
+     * PURPOSE: Choose how many bytes each ring of a new
+     * MappedChannel holds.
+     * PRECONDITION: bytes > 0.
+     * POSTCONDITION: The MappedChannels this P2PChannelFactory opens
+     * hereafter have rings of bytes rounded up to a power of two.
+     */
+    public synchronized void setSharedMemoryRingBytes(int bytes) {
+	_sharedMemoryRingBytes = bytes;
+    }
+
+    /* 
+     * PURPOSE: Tell the largest frame, in bytes, that a new
+     * MappedChannel takes from its peer.
+     */
+    public synchronized int getSharedMemoryMaxFrameBytes() {
+	return _sharedMemoryMaxFrameBytes;
+    }
+
+    /* 
+     * PURPOSE: Choose the largest frame that a new MappedChannel
+     * takes from its peer.
+     * PRECONDITION: bytes > 0.
+     * POSTCONDITION: The MappedChannels this P2PChannelFactory opens
+     * or accepts hereafter fail if the peer puts a frame longer than
+     * bytes or the capacity of a ring, whichever is greater.
+     */
+    public synchronized void setSharedMemoryMaxFrameBytes(int bytes) {
+	_sharedMemoryMaxFrameBytes = bytes;
+    }
+
+    /* 
+     * PURPOSE: Get the TrafficStats that the connections this
+     * factory makes add to.
+     * POSTCONDITION: Returns the Entity's, or null if there is no
+     * Entity.
+     */
+    TrafficStats getTrafficStats() {
+	return (null == _entity) ? null : _entity.getTrafficStats();
+    }
+
+    /* 
+     * PURPOSE: Get the pool of direct buffers shared by the
+     * P2PChannels this factory makes, e.g. to see its hit rate and
+     * how many buffers are outstanding.
+     */
+    public BufferPool getBufferPool() {
+	return _bufferPool;
+    }
+
     // is the P2PChannelFactory closed?
     boolean isClosed() {
 		return (!_ss.isOpen());
@@ -96,6 +571,12 @@ public class P2PChannelFactory extends NonBlockingObjectChannel implements Runna
 
     // close this P2PChannelFactory
     void close() throws IOException {
+		synchronized (_listening) {
+			if (this == _listening.get(new Integer(_port))) {
+				_listening.remove(new Integer(_port));
+			}
+		}
+		setSharedMemoryDirectory(null);
 		_ss.close();
     }
 
@@ -107,52 +588,71 @@ public class P2PChannelFactory extends NonBlockingObjectChannel implements Runna
      * POSTCONDITION: give ChannelHandlers time as needed.
      */
     public void run() {
+		do {
+			// DAVID: Why not use _selector.select() instead?
+			// Bilal says that HUPs don't break the select.
+			poll(DEFAULT_SELECT_TIME_NIO);
+		}
+		while(true);
+    }
+
+    /* 
+     * PURPOSE: Perform one round of low-level I/O: register for
+     * accept/connect and for the P2PChannels' reads and writes, wait
+     * up to time milliseconds for the Selector, then handle the
+     * SelectionKeys it chose.
+     * PRECONDITION: Called by the I/O thread or, if there isn't one,
+     * by the only thread that calls select() on the SelectableSet
+     * whose Poller this is.
+     * POSTCONDITION: Completed reads are in the P2PChannels' read
+     * queues.  The SelectableSets interested in them have been
+     * signalled.  time <= 0 means don't wait.
+     */
+    public void poll(long time) {
+		// register this P2PChannelFactory for accept/connect as appropriate
+		this.register(_selector);
+
 		try {
-			int ct=0;
-			_selector = Selector.open();
-			do {
-				// register this P2PChannelFactory for accept/connect as appropriate
-				this.register(_selector);
-				
-				try {
-					// DEBUGGING
-				    //System.out.println(Thread.currentThread().getName()+" selecting on "+_selector.keys().size()+" keys.");
-					
-					// DAVID: Why not use _selector.select() instead?
-					// Bilal says that HUPs don't break the select.
-					_selector.select(DEFAULT_SELECT_TIME_NIO);
-				    //System.out.println(Thread.currentThread().getName()+" select() returns.");
-					
-					
-					Set keys = _selector.selectedKeys();
-					for (Iterator it=keys.iterator(); it.hasNext();) {
-						SelectionKey sk= (SelectionKey)it.next();
-						it.remove();
-						NonBlockingObjectChannel ch = (NonBlockingObjectChannel)sk.attachment();
-						// handle the SelectableKey
-						ch.handle(sk);
-						// cancel connect keys as they are handled
-						if (_skconnect.get(sk) != null) {
-							_skconnect.remove(sk);
-							try {
-								sk.interestOps(SelectionKey.OP_READ);
-							} catch (CancelledKeyException ex) {
-								_LOG.error(ex);
-							}
-						}
+			// DEBUGGING
+			//System.out.println(Thread.currentThread().getName()+" selecting on "+_selector.keys().size()+" keys.");
+
+			if (time > 0) {
+				_selector.select(time);
+			} else {
+				_selector.selectNow();
+			}
+			//System.out.println(Thread.currentThread().getName()+" select() returns.");
+
+			Set keys = _selector.selectedKeys();
+			for (Iterator it=keys.iterator(); it.hasNext();) {
+				SelectionKey sk= (SelectionKey)it.next();
+				it.remove();
+				NonBlockingObjectChannel ch = (NonBlockingObjectChannel)sk.attachment();
+				// handle the SelectableKey
+				ch.handle(sk);
+				// cancel connect keys as they are handled
+				if (_skconnect.get(sk) != null) {
+					_skconnect.remove(sk);
+					try {
+						sk.interestOps(SelectionKey.OP_READ);
+					} catch (CancelledKeyException ex) {
+						_LOG.error(ex);
 					}
 				}
-				catch (IOException ex) {
-					_LOG.error(ex);
-				}
 			}
-			
-			while(true);
 		}
 		catch (IOException ex) {
 			_LOG.error(ex);
 		}
     }
+
+    /* 
+     * PURPOSE: Make the current or next poll() return without
+     * waiting.
+     */
+    public void wakeup() {
+		_selector.wakeup();
+    }
 	
     /* 
      * PURPOSE: Register this P2PChannelFactory and all (undisposed)
@@ -188,27 +688,40 @@ public class P2PChannelFactory extends NonBlockingObjectChannel implements Runna
 		
 		// are there outbound connection requests?
 		if ((dataWrite() > 0)) {
-			// make a new output channel
-			try {
-				SocketChannel cs = SocketChannel.open();
-				// use non-blocking I/O for the new connection
-				cs.configureBlocking(false);
-				// get the next destination
-				ServerContact addr = (ServerContact)take_outQ();
-				// issue initial phase of connect
-				cs.connect(new java.net.InetSocketAddress(addr.getHost(), addr.getPort()));
-				// sensitive to ability to complete connect
-				SelectionKey sk = cs.register(selector,SelectionKey.OP_CONNECT,this);
-				// save the key for this connect
-				_skconnect.put(sk,addr);				
+			// get the next destination
+			ServerContact addr = (ServerContact)take_outQ();
+			P2PChannelFactory server = getLoopback() ? findListening(addr) : null;
+			MappedChannel mapped = (null == server) ? connectMapped(addr) : null;
+
+			// is the server in this JVM?
+			if (null != server) {
+				connectLoopback(addr, server);
 			}
-			catch (ClosedChannelException ex) {
-				_LOG.error(ex);
-				setError(ex);
+			// or on this host, listening for MappedChannels?
+			else if (null != mapped) {
+				put_inQ(mapped);
 			}
-			catch (IOException ex) {
-				_LOG.error(ex);
-				setError(ex);
+			// or make a new output channel
+			else {
+				try {
+					SocketChannel cs = SocketChannel.open();
+					// use non-blocking I/O for the new connection
+					cs.configureBlocking(false);
+					// issue initial phase of connect
+					cs.connect(new java.net.InetSocketAddress(addr.getHost(), addr.getPort()));
+					// sensitive to ability to complete connect
+					SelectionKey sk = cs.register(selector,SelectionKey.OP_CONNECT,this);
+					// save the key for this connect
+					_skconnect.put(sk,addr);				
+				}
+				catch (ClosedChannelException ex) {
+					_LOG.error(ex);
+					setError(ex);
+				}
+				catch (IOException ex) {
+					_LOG.error(ex);
+					setError(ex);
+				}
 			}
 		}
 
@@ -288,6 +801,124 @@ public class P2PChannelFactory extends NonBlockingObjectChannel implements Runna
 		}
     }
 
+    /* 
+     * PURPOSE: Hand over a P2PSession that a client opened on a
+     * P2PChannel from it.
+     * PRECONDITION: Called by the I/O thread.
+     * POSTCONDITION: The P2PSession is in the incoming connections
+     * queue.
+     */
+    void acceptSession(P2PSession s) {
+	put_inQ(s);
+    }
+
+    /* 
+     * PURPOSE: Hand over a MappedChannel that a client opened to this
+     * P2PChannelFactory.
+     * POSTCONDITION: The MappedChannel is in the incoming connections
+     * queue.
+     */
+    void acceptMapped(MappedChannel ch) {
+	put_inQ(ch);
+    }
+
+    /* 
+     * PURPOSE: Find the P2PChannelFactory of the JVM that listens at
+     * a ServerContact.
+     * POSTCONDITION: Returns the P2PChannelFactory listening on the
+     * port of addr if the host of addr is this one.  Otherwise,
+     * returns null.
+     */
+    private static P2PChannelFactory findListening(ServerContact addr) {
+		P2PChannelFactory answer = null;
+		synchronized (_listening) {
+			answer = (P2PChannelFactory)_listening.get(new Integer(addr.getPort()));
+		}
+
+		// Every P2PChannelFactory listens on all of the host's
+		// addresses.
+		if ((null != answer) && !isThisHost(addr.getHost())) {
+			answer = null;
+		}
+		return answer;
+    }
+
+    /* 
+     * PURPOSE: Tell whether an address is one of this host's.
+     */
+    private static boolean isThisHost(InetAddress host) {
+		boolean answer = false;
+		try {
+			answer = host.isLoopbackAddress() || host.isAnyLocalAddress() ||
+				(null != NetworkInterface.getByInetAddress(host));
+		}
+		catch (SocketException ex) {
+			_LOG.error(ex);
+		}
+		return answer;
+    }
+
+    /* 
+     * PURPOSE: Connect to a server in another JVM on this host
+     * through shared memory.
+     * POSTCONDITION: Returns the client's end of a new MappedChannel
+     * if there is a shared memory directory and the server listens
+     * in it.  Otherwise, returns null and the connection is to be a
+     * P2PChannel.
+     */
+    private MappedChannel connectMapped(ServerContact addr) {
+		MappedChannel answer = null;
+		File dir = getSharedMemoryDirectory();
+		if ((null != dir) && isThisHost(addr.getHost())) {
+			dir = listeningDirectory(dir, addr.getPort());
+			if (MappedChannel.isListening(dir)) {
+				try {
+					answer = MappedChannel.connect(dir, addr, 
+												   getSharedMemoryRingBytes(),
+												   getSharedMemoryMaxFrameBytes(),
+												   getChannelQueueCapacity(),
+												   getTrafficStats());
+				}
+				catch (IOException ex) {
+					// The socket will do.
+					_LOG.error(ex);
+				}
+			}
+		}
+		return answer;
+    }
+
+    // the directory in which the P2PChannelFactory on port listens
+    // for MappedChannels
+    private static File listeningDirectory(File dir, int port) {
+		return new File(dir, "sousa-" + port);
+    }
+
+    // the directory named by the value of SHARED_MEMORY_PROPERTY
+    private static File sharedMemoryDirectory(String name) {
+		File answer = null;
+		if ((null != name) && (name.length() > 0)) {
+			answer = new File(name);
+		}
+		return answer;
+    }
+
+    /* 
+     * PURPOSE: Connect to a server in the same JVM.
+     * POSTCONDITION: One end of a new LoopbackChannel is in the
+     * incoming connections queue of server and the other is in
+     * this P2PChannelFactory's.
+     */
+    private void connectLoopback(ServerContact addr, P2PChannelFactory server) {
+		LoopbackChannel[] ends = 
+			LoopbackChannel.newPair(addr, 
+									getChannelQueueCapacity(), getLoopbackCopy(),
+									server.getChannelQueueCapacity(),
+									server.getLoopbackCopy());
+		server.put_inQ(ends[1]);
+		put_inQ(ends[0]);
+    }
+
     private void registerP2PChannel(P2PChannel child) {
 	synchronized(_channels) {
 	    _channels.add(child);
@@ -312,14 +943,18 @@ public class P2PChannelFactory extends NonBlockingObjectChannel implements Runna
 	//
 	// Client connects to server.  Server sends a series of Strings,
 	// each twice as large as the one before.  Client and server
-	// report the lengths of the Strings.
+	// report the lengths of the Strings.  Client reports the
+	// statistics of its BufferPool.
+	//
+	// Run both with -Dmil.navy.nrl.cmf.sousa.P2PChannel.sharedMemory=/dev/shm
+	// and serverhostname localhost to connect through a MappedChannel.
 	//
 	public static void main(String args[]) {
 		if (args[0].equals("-s")) { // run as server
 			try {
 				P2PChannelFactory f = P2PChannelFactory.newInstance(9000, null);
 				int numReady;
-				P2PChannel toClient = null;
+				Selectable toClient = null;
 				SelectableSet selectables = new SelectableSet();
 
 				// Listen for connect attempts: select() until readable
@@ -328,7 +963,7 @@ public class P2PChannelFactory extends NonBlockingObjectChannel implements Runna
 				numReady = selectables.select(10000);
 				for (Iterator i = selectables.iterator(SignalType.READ); i.hasNext(); ) {
 					Selectable s = (Selectable)i.next();
-					toClient = (P2PChannel)s.read();
+					toClient = (Selectable)s.read();
 				}
 
 				// Once there is a connection, write a series of
@@ -359,7 +994,7 @@ public class P2PChannelFactory extends NonBlockingObjectChannel implements Runna
 			try {
 				P2PChannelFactory f = P2PChannelFactory.newInstance(9001, null);
 				int numReady;
-				P2PChannel fromServer = null;
+				Selectable fromServer = null;
 				SelectableSet selectables = new SelectableSet();
 				InetAddress remoteAddress = InetAddress.getByName(args[1]);
 				ServerContact sc = new ServerContact(remoteAddress, 9000, (QoS)null);
@@ -377,15 +1012,18 @@ public class P2PChannelFactory extends NonBlockingObjectChannel implements Runna
 					s.write(sc);
 				}
 			
-				// Wait for the server to accept.
+				// Wait for the server to accept.  A MappedChannel
+				// may arrive after a stale WRITE has woken select().
 				selectables.clearAllSelectables(SignalType.ERROR);
 				selectables.clearAllSelectables(SignalType.READ);
 				selectables.clearAllSelectables(SignalType.WRITE);
 				selectables.addSelectable(f, SignalType.READ, null);
-				numReady = selectables.select(10000);
-				for (Iterator i = selectables.iterator(SignalType.READ); i.hasNext(); ) {
-					Selectable s = (Selectable)i.next();
-					fromServer = (P2PChannel)s.read();
+				for (int tries = 0; (null == fromServer) && (tries < 10); tries++) {
+					numReady = selectables.select(10000);
+					for (Iterator i = selectables.iterator(SignalType.READ); i.hasNext(); ) {
+						Selectable s = (Selectable)i.next();
+						fromServer = (Selectable)s.read();
+					}
 				}
 
 				while(true) { 
@@ -399,6 +1037,7 @@ public class P2PChannelFactory extends NonBlockingObjectChannel implements Runna
 						Selectable s = (Selectable)i.next();
 						String buf = (String)s.read();
 						_LOG.warn("Read a String of length " + buf.length());
+						_LOG.warn(f.getBufferPool());
 					}
 				}
 			} catch (IOException ex) {
@@ -0,0 +1,52 @@
+package mil.navy.nrl.cmf.sousa;
+
+/**
+ * A P2PConnection is a full-duplex reliable point to point
+ * connection between two Entities.  It is a Selectable that carries
+ * Objects, and the FSMs at either end tell it what the peer can read
+ * once the fetch has told them.
+ *
+ * A P2PChannel is a P2PConnection over TCP.  A LoopbackChannel is a
+ * P2PConnection between two Entities in the same JVM, and a
+ * MappedChannel is one between two JVMs on the same host.
+ */
+interface P2PConnection {
+
+    /*
+     * PURPOSE: Returns the server contact address if this is a
+     * P2PConnection to a server, and null if this is a P2PConnection
+     * to a client.
+     */
+    ServerContact getServerContact();
+
+    /*
+     * PURPOSE: Tell the P2PConnection whether the peer can read
+     * compressed frames.
+     */
+    void setPeerReadsCompressedFrames(boolean b);
+
+    /*
+     * PURPOSE: Tell the P2PConnection whether the peer can read
+     * chunks.
+     */
+    void setPeerReadsChunkedFrames(boolean b);
+
+    /*
+     * PURPOSE: Tell the P2PConnection whether the peer can read
+     * streamed frames.
+     */
+    void setPeerReadsStreams(boolean b);
+
+    /*
+     * PURPOSE: Tell the P2PConnection whether the peer reads
+     * P2PSessions.
+     */
+    void setPeerReadsSessions(boolean b);
+
+    /*
+     * PURPOSE: Open a P2PSession to the server at the other end.
+     * POSTCONDITION: Returns a new P2PSession, or null if the
+     * P2PConnection doesn't carry P2PSessions.
+     */
+    P2PSession openSession(ServerContact addr);
+}
@@ -0,0 +1,143 @@
+package mil.navy.nrl.cmf.sousa;
+
+import java.io.Serializable;
+import java.net.SocketException;
+
+/**
+ * A P2PSession is a logical full-duplex channel carried by a
+ * P2PChannel along with the P2PChannel's own objects and those of
+ * its other P2PSessions.  Each object a P2PSession writes crosses the
+ * P2PChannel in an Envelope that names the P2PSession, and the
+ * P2PChannel at the other end hands it to the P2PSession of the same
+ * id there.
+ *
+ * A client opens P2PSessions on a P2PChannel to a server that said
+ * it reads them.  The server's P2PChannel makes its P2PSession when
+ * the first Envelope for it arrives and gives it to the
+ * P2PChannelFactory, which gives it to the Entity like a new
+ * P2PChannel.
+ */
+final class P2PSession extends Selectable {
+
+    /*
+     * PURPOSE: An Envelope carries an object written on a P2PSession
+     * across its P2PChannel.  An Envelope without an object says
+     * that the P2PSession has been closed.  Session 0 is the
+     * P2PChannel itself, which only says that it has been closed.
+     */
+    static final class Envelope implements Serializable {
+	private static final long serialVersionUID = 1L;
+	final int _session;
+	final Serializable _msg;
+
+	Envelope(int session, Serializable msg) {
+	    _session = session;
+	    _msg = msg;
+	}
+    }
+
+    // the P2PChannel that carries this P2PSession
+    private final P2PChannel _channel;
+
+    // the id of this P2PSession, the same at both ends
+    private final int _id;
+
+    // the remote server, or null if the remote endpoint is our client
+    private final ServerContact _addr;
+
+    // has this P2PSession been closed, at either end?
+    private volatile boolean _closed = false;
+
+    // Is this P2PSession waiting in its P2PChannel for its objects to
+    // be written?  Guarded by the P2PChannel.
+    boolean _writable = false;
+
+    /*
+     * PURPOSE: Make a P2PSession on a P2PChannel
+     * PRECONDITION: No other P2PSession of channel has this id.
+     * POSTCONDITION: A new P2PSession with the queue capacities of
+     * channel.
+     */
+    P2PSession(P2PChannel channel, int id, ServerContact addr) {
+	super(channel._inQCapacity, channel._outQCapacity);
+	_channel = channel;
+	_id = id;
+	_addr = addr;
+    }
+
+    public String toString() {
+	return "P2PSession " + _id + " of " + _channel;
+    }
+
+    /*
+     * PURPOSE: Returns the id of this P2PSession.
+     */
+    int getId() {
+	return _id;
+    }
+
+    /*
+     * PURPOSE: Returns the P2PChannel that carries this P2PSession.
+     */
+    P2PChannel getChannel() {
+	return _channel;
+    }
+
+    /*
+     * PURPOSE: Returns the server contact address if this is a
+     * P2PSession to a server, and null if this is a P2PSession to a
+     * client.
+     */
+    ServerContact getServerContact() {
+	return _addr;
+    }
+
+    /*
+     * PURPOSE: Get an Object that arrived on this P2PSession.
+     * POSTCONDITION: Returns the Object, or null if there is none.
+     * If the read queue was full, the P2PChannel, which stopped
+     * reading, starts again.
+     */
+    public Object read() {
+	boolean wakeup = (spaceRead() == 0);
+	Object ser = super.read();
+	if (wakeup) {
+	    _channel.wakeup();
+	}
+	return ser;
+    }
+
+    /*
+     * PURPOSE: Put an Object into the write queue.
+     * PRECONDITION: ser!=null and spaceWrite() > 0.
+     * POSTCONDITION: The P2PChannel will send ser in an Envelope in
+     * its turn.
+     */
+    public void write(Object ser) {
+	super.write(ser);
+	_channel.sessionWritable(this);
+    }
+
+    // is the P2PSession closed?
+    boolean isClosed() {
+	return _closed || !_channel.isOpen();
+    }
+
+    // close this P2PSession and tell the other end
+    void close() {
+	if (!_closed) {
+	    _closed = true;
+	    _channel.closeSession(this);
+	}
+    }
+
+    /*
+     * PURPOSE: Close this P2PSession because the other end closed
+     * it.
+     * POSTCONDITION: This P2PSession is in error.
+     */
+    void closedByPeer() {
+	_closed = true;
+	setError(new SocketException("Session closed by remote peer"));
+    }
+}
@@ -9,7 +9,6 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
 import mil.navy.nrl.cmf.norm4j.NormNodeId;
 import mil.navy.nrl.cmf.norm4j.NormSession;
@@ -24,6 +23,35 @@ import org.apache.log4j.Logger;
 public final class Projector implements Selectable.Handler {
     private static final Logger _LOG = 
 	Logger.getLogger(Projector.class);
+
+    // the name of the system property that describes the
+    // SerializerPipeline of a Projector's multicast data channel, for
+    // example "compact,deflate,cipher".  A Projector whose QoS has a
+    // Content-Type looks first for this name followed by "." and the
+    // Content-Type.  The clients build the same pipeline from their
+    // Receptors, so it takes no change at the clients.
+    public static final String PIPELINE_PROPERTY =
+	"mil.navy.nrl.cmf.sousa.Projector.pipeline";
+
+    // Java serialization, encrypted
+    private static final String DEFAULT_PIPELINE = "java,cipher";
+
+    // the prefix of the names of the system properties that delta
+    // encode fields.  The value of PRECISION_PROPERTY + "." + the
+    // qualified name of a field is the largest error allowed in any
+    // part of a value.  The values of such a field that are
+    // DeltaEncodable are sent as keyframes and as Deltas from them.
+    public static final String PRECISION_PROPERTY =
+	"mil.navy.nrl.cmf.sousa.Projector.precision";
+
+    // the name of the system property that sets the most Deltas a
+    // Projector sends from one keyframe.  Zero or a negative value
+    // sends only keyframes.
+    public static final String KEYFRAME_INTERVAL_PROPERTY =
+	"mil.navy.nrl.cmf.sousa.Projector.keyframeInterval";
+
+    // the default keyframe interval
+    private static final int DEFAULT_KEYFRAME_INTERVAL = 32;
     
     // The ServerSideFSM that created this Projector.  It persists in
     // this Projector until all of the clients are gone.  It's used to
@@ -50,13 +78,16 @@ public final class Projector implements Selectable.Handler {
     // See Entity.receptorReadyIndication().
     // See ControlLogic.projectorReadyNotification().
     // See ControlLogic.receptorReadyIndication().
-    private Receptor _receptor = null;
+    //
+    // setReceptor() may be called from a thread other than the one in
+    // which this Projector runs.
+    private volatile Receptor _receptor = null;
     
     // If _receptor is non-null then _receptorStateListener must also
     // be non-null.  It's used to collect the changes to _receptor's
     // State so they can be given to ViewInterpreter.makeMessage() as
     // parameters to the ViewInterpreters.
-    private FieldListener _receptorStateListener;
+    private volatile FieldListener _receptorStateListener;
     
     // _dc is a data channel.  If it's not null, then it must be a
     // SelectableNormSession.
@@ -76,9 +107,16 @@ public final class Projector implements Selectable.Handler {
     // of _viewInterpreters.
     private final Set _viewInterpreters = new HashSet();
     
-    // buildSelectableSet populates this Set of ViewInterpreters
-    // that claim they are interested in writing ("dirty");
+    // fieldsChanged() populates this Set of ViewInterpreters that
+    // have heard a change since handle() last asked them to write.
+    // Notifications arrive in whichever thread changes a State, so it
+    // is its own monitor, as it is of _parametersChanged.
     private final Set _dirtyViewInterpreters = new HashSet();
+
+    // true if the Receptor's State has changed since handle() last
+    // asked the ViewInterpreters to write.  A change to the query
+    // parameters may make any of them dirty.
+    private boolean _parametersChanged = false;
     
     // Command logic
     //
@@ -90,13 +128,30 @@ public final class Projector implements Selectable.Handler {
     private final HashSet _commandLogics = new HashSet(); // String
     
     private final Executor _executor = new Executor();
+
+    // The ids of the qualified field names in the State.ChangeMessages
+    // that this Projector sends.  It's made from the State of the
+    // first Receptor and given to every Receptor, so it never
+    // changes.  Until then, names are sent.
+    private FieldDictionary _dictionary = null;
+
+    // The keyframes of the delta encoded fields.  Each Receptor gets a
+    // copy.
+    private final Keyframes _keyframes =
+	new Keyframes(Integer.getInteger(KEYFRAME_INTERVAL_PROPERTY,
+					 DEFAULT_KEYFRAME_INTERVAL).intValue());
+
+    // qualified field name -> Double, the precision of each field seen
+    private final HashMap _precisions = new HashMap();
     
-	// DAVID: There must be a better seed than
-	// System.currentTimeMillis().  Expect collisions.
-	//
-	Random _r = new Random();
-	private final int _key = _r.nextInt();
-	private final Serializer _serializer = new XORSerializer(_key);
+	// The data channel's AES key.  It's handed to the clients inside
+	// their Receptors, over the control channel.
+	private final byte[] _key = CipherStage.newKey();
+
+	// the description of the data channel's SerializerPipeline, which
+	// the clients get in their Receptors, and the pipeline
+	private final String _pipeline;
+	private final Serializer _serializer;
 
     // the multicast channel
     //private SelectableNormSession _multicast;
@@ -126,6 +181,8 @@ public final class Projector implements Selectable.Handler {
 	       NoSuchMethodException {
 		_creator = creator;
 		_qos = qos;
+		_pipeline = pipelineFor(qos.getContentType());
+		_serializer = SerializerPipeline.create(_pipeline, _key);
 	
 		// The next big block of code instantiates all of the
 		// ViewInterpreters and CommandLogics whose Class Objects are
@@ -260,11 +317,23 @@ public final class Projector implements Selectable.Handler {
 			_LOG.warn(new Strings(new Object[] {
 									  "Projector(): new NormSession ",
 									  _dc.getAddress(), ":", new Integer(_dc.getPort())}));
+
+			// Always read from the data channel.
+			SelectableSet ss = _creator.getSelectableSet();
+			ss.addSelectable(_dc, SignalType.ERROR, this);
+			ss.addSelectable(_dc, SignalType.READ, this);
 		} else {
 			// Use the control channel for communicating with the only
 			// client ths Projector will ever have.
 			_LOG.warn("Projector(): Using the control channel");
 		}
+
+		// From now on, a change heard by a ViewInterpreter makes
+		// the data channel or the control channel interested in
+		// writing.
+		for (Iterator i = _viewInterpreters.iterator(); i.hasNext(); ) {
+			((ViewInterpreter)i.next()).setProjector(this);
+		}
     }
 	
     
@@ -273,11 +342,12 @@ public final class Projector implements Selectable.Handler {
      *
      * @param r the Receptor
      */
-    void setReceptor(Receptor r) {
+    synchronized void setReceptor(Receptor r) {
 	// Clean up: detach the current FieldListener from _receptor's
 	// State.
 	if (null != _receptor) {
 	    State s = _receptor.getState();
+	    _receptorStateListener.setProjector(null);
 	    s.detachFieldListener(s.getFieldNames(),
 				  _receptorStateListener);
 	    _receptorStateListener = null;
@@ -288,8 +358,12 @@ public final class Projector implements Selectable.Handler {
 	if (null != _receptor) {
 	    State s = _receptor.getState();
 	    _receptorStateListener = new FieldListener(s);
+	    _receptorStateListener.setProjector(this);
 	    s.attachFieldListener(s.getFieldNames(),
 				  _receptorStateListener);
+
+	    // Every query parameter is new to the ViewInterpreters.
+	    fieldsChanged(_receptorStateListener);
 	}
     }
     
@@ -347,10 +421,24 @@ public final class Projector implements Selectable.Handler {
 	    
 	    // DAVID: Do we always detach all fields?  Do we ever
 	    // detach a proper subset of v.getFields()?
+	    v.setProjector(null);
 	    authoritativeState.detachFieldListener(v.getFields(), v);
 	}
+
+	if (null != _receptorStateListener) {
+	    _receptorStateListener.setProjector(null);
+	}
+
+	synchronized (_dirtyViewInterpreters) {
+	    _dirtyViewInterpreters.clear();
+	    _parametersChanged = false;
+	}
 	
 	if (null != _dc) {
+	    SelectableSet ss = _creator.getSelectableSet();
+	    ss.removeSelectable(_dc, SignalType.ERROR);
+	    ss.removeSelectable(_dc, SignalType.READ);
+	    ss.removeSelectable(_dc, SignalType.WRITE);
 	    _dc.close();
 	    
 	    // Return the mcast address and port to the Entity's
@@ -365,69 +453,97 @@ public final class Projector implements Selectable.Handler {
     }
     
     /**
-	 * Adds the data channel or the control channel to the
-	 * SelectableSet.
-	 *
-     * If there is a data channel, add it to the SelectableSet for for
-     * READ and ERROR.  Add it for WRITE if there are ViewInterpreters
-     * that have something to write.
-	 *
-	 * If there is no data channel, add the control channel to the
-	 * SelectableSet for WRITE if there are ViewInterpreters that have
-	 * something to write. Don't add the control channel for READ or
-	 * ERROR because ServerSideFSM's buildSelectableSet() does that
-	 * already.
-	 *
-     * @param ss the SelectableSet
+     * Note a change to the Fields to which a FieldListener of this
+     * Projector listens: one of its ViewInterpreters, or the
+     * FieldListener of the Receptor's State.  The data channel or the
+     * control channel becomes interested in writing, so {@link
+     * #handle(Selectable, SignalType)} asks the ViewInterpreters that
+     * heard a change whether they are dirty.  Nothing else polls
+     * them, so a ViewInterpreter that isn't dirty when asked is asked
+     * again after its next change.
+     *
+     * It may be called from any thread, including one that holds the
+     * monitor of the changed State.
+     *
+     * @param fl the FieldListener that heard the change
      */
-    void buildSelectableSet(SelectableSet ss) {
-	
-	// Always read from the data channel.
-	if (null != _dc) {
-	    ss.addSelectable(_dc, SignalType.ERROR, this);
-	    ss.addSelectable(_dc, SignalType.READ, this);
-	}
-	
-	// Write iff a ViewInterpreter is dirty or if the Receptor
-	// State FieldListener is dirty.  This reduces the CPU load.
-	// It's likely that _dc or the control channel will be
-	// writable.
-	
-	
-	List receptorStateChanges = null;
-	State receptorState = null;
-	if (null != _receptorStateListener) {
-	    receptorState = _receptor.getState();
-	    State.ChangeMessage m = _receptorStateListener.makeMessage();
-	    if (null != m) 
-		receptorStateChanges = m.getMessages();
-	}
-	
-	_dirtyViewInterpreters.clear();
-	
-	for (Iterator i = _viewInterpreters.iterator(); i.hasNext(); ) {
-	    ViewInterpreter v = (ViewInterpreter)i.next();
-	    
-	    v.setDirtyParameterFields(receptorStateChanges);
-	    
-	    if (v.isDirty(receptorState)) {
-		_dirtyViewInterpreters.add(v);
+    void fieldsChanged(FieldListener fl) {
+	synchronized (_dirtyViewInterpreters) {
+	    if (fl instanceof ViewInterpreter) {
+		if (!_dirtyViewInterpreters.add(fl)) {
+		    return;
+		}
+	    } else if (_parametersChanged) {
+		return;
+	    } else {
+		_parametersChanged = true;
 	    }
 	}
-	
-	if (_dirtyViewInterpreters.size() > 0) {
-	    if (null != _dc) {
-		ss.addSelectable(_dc, SignalType.WRITE, this);
-	    // System.out.println("Projector wants to write on " + _dc);
 
-	    } else {
-		// Fields might have changed.  With no mcast data channel,
-		// we have to use the unicast control channel to transmit
-		// the State.ChangeMessage.
-		ss.addSelectable(_creator._cc, SignalType.WRITE, this);
+	updateWriteInterest();
+    }
+
+    /*
+     * PURPOSE: Make the data channel or the control channel interested
+     * in writing exactly when a FieldListener of this Projector has
+     * heard a change.  The data channel stays in the SelectableSet
+     * for READ and ERROR from construction until stop().
+     * POSTCONDITION: If there is a data channel, it is in the
+     * SelectableSet for WRITE if and only if wantsWrite().  If there
+     * is none, the creating ServerSideFSM has updated the control
+     * channel's interest in WRITE.  See wantsControlChannel().
+     */
+    private void updateWriteInterest() {
+	if (null != _dc) {
+	    SelectableSet ss = _creator.getSelectableSet();
+
+	    // Decide and act under the monitor, so that a change that
+	    // arrives while handle() finishes can't be lost.
+	    synchronized (_dirtyViewInterpreters) {
+		if (wantsWrite()) {
+		    ss.addSelectable(_dc, SignalType.WRITE, this);
+		} else {
+		    ss.removeSelectable(_dc, SignalType.WRITE);
+		}
 	    }
+	} else {
+	    // With no mcast data channel, we have to use the unicast
+	    // control channel to transmit the State.ChangeMessage.
+	    _creator.updateWriteInterest();
+	}
+    }
+
+    /*
+     * PURPOSE: Determine if a FieldListener of this Projector has
+     * heard a change that handle() hasn't taken yet.
+     */
+    private boolean wantsWrite() {
+	synchronized (_dirtyViewInterpreters) {
+	    return (_parametersChanged || (_dirtyViewInterpreters.size() > 0));
 	}
     }
+
+    /**
+     * Return the SelectableSet in which this Projector runs.  It's
+     * the SelectableSet of the ServerSideFSM that created it.
+     *
+     * @return the SelectableSet
+     */
+    final SelectableSet getSelectableSet() {
+	return _creator.getSelectableSet();
+    }
+
+    /**
+     * Does this Projector need the control channel for writing?  It
+     * does when it has no data channel and some of its
+     * FieldListeners have heard a change.
+     *
+     * @return true if the Projector has something to write on the
+     * control channel
+     */
+    final boolean wantsControlChannel() {
+	return ((null == _dc) && wantsWrite());
+    }
        
     /**
      * Create a Receptor. Its State contains the current values of the
@@ -492,9 +608,18 @@ public final class Projector implements Selectable.Handler {
 			nodeID = _creator._nimbus._entity.createUniqueNodeId();
 		}
 	
+		// Every client of the data channel must understand the same
+		// ids, so the first Receptor's fields are the only ones
+		// with ids.
+		if (null == _dictionary) {
+			_dictionary = new FieldDictionary(receptorState.getFieldNames());
+		}
+
 		// Client interprets (null == _address) as "use the control
 		// channel" for reading and writing messages to the server.
-		Receptor answer = new Receptor(receptorState, address, port, nodeID, _key);
+		Receptor answer = new Receptor(receptorState, address, port, nodeID,
+									   _key, _pipeline, _dictionary,
+									   _keyframes.copy());
 
 		// Build the Renderer if there is one.  It's OK to use obtain
 		// the Content-Type from the Projector's QoS because
@@ -554,26 +679,62 @@ public final class Projector implements Selectable.Handler {
     public void handle(Selectable sel, SignalType st) {
 	// TODO
 	if (SignalType.WRITE == st) {
+	    Object[] viewInterpreters;
+	    boolean parametersChanged;
+
+	    // Take the ViewInterpreters that have heard a change, or all
+	    // of them if the query parameters changed.  A change that
+	    // arrives after this asks for another write.
+	    synchronized (_dirtyViewInterpreters) {
+		parametersChanged = _parametersChanged;
+		viewInterpreters = parametersChanged ?
+		    _viewInterpreters.toArray() :
+		    _dirtyViewInterpreters.toArray();
+		_dirtyViewInterpreters.clear();
+		_parametersChanged = false;
+	    }
+
+	    List parameterChanges = null;
 	    State receptorState = null;
+	    Receptor receptor = _receptor;
+	    FieldListener receptorStateListener = _receptorStateListener;
+	    if (null != receptor) receptorState = receptor.getState();
+	    if (parametersChanged && (null != receptorStateListener)) {
+		State.ChangeMessage m = receptorStateListener.makeMessage();
+		if (null != m) 
+		    parameterChanges = m.getMessages();
+	    }
+
 	    State.ChangeMessage receptorStateChanges = 
 		new State.ChangeMessage();
 	    
-	    if (null != _receptor) receptorState = _receptor.getState();
-	    
-	    for (Iterator i = _dirtyViewInterpreters.iterator(); i.hasNext();) {
-		ViewInterpreter viewInterpreter = (ViewInterpreter)i.next();
-		
-		State.ChangeMessage changeMessage = 
-		    viewInterpreter.makeMessage(receptorState);
+	    for (int i = 0; i < viewInterpreters.length; i++) {
+		ViewInterpreter viewInterpreter = 
+		    (ViewInterpreter)viewInterpreters[i];
+
+		viewInterpreter.setDirtyParameterFields(parameterChanges);
+
+		// Write iff the ViewInterpreter is dirty.
+		if (viewInterpreter.isDirty(receptorState)) {
+		    State.ChangeMessage changeMessage = 
+			viewInterpreter.makeMessage(receptorState);
 		
-		if (null != changeMessage)
-		    accumulate(receptorStateChanges, viewInterpreter, 
-			       changeMessage);
+		    if (null != changeMessage)
+			accumulate(receptorStateChanges, viewInterpreter, 
+				   changeMessage);
+		}
 	    }
 	    
 	    if (receptorStateChanges.size() > 0) {
 			sel.write(receptorStateChanges);
 	    }
+
+	    // Nothing more to write until fieldsChanged() hears another
+	    // change.  The ServerSideFSM updates the control channel
+	    // itself.
+	    if (sel == _dc) {
+		updateWriteInterest();
+	    }
 	}
     }
     
@@ -684,7 +845,9 @@ public final class Projector implements Selectable.Handler {
      *
      * @param accumulator the State.ChangeMessage which will contain the accumulated answer
      * @param viewInterpreter the ViewInterpreter generating the messages
-     * @param changes the State.ChangeMessage to be accumulated into accumulator
+     * @param changes the State.ChangeMessage to be accumulated into accumulator.
+     * Fields in the FieldDictionary are named by id.  Fields with a
+     * precision are delta encoded.
      */
     private final void accumulate(State.ChangeMessage accumulator,
 				  ViewInterpreter viewInterpreter,
@@ -694,14 +857,68 @@ public final class Projector implements Selectable.Handler {
 	
 	for (Iterator i = fieldChangeMessages.iterator(); i.hasNext(); ) {
 	    Field.ChangeMessage f = (Field.ChangeMessage)i.next();
-	    Field.ChangeMessage g = 
-		new Field.ChangeMessage(ViewInterpreter.getQualifiedFieldName(viewInterpreter.getClass(), f._fname),
-					f._value);
+	    String name = ViewInterpreter.getQualifiedFieldName(viewInterpreter.getClass(), f._fname);
+	    Serializable value = f._value;
+	    double precision = precisionOf(name);
+	    if (precision > 0.0) {
+		value = _keyframes.encode(name, value, precision);
+	    }
+	    Field.ChangeMessage g = (null == _dictionary) ?
+		new Field.ChangeMessage(name, value) :
+		_dictionary.encode(name, value);
 	    
 	    accumulator.addFieldChangeMessage(g);
 	}
     }
     
+    /*
+     * PURPOSE: Find the description of the data channel's
+     * SerializerPipeline for a Content-Type.
+     * POSTCONDITION: Answers the value of PIPELINE_PROPERTY + "." +
+     * contentType, or else of PIPELINE_PROPERTY, or else
+     * DEFAULT_PIPELINE.
+     */
+    private static String pipelineFor(String contentType) {
+	String answer = null;
+
+	if ((null != contentType) && (contentType.length() > 0)) {
+	    answer = System.getProperty(PIPELINE_PROPERTY + "." + contentType);
+	}
+
+	if (null == answer) {
+	    answer = System.getProperty(PIPELINE_PROPERTY, DEFAULT_PIPELINE);
+	}
+
+	return answer;
+    }
+
+    /*
+     * PURPOSE: Find the precision to which a field is delta encoded.
+     * POSTCONDITION: Answers the value of PRECISION_PROPERTY + "." +
+     * name, or 0 if it's absent or not a number, meaning that the
+     * field isn't delta encoded.
+     */
+    private double precisionOf(String name) {
+	Double answer = (Double)_precisions.get(name);
+
+	if (null == answer) {
+	    String p = System.getProperty(PRECISION_PROPERTY + "." + name);
+	    answer = new Double(0.0);
+	    if (null != p) {
+		try {
+		    answer = Double.valueOf(p);
+		} catch (NumberFormatException ex) {
+		    _LOG.warn(new Strings(new Object[] 
+			{"precisionOf(): ", PRECISION_PROPERTY, ".", name,
+			 " isn't a number: ", p}));
+		}
+	    }
+	    _precisions.put(name, answer);
+	}
+
+	return answer.doubleValue();
+    }
+
     /**
      * Compute the next session ID.  Wrap around from max short to min
      * short if need be.
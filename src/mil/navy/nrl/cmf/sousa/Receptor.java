@@ -6,6 +6,8 @@ import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.rmi.server.UID;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import mil.navy.nrl.cmf.norm4j.NormIOException;
 import mil.navy.nrl.cmf.norm4j.NormNodeId;
 import mil.navy.nrl.cmf.sousa.util.Strings;
@@ -55,7 +57,22 @@ public final class Receptor
     private ClientSideFSM _fsm = null;
     
     
-	private final int _key;
+	// the data channel's AES key
+	private final byte[] _key;
+
+	// describes the data channel's SerializerPipeline
+	private final String _pipeline;
+
+	// Numbers the fields of _state in the Projector's
+	// State.ChangeMessages.  null if the Projector sends names.
+	private final FieldDictionary _dictionary;
+
+	// the keyframes of the fields that the Projector delta encodes
+	private final Keyframes _keyframes;
+
+	// _state's Fields, indexed by their ids in _dictionary.  Made on
+	// first use, at the client.
+	private transient Field[] _fieldsById = null;
 
 	// Renders State.ChangeMessage contents into a Renderable.
 	// _renderer may be null.
@@ -69,17 +86,27 @@ public final class Receptor
      * @param projectorAddress a string representation of the projector address
      * @param projectorPort the port number
      * @param nodeID the multicast ID of the leaf
+     * @param key the AES key of the data channel
+     * @param pipeline describes the data channel's SerializerPipeline
+     * @param dictionary the ids of the fields in the Projector's
+     * messages, or null
+     * @param keyframes the Projector's keyframes when the Receptor is
+     * made
      */
     
     // PRECONDITION: state!=null.
     // POSTCONDITION: A new Receptor exists.
     Receptor(State state, String projectorAddress, int projectorPort, 
-			 NormNodeId nodeID, int key) {
+			 NormNodeId nodeID, byte[] key, String pipeline,
+			 FieldDictionary dictionary, Keyframes keyframes) {
 		_state = state;
 		_projectorAddress = projectorAddress;
 		_projectorPort = projectorPort;
 		_nodeID = nodeID;
 		_key = key;
+		_pipeline = pipeline;
+		_dictionary = dictionary;
+		_keyframes = keyframes;
     }
     
     /**
@@ -133,9 +160,12 @@ public final class Receptor
 											_projectorAddress,
 											_projectorPort,
 											_nodeID,
-											new XORSerializer(_key));
+											SerializerPipeline.create(_pipeline,
+																	  _key),
+											_fsm._focus._entity.getTrafficStats());
 			((SelectableNormSession)_dc).setRxPortReuse(true, true);
 			((SelectableNormSession)_dc).getSession().startReceiver(buff);
+			_fsm.getSelectableSet().addSelectable(_dc, SignalType.READ, this);
 
 			_LOG.debug(new Strings(new Object[] 
 				{"start(): new NormSession ",
@@ -145,23 +175,15 @@ public final class Receptor
 		print();
     }
 
-    /**
-     * Add data channel to the SelectableSet as needed
-     *
-     * @param ss the SelectableSet
-     */
-    void buildSelectableSet(SelectableSet ss) {
-	if (null != _dc) {
-	    ss.addSelectable(_dc, SignalType.READ, this);
-	}
-	
-    }
-        
     /**
      * Disconnect this Receptor because the underlying data channel is
      * dead.
      */
     void deregister() {
+	if ((_dc != null) && (_fsm != null)) {
+	    _fsm.getSelectableSet().removeSelectable(_dc, SignalType.READ);
+	}
+
 	if ((_dc != null) && ( ! _dc.isClosed())) {
 	    try {
 		_dc.close();
@@ -204,10 +226,11 @@ public final class Receptor
 	    
 			if (obj instanceof State.ChangeMessage) {
 	
-				_state.applyMessage((State.ChangeMessage)obj);
+				State.ChangeMessage changes = 
+					applyMessage((State.ChangeMessage)obj);
 		
 				if (null != _renderer) {
-					_renderer.render((State.ChangeMessage)obj);
+					_renderer.render(changes);
 				}
 
 				// This informs the Entity of the State changes.
@@ -272,11 +295,11 @@ public final class Receptor
 	    setMethodResponse((MethodResponseMessage)msg);
 	} else if (msg instanceof State.ChangeMessage) {
 	    // System.out.println("Receptor.handleMessage() " + msg);
-	    _state.applyMessage((State.ChangeMessage)msg);
+	    State.ChangeMessage changes = applyMessage((State.ChangeMessage)msg);
 	    
 		// TODO: One renderer per RFC2045 MIME type
 		if (null != _renderer) {
- 			_renderer.render((State.ChangeMessage)msg);
+ 			_renderer.render(changes);
 		}
 
 	    // This informs the Entity of the State changes.
@@ -325,6 +348,66 @@ public final class Receptor
 	}
     }
     
+    /**
+     * Apply changes from the Projector to _state.  Fields named by
+     * id are found through _fieldsById instead of by name.  Delta
+     * encoded values are decoded first.
+     *
+     * @param changes the changes
+     * @return changes with names in place of ids and decoded values
+     */
+    private State.ChangeMessage applyMessage(State.ChangeMessage changes) {
+	if (null == _fieldsById) {
+	    _fieldsById = (null == _dictionary) ? new Field[0] :
+		_state.getFields(_dictionary.getNames());
+	}
+	return _state.applyMessage(decode(changes), _fieldsById);
+    }
+
+    /*
+     * PURPOSE: Replace the DeltaFrames in changes with the values for
+     * which they stand.
+     * POSTCONDITION: Answers changes if it has no DeltaFrames, or
+     * else a copy.  The copy leaves out Deltas from keyframes that
+     * this Receptor doesn't hold.
+     */
+    private State.ChangeMessage decode(State.ChangeMessage changes) {
+	State.ChangeMessage answer = changes;
+	List fcms = changes.getMessages();
+
+	for (Iterator i = fcms.iterator(); i.hasNext(); ) {
+	    if (((Field.ChangeMessage)i.next())._value instanceof DeltaFrame) {
+		answer = new State.ChangeMessage();
+		break;
+	    }
+	}
+
+	if (answer != changes) {
+	    for (Iterator i = fcms.iterator(); i.hasNext(); ) {
+		Field.ChangeMessage fcm = (Field.ChangeMessage)i.next();
+		Object value = fcm._value;
+
+		if (value instanceof DeltaFrame) {
+		    String name = (Field.NO_ID == fcm._fid) ? fcm._fname :
+			_dictionary.nameOf(fcm._fid);
+		    value = _keyframes.decode(name, value);
+		}
+
+		if (value instanceof DeltaFrame) {
+		    _LOG.debug(new Strings(new Object[] 
+			{"decode(): no keyframe for ", value}));
+		}
+		else {
+		    answer.addFieldChangeMessage(new Field.ChangeMessage(fcm._fname,
+									 fcm._fid,
+									 (Serializable)value));
+		}
+	    }
+	}
+
+	return answer;
+    }
+
     /**
      * Print out information about this Receptor
      */
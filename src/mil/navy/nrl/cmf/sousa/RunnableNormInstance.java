@@ -88,11 +88,8 @@ public class RunnableNormInstance extends NormInstance
 				// byte array and give it to the receiver session.
 
 				if (userData instanceof SelectableNormSession) {
-					_LOG.info(new Strings(new Object[]
-						{"Received ", new Integer(data.length), " bytes"}));
-
 					Object m = 
-						((SelectableNormSession)userData)._serializer.toObject(data);
+						((SelectableNormSession)userData).deserialize(data);
 
 					_LOG.debug(new Strings(new Object[] { 
 							   "Thread ", Thread.currentThread().getName(), 
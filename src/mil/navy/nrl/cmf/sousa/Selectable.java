@@ -1,9 +1,8 @@
 package mil.navy.nrl.cmf.sousa;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
+import mil.navy.nrl.cmf.sousa.util.RingBuffer;
+import mil.navy.nrl.cmf.sousa.util.Strings;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
@@ -35,21 +34,38 @@ public abstract class Selectable
     //// data members
 
 	/**
-	   Maintains Lists of {@link Selectable.Handler} according to
-	   {@link SignalType}.  The keys are <CODE>SignalType</CODE>.  The
-	   values are <CODE>LinkedList</CODE>.
+	   The {@link SelectableSet.Registration} of this
+	   <CODE>Selectable</CODE> in each {@link SelectableSet} to which
+	   it belongs.  The array is replaced, never modified, so that
+	   {@link #broadcastNotification(SignalType)} can read it without
+	   locking.
 	*/
-    private final HashMap _selectableSets = new HashMap(); 
+    private volatile SelectableSet.Registration[] _registrations =
+		new SelectableSet.Registration[0];
 
 	/**
-	   The default maximum size of {@link #_inQ} and {@link #_outQ}.
+	   Semaphore for changes to {@link #_registrations}.
+	*/
+    private final Object _registrationsLock = new Object();
+
+	/**
+	   The default maximum size of {@link #_inQ} and {@link #_outQ}
+	   when the system property {@link #QUEUE_CAPACITY_PROPERTY} is
+	   not set.
 	 */
     protected static final int DEFAULT_QUEUE_CAPACITY = 2;
 
+	/**
+	   The name of the system property that overrides {@link
+	   #DEFAULT_QUEUE_CAPACITY} for every <CODE>Selectable</CODE>.
+	 */
+    public static final String QUEUE_CAPACITY_PROPERTY =
+		"mil.navy.nrl.cmf.sousa.Selectable.queueCapacity";
+
     /**
-	   List of objects that are ready to be read from the channel
+	   Ring of objects that are ready to be read from the channel
 	*/
-    protected final LinkedList _inQ = new LinkedList();
+    protected final RingBuffer _inQ;
 
 	/**
 	   The actual capacity of {@link #_inQ}.
@@ -57,9 +73,9 @@ public abstract class Selectable
     protected final int _inQCapacity;
 
     /** 
-		List of objects waiting to be written to the channel
+		Ring of objects waiting to be written to the channel
 	*/
-    protected final LinkedList _outQ = new LinkedList();
+    protected final RingBuffer _outQ;
 
 	/**
 	   The actual capacity of {@link #_outQ}.
@@ -77,21 +93,18 @@ public abstract class Selectable
 	  Gets an Object from {@link #_inQ} since it has been completely
       read from the channel and reconstituted.
 
-	  @return a reconstituted object.
+	  @return a reconstituted object, or <CODE>null</CODE> if
+	  {@link #_inQ} is empty.
 	*/
     public Object read() {
 		Object ser = null;
 		synchronized(_inQ) {
-			if (dataRead() > 0) {
-				boolean wakeup = false;
-				ser = (Object)_inQ.removeFirst();
-			}
-			else {
-				// Shouldn't happen!
-				_LOG.fatal("Input queue is empty");
-				Thread.dumpStack();
-				System.exit(1);
-			}
+			ser = _inQ.poll();
+		}
+
+		if (null == ser) {
+			// The caller didn't wait for READ.
+			_LOG.error(this + ": Input queue is empty");
 		}
 		return ser;
     }
@@ -100,63 +113,109 @@ public abstract class Selectable
 	   Puts <CODE>ser</CODE> into {@link #_outQ} in preparation for writing on the
 	   channel.
 
+	   <P>
+
+	   The caller must respect the backpressure of a full
+	   <CODE>_outQ</CODE> by writing only while {@link #spaceWrite()}
+	   is positive, i.e. while this <CODE>Selectable</CODE> is ready
+	   for {@link SignalType#WRITE}.
+
 	   @param ser the non-<CODE>null</CODE> <CODE>Object</CODE> to put into <CODE>_outQ</CODE>.
+	   @throws IllegalStateException if <CODE>_outQ</CODE> is full
 	*/
     public void write(Object ser) {
+		boolean full;
 		synchronized(_outQ) {
-			if (spaceWrite() > 0) {
-				_outQ.addLast(ser);
-			} else {
-				// Shouldn't happen!
-				_LOG.fatal("Output queue is full");
-				Thread.dumpStack();
-				System.exit(1);
-			}
+			full = !_outQ.offer(ser);
+		}
+
+		if (full) {
+			// The caller didn't wait for WRITE.
+			_LOG.error(this + ": Output queue is full");
+			throw new IllegalStateException("Output queue is full");
 		}
     }
 
     /**
-	   Registers this <CODE>Selectable</CODE> in <CODE>ss</CODE> as an
-	   <CODE>st</CODE> signal recipient.
+	   Records <CODE>r</CODE>, the registration of this
+	   <CODE>Selectable</CODE> in a {@link SelectableSet}.
 
-	   @param ss the <CODE>SelectableSet</CODE>
-	   @param st the type of I/O desired
+	   @param r the registration
      */
-    void addSelectableSet(SelectableSet ss, SignalType st)
+    void addRegistration(SelectableSet.Registration r)
     {
-		LinkedList list = _getList(st);
-		synchronized (list) {
-			if (!list.contains(ss)) {
-				list.addLast(ss);
-			}
+		synchronized (_registrationsLock) {
+			SelectableSet.Registration[] old = _registrations;
+			SelectableSet.Registration[] regs = 
+				new SelectableSet.Registration[old.length + 1];
+			System.arraycopy(old, 0, regs, 0, old.length);
+			regs[old.length] = r;
+			_registrations = regs;
 		}
+    }
 
-		if ((st == SignalType.READ) && (this.dataRead() > 0)) {
-			ss.recvNotification(this, SignalType.READ, false);
-		}
-	
-		if ((st == SignalType.WRITE) && (this.spaceWrite() > 0)) {
-			ss.recvNotification(this, SignalType.WRITE, false);
-		}
-	
-		if ((st == SignalType.ERROR) && (null != this.getError())) {
-			ss.recvNotification(this, SignalType.ERROR, false);
+    /**
+	   Forgets <CODE>r</CODE>, a registration previously added with
+	   {@link #addRegistration(SelectableSet.Registration)}.
+
+	   @param r the registration
+     */
+    void removeRegistration(SelectableSet.Registration r)
+    {
+		synchronized (_registrationsLock) {
+			SelectableSet.Registration[] old = _registrations;
+			for (int i = 0; i < old.length; i++) {
+				if (old[i] == r) {
+					SelectableSet.Registration[] regs = 
+						new SelectableSet.Registration[old.length - 1];
+					System.arraycopy(old, 0, regs, 0, i);
+					System.arraycopy(old, i + 1, regs, i, old.length - i - 1);
+					_registrations = regs;
+					break;
+				}
+			}
 		}
     }
 
     /**
-	   Deregister this <CODE>Selectable</CODE> from <CODE>ss</CODE> as
-	   an <CODE>st</CODE> signal recipient.
+	   Returns the registration of this <CODE>Selectable</CODE> in
+	   <CODE>ss</CODE>.
 
 	   @param ss the <CODE>SelectableSet</CODE>
-	   @param st the type of I/O desired
+	   @return the registration or <CODE>null</CODE> if this
+	   <CODE>Selectable</CODE> doesn't belong to <CODE>ss</CODE>
      */
-    void removeSelectableSet(SelectableSet ss, SignalType st)
+    SelectableSet.Registration getRegistration(SelectableSet ss)
     {
-		LinkedList list = _getList(st);
-		synchronized (list) {
-			list.remove(ss);
+		SelectableSet.Registration[] regs = _registrations;
+		for (int i = 0; i < regs.length; i++) {
+			if (regs[i].getSelectableSet() == ss) {
+				return regs[i];
+			}
 		}
+		return null;
+    }
+
+    /**
+	   Tells whether this <CODE>Selectable</CODE> can perform the I/O
+	   <CODE>st</CODE> without blocking.
+
+	   @param st the type of I/O
+	   @return <CODE>true</CODE> if there is something to read for
+	   {@link SignalType#READ}, room to write for {@link
+	   SignalType#WRITE} or an error for {@link SignalType#ERROR};
+	   <CODE>false</CODE> otherwise
+	 */
+    boolean isReady(SignalType st)
+    {
+		if (st == SignalType.READ) {
+			return (this.dataRead() > 0);
+		} else if (st == SignalType.WRITE) {
+			return (this.spaceWrite() > 0);
+		} else if (st == SignalType.ERROR) {
+			return (null != this.getError());
+		}
+		return false;
     }
 
     /*
@@ -193,11 +252,55 @@ public abstract class Selectable
 	   in both its read queue and its write queue.
 
 	   @see #DEFAULT_QUEUE_CAPACITY
+	   @see #QUEUE_CAPACITY_PROPERTY
      */
     protected Selectable() 
     {
-		_outQCapacity = Selectable.DEFAULT_QUEUE_CAPACITY;
-		_inQCapacity = Selectable.DEFAULT_QUEUE_CAPACITY;
+		this(queueCapacity(null), queueCapacity(null));
+    }
+
+    /**
+	   Class constructor for a Selectable with the given capacities.
+	   A deeper queue lets more objects pipeline through the
+	   Selectable between calls to {@link SelectableSet#select(long)}.
+
+	   @param inQCapacity the capacity of the read queue
+	   @param outQCapacity the capacity of the write queue
+	   @throws IllegalArgumentException if a capacity is not positive
+     */
+    protected Selectable(int inQCapacity, int outQCapacity) 
+    {
+		_inQ = new RingBuffer(inQCapacity);
+		_outQ = new RingBuffer(outQCapacity);
+		_inQCapacity = inQCapacity;
+		_outQCapacity = outQCapacity;
+    }
+
+    /**
+	   Returns the queue capacity named by the system property
+	   <CODE>property</CODE>.  Falls back to {@link
+	   #QUEUE_CAPACITY_PROPERTY} and then to {@link
+	   #DEFAULT_QUEUE_CAPACITY}.
+
+	   @param property the name of a system property, or
+	   <CODE>null</CODE>
+	   @return a positive queue capacity
+     */
+    protected static int queueCapacity(String property)
+    {
+		int answer = Integer.getInteger(QUEUE_CAPACITY_PROPERTY, 
+										DEFAULT_QUEUE_CAPACITY).intValue();
+		if (null != property) {
+			answer = Integer.getInteger(property, answer).intValue();
+		}
+
+		if (answer <= 0) {
+			_LOG.warn(new Strings(new Object[] 
+				{"Ignoring queue capacity ", new Integer(answer), 
+				 " <= 0 for ", property}));
+			answer = DEFAULT_QUEUE_CAPACITY;
+		}
+		return answer;
     }
 
     /**
@@ -264,8 +367,10 @@ public abstract class Selectable
      */
     protected final void put_inQ(Object ser) {
 		synchronized(_inQ) {
-			// put the object in the _inQ
-			_inQ.addLast(ser);
+			// put the object in the _inQ.  The producer is
+			// responsible for respecting spaceRead(); _inQ grows
+			// rather than losing ser.
+			_inQ.add(ser);
 			if (dataRead() > 0) {
 				broadcastNotification(SignalType.READ);
 			}
@@ -280,7 +385,7 @@ public abstract class Selectable
      */
     protected final Object take_outQ() {
 		synchronized(_outQ) {
-			Object ser = (Object)_outQ.removeFirst();
+			Object ser = _outQ.poll();
 			if (spaceWrite() > 0) {
 				broadcastNotification(SignalType.WRITE);
 			}
@@ -290,21 +395,18 @@ public abstract class Selectable
 
     /**
 	   Send the <CODE>st</CODE> signal to every {@link SelectableSet} that is 
-	   registered as an <CODE>st</CODE> recipient.
+	   registered as an <CODE>st</CODE> recipient.  This takes no locks
+	   beyond those of the <CODE>SelectableSets</CODE> whose selecting
+	   Thread is asleep.
 
 	   @param st the type of I/O
      */
     protected void broadcastNotification(SignalType st)
     {
-		LinkedList list = _getList(st);
-		LinkedList listcopy;
-		synchronized (list) {
-			listcopy = (LinkedList)list.clone();
-		}
-
-		for (Iterator it = listcopy.iterator(); it.hasNext();) {
-			SelectableSet ss = (SelectableSet)it.next();
-			ss.recvNotification(this, st, true);
+		SelectableSet.Registration[] regs = _registrations;
+		int mask = st.mask();
+		for (int i = 0; i < regs.length; i++) {
+			regs[i].signal(mask, true);
 		}
     }
 
@@ -325,27 +427,4 @@ public abstract class Selectable
 	*/
     abstract void close() throws IOException;
 
-    //// private methods 
-
-	/**
-	   Determines the <CODE>LinkedList</CODE> of {@link Selectable.Handler}
-	   that handle I/O operation <CODE>st</CODE>.  Creates the
-	   <CODE>List</CODE> if one does not exist.
-
-	   @param st the I/O operation
-	   @return the <CODE>LinkedList</CODE> of
-	   <CODE>Selectable.Handler</CODE> for <CODE>st</CODE>
-	 */
-    private LinkedList _getList(SignalType st)
-    {
-		LinkedList list = null;
-		synchronized(_selectableSets) {
-			list = (LinkedList)_selectableSets.get(st);
-			if (list == null) {
-				list = new LinkedList();
-				_selectableSets.put(st, list);
-			}
-		}
-		return list;
-    }
 };
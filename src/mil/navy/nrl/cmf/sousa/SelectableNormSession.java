@@ -86,6 +86,18 @@ public class SelectableNormSession extends Selectable
 	 */
 	final Serializer _serializer;
 
+	/**
+	   The traffic of this SelectableNormSession.
+	 */
+	private final TrafficStats _stats;
+
+	/**
+	   When the NormSession last ran out of slots for writing while
+	   there were objects to write, in nanoseconds, or 0 if it
+	   hasn't since it last had a slot.  Protected by _writingMutex.
+	 */
+	private long _stallStartTime = 0;
+
     // These pertain to writing.
 
 	/**
@@ -117,12 +129,7 @@ public class SelectableNormSession extends Selectable
 								 int port, 
 								 NormNodeId localID) 
     {
-		super();
-		_session = new NormSession((NormInstance)norm, address, port, localID);
-		_session.setUserData(this);
-		_address = new String(address);
-		_port = port;
-		_serializer = new ByteArray();
+		this(norm, address, port, localID, new ByteArray(), null);
     }
 
 	/**
@@ -140,6 +147,27 @@ public class SelectableNormSession extends Selectable
 								 int port, 
 								 NormNodeId localID,
 								 Serializer s) 
+    {
+		this(norm, address, port, localID, s, null);
+    }
+
+	/**
+	   Class Constructor that uses the Serializer supplied by the
+	   caller and adds its traffic to that of an Entity
+
+	   @param norm the RunnableNormInstance in which to create a NormSession
+	   @param address the multicast address of the sender
+	   @param port the multicast port of the sender
+	   @param localID the local identifier of the NormSession
+	   @param s the serializing object
+	   @param parent the TrafficStats of the Entity, or null
+	*/
+    SelectableNormSession(RunnableNormInstance norm, 
+						  String address, 
+						  int port, 
+						  NormNodeId localID,
+						  Serializer s,
+						  TrafficStats parent) 
     {
 		super();
 		_session = new NormSession((NormInstance)norm, address, port, localID);
@@ -147,6 +175,8 @@ public class SelectableNormSession extends Selectable
 		_address = new String(address);
 		_port = port;
 		_serializer = s;
+		_stats = new TrafficStats(this, parent);
+		_stats.register("SelectableNormSession", address + ":" + port);
     }
 
 	/**
@@ -177,10 +207,38 @@ public class SelectableNormSession extends Selectable
 		return _port;
 	}
 
+	/**
+	   Returns the traffic of this SelectableNormSession.
+
+	   @return the TrafficStats
+	*/
+	TrafficStats getTrafficStats() {
+		return _stats;
+	}
+
     //
     // Read-related methods
     //
     
+    // Called in the RunnableNormInstance's thread
+	/**
+	   Reconstitutes an object that arrived.
+
+	   @param data the bytes of the object
+	   @return the object
+	   @throws IOException if the Serializer fails
+	   @throws ClassNotFoundException if the object's class is unknown
+	 */
+	Object deserialize(byte[] data)
+		throws IOException, ClassNotFoundException
+	{
+		long startTime = System.nanoTime();
+		Object answer = _serializer.toObject(data);
+		_stats.bytesIn(data.length);
+		_stats.frameIn(System.nanoTime() - startTime);
+		return answer;
+	}
+
     // Called in the RunnableNormInstance's thread
 	/**
 	   Appends <CODE>m</CODE> to the input queue
@@ -225,13 +283,12 @@ public class SelectableNormSession extends Selectable
 		synchronized (_writingMutex) {
 			while ((_slotsForWriting > 0) && (dataWrite() > 0)) {
 				try {
+					long startTime = System.nanoTime();
 					m = take_outQ();
 					data = _serializer.toByteArray(m);
 					if (null != data) {
-						_LOG.info(new Strings(new Object[]
-							{this, ": Writing ", new Integer(data.length), 
-							 " bytes into ", _session, " ", 
-							 new Long(System.currentTimeMillis())}));
+						_stats.frameOut(System.nanoTime() - startTime, dataWrite());
+						_stats.bytesOut(data.length);
 
 						NormObject result = _session.sendData(data);
 
@@ -258,6 +315,11 @@ public class SelectableNormSession extends Selectable
 					System.exit(1);
 				}
 			}
+
+			if ((dataWrite() > 0) && (0 == _stallStartTime)) {
+				// NORM has no room for the rest.
+				_stallStartTime = System.nanoTime();
+			}
 		}
 	}
 
@@ -268,6 +330,10 @@ public class SelectableNormSession extends Selectable
     {
 		synchronized (_writingMutex) {
 			_slotsForWriting ++;
+			if (0 != _stallStartTime) {
+				_stats.writeStall(System.nanoTime() - _stallStartTime);
+				_stallStartTime = 0;
+			}
 		}
 	
     }
@@ -285,6 +351,7 @@ public class SelectableNormSession extends Selectable
 			_session.destroySession();
 			_session = null;
 		}
+		_stats.close();
     }
 
     boolean isClosed() {
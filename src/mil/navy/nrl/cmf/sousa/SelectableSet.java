@@ -5,45 +5,264 @@ package mil.navy.nrl.cmf.sousa;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
    <CODE>SelectableSet</CODE> is a set of <CODE>Selectable</CODE>
    waiting to perform I/O operations together with the means to
    determine which of them is ready for I/O.
+
+   <P>
+
+   Registrations are persistent.  A {@link Selectable} added with
+   {@link #addSelectable(Selectable, SignalType, Selectable.Handler)}
+   remains interested in its {@link SignalType} until it is removed
+   with {@link #removeSelectable(Selectable, SignalType)}.  Each
+   <CODE>Selectable</CODE> notifies this <CODE>SelectableSet</CODE>
+   when its queues change state, so {@link #select(long)} only visits
+   the <CODE>Selectables</CODE> that are ready rather than every
+   registered one.
+
+   <P>
+
+   Interest and readiness are bitmasks of {@link SignalType#mask()}
+   kept in a {@link SelectableSet.Registration} for each
+   <CODE>Selectable</CODE>.  A <CODE>Selectable</CODE> signals by
+   setting a bit and, if it wasn't already queued, putting its
+   <CODE>Registration</CODE> on a lock-free ready queue.  The only
+   monitor a signalling Thread takes is {@link #_blocked}, and only
+   when the selecting Thread is asleep.
  */
 public class SelectableSet
 {
 	/**
-	   Semaphore for concurent I/O
+	   A <CODE>Poller</CODE> performs lower-layer I/O on behalf of a
+	   <CODE>SelectableSet</CODE>.  A <CODE>SelectableSet</CODE> with
+	   a <CODE>Poller</CODE> waits in {@link #poll(long)} instead of
+	   on its own monitor, so the Thread that calls {@link
+	   SelectableSet#select(long)} also reads, deserializes and
+	   handles each message without a hop to another Thread.
+	*/
+	public interface Poller {
+
+		/**
+		   Performs whatever lower-layer I/O is possible, waiting up
+		   to <CODE>time</CODE> milliseconds for some.
+
+		   @param time the number of milliseconds to wait; zero or
+		   less means don't wait
+		*/
+		void poll(long time);
+
+		/**
+		   Makes the current or next {@link #poll(long)} return
+		   without waiting.
+		*/
+		void wakeup();
+	}
+
+	/**
+	   The registration of one {@link Selectable} in one
+	   <CODE>SelectableSet</CODE>.
+	*/
+	static final class Registration {
+
+		/**
+		   The <CODE>SelectableSet</CODE> of this registration.
+		*/
+		private final SelectableSet _set;
+
+		/**
+		   The <CODE>Selectable</CODE> of this registration.
+		*/
+		private final Selectable _selectable;
+
+		/**
+		   The bitmask of {@link SignalType} that interest
+		   {@link #_selectable}.
+		*/
+		private final AtomicInteger _interest = new AtomicInteger(0);
+
+		/**
+		   The bitmask of {@link SignalType} that {@link #_selectable}
+		   has signalled since the last time {@link #select(long)}
+		   looked at it.
+		*/
+		private final AtomicInteger _ready = new AtomicInteger(0);
+
+		/**
+		   Is this <CODE>Registration</CODE> in {@link #_readyQueue}?
+		*/
+		private final AtomicBoolean _queued = new AtomicBoolean(false);
+
+		/**
+		   The {@link Selectable.Handler} for each {@link SignalType}.
+		   The keys are <CODE>SignalType</CODE>.  The values are
+		   <CODE>Selectable.Handler</CODE>.  The map is replaced, never
+		   modified.
+		*/
+		private volatile HashMap _handlers = new HashMap();
+
+		/**
+		   The most recent {@link #select(long)} to mark this
+		   <CODE>Registration</CODE>.  Only the selecting Thread
+		   touches it.
+		*/
+		private long _markedGeneration = -1;
+
+		/**
+		   The bitmask of {@link SignalType} marked by
+		   {@link #_markedGeneration}.  Only the selecting Thread
+		   touches it.
+		*/
+		private int _markedMask = 0;
+
+		/**
+		   Class constructor
+
+		   @param set the <CODE>SelectableSet</CODE>
+		   @param s the <CODE>Selectable</CODE>
+		*/
+		Registration(SelectableSet set, Selectable s) {
+			_set = set;
+			_selectable = s;
+		}
+
+		/**
+		   Returns the <CODE>SelectableSet</CODE> of this registration.
+
+		   @return the <CODE>SelectableSet</CODE>
+		*/
+		SelectableSet getSelectableSet() {
+			return _set;
+		}
+
+		/**
+		   Records that {@link #_selectable} is ready for the I/O in
+		   <CODE>mask</CODE>, optionally waking up the selecting
+		   Thread.  Does nothing if nobody is interested.
+
+		   @param mask the bitmask of {@link SignalType}
+		   @param notify <CODE>true</CODE> to notify the blocked
+		   Thread; <CODE>false</CODE> otherwise
+		*/
+		void signal(int mask, boolean notify) {
+			if ((_interest.get() & mask) == 0) {
+				return;
+			}
+
+			int ready;
+			do {
+				ready = _ready.get();
+				if ((ready & mask) == mask) {
+					break;
+				}
+			} while (!_ready.compareAndSet(ready, ready | mask));
+
+			if (_queued.compareAndSet(false, true)) {
+				_set._enqueue(this, notify);
+			}
+		}
+
+		/**
+		   Tells whether anyone is interested in <CODE>st</CODE>.
+
+		   @param st the type of I/O
+		   @return <CODE>true</CODE> if there is interest in
+		   <CODE>st</CODE>; <CODE>false</CODE> otherwise
+		*/
+		boolean isInterested(SignalType st) {
+			return (_interest.get() & st.mask()) != 0;
+		}
+
+		/**
+		   Returns the handler for <CODE>st</CODE>.
+
+		   @param st the type of I/O
+		   @return the handler or <CODE>null</CODE>
+		*/
+		Selectable.Handler getHandler(SignalType st) {
+			return (Selectable.Handler)_handlers.get(st);
+		}
+
+		/**
+		   Adds interest in <CODE>st</CODE> with handler
+		   <CODE>h</CODE>.  The caller must hold {@link
+		   SelectableSet#_registrations}.
+
+		   @param st the type of I/O
+		   @param h the handler
+		*/
+		private void _addInterest(SignalType st, Selectable.Handler h) {
+			HashMap handlers = new HashMap(_handlers);
+			handlers.put(st, h);
+			_handlers = handlers;
+
+			int interest;
+			do {
+				interest = _interest.get();
+			} while (!_interest.compareAndSet(interest, interest | st.mask()));
+		}
+
+		/**
+		   Removes interest in <CODE>st</CODE>.  The caller must hold
+		   {@link SelectableSet#_registrations}.
+
+		   @param st the type of I/O
+		   @return the remaining interest
+		*/
+		private int _removeInterest(SignalType st) {
+			int interest;
+			do {
+				interest = _interest.get();
+			} while (!_interest.compareAndSet(interest, interest & ~st.mask()));
+
+			HashMap handlers = new HashMap(_handlers);
+			handlers.remove(st);
+			_handlers = handlers;
+
+			return interest & ~st.mask();
+		}
+
+		public String toString() {
+			return _selectable.toString();
+		}
+	}
+
+	/**
+	   Semaphore for the sleeping {@link #select(long)}.
 	*/
     private Object  _blocked = new Object();
-    
+
     /**
-	   Tracks each {@link Selectable} and its {@link
-	   Selectable.Handler} by {@link SignalType}.  The keys are
-	   <CODE>SignalType</CODE>.  The values are <CODE>Maps</CODE>
-	   where the keys are <CODE>Selectable</CODE> and the values are
-	   <CODE>Selectable.Handler</CODE>.
+	   Tracks the {@link SelectableSet.Registration} of each {@link
+	   Selectable}.  The keys are <CODE>Selectable</CODE>.  The values
+	   are <CODE>Registration</CODE>.  It is also the semaphore for
+	   adding and removing interest.
 	*/
-    private HashMap _selectables = new HashMap(); 
+    private final HashMap _registrations = new HashMap();
 
+	/**
+	   The {@link SelectableSet.Registration} of each {@link
+	   Selectable} that has signalled readiness since the most recent
+	   {@link #select(long)}.
+	*/
+    private final ConcurrentLinkedQueue _readyQueue = new ConcurrentLinkedQueue();
 
     /**
-	  Tracks each {@link Selectable} and its desire for I/O state by
-	  {@link SignalType}.  The keys are <CODE>SignalType</CODE> and
-	  the values are <CODE>HashMap</CODE> with <CODE>Selectable</CODE>
-	  as keys and <CODE>Boolean</CODE> as values.  <CODE>true</CODE>
-	  indicates that the <CODE>Selectable</CODE> desires to perform the I/O
-	  indicated by the <CODE>SignalType</CODE>.
+	  Tracks each {@link Selectable} chosen by the most recent {@link
+	  #select(long)} by {@link SignalType}.  The keys are
+	  <CODE>SignalType</CODE> and the values are <CODE>LinkedList</CODE>
+	  of <CODE>Selectable</CODE>.  Only the selecting Thread uses it.
 	*/
-    private HashMap _marks = new HashMap(); 
+    private HashMap _marks = new HashMap();
 
 	/**
-	   Tracks each {@link Selectable}that is ready for I/O by {@link
-	   SignalType}.  The keys are <CODE>SignalType</CODE> and the
-	   values are <CODE>List</CODE> of <CODE>Selectable</CODE>.
+	   Counts calls to {@link #select(long)}.
 	*/
-    private HashMap _notifications = new HashMap(); 
+    private long _generation = 0;
 
 	/**
 	   The <CODE>Thread</CODE> under which {@link #select(long)} is running.
@@ -54,7 +273,25 @@ public class SelectableSet
 	/**
 	   Determines if {@link #_thread} is blocked/waiting.
 	*/
-    private boolean _inWait = false;
+    private volatile boolean _inWait = false;
+
+	/**
+	   Makes the next or current {@link #select(long)} return without
+	   waiting.  See {@link #wakeup()}.
+	*/
+    private volatile boolean _wakeupPending = false;
+
+	/**
+	   Waits for {@link #select(long)} if it isn't <CODE>null</CODE>.
+	*/
+    private volatile Poller _poller = null;
+
+	/**
+	   The <CODE>Thread</CODE> that most recently called {@link
+	   #select(long)} with a {@link #_poller}.  Signals from it need
+	   not wake up the <CODE>Poller</CODE>.
+	*/
+    private volatile Thread _pollingThread = null;
 
 	/**
 	   Class constructor
@@ -70,49 +307,134 @@ public class SelectableSet
 	   @return the number of <CODE>Selectables</CODE> that are ready
 	   for I/O; -1 indicates an interruption.
 	 */
-    int select(long time) 
+    int select(long time)
     {
-		int size = 0;
-	
-		synchronized(_selectables) {
-			// clear notifications
-			_clearNotifications();
-			// attach the selectables, giving them a chance to bcast notifications
-			_attachSelectables();
-			// see if we already have notifications
-			int prewait_notifications = _processNotifications(false);
-			if (prewait_notifications == 0) {
-				synchronized (_blocked) {
-					_thread = Thread.currentThread();
-		    
-					try {
-						_inWait = true;
+		// Selectables are level-triggered.  Anything chosen by the
+		// previous select() may still be ready, e.g. when a read
+		// queue held more than one object.
+		_rearmMarks();
+
+		Poller poller = _poller;
+		if (null != poller) {
+			_pollingThread = Thread.currentThread();
+			// Always give the Poller a chance to do I/O, but don't
+			// let it wait if something is ready already.  A
+			// Selectable that signals while the Poller waits wakes
+			// it up.
+			if (_readyQueue.isEmpty() && !_wakeupPending) {
+				poller.poll(time);
+			} else {
+				poller.poll(0);
+			}
+		}
+		else if (_readyQueue.isEmpty() && !_wakeupPending) {
+			synchronized(_blocked) {
+				_thread = Thread.currentThread();
+				// A Selectable that signals after this sees _inWait
+				// and notifies.  One that signalled before it is in
+				// _readyQueue.
+				_inWait = true;
+
+				try {
+					if (_readyQueue.isEmpty() && !_wakeupPending) {
 						_blocked.wait(time);
-						_inWait = false;
-					}
-					catch (InterruptedException ex) {
-						_inWait = false;
-						_thread = null;
-						_detachSelectables();
-						return -1;
 					}
-		    
+				}
+				catch (InterruptedException ex) {
+					return -1;
+				}
+				finally {
+					_inWait = false;
 					_thread = null;
 				}
 			}
+		}
+
+		_wakeupPending = false;
+
+		// Discard stale notifications.  Selectable.isReady() takes
+		// the Selectable's queue monitors, which may be held by a
+		// Thread that is signalling this SelectableSet, so no lock of
+		// ours may be held here.
+		long generation = ++_generation;
+		int size = 0;
+		HashMap marks = new HashMap();
+		Registration r;
+		while (null != (r = (Registration)_readyQueue.poll())) {
+			// Clear _queued before taking the ready bits so that a
+			// signal arriving in between queues r again.
+			r._queued.set(false);
+			int ready = r._ready.getAndSet(0) & r._interest.get();
+			if (0 == ready) {
+				continue;
+			}
+
+			if (r._markedGeneration != generation) {
+				r._markedGeneration = generation;
+				r._markedMask = 0;
+			}
 
-			int postwait_notifications = _processNotifications(true);
-			size = postwait_notifications;
-			_detachSelectables();
+			for (Iterator it = SignalType.iterator(); it.hasNext();) {
+				SignalType st = (SignalType)it.next();
+				int mask = st.mask();
+				if (((ready & mask) != 0) && ((r._markedMask & mask) == 0)
+					&& r._selectable.isReady(st)) {
+					r._markedMask |= mask;
+					_getMarksList(marks, st).addLast(r._selectable);
+					size++;
+				}
+			}
 		}
-	
+
+		_marks = marks;
+
 		return size;
     }
-    
+
+	/**
+	   Calls the {@link Selectable.Handler} of each {@link
+	   Selectable} chosen by the most recent {@link #select(long)}.
+	   A handler may remove <CODE>Selectables</CODE> that haven't
+	   been handled yet.  They are skipped.
+	 */
+    void handleSelected()
+    {
+		// for each SignalType
+		for (Iterator itst = SignalType.iterator(); itst.hasNext();) {
+			SignalType st = (SignalType)itst.next();
+			// for each Selectable
+			for (Iterator it = iterator(st); it.hasNext();) {
+				Selectable sel = (Selectable)it.next();
+				// get the Handler
+				Selectable.Handler h = getHandler(sel, st);
+				// An earlier Handler may have removed sel.
+				if (null == h) continue;
+				// delegate
+				h.handle(sel, st);
+			}
+		}
+    }
+
+	/**
+	   Makes <CODE>p</CODE> responsible for waiting in {@link
+	   #select(long)}.  Only one Thread may call <CODE>select()</CODE>
+	   on a <CODE>SelectableSet</CODE> that has a <CODE>Poller</CODE>.
+
+	   @param p the Poller, or <CODE>null</CODE> to wait on this
+	   <CODE>SelectableSet</CODE>'s own monitor
+	 */
+    public void setPoller(Poller p)
+    {
+		_poller = p;
+		wakeup();
+    }
+
 	/**
 	   Adds <CODE>s</CODE> to this <CODE>SelectableSet</CODE>.
 	   <CODE>s</CODE> is interested in I/O <CODE>st</CODE> using
-	   <CODE>h</CODE>.
+	   <CODE>h</CODE> until it is removed.  Adding a
+	   <CODE>Selectable</CODE> that is already present for
+	   <CODE>st</CODE> has no effect.
 
 	   @param s the <CODE>Selectable</CODE> to add
 	   @param st the type of I/O
@@ -120,30 +442,48 @@ public class SelectableSet
 	 */
 	public void addSelectable(Selectable s, SignalType st, Selectable.Handler h)
     {
-		synchronized(_selectables) {
-			HashMap map = _getSelectablesMap(st);
-			synchronized(map) {
-				if (map.get(s) == null) {
-					map.put(s, h);
-				}
+		Registration r;
+		synchronized(_registrations) {
+			r = (Registration)_registrations.get(s);
+			if (null == r) {
+				r = new Registration(this, s);
+				_registrations.put(s, r);
+				s.addRegistration(r);
+			}
+			else if (r.isInterested(st)) {
+				return;
 			}
-			setMarked(s, st, true);
+			r._addInterest(st, h);
+		}
+
+		// s may be ready for st already.
+		if (s.isReady(st)) {
+			r.signal(st.mask(), true);
 		}
     }
 
 	/**
 	   Removes <CODE>s</CODE> from this <CODE>SelectableSet</CODE> for
-	   I/O type <CODE>st</CODE>.
+	   I/O type <CODE>st</CODE>.  Removing a <CODE>Selectable</CODE>
+	   that isn't present has no effect.
 
 	   @param s the <CODE>Selectable</CODE> to remove
 	   @param st the I/O type
 	 */
-    void removeSelectable(Selectable s, SignalType st)
+    public void removeSelectable(Selectable s, SignalType st)
     {
-		synchronized(_selectables) {
-			HashMap map = _getSelectablesMap(st);
-			map.remove(s);
-			setMarked(s, st, false);
+		synchronized(_registrations) {
+			Registration r = (Registration)_registrations.get(s);
+			if ((null == r) || !r.isInterested(st)) {
+				return;
+			}
+
+			if (0 == r._removeInterest(st)) {
+				// r may still be in _readyQueue.  select() ignores
+				// it because it has no interest.
+				_registrations.remove(s);
+				s.removeRegistration(r);
+			}
 		}
     }
 
@@ -154,14 +494,16 @@ public class SelectableSet
 
 	   @param s the <CODE>Selectable</CODE>
 	   @param st the I/O type
-	   @return the handler for <CODE>s</CODE> and I/O type <CODE>st</CODE>.
+	   @return the handler for <CODE>s</CODE> and I/O type
+	   <CODE>st</CODE>, or <CODE>null</CODE> if <CODE>s</CODE> has
+	   been removed since the last {@link #select(long)}.
 	 */
     Selectable.Handler getHandler(Selectable s, SignalType st) {
-		synchronized(_selectables) {
-			HashMap map = _getSelectablesMap(st);
-			Selectable.Handler h = (Selectable.Handler)map.get(s);
-			return h;
+		Registration r = s.getRegistration(this);
+		if ((null == r) || !r.isInterested(st)) {
+			return null;
 		}
+		return r.getHandler(st);
     }
 
 	/**
@@ -172,76 +514,53 @@ public class SelectableSet
 	 */
     void clearAllSelectables(SignalType st)
     {
-		synchronized(_selectables) {
-			HashMap map = _getSelectablesMap(st);
-			synchronized(map) {
-				while (map.size() > 0) {
-					Iterator it = map.keySet().iterator();
-					Selectable s = (Selectable)it.next();
-					removeSelectable(s, st);
-				}
-				map.clear();
-			}
+		Object[] selectables;
+		synchronized(_registrations) {
+			selectables = _registrations.keySet().toArray();
+		}
+
+		for (int i = 0; i < selectables.length; i++) {
+			removeSelectable((Selectable)selectables[i], st);
 		}
     }
 
     /**
-	   Returns the number of {@link Selectable} interested in I/O type
-	   <CODE>st</CODE>.
+	   Returns the number of {@link Selectable} chosen for I/O type
+	   <CODE>st</CODE> by the most recent {@link #select(long)}.
 
 	   @param st the type of I/O
-	   @return the number of <CODE>Selectables</CODE> interested in
+	   @return the number of <CODE>Selectables</CODE> ready for
 	   <CODE>st</CODE>
 	 */
-    int size(SignalType st) 
+    int size(SignalType st)
     {
-		int size = 0;
-		synchronized(_marks) {
-			HashMap map = _getMarkMap(st);
-			synchronized(map) {
-				for (Iterator it = map.keySet().iterator(); it.hasNext();) {
-					Selectable s = (Selectable)it.next();
-					if (getMarked(s, st)) {
-						size++;
-					}
-				}
-			}
-		}
-		return size;
+		LinkedList marked = (LinkedList)_marks.get(st);
+		return (null == marked) ? 0 : marked.size();
     }
 
     /**
-	   Returns an Iterator over the <CODE>Selectables</CODE>
-	   interested in I/O type <CODE>st</CODE>.
+	   Returns an Iterator over the <CODE>Selectables</CODE> chosen
+	   for I/O type <CODE>st</CODE> by the most recent {@link
+	   #select(long)}.
 
 	   @param st the type of I/O
 	   @return an Iterator over <CODE>Selectable</CODE>
 	 */
     Iterator iterator(SignalType st)
     {
-		synchronized(_marks) {
-			HashMap map = _getMarkMap(st);
-			synchronized(map) {
-				LinkedList markedlist = new LinkedList();
-				for (Iterator it = map.keySet().iterator(); it.hasNext();) {
-					Selectable s = (Selectable)it.next();
-					if (getMarked(s, st)) {
-						markedlist.addLast(s);
-					}
-				}
-				return markedlist.iterator();
-			}
+		LinkedList marked = (LinkedList)_marks.get(st);
+		if (null == marked) {
+			marked = new LinkedList();
 		}
+		return marked.iterator();
     }
-    
+
     public String toString()
     {
-		synchronized(_marks) {
-			String answer = "";
-			answer += this.toString(SignalType.READ)+"\n";
-			answer += this.toString(SignalType.WRITE);
-			return answer;
-		}
+		String answer = "";
+		answer += this.toString(SignalType.READ)+"\n";
+		answer += this.toString(SignalType.WRITE);
+		return answer;
     }
 
     /**
@@ -253,95 +572,31 @@ public class SelectableSet
 	 */
     public String toString(SignalType st)
     {
-		synchronized(_marks) {
+		synchronized(_registrations) {
 			String answer = ""+st.toString()+":";
-			for (Iterator it=iterator(st); it.hasNext();) {
-				Selectable s = (Selectable)it.next();
-				answer += s.toString();
-			}
-			return answer;
-		}
-    }
-
-	/**
-	   Mark <CODE>s</CODE> as interested or disinterested in
-	   <CODE>st</CODE> depending on <CODE>value</CODE>
-
-	   @param s the Selectable
-	   @param st the type of I/O
-	   @param value <CODE>true</CODE> for interested;
-	   <CODE>false</CODE>for disinterested
-	 */
-    void setMarked(Selectable s, SignalType st, boolean value) 
-    {
-		synchronized(_marks) {
-	    
-			HashMap map = _getMarkMap(st);
-			synchronized (map) {
-				if (map.get(s) != null) {
-					map.remove(s);
+			for (Iterator it=_registrations.values().iterator(); it.hasNext();) {
+				Registration r = (Registration)it.next();
+				if (r.isInterested(st)) {
+					answer += r.toString();
 				}
-				map.put(s, new Boolean(value));
-			}
-		}
-    }
-    
-	/**
-	   Returns <CODE>s</CODE>'s (dis)interest in <CODE>st</CODE>.
-
-	   @param s the <CODE>Selectable</CODE> potentially interested in I/O
-	   @param st the type of I/O in which <CODE>s</CODE> may be interested
-	   @return <CODE>true</CODE> if <CODE>s</CODE> is interested;
-	   <CODE>false</CODE> otherwise
-	 */
-    boolean getMarked(Selectable s, SignalType st)
-    {
-		synchronized(_marks) {
-			HashMap map = _getMarkMap(st);
-			synchronized (map) {
-				Boolean val = (Boolean)map.get(s);
-				if (val == null) {
-					return false;
-				}
-				return val.booleanValue();
 			}
+			return answer;
 		}
     }
 
-    /**
-	   Adds <CODE>s</CODE> to this <CODE>SelectableSet</CODE> for
-	   <CODE>st</CODE>, optionally waking up any blocked Thread.
-
-	   @param s the Selectable
-	   @param st the type of I/O
-	   @param notify <CODE>true</CODE> to notify the blocked Thread;
-	   <CODE>false</CODE> otherwise
-	 */
-    void recvNotification(Selectable s, SignalType st, boolean notify)
-    {
-		synchronized(_notifications) {
-	    
-			LinkedList list = _getNotificationsList(st);
-			synchronized (list) {
-				if ( ! list.contains(s)) {
-					list.addLast(s);
-				}
-			}
-		}
-	
-		if (notify) {
-			// awaken any pending select
-			synchronized(_blocked) {
-				_blocked.notify();
-			}
-		}
-    }
-    
 	/**
 	   Interrupt {@link #select(long)}.
 	 */
     public void interrupt()
     {
+		// Interrupting a Thread that is waiting in a Poller's
+		// java.nio.channels.Selector would leave the interrupt
+		// status set, so every later poll would return at once.
+		if (null != _poller) {
+			wakeup();
+			return;
+		}
+
 		// awaken any pending select
 		synchronized(_blocked) {
 			if (_inWait) {
@@ -351,160 +606,86 @@ public class SelectableSet
     }
 
 	/**
-	   I HAVE NO IDEA.
+	   Make the next or current {@link #select(long)} return as soon
+	   as possible, without interrupting the selecting Thread.
 	 */
-    private void _attachSelectables() 
+    void wakeup()
     {
-		synchronized(_selectables) {
-			for (Iterator it = _selectables.keySet().iterator(); it.hasNext();) {
-				SignalType st = (SignalType)it.next();
-				HashMap map = _getSelectablesMap(st);
-				synchronized(map) {
-					for (Iterator it2 = map.keySet().iterator(); it2.hasNext();) {
-						Selectable s = (Selectable)it2.next();
-						if (getMarked(s, st)) {
-							s.addSelectableSet(this, st);
-						}
-					}
-				}
-			}
+		_wakeupPending = true;
+
+		Poller poller = _poller;
+		if (null != poller) {
+			poller.wakeup();
+			return;
+		}
+
+		synchronized(_blocked) {
+			// awaken any pending select
+			_blocked.notify();
 		}
     }
-    
+
 	/**
-	   I HAVE NO IDEA.
+	   Puts <CODE>r</CODE> on {@link #_readyQueue}, optionally waking
+	   up the selecting Thread.
+
+	   @param r the Registration that became ready
+	   @param notify <CODE>true</CODE> to notify the blocked Thread;
+	   <CODE>false</CODE> otherwise
 	 */
-    private void _detachSelectables() 
+    private void _enqueue(Registration r, boolean notify)
     {
-		synchronized(_selectables) {
-			for (Iterator it = _selectables.keySet().iterator(); it.hasNext();) {
-				SignalType st = (SignalType)it.next();
-				HashMap map = _getSelectablesMap(st);
-				synchronized(map) {
-					for (Iterator it2 = map.keySet().iterator(); it2.hasNext();) {
-						Selectable s = (Selectable)it2.next();
-						s.removeSelectableSet(this, st);
-					}
-				}
+		_readyQueue.offer(r);
+
+		Poller poller = _poller;
+		if (null != poller) {
+			if (notify && (Thread.currentThread() != _pollingThread)) {
+				poller.wakeup();
 			}
 		}
-    }
-
-    /**
-	   Returns the <CODE>HashMap</CODE> that indicates the
-	   <CODE>Selectables</CODE> willing to perform I/O
-	   <CODE>st</CODE>.
-
-	   @param st the type of I/O
-	   @return a <CODE>HashMap</CODE> from <CODE>Selectable</CODE> to <CODE>Boolean</CODE>
-	 */
-    private HashMap _getMarkMap(SignalType st) {
-		HashMap map = null;
-		synchronized(_marks) {
-			map = (HashMap)_marks.get(st);
-			if (map == null) {
-				map = new HashMap();
-				_marks.put(st, map);
+		else if (notify && _inWait) {
+			synchronized(_blocked) {
+				// awaken any pending select
+				_blocked.notify();
 			}
 		}
-		return map;
     }
 
-    /**
-	   Discovers which Selectables are ready for I/O either before or after the wait() in {@link #select(long)}.
-
-	   @param postwait <CODE>false</CODE> for pre-wait, <CODE>true</CODE> for post-wait
-	   @return the number of ready <CODE>Selectables</CODE>
+	/**
+	   Gives each {@link Selectable} chosen by the previous {@link
+	   #select(long)} a chance to signal that it is still ready.
 	 */
-    private int _processNotifications(boolean postwait)
+    private void _rearmMarks()
     {
-		int size = 0;
-		synchronized(_selectables) {
-			for (Iterator it = _selectables.keySet().iterator(); it.hasNext();) {
-				SignalType st = (SignalType)it.next();
-				HashMap map = _getSelectablesMap(st);
-				synchronized(_notifications) {
-					LinkedList notifications = _getNotificationsList(st);
-		    
-					synchronized(notifications) {
-						synchronized(map) {
-							for (Iterator it2 = map.keySet().iterator(); it2.hasNext();) {
-								Selectable s = (Selectable)it2.next();
-				
-								if (getMarked(s, st)) {
-									if (notifications.contains(s)) {
-										size++;
-									}
-								}
-				
-								if (postwait) {
-									if (notifications.contains(s)) {
-										setMarked(s, st, true);
-									}
-									else {
-										setMarked(s, st, false);
-									}
-								}
-							}
-						}
-					}
+		HashMap marks = _marks;
+		_marks = new HashMap();
+
+		for (Iterator it = marks.keySet().iterator(); it.hasNext();) {
+			SignalType st = (SignalType)it.next();
+			for (Iterator it2 = ((LinkedList)marks.get(st)).iterator(); it2.hasNext();) {
+				Selectable s = (Selectable)it2.next();
+				Registration r = s.getRegistration(this);
+				if ((null != r) && s.isReady(st)) {
+					r.signal(st.mask(), false);
 				}
 			}
 		}
-	
-		return size;
     }
 
     /**
-	   Returns the HashMap from {@link Selectable} to {@link
-	   Selectable.Handler} for the I/O type <CODE>st</CODE>.
+	   Returns the LinkedList of {@link Selectable} in
+	   <CODE>marks</CODE> for the I/O type <CODE>st</CODE>.
 
+	   @param marks the marks being built by {@link #select(long)}
 	   @param st the type of I/O
-	   @return the HashMap corresponding to <CODE>st</CODE>
+	   @return the LinkedList corresponding to <CODE>st</CODE>
 	 */
-    private HashMap _getSelectablesMap(SignalType st) {
-		HashMap map = null;
-		synchronized(_selectables) {
-			map = (HashMap)_selectables.get(st);
-			if (map == null) {
-				map = new HashMap();
-				_selectables.put(st, map);
-			}
-		}
-		return map;
-    }
-    
-    private LinkedList _getNotificationsList(SignalType st) {
-		LinkedList list = null;
-		synchronized(_notifications) {
-			list = (LinkedList)_notifications.get(st);
-			if (list == null) {
-				list = new LinkedList();
-				synchronized(list) {
-					_notifications.put(st, list);
-				}
-			}
+    private static LinkedList _getMarksList(HashMap marks, SignalType st) {
+		LinkedList list = (LinkedList)marks.get(st);
+		if (list == null) {
+			list = new LinkedList();
+			marks.put(st, list);
 		}
 		return list;
     }
-
-    private void _clearNotifications() 
-    {
-		synchronized(_selectables) {
-			for (Iterator it = _selectables.keySet().iterator(); it.hasNext();) {
-				SignalType st = (SignalType)it.next();
-				_clearNotificationsList(st);
-			}
-		}
-    }
-    
-    private void _clearNotificationsList(SignalType st) {
-		synchronized(_notifications) {
-			LinkedList list = _getNotificationsList(st);
-			synchronized(list) {
-				list.clear();
-			}
-		}
-    }
-    
 };
@@ -0,0 +1,301 @@
+// File: SerializerPipeline.java
+
+package mil.navy.nrl.cmf.sousa;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.zip.Deflater;
+
+/**
+ * A SerializerPipeline is a Serializer made of a codec, which is
+ * another Serializer, and any number of {@link SerializerStage}s
+ * that transform the codec's bytes in turn.  The stages pass
+ * ByteBuffers from one to the next, so that a stage can work in
+ * place or in a buffer of its own instead of copying.
+ *
+ * A pipeline can be described by a String: the codec, then the
+ * stages, separated by commas.  The codec is one of
+ *
+ * <UL>
+ * <LI><CODE>java</CODE>: Java serialization, a {@link ByteArray}
+ * <LI><CODE>compact</CODE>: a {@link CompactSerializer}
+ * <LI>the name of a Serializer class with a public no-argument
+ * constructor
+ * </UL>
+ *
+ * and each stage is one of
+ *
+ * <UL>
+ * <LI><CODE>deflate</CODE> or <CODE>deflate:</CODE><EM>level</EM>: a
+ * {@link DeflateStage}.  The level defaults to Deflater.BEST_SPEED.
+ * <LI><CODE>cipher</CODE>: a {@link CipherStage}
+ * </UL>
+ *
+ * For example, <CODE>compact,deflate:6,cipher</CODE>.
+ */
+public class SerializerPipeline implements Serializer
+{
+	private final Serializer _codec;
+	private final SerializerStage[] _stages;
+
+	// Encoding is serialized, and so is decoding, but one thread may
+	// encode while another decodes.
+	private final Object _encodeLock = new Object();
+	private final Object _decodeLock = new Object();
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param codec converts Objects to bytes and back
+	 * @param stages transform the codec's bytes, first to last
+	 */
+	public SerializerPipeline(Serializer codec, SerializerStage[] stages)
+	{
+		_codec = codec;
+		_stages = stages.clone();
+	}
+
+	/**
+	 * Makes the pipeline that a String describes.
+	 *
+	 * @param description the codec and the stages, separated by commas
+	 * @param key the key of the cipher stage, or null if there is none
+	 * @return the pipeline
+	 * @throws IllegalArgumentException if description isn't a
+	 * pipeline, or if it has a cipher stage and key is null or isn't a
+	 * key
+	 */
+	public static SerializerPipeline create(String description, byte[] key)
+	{
+		StringTokenizer tokens = new StringTokenizer(description, ",");
+		if (!tokens.hasMoreTokens()) {
+			throw new IllegalArgumentException("No codec in \"" +
+											   description + "\"");
+		}
+
+		Serializer codec = codec(tokens.nextToken().trim());
+
+		ArrayList stages = new ArrayList();
+		while (tokens.hasMoreTokens()) {
+			String stage = tokens.nextToken().trim();
+			if (stage.equals("cipher")) {
+				if (null == key) {
+					throw new IllegalArgumentException("No key for the cipher in \"" +
+													   description + "\"");
+				}
+				stages.add(new CipherStage(key));
+			}
+			else if (stage.equals("deflate")) {
+				stages.add(new DeflateStage(Deflater.BEST_SPEED));
+			}
+			else if (stage.startsWith("deflate:")) {
+				try {
+					stages.add(new DeflateStage(Integer.parseInt(stage.substring(8))));
+				} catch (NumberFormatException ex) {
+					throw new IllegalArgumentException("Bad level in \"" +
+													   stage + "\"");
+				}
+			}
+			else {
+				throw new IllegalArgumentException("Unknown stage \"" + stage +
+												   "\" in \"" + description +
+												   "\"");
+			}
+		}
+
+		return new SerializerPipeline(codec, (SerializerStage[])
+			stages.toArray(new SerializerStage[stages.size()]));
+	}
+
+	// The codec that name describes.
+	private static Serializer codec(String name)
+	{
+		Serializer answer;
+
+		if (name.equals("java")) {
+			answer = new ByteArray();
+		}
+		else if (name.equals("compact")) {
+			answer = new CompactSerializer();
+		}
+		else {
+			try {
+				answer = (Serializer)Class.forName(name).getConstructor().newInstance();
+			} catch (ClassNotFoundException ex) {
+				throw new IllegalArgumentException("Unknown codec \"" + name + "\"");
+			} catch (ClassCastException ex) {
+				throw new IllegalArgumentException(name + " is not a Serializer");
+			} catch (InstantiationException ex) {
+				throw new IllegalArgumentException("Can't make a " + name + ": " + ex);
+			} catch (IllegalAccessException ex) {
+				throw new IllegalArgumentException("Can't make a " + name + ": " + ex);
+			} catch (NoSuchMethodException ex) {
+				throw new IllegalArgumentException(name + " has no public constructor without arguments");
+			} catch (InvocationTargetException ex) {
+				throw new IllegalArgumentException("Can't make a " + name + ": " +
+												   ex.getTargetException());
+			}
+		}
+
+		return answer;
+	}
+
+	/**
+	 * Converts <CODE>ob</CODE> with the codec then transforms the
+	 * result with each stage in turn.
+	 */
+	public byte[] toByteArray(Object ob)
+		throws IOException
+	{
+		byte[] answer = _codec.toByteArray(ob);
+
+		if (_stages.length > 0) {
+			ByteBuffer b = ByteBuffer.wrap(answer);
+			synchronized (_encodeLock) {
+				for (int i = 0; i < _stages.length; i++) {
+					b = _stages[i].encode(b, (_stages.length - 1) == i);
+				}
+			}
+			answer = toArray(b);
+		}
+
+		return answer;
+	}
+
+	/**
+	 * Undoes each stage's transformation, last stage first, then
+	 * converts the result with the codec.  <EM>WARNING! toObject may
+	 * change the values in <CODE>data</CODE>.</EM>
+	 */
+	public Object toObject(byte[] data)
+		throws IOException, ClassNotFoundException
+	{
+		byte[] bytes = data;
+
+		if (_stages.length > 0) {
+			ByteBuffer b = ByteBuffer.wrap(data);
+			synchronized (_decodeLock) {
+				for (int i = _stages.length - 1; i >= 0; i--) {
+					b = _stages[i].decode(b, 0 == i);
+				}
+			}
+			bytes = toArray(b);
+		}
+
+		return _codec.toObject(bytes);
+	}
+
+	// The remaining bytes of b, which are b's array if they are all
+	// of it.
+	private static byte[] toArray(ByteBuffer b)
+	{
+		byte[] answer = b.array();
+
+		if ((0 != b.arrayOffset() + b.position()) ||
+			(answer.length != b.remaining())) {
+			answer = new byte[b.remaining()];
+			b.duplicate().get(answer);
+		}
+
+		return answer;
+	}
+
+	//// comparison of pipelines
+
+	// A State.ChangeMessage like the ones a Projector sends.
+	private static State.ChangeMessage sample(int i) {
+		State.ChangeMessage answer = new State.ChangeMessage();
+		answer.addFieldChangeMessage(new Field.ChangeMessage("name",
+			"track " + i));
+		answer.addFieldChangeMessage(new Field.ChangeMessage("latitude",
+			new Double(38.8 + i * 1e-5)));
+		answer.addFieldChangeMessage(new Field.ChangeMessage("longitude",
+			new Double(-77.0 + i * 1e-5)));
+		answer.addFieldChangeMessage(new Field.ChangeMessage("sequence",
+			new Integer(i)));
+		answer.addFieldChangeMessage(new Field.ChangeMessage("status",
+			"nominal"));
+		return answer;
+	}
+
+	// True iff b has the same field names and values as a.
+	private static boolean same(State.ChangeMessage a, State.ChangeMessage b) {
+		List la = a.getMessages();
+		List lb = b.getMessages();
+		boolean answer = (la.size() == lb.size());
+		for (Iterator i = la.iterator(), j = lb.iterator(); answer && i.hasNext(); ) {
+			Field.ChangeMessage fa = (Field.ChangeMessage)i.next();
+			Field.ChangeMessage fb = (Field.ChangeMessage)j.next();
+			answer = fa._fname.equals(fb._fname) && fa._value.equals(fb._value);
+		}
+		return answer;
+	}
+
+	/*
+	 * Usage: SerializerPipeline [description ...]
+	 *
+	 * For each pipeline description (default: a range of them), round
+	 * trips a large byte[] and a State.ChangeMessage, then prints the
+	 * size of the State.ChangeMessage and the rate at which the
+	 * pipeline encodes and decodes 100000 of them.
+	 */
+	public static void main(String[] args)
+		throws IOException, ClassNotFoundException
+	{
+		String[] descriptions = (args.length > 0) ? args : new String[] {
+			"java", "java,cipher", "java,deflate", "java,deflate,cipher",
+			"compact", "compact,cipher", "compact,deflate,cipher"
+		};
+		byte[] key = CipherStage.newKey();
+		int count = 100000;
+
+		byte[] big = new byte[100000];
+		for (int i = 0; i < big.length; i++) {
+			big[i] = (byte)(i % 251);
+		}
+
+		Object[] messages = new Object[count];
+		for (int i = 0; i < count; i++) {
+			messages[i] = sample(i);
+		}
+
+		boolean ok = true;
+		for (int d = 0; d < descriptions.length; d++) {
+			Serializer s = create(descriptions[d], key);
+
+			byte[] copy = (byte[])s.toObject(s.toByteArray(big));
+			boolean same = Arrays.equals(big, copy) &&
+				same((State.ChangeMessage)messages[7],
+					 (State.ChangeMessage)s.toObject(s.toByteArray(messages[7])));
+			ok &= same;
+
+			// The first pass warms up the JIT.
+			long rate = 0;
+			for (int pass = 0; pass < 2; pass++) {
+				long start = System.nanoTime();
+				for (int i = 0; i < count; i++) {
+					s.toObject(s.toByteArray(messages[i]));
+				}
+				rate = count * 1000000000L /
+					Math.max(1, System.nanoTime() - start);
+			}
+
+			System.out.println(descriptions[d] + ": " +
+							   (same ? "" : "ROUND TRIP FAILED, ") +
+							   s.toByteArray(messages[0]).length +
+							   " bytes, " + rate + " messages/s");
+		}
+
+		if (!ok) {
+			System.exit(1);
+		}
+	}
+}
+
+// File: SerializerPipeline.java
@@ -0,0 +1,49 @@
+// File: SerializerStage.java
+
+package mil.navy.nrl.cmf.sousa;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A SerializerStage transforms the bytes that a {@link
+ * SerializerPipeline}'s codec makes, for example by compressing or
+ * encrypting them, and undoes the transformation on the way back.
+ *
+ * The bytes are the remaining bytes of a heap ByteBuffer.  A stage
+ * may answer its argument, changed in place, or a ByteBuffer of its
+ * own that it reuses on its next call, unless the call is the last
+ * in the pipeline.  Then it must answer a ByteBuffer that it will
+ * never use again, preferably one whose remaining bytes are the
+ * whole of its array.
+ *
+ * A SerializerPipeline never encodes in two threads at once or
+ * decodes in two threads at once, but it may encode in one thread
+ * while it decodes in another.
+ */
+public interface SerializerStage
+{
+	/**
+	 * Transforms the remaining bytes of <CODE>in</CODE>.
+	 *
+	 * @param in the bytes to transform
+	 * @param last true iff no stage runs after this one
+	 * @return the transformed bytes
+	 * @throws IOException if the bytes can't be transformed
+	 */
+	public ByteBuffer encode(ByteBuffer in, boolean last)
+		throws IOException;
+
+	/**
+	 * Undoes {@link #encode(ByteBuffer, boolean)}.
+	 *
+	 * @param in the bytes to transform back
+	 * @param last true iff no stage runs after this one
+	 * @return the original bytes
+	 * @throws IOException if in is not something that encode() made
+	 */
+	public ByteBuffer decode(ByteBuffer in, boolean last)
+		throws IOException;
+}
+
+// File: SerializerStage.java
@@ -17,13 +17,24 @@ public final class ServerSideFSM extends EntityFSM {
 	Logger.getLogger(ServerSideFSM.class);
     
     /**
-     * The response to a fetch by a client.
+     * The response to a fetch by a client.  It tells the client
+     * whether the server can read compressed P2PChannel frames,
+     * P2PChannel chunks, streamed P2PChannel frames and P2PSessions.  A FetchResponse from an
+     * older server doesn't say, so the client sees false.
      */
     static class FetchResponse extends EntityFSM.Response {
 	private static final long serialVersionUID = 1L;
 	final Receptor _receptor;
+	final boolean _readsCompressedFrames;
+	final boolean _readsChunkedFrames;
+	final boolean _readsSessions;
+	final boolean _readsStreams;
 	FetchResponse(Receptor rec) {
 	    _receptor = rec;
+	    _readsCompressedFrames = true;
+	    _readsChunkedFrames = true;
+	    _readsSessions = true;
+	    _readsStreams = true;
 	}
     }
     
@@ -51,6 +62,12 @@ public final class ServerSideFSM extends EntityFSM {
 		    FetchResponse response = null;
 		    ClientSideFSM.FetchRequest fmsg = (ClientSideFSM.FetchRequest)msg;
 		    QoS qos = fmsg._qos;
+
+		    // Compress, chunk and stream what we send, starting with the
+		    // FetchResponse, if the client can read it.
+		    con._channel.setPeerReadsCompressedFrames(fmsg._readsCompressedFrames);
+		    con._channel.setPeerReadsChunkedFrames(fmsg._readsChunkedFrames);
+		    con._channel.setPeerReadsStreams(fmsg._readsStreams);
 		    
 		    if (con._nimbus._entity.admitClient(fmsg)) {
 			
@@ -64,7 +81,7 @@ public final class ServerSideFSM extends EntityFSM {
 			    
 					// TODO: Send FetchResponse(null) when the Nimbus
 					// can't create a Projector for the QoS.
-					con._proj = con._nimbus.getProjector(qos);
+					con._proj = con._nimbus.getProjector(qos, con.getSelectableSet());
 			    
 					if (null == con._proj) {
 						con._proj = con.createProjector(con, qos);
@@ -168,6 +185,9 @@ public final class ServerSideFSM extends EntityFSM {
     
     // the Nimbus in which this FSM resides
     final Nimbus _nimbus;
+    // the EventLoop in which this FSM runs, or null if it runs in the
+    // Entity's thread
+    private final EventLoop _loop;
     // the Projector to which this FSM is (eventually) assigned
     private Projector _proj = null;
     
@@ -182,13 +202,20 @@ public final class ServerSideFSM extends EntityFSM {
      * a given client (which connected to this Entity on a specified
      * Channel
      *
-     * @param cc the control channel
+     * @param cc the control channel: a P2PConnection or a
+     * P2PSession on one
+     * @param channel the P2PConnection that carries cc
      * @param nimbus the owning Nimbus
+     * @param loop the EventLoop in which to run, or null to run in
+     * the Entity's thread
     */
-    ServerSideFSM(P2PChannel cc, Nimbus nimbus) {
-	super(cc);
+    ServerSideFSM(Selectable cc, P2PConnection channel, Nimbus nimbus, 
+		  EventLoop loop) {
+	super(cc, channel);
 	_nimbus = nimbus;
+	_loop = loop;
 	_currentState = INIT_STATE;
+	registerChannel();
     }
     
     /**
@@ -238,26 +265,67 @@ public final class ServerSideFSM extends EntityFSM {
     }
         
     /**
-     * Add P2PChannels to the SelectableSet as needed
+     * Return the SelectableSet of the EventLoop in which this FSM
+     * resides, or that of the Entity if there is no EventLoop.
      *
-     * @param ss the SelectableSet
+     * @return the SelectableSet
     */
-    void buildSelectableSet(SelectableSet ss) {
-	ss.addSelectable(_cc, SignalType.READ, this);
-	ss.addSelectable(_cc, SignalType.ERROR, this);
-	if (_outQ.size() > 0)
-	    ss.addSelectable(_cc, SignalType.WRITE, this);
-	
-	if (_proj != null) {
-	    _proj.buildSelectableSet(ss);
+    SelectableSet getSelectableSet() {
+	return (null == _loop) ? 
+	    _nimbus._entity.getSelectableSet() : _loop.getSelectableSet();
+    }
+    
+    /**
+     * Return the Clock of the EventLoop in which this FSM resides,
+     * or that of the Entity if there is no EventLoop.
+     *
+     * @return the Clock
+    */
+    final Clock getClock() {
+	return (null == _loop) ? 
+	    _nimbus._entity.getClock() : _loop.getClock();
+    }
+    
+    /**
+     * Return the EventLoop in which this FSM resides.
+     *
+     * @return the EventLoop or null if this FSM runs in the Entity's
+     * thread
+    */
+    final EventLoop getEventLoop() {
+	return _loop;
+    }
+    
+    /**
+     * Does this FSM have something to write on the control channel?
+     * A Projector without a data channel writes on the control
+     * channel, too.
+     *
+     * @return true if there is something to write
+    */
+    boolean wantsWrite() {
+	return (super.wantsWrite() || 
+		((null != _proj) && _proj.wantsControlChannel()));
+    }
+    
+    /**
+     * Give the writable control channel to the Projector.
+    */
+    void writeIdle() {
+	if (null != _proj) {
+	    _proj.handle(_cc, SignalType.WRITE);
 	}
     }
         
     /**
-     * wake up the Entity thread
+     * wake up the thread in which this FSM runs
     */
     final void wakeup() {
-	_nimbus._entity.wakeup();
+	if (null == _loop) {
+	    _nimbus._entity.wakeup();
+	} else {
+	    _loop.wakeup();
+	}
     }
         
     /**
@@ -7,23 +7,54 @@ import java.util.Iterator;
 
 /**
    SignalType -- a signal between Selectables and SelectableSets.
+
+   <P>
+
+   Each <CODE>SignalType</CODE> owns one bit of an <CODE>int</CODE> so
+   that interest and readiness can be kept as bitmasks.  There can be
+   no more than 32 of them.
 */
 public final class SignalType 
 {
+	/**
+	   The bit that the next <CODE>SignalType</CODE> will own.
+	*/
+    private static int _nextBit = 0;
+
     public static final SignalType READ = new SignalType("SignalType.READ");
     public static final SignalType WRITE = new SignalType("SignalType.WRITE");
     public static final SignalType ERROR = new SignalType("SignalType.ERROR");
 
     private String _name = "";
 
+	/**
+	   The bitmask of this <CODE>SignalType</CODE>.
+	*/
+    private final int _mask;
+
     public SignalType(String name) {
 		_name = name;
+		synchronized (SignalType.class) {
+			if (_nextBit >= 32) {
+				throw new IllegalStateException("Too many SignalTypes: " + name);
+			}
+			_mask = 1 << _nextBit++;
+		}
     }
 
     public String toString() {
 		return _name;
     }
 
+	/**
+	   Returns the bit owned by this <CODE>SignalType</CODE>.
+
+	   @return an <CODE>int</CODE> with exactly one bit set
+	*/
+    int mask() {
+		return _mask;
+    }
+
     private static final HashSet _signals = new HashSet();
     private static final boolean _initialized = false;
 
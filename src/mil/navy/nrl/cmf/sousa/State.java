@@ -1,17 +1,50 @@
 package mil.navy.nrl.cmf.sousa;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.TreeSet;
 import org.apache.log4j.Logger;
 
 /**
  * A collection of Fields in an Entity, and its cached copies at clients.
+ *
+ * A State is its own monitor.  Changing a Field notifies the
+ * FieldListeners while holding it, and FieldListeners collect their
+ * changes while holding it, so several threads can share an
+ * authoritative State.
+ *
+ * Every change to a Field advances the State's version and stamps
+ * the Field with it, so a reader can tell what has changed since any
+ * version it has seen.  The State also logs the slot changed by each
+ * of its recent versions, so that finding what has changed since a
+ * recent version looks only at the changes, not at every Field.
+ *
+ * Each Field has a slot, a small int given to it when it is added
+ * and kept for the life of the State.  The Fields are kept in an
+ * array indexed by slot.  Code that reads or changes the same Fields
+ * over and over can find their slots once with {@link
+ * #getSlot(String)} and then use {@link #getField(int)} and {@link
+ * #setField(int, Serializable)}, which index the array instead of
+ * looking up the name.
+ *
+ * Each change to a State (addField(), setField(), or applying a
+ * State.ChangeMessage, however many Fields it changes) is published
+ * as an immutable {@link State.Snapshot} when it is complete.  Threads
+ * other than the one that changes the State, such as GUIs and
+ * Renderers, can read a consistent view of all of the Fields from
+ * {@link #snapshot()} without locking, and never make that thread
+ * wait.  A Snapshot shares the values that haven't changed with the
+ * Snapshot before it, so publishing one copies only the part of the
+ * State that changed.
  */
 public final class State implements Serializable {
     private static final Logger _LOG = 
@@ -56,11 +89,156 @@ public final class State implements Serializable {
 	    return _fcms.size();
 	}
     }
+
+    /**
+     * An immutable copy of the values of the Fields of a State, as
+     * of one version.  Made by the State, read by anyone.
+     */
+    public final static class Snapshot implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final long _version;
+	// String -> Integer, the slot of each Field.  Never changed
+	// after the Snapshot is made.
+	private final HashMap _slotsByName;
+	// The names of the Fields, in order.  Never changed after the
+	// Snapshot is made.
+	private final TreeSet _names;
+	// The values indexed by slot, in chunks of CHUNK_SIZE.  Never
+	// changed after the Snapshot is made.
+	private final Serializable[][] _values;
+	private final int _slotCount;
+
+	private Snapshot(long version, HashMap slotsByName, TreeSet names,
+			 Serializable[][] values, int slotCount) {
+	    _version = version;
+	    _slotsByName = slotsByName;
+	    _names = names;
+	    _values = values;
+	    _slotCount = slotCount;
+	}
+
+	/**
+	 * Return the version of the State that this is a Snapshot of.
+	 * See {@link State#getVersion()}.
+	 *
+	 * @return the version
+	 */
+	public long getVersion() {
+	    return _version;
+	}
+
+	/**
+	 * Returns a Set of the names of the Fields in the Snapshot.
+	 *
+	 * @return an unmodifiable Set of Strings, in order
+	 */
+	public Set getFieldNames() {
+	    return Collections.unmodifiableSet(_names);
+	}
+
+	/**
+	 * Return the slot of a Field.  See {@link State#getSlot(String)}.
+	 *
+	 * @param name the field name
+	 * @return the slot of the field <CODE>name</CODE>
+	 * @throws NoSuchFieldException if there is no such Field
+	 */
+	public int getSlot(String name) throws NoSuchFieldException {
+	    Integer slot = (Integer)_slotsByName.get(name);
+
+	    if (null == slot) throw new NoSuchFieldException(name);
+
+	    return slot.intValue();
+	}
+
+	/**
+	 * Return the value of a Field.
+	 *
+	 * @param name the field name
+	 * @return the value of the field <CODE>name</CODE>
+	 * @throws NoSuchFieldException if there is no such Field
+	 */
+	public Serializable getField(String name) throws NoSuchFieldException {
+	    return getField(getSlot(name));
+	}
+
+	/**
+	 * Return the value of the Field in a slot.
+	 *
+	 * @param slot the slot, from {@link #getSlot(String)}
+	 * @return the value of the field in <CODE>slot</CODE>
+	 * @throws NoSuchFieldException if no Field has that slot
+	 */
+	public Serializable getField(int slot) throws NoSuchFieldException {
+	    if ((slot < 0) || (slot >= _slotCount)) {
+		throw new NoSuchFieldException("slot " + slot);
+	    }
+	    return _values[slot >>> CHUNK_BITS][slot & (CHUNK_SIZE - 1)];
+	}
+    }
     
     //// data members
     
+    /** The slot of no Field.  getSlot() never answers it. */
+    public static final int NO_SLOT = -1;
+
     // A Map from String to Field.
-    private final TreeMap _fields = new TreeMap();
+    private final HashMap _fields = new HashMap();
+
+    // The names of the Fields, in order, for getFieldNames().
+    private final TreeSet _names = new TreeSet();
+
+    // The Fields indexed by slot.  The first _slotCount are in use.
+    private Field[] _slots = new Field[8];
+    private int _slotCount = 0;
+
+    // The version of the last change to any Field.
+    private long _version = 0;
+
+    //// the Snapshot
+
+    // A Snapshot keeps the values in chunks of CHUNK_SIZE slots so
+    // that the next Snapshot can share the chunks that haven't
+    // changed.
+    private static final int CHUNK_BITS = 5;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    // None of what follows is serialized.  It duplicates _slots and
+    // _fields, and readObject() makes it again from them.
+
+    // The values of the Fields indexed by slot, for the next
+    // Snapshot.  Until something changes, _values and its chunks are
+    // those of the last Snapshot, and they are copied before they are
+    // changed.
+    private transient Serializable[][] _values = new Serializable[1][];
+    // Whether _values is a copy that no Snapshot has yet.
+    private transient boolean _valuesCopied = true;
+    // The chunks of _values that no Snapshot has yet.
+    private transient BitSet _copiedChunks = new BitSet();
+
+    // String -> Integer, the slot of each Field, and the names of the
+    // Fields in order, for Snapshots.  Replaced, never changed, when
+    // a Field is added, so the Snapshots share them.
+    private transient HashMap _slotsByName = new HashMap();
+    private transient TreeSet _snapshotNames = new TreeSet();
+
+    // The last Snapshot.  Written while holding this State's
+    // monitor and read without it.
+    private transient volatile Snapshot _snapshot =
+	new Snapshot(0, _slotsByName, _snapshotNames, new Serializable[1][], 0);
+
+    //// the change log
+
+    // The slot changed by each of the last CHANGE_LOG_SIZE versions:
+    // version v changed the slot in _changeLog[v & (CHANGE_LOG_SIZE -
+    // 1)].  Versions before _changeLogStart aren't in it; readObject()
+    // begins it again.
+    private static final int CHANGE_LOG_SIZE = 1024;
+    private transient int[] _changeLog = new int[CHANGE_LOG_SIZE];
+    private transient long _changeLogStart = 0;
+
+    private static final Field[] NO_FIELDS = new Field[0];
     
     //// public methods
     
@@ -70,8 +248,31 @@ public final class State implements Serializable {
      * @param name the name of the field
      * @param value its initial value
     */
-    public final void addField(String name, Serializable value) {
-	_fields.put(name, new Field(name, value, this));
+    public final synchronized void addField(String name, Serializable value) {
+	// A Field that replaces another keeps its slot.
+	Field old = (Field)_fields.get(name);
+	int slot = (null == old) ? _slotCount++ : old.getSlot();
+	Field f = new Field(name, slot, value, this, changed(slot, value));
+
+	if (slot == _slots.length) {
+	    Field[] slots = new Field[2 * _slots.length];
+	    System.arraycopy(_slots, 0, slots, 0, _slots.length);
+	    _slots = slots;
+	}
+	_slots[slot] = f;
+	_fields.put(name, f);
+	_names.add(name);
+
+	if (null == old) {
+	    HashMap slotsByName = new HashMap(_slotsByName);
+	    slotsByName.put(name, new Integer(slot));
+	    _slotsByName = slotsByName;
+
+	    TreeSet names = new TreeSet(_snapshotNames);
+	    names.add(name);
+	    _snapshotNames = names;
+	}
+	publish();
     }
     
     /**
@@ -80,7 +281,7 @@ public final class State implements Serializable {
      * @param name the name of the field
      * @param value its initial value
     */
-    public final void setField(String name, Serializable value)
+    public final synchronized void setField(String name, Serializable value)
 	throws NoSuchFieldException 
     {
 	Field f = (Field)_fields.get(name);
@@ -88,6 +289,7 @@ public final class State implements Serializable {
 	if (null == f) throw new NoSuchFieldException(name);
 	
 	f.setValue(value);
+	publish();
     }
 
     /**
@@ -98,7 +300,7 @@ public final class State implements Serializable {
      * @param name the field name 
      * @return the value of the field <CODE>name</CODE>
     */
-    public final Serializable getField(String name) 
+    public final synchronized Serializable getField(String name) 
 	throws NoSuchFieldException 
     {
 	Field f = (Field)_fields.get(name);
@@ -107,6 +309,53 @@ public final class State implements Serializable {
 	
 	return f.getValue();
     }
+
+    /**
+     * Return the slot of a Field in this State.  The slot doesn't
+     * change for the life of the State, even if the Field is
+     * replaced by addField().
+     *
+     * @param name the field name
+     * @return the slot of the field <CODE>name</CODE>
+     * @throws NoSuchFieldException if there is no such Field
+    */
+    public final synchronized int getSlot(String name) 
+	throws NoSuchFieldException 
+    {
+	Field f = (Field)_fields.get(name);
+	
+	if (null == f) throw new NoSuchFieldException(name);
+	
+	return f.getSlot();
+    }
+
+    /**
+     * Return the value of the Field in a slot of this State.
+     *
+     * @param slot the slot, from {@link #getSlot(String)}
+     * @return the value of the field in <CODE>slot</CODE>
+     * @throws NoSuchFieldException if no Field has that slot
+    */
+    public final synchronized Serializable getField(int slot) 
+	throws NoSuchFieldException 
+    {
+	return fieldAt(slot).getValue();
+    }
+
+    /**
+     * mutate the Field in a slot of the authoritative state of an
+     * Entity
+     *
+     * @param slot the slot, from {@link #getSlot(String)}
+     * @param value its new value
+     * @throws NoSuchFieldException if no Field has that slot
+    */
+    public final synchronized void setField(int slot, Serializable value)
+	throws NoSuchFieldException 
+    {
+	fieldAt(slot).setValue(value);
+	publish();
+    }
     
     
     /**
@@ -123,7 +372,7 @@ public final class State implements Serializable {
      * @param fnames the names of fields
      * @param fl the listener
     */
-    public final void attachFieldListener(Set fnames, FieldListener fl)
+    public final synchronized void attachFieldListener(Set fnames, FieldListener fl)
     {
 	StringBuffer errorBuf = new StringBuffer();
 	for (Iterator it = fnames.iterator(); it.hasNext();) {
@@ -150,7 +399,7 @@ public final class State implements Serializable {
      * @param fnames the names of fields
      * @param fl the listener
     */
-    public final void detachFieldListener(Set fnames, FieldListener fl) {
+    public final synchronized void detachFieldListener(Set fnames, FieldListener fl) {
 	// Doing it this way instead of the idiomatic
 	//   for (Iterator it = fnames.iterator(); it.hasNext(); ) {...}
 	// avoids a ConcurrentModificationException from 
@@ -174,15 +423,39 @@ public final class State implements Serializable {
 	}
     }
     
+    /**
+     * Returns the version of the last change to any Field of this
+     * State.  Versions only increase.
+     *
+     * @return the version
+    */
+    public final synchronized long getVersion() {
+	return _version;
+    }
+
+    /**
+     * Returns an immutable copy of the values of all of the Fields of
+     * this State, as of the last complete change.  Doesn't lock this
+     * State, so it never waits for a change, nor makes one wait.
+     *
+     * @return the last Snapshot
+    */
+    public final Snapshot snapshot() {
+	return _snapshot;
+    }
+    
     //// package methods
     
     /**
-     * Returns a Set of the names of the Fields in the State.
+     * Returns a Set of the names of the Fields in the State.  It is
+     * the immutable Set of the last {@link Snapshot}, so it may be
+     * iterated without holding the State's monitor while other
+     * threads add Fields.
      *
-     * @return a Set of Strings
+     * @return an unmodifiable Set of Strings, in order
     */
     public final Set getFieldNames() {
-	return _fields.keySet();
+	return _snapshot.getFieldNames();
     }
     
     /**
@@ -191,7 +464,7 @@ public final class State implements Serializable {
      * @param fnames a set of Field names
      * @return a message encoding the changes to fields named within fnames.
     */
-    final State.ChangeMessage makeMessage(Set fnames) {
+    final synchronized State.ChangeMessage makeMessage(Set fnames) {
 	State.ChangeMessage scm = null;
 	for (Iterator it = fnames.iterator(); it.hasNext();) {
 	    String s = (String)it.next();
@@ -215,17 +488,196 @@ public final class State implements Serializable {
 	return scm;
     }
     
+    /**
+     * Build a State.ChangeMessage for the Fields whose slots are set
+     * in slots and that have changed since a version.  If the change
+     * log still holds every version after it, only the slots that
+     * changed are looked at, in the order they last changed.
+     * Otherwise every slot in slots is.
+     *
+     * @param slots the slots of Fields
+     * @param version the version; 0 for every Field
+     * @return a message encoding the values of those Fields, or null
+     * if none has changed since version
+    */
+    final synchronized State.ChangeMessage makeMessage(BitSet slots,
+						       long version) {
+	State.ChangeMessage scm = null;
+	if ((version >= _changeLogStart) &&
+	    (_version - version <= CHANGE_LOG_SIZE)) {
+	    for (long v = version + 1; v <= _version; v++) {
+		int i = _changeLog[(int)v & (CHANGE_LOG_SIZE - 1)];
+		// A Field changed more than once is reported at its
+		// last change only.
+		if (slots.get(i) && (_slots[i].getVersion() == v)) {
+		    if (scm == null) {
+			scm = new State.ChangeMessage();
+		    }
+		    scm.addFieldChangeMessage(_slots[i].makeMessage());
+		}
+	    }
+	    return scm;
+	}
+
+	for (int i = slots.nextSetBit(0); i >= 0; i = slots.nextSetBit(i + 1)) {
+	    Field f = _slots[i];
+	    if (f.getVersion() > version) {
+		if (scm == null) {
+		    scm = new State.ChangeMessage();
+		}
+		scm.addFieldChangeMessage(f.makeMessage());
+	    }
+	}
+	return scm;
+    }
+
+    /*
+     * PURPOSE: Find the Field in a slot.
+     * PRECONDITION: The caller holds this State's monitor.
+     * POSTCONDITION: Answers the Field, or throws NoSuchFieldException
+     * if there is none.
+     */
+    private Field fieldAt(int slot) throws NoSuchFieldException {
+	if ((slot < 0) || (slot >= _slotCount)) {
+	    throw new NoSuchFieldException("slot " + slot);
+	}
+	return _slots[slot];
+    }
+
+    /*
+     * PURPOSE: Record a change to the Field in a slot.
+     * PRECONDITION: The caller holds this State's monitor.
+     * POSTCONDITION: The next Snapshot has value in slot, and the
+     * change log has slot for the new version.  Answers a version
+     * greater than any answered before.
+     */
+    final long changed(int slot, Serializable value) {
+	int chunk = slot >>> CHUNK_BITS;
+
+	if (!_valuesCopied || (chunk >= _values.length)) {
+	    Serializable[][] values =
+		new Serializable[Math.max(_values.length, chunk + 1)][];
+	    System.arraycopy(_values, 0, values, 0, _values.length);
+	    _values = values;
+	    _valuesCopied = true;
+	}
+
+	if (null == _values[chunk]) {
+	    _values[chunk] = new Serializable[CHUNK_SIZE];
+	    _copiedChunks.set(chunk);
+	}
+	else if (!_copiedChunks.get(chunk)) {
+	    _values[chunk] = _values[chunk].clone();
+	    _copiedChunks.set(chunk);
+	}
+
+	_values[chunk][slot & (CHUNK_SIZE - 1)] = value;
+	++_version;
+	_changeLog[(int)_version & (CHANGE_LOG_SIZE - 1)] = slot;
+	return _version;
+    }
+
+    /*
+     * PURPOSE: Publish the changes since the last Snapshot.
+     * PRECONDITION: The caller holds this State's monitor and has
+     * finished changing the State.
+     * POSTCONDITION: snapshot() answers a Snapshot of the State as it
+     * is now.  The next change copies what it changes.
+     */
+    private void publish() {
+	if (_valuesCopied) {
+	    _snapshot = new Snapshot(_version, _slotsByName, _snapshotNames,
+				     _values, _slotCount);
+	    _valuesCopied = false;
+	    _copiedChunks.clear();
+	}
+    }
+
+    /*
+     * PURPOSE: Read a State and make what isn't serialized.
+     * POSTCONDITION: snapshot() answers a Snapshot of the Fields as
+     * they were read, at the version they were read at.
+     */
+    private void readObject(ObjectInputStream in)
+	throws IOException, ClassNotFoundException
+    {
+	//@ assume in != null;
+	in.defaultReadObject();
+
+	_slotsByName = new HashMap();
+	_snapshotNames = new TreeSet(_names);
+	_values = new Serializable[Math.max(1, (_slotCount + CHUNK_SIZE - 1) >>> CHUNK_BITS)][];
+	for (int slot = 0; slot < _slotCount; slot++) {
+	    int chunk = slot >>> CHUNK_BITS;
+	    if (null == _values[chunk]) {
+		_values[chunk] = new Serializable[CHUNK_SIZE];
+	    }
+	    _values[chunk][slot & (CHUNK_SIZE - 1)] = _slots[slot].getValue();
+	    _slotsByName.put(_slots[slot].getName(), new Integer(slot));
+	}
+
+	_copiedChunks = new BitSet();
+	_valuesCopied = true;
+	publish();
+
+	// Nothing before now is in the change log.
+	_changeLog = new int[CHANGE_LOG_SIZE];
+	_changeLogStart = _version;
+    }
+    
     /**
      * Apply a State.ChangeMessage to this State
      *
      * @return scm a State.ChangeMessage which provides information about new values of fields
     */
     final void applyMessage(State.ChangeMessage scm) {
+	applyMessage(scm, NO_FIELDS);
+    }
+
+    /**
+     * Apply a State.ChangeMessage whose Field.ChangeMessages may name
+     * their Fields by their ids in a FieldDictionary.  The Fields are
+     * found by indexing fieldsById, not by name.
+     *
+     * @param scm a State.ChangeMessage which provides information about new values of fields
+     * @param fieldsById the Fields of this State, indexed by id.  See
+     * {@link #getFields(String[])}.
+     * @return scm if it names every Field, otherwise a copy that does
+     * and that leaves out ids not in fieldsById
+    */
+    final synchronized State.ChangeMessage applyMessage(State.ChangeMessage scm,
+							 Field[] fieldsById) {
+	State.ChangeMessage answer = scm;
+	for (Iterator it = scm._fcms.iterator(); it.hasNext();) {
+	    Field.ChangeMessage fcm = (Field.ChangeMessage)it.next();
+	    if (Field.NO_ID != fcm._fid) {
+		answer = new State.ChangeMessage();
+		break;
+	    }
+	}
+
 	for (Iterator it = scm._fcms.iterator(); it.hasNext();) {
 	    Field.ChangeMessage fcm = (Field.ChangeMessage)it.next();
-	    Field f = (Field)_fields.get(fcm._fname);
-	    if (null != f) 
+	    Field f;
+	    if (Field.NO_ID == fcm._fid) {
+		f = (Field)_fields.get(fcm._fname);
+	    }
+	    else if ((fcm._fid >= 0) && (fcm._fid < fieldsById.length)) {
+		f = fieldsById[fcm._fid];
+	    }
+	    else {
+		f = null;
+	    }
+
+	    if (null != f) {
+		if (Field.NO_ID != fcm._fid) {
+		    fcm = new Field.ChangeMessage(f.getName(), fcm._value);
+		}
 		f.applyMessage(fcm);
+		if (answer != scm) {
+		    answer.addFieldChangeMessage(fcm);
+		}
+	    }
 	    else {
 		// DAVID: This is a reasonable use of String
 		// concatenation in Logger output.  Level.ERROR is
@@ -234,19 +686,250 @@ public final class State implements Serializable {
 		// be rare.
 		//
 		_LOG.error(this + ".applyMessage(): No such field: " + 
-			   fcm._fname);
+			   ((Field.NO_ID == fcm._fid) ? fcm._fname : 
+			    "id " + fcm._fid));
 	    }
 	}
+	publish();
+	return answer;
+    }
+
+    /**
+     * Find the Fields that have the given names.
+     *
+     * @param names the names of fields
+     * @return the Fields in the order of names, with null for each
+     * name that isn't the name of a Field in this State
+    */
+    final synchronized Field[] getFields(String[] names) {
+	Field[] answer = new Field[names.length];
+	for (int i = 0; i < names.length; i++) {
+	    answer[i] = (Field)_fields.get(names[i]);
+	}
+	return answer;
     }
     
     /**
      * Print the contents of this State
     */
-    public void print() {
-	for (Iterator i = _fields.entrySet().iterator(); i.hasNext(); ) {
-	    Map.Entry entry = (Map.Entry)i.next();
-	    System.out.println("["+entry.getKey() + "]=" + 
-			       ((Field)entry.getValue()).getValue());
+    public synchronized void print() {
+	for (Iterator i = _names.iterator(); i.hasNext(); ) {
+	    String name = (String)i.next();
+	    System.out.println("["+name + "]=" + 
+			       ((Field)_fields.get(name)).getValue());
+	}
+    }
+
+    //// stress test of snapshot()
+
+    // Reads the State over and over until interrupted, through
+    // snapshot() or by locking it, and counts the reads and the
+    // views in which the Fields aren't all equal or the version went
+    // backwards.
+    private static final class Reader implements Runnable {
+	private final State _state;
+	private final boolean _locking;
+	long _reads = 0;
+	long _failures = 0;
+
+	Reader(State state, boolean locking) {
+	    _state = state;
+	    _locking = locking;
+	}
+
+	public void run() {
+	    long lastVersion = 0;
+
+	    try {
+		while (!Thread.currentThread().isInterrupted()) {
+		    long version;
+		    boolean same = true;
+
+		    if (_locking) {
+			synchronized (_state) {
+			    version = _state.getVersion();
+			    int count = _state._slotCount;
+			    Serializable first = _state.getField(0);
+			    for (int slot = 1; slot < count; slot++) {
+				same &= first.equals(_state.getField(slot));
+			    }
+			}
+		    }
+		    else {
+			Snapshot snapshot = _state.snapshot();
+			version = snapshot.getVersion();
+			int count = snapshot._slotCount;
+			Serializable first = snapshot.getField(0);
+			for (int slot = 1; slot < count; slot++) {
+			    same &= first.equals(snapshot.getField(slot));
+			}
+		    }
+
+		    if (!same || (version < lastVersion)) {
+			_failures++;
+		    }
+		    lastVersion = version;
+		    _reads++;
+		}
+	    } catch (NoSuchFieldException ex) {
+		_failures++;
+		System.err.println(ex);
+	    }
+	}
+    }
+
+    /*
+     * Usage: State [seconds [readers]]
+     *
+     * Stress test of snapshot().  One thread applies
+     * State.ChangeMessages that set every Field to the same value,
+     * and now and then adds a Field with that value, while readers
+     * check that every Snapshot has all of its Fields equal and that
+     * versions never go backwards.  Then it does the same with
+     * readers that lock the State instead, to compare the rate of
+     * changes.  Each pass lasts seconds, 5 by default, with 4 readers
+     * by default.  Last, it checks that a State read back from its
+     * serialized form has the same Snapshot and publishes changes.
+     */
+    public static void main(String[] args) throws Exception {
+	long millis = 1000L * ((args.length > 0) ? Integer.parseInt(args[0]) : 5);
+	int readerCount = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+	boolean ok = true;
+
+	for (int pass = 0; pass < 2; pass++) {
+	    boolean locking = (1 == pass);
+	    State state = new State();
+	    LinkedList names = new LinkedList();
+	    for (int i = 0; i < 16; i++) {
+		names.add("field" + i);
+		state.addField("field" + i, new Long(0));
+	    }
+
+	    Reader[] readers = new Reader[readerCount];
+	    Thread[] threads = new Thread[readerCount];
+	    for (int i = 0; i < readers.length; i++) {
+		readers[i] = new Reader(state, locking);
+		threads[i] = new Thread(readers[i]);
+		threads[i].start();
+	    }
+
+	    long changes = 0;
+	    long start = System.currentTimeMillis();
+	    long now = start;
+	    while (now - start < millis) {
+		Long value = new Long(++changes);
+		ChangeMessage scm = new ChangeMessage();
+		for (Iterator i = names.iterator(); i.hasNext(); ) {
+		    scm.addFieldChangeMessage(new Field.ChangeMessage((String)i.next(),
+								      value));
+		}
+		state.applyMessage(scm);
+
+		// Grow past a few chunks of the Snapshot.
+		if ((0 == changes % 1000) && (names.size() < 4 * CHUNK_SIZE)) {
+		    names.add("field" + names.size());
+		    state.addField((String)names.getLast(), value);
+		}
+
+		if (0 == changes % 256) {
+		    now = System.currentTimeMillis();
+		}
+	    }
+
+	    long reads = 0;
+	    long failures = 0;
+	    for (int i = 0; i < readers.length; i++) {
+		threads[i].interrupt();
+		threads[i].join();
+		reads += readers[i]._reads;
+		failures += readers[i]._failures;
+	    }
+	    ok &= (0 == failures);
+
+	    long elapsed = Math.max(1, now - start);
+	    System.out.println((locking ? "Locking:   " : "Snapshots: ") +
+			       (changes * 1000 / elapsed) + " changes/s, " +
+			       (reads * 1000 / elapsed) + " reads/s of " +
+			       names.size() + " Fields by " + readerCount +
+			       " readers, " + failures + " inconsistent");
+	}
+
+	State state = new State();
+	for (int i = 0; i < 2 * CHUNK_SIZE + 1; i++) {
+	    state.addField("field" + i, new Long(i));
+	}
+	java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+	java.io.ObjectOutputStream out = new java.io.ObjectOutputStream(bytes);
+	out.writeObject(state);
+	out.close();
+	State copy = (State)new ObjectInputStream
+	    (new java.io.ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+	Snapshot before = state.snapshot();
+	Snapshot after = copy.snapshot();
+	boolean same = (before.getVersion() == after.getVersion()) &&
+	    before.getFieldNames().equals(after.getFieldNames());
+	for (Iterator i = before.getFieldNames().iterator(); i.hasNext(); ) {
+	    String name = (String)i.next();
+	    same &= before.getField(name).equals(after.getField(name)) &&
+		(before.getSlot(name) == after.getSlot(name));
+	}
+	copy.setField("field0", new Long(-1));
+	copy.addField("extra", new Long(-2));
+	same &= new Long(-1).equals(copy.snapshot().getField("field0")) &&
+	    new Long(-2).equals(copy.snapshot().getField("extra")) &&
+	    new Long(0).equals(after.getField("field0")) &&
+	    (copy.snapshot().getVersion() == after.getVersion() + 2);
+	ok &= same;
+	System.out.println("Serialized: " + bytes.size() + " bytes for " +
+			   state._slotCount + " Fields, " +
+			   (same ? "same" : "different") + " Snapshot");
+
+	// The changes since a version are the same whether they come
+	// from the change log or from every Field, before and after the
+	// log wraps, and after the State is read.
+	java.util.Random random = new java.util.Random(1);
+	BitSet some = new BitSet();
+	for (int i = 0; i < copy._slotCount; i += 3) {
+	    some.set(i);
+	}
+	int mismatches = 0;
+	int checks = 0;
+	for (int n = 0; n < 3 * CHANGE_LOG_SIZE; n++) {
+	    copy.setField(random.nextInt(copy._slotCount), new Long(n));
+	    if (0 == n % 97) {
+		long now = copy.getVersion();
+		for (long since = Math.max(0, now - CHANGE_LOG_SIZE - 2);
+		     since <= now; since += 1 + random.nextInt(64)) {
+		    HashSet expected = new HashSet();
+		    for (int i = some.nextSetBit(0); i >= 0; i = some.nextSetBit(i + 1)) {
+			if (copy._slots[i].getVersion() > since) {
+			    expected.add(copy._slots[i].getName());
+			}
+		    }
+		    HashSet actual = new HashSet();
+		    ChangeMessage scm = copy.makeMessage(some, since);
+		    if (null != scm) {
+			for (Iterator i = scm.getMessages().iterator(); i.hasNext(); ) {
+			    actual.add(((Field.ChangeMessage)i.next())._fname);
+			}
+		    }
+		    if ((null != scm) && (scm.size() != actual.size())) {
+			mismatches++;
+		    }
+		    if (!expected.equals(actual)) {
+			mismatches++;
+		    }
+		    checks++;
+		}
+	    }
+	}
+	ok &= (0 == mismatches);
+	System.out.println("Change log: " + checks + " queries, " +
+			   mismatches + " wrong");
+
+	if (!ok) {
+	    System.exit(1);
 	}
     }
 }
@@ -0,0 +1,218 @@
+// TimingWheel.java
+
+package mil.navy.nrl.cmf.sousa;
+
+/**
+ * A hashed timing wheel of Clock.Alarms.  The wheel has SLOTS slots,
+ * one per millisecond, and an Alarm lives in the slot of its expiry
+ * time modulo SLOTS.  Alarms that expire more than SLOTS milliseconds
+ * from now share slots with nearer ones and are passed over until
+ * their own turn of the wheel comes.
+ *
+ * Each slot is a doubly linked list threaded through the Alarms
+ * themselves, so add() and remove() are O(1) and allocate nothing.
+ *
+ * TimingWheel is not synchronized.  Clock provides the mutual
+ * exclusion.
+ */
+final class TimingWheel {
+
+    /**
+     * The number of slots in the wheel.  It must be a power of two.
+     */
+    static final int SLOTS = 1024;
+
+    private static final int MASK = SLOTS - 1;
+
+    // the first Alarm in each slot
+    private final Clock.Alarm[] _slots = new Clock.Alarm[SLOTS];
+
+    // the number of Alarms in the wheel
+    private int _size = 0;
+
+    // every millisecond before _cursor has been expired
+    private long _cursor;
+
+    // no Alarm in the wheel expires before _next.  It may be too
+    // early if an Alarm was removed; it is recomputed once the wheel
+    // turns past it.
+    private long _next = Long.MAX_VALUE;
+
+    // the Alarms removed by the last call to expire()
+    private Clock.Alarm[] _expired = new Clock.Alarm[16];
+
+    /**
+     * Construct an empty TimingWheel.
+     *
+     * @param now the current time in milliseconds
+     */
+    TimingWheel(long now) {
+	_cursor = now;
+    }
+
+    /**
+     * Put an Alarm into the wheel at its expiry time.  An Alarm that
+     * is already in the wheel is moved.
+     *
+     * @param a the Alarm
+     * @return true if a is now the first Alarm to expire
+     */
+    boolean add(Clock.Alarm a) {
+	if (a._slot >= 0) {
+	    remove(a);
+	}
+
+	// An Alarm that expired before the last expire() goes in the
+	// slot that the next expire() visits first.
+	long tick = (a._expiry < _cursor) ? _cursor : a._expiry;
+	int slot = (int)(tick & MASK);
+	Clock.Alarm head = _slots[slot];
+
+	a._slot = slot;
+	a._prev = null;
+	a._next = head;
+	if (null != head) {
+	    head._prev = a;
+	}
+	_slots[slot] = a;
+	_size++;
+
+	if (a._expiry < _next) {
+	    _next = a._expiry;
+	    return true;
+	}
+	return false;
+    }
+
+    /**
+     * Take an Alarm out of the wheel.  Nothing happens if it isn't
+     * in the wheel.
+     *
+     * @param a the Alarm
+     */
+    void remove(Clock.Alarm a) {
+	if (a._slot < 0) {
+	    return;
+	}
+
+	if (null == a._prev) {
+	    _slots[a._slot] = a._next;
+	} else {
+	    a._prev._next = a._next;
+	}
+	if (null != a._next) {
+	    a._next._prev = a._prev;
+	}
+
+	a._slot = -1;
+	a._prev = null;
+	a._next = null;
+	_size--;
+	if (0 == _size) {
+	    _next = Long.MAX_VALUE;
+	}
+    }
+
+    /**
+     * @return the number of Alarms in the wheel
+     */
+    int size() {
+	return _size;
+    }
+
+    /**
+     * @return the expiry time of the first Alarm to expire, or
+     * Long.MAX_VALUE if the wheel is empty
+     */
+    long nextExpiry() {
+	if (_next < _cursor) {
+	    _next = findNext();
+	}
+	return _next;
+    }
+
+    /**
+     * Remove every Alarm that expires at or before <CODE>now</CODE>.
+     * Visits each slot between the last call and now once, or the
+     * whole wheel once if more than SLOTS milliseconds have passed.
+     *
+     * @param now the current time in milliseconds
+     * @return the number of Alarms removed.  They are available from
+     * expired() until the next call to expire().
+     */
+    int expire(long now) {
+	int count = 0;
+
+	if (now < _cursor || 0 == _size) {
+	    if (now >= _cursor) {
+		_cursor = now + 1;
+	    }
+	    return count;
+	}
+
+	long ticks = now - _cursor + 1;
+	int visits = (ticks > SLOTS) ? SLOTS : (int)ticks;
+	int slot = (int)(_cursor & MASK);
+
+	for (int i = 0; i < visits && _size > 0; i++) {
+	    Clock.Alarm a = _slots[slot];
+	    while (null != a) {
+		Clock.Alarm next = a._next;
+		if (a._expiry <= now) {
+		    remove(a);
+		    if (count == _expired.length) {
+			Clock.Alarm[] expired = new Clock.Alarm[count * 2];
+			System.arraycopy(_expired, 0, expired, 0, count);
+			_expired = expired;
+		    }
+		    _expired[count++] = a;
+		}
+		a = next;
+	    }
+	    slot = (slot + 1) & MASK;
+	}
+
+	_cursor = now + 1;
+	return count;
+    }
+
+    /**
+     * Get one of the Alarms removed by expire().  The wheel forgets
+     * it.
+     *
+     * @param i which one, counting from zero
+     * @return the Alarm
+     */
+    Clock.Alarm expired(int i) {
+	Clock.Alarm a = _expired[i];
+	_expired[i] = null;
+	return a;
+    }
+
+    // Find the expiry time of the first Alarm.  The first slot, from
+    // the cursor on, holding an Alarm for its own turn of the wheel
+    // has it.  If no slot does then every Alarm is more than a turn
+    // away and the earliest of them is the answer.
+    private long findNext() {
+	if (0 == _size) {
+	    return Long.MAX_VALUE;
+	}
+
+	long min = Long.MAX_VALUE;
+	for (int i = 0; i < SLOTS; i++) {
+	    long tick = _cursor + i;
+	    for (Clock.Alarm a = _slots[(int)(tick & MASK)];
+		 null != a; a = a._next) {
+		if (a._expiry <= tick) {
+		    return a._expiry;
+		}
+		if (a._expiry < min) {
+		    min = a._expiry;
+		}
+	    }
+	}
+	return min;
+    }
+}
+
+// TimingWheel.java
@@ -0,0 +1,357 @@
+package mil.navy.nrl.cmf.sousa;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import mil.navy.nrl.cmf.sousa.util.Histogram;
+import mil.navy.nrl.cmf.sousa.util.Strings;
+import org.apache.log4j.Logger;
+
+/**
+ * TrafficStats counts the traffic of a connection, such as a
+ * P2PChannel or a SelectableNormSession, or of all the connections
+ * of an Entity.  The connection records each object and each byte
+ * it sends and receives, how long serializing and deserializing took,
+ * how deep its write queue was, and how long its transport stopped
+ * taking bytes.  Whatever is recorded is also recorded in the
+ * parent, if there is one, so that an Entity's TrafficStats adds up
+ * those of its connections.
+ *
+ * Each TrafficStats may be registered with the platform MBeanServer
+ * in the domain <CODE>mil.navy.nrl.cmf.sousa</CODE> so that it can be
+ * watched with JConsole or any other JMX client.
+ *
+ * TrafficStats is synchronized.
+ */
+public final class TrafficStats implements TrafficStatsMBean {
+	private static final Logger _LOG = Logger.getLogger(TrafficStats.class);
+
+    /**
+     * The name of the system property that, when "false", stops
+     * TrafficStats from being registered as MBeans.  They still
+     * count.
+     */
+    public static final String JMX_PROPERTY =
+	"mil.navy.nrl.cmf.sousa.TrafficStats.jmx";
+
+    /** The JMX domain of the MBeans. */
+    public static final String DOMAIN = "mil.navy.nrl.cmf.sousa";
+
+    private static final boolean _jmx =
+	Boolean.valueOf(System.getProperty(JMX_PROPERTY, "true")).booleanValue();
+
+    // tells MBeans of the same type and name apart
+    private static int _nextId = 0;
+
+    // the connection, or null if this adds up others
+    private final Selectable _owner;
+
+    // where everything is also recorded, or null
+    private final TrafficStats _parent;
+
+    // the open TrafficStats whose parent this is
+    private final ArrayList _children = new ArrayList();
+
+    private long _framesIn = 0;
+    private long _bytesIn = 0;
+    private long _framesOut = 0;
+    private long _bytesOut = 0;
+
+    // in microseconds, except for _writeQueue
+    private final Histogram _serialize = new Histogram();
+    private final Histogram _deserialize = new Histogram();
+    private final Histogram _writeStall = new Histogram();
+    private final Histogram _writeQueue = new Histogram();
+
+    // the name of the MBean, or null if it isn't registered
+    private ObjectName _name = null;
+
+    private boolean _closed = false;
+
+    /*
+     * PURPOSE: Make the TrafficStats of a connection or, if owner is
+     * null, of a collection of them.
+     * POSTCONDITION: What is recorded here is also recorded in
+     * parent, if it isn't null, until this is closed.
+     */
+    TrafficStats(Selectable owner, TrafficStats parent) {
+	_owner = owner;
+	_parent = parent;
+	if (null != parent) {
+	    parent.addChild(this);
+	}
+    }
+
+    //// recording
+
+    // n bytes arrived
+    void bytesIn(long n) {
+	synchronized (this) {
+	    _bytesIn += n;
+	}
+	if (null != _parent) {
+	    _parent.bytesIn(n);
+	}
+    }
+
+    // an object arrived and took nanos to deserialize
+    void frameIn(long nanos) {
+	synchronized (this) {
+	    _framesIn++;
+	}
+	_deserialize.record(nanos / 1000);
+	if (null != _parent) {
+	    _parent.frameIn(nanos);
+	}
+    }
+
+    // n bytes were sent
+    void bytesOut(long n) {
+	synchronized (this) {
+	    _bytesOut += n;
+	}
+	if (null != _parent) {
+	    _parent.bytesOut(n);
+	}
+    }
+
+    // an object that took nanos to serialize was sent, leaving
+    // queued objects in the write queue
+    void frameOut(long nanos, int queued) {
+	synchronized (this) {
+	    _framesOut++;
+	}
+	_serialize.record(nanos / 1000);
+	_writeQueue.record(queued);
+	if (null != _parent) {
+	    _parent.frameOut(nanos, queued);
+	}
+    }
+
+    // the transport took no bytes for nanos while there were more
+    void writeStall(long nanos) {
+	_writeStall.record(nanos / 1000);
+	if (null != _parent) {
+	    _parent.writeStall(nanos);
+	}
+    }
+
+    //// TrafficStatsMBean
+
+    public synchronized long getFramesIn() {
+	return _framesIn;
+    }
+
+    public synchronized long getBytesIn() {
+	return _bytesIn;
+    }
+
+    public synchronized long getFramesOut() {
+	return _framesOut;
+    }
+
+    public synchronized long getBytesOut() {
+	return _bytesOut;
+    }
+
+    public long getSerializeMeanMicros() {
+	return _serialize.getMean();
+    }
+
+    public long getSerialize99Micros() {
+	return _serialize.getPercentile(99.0);
+    }
+
+    public long getSerializeMaxMicros() {
+	return _serialize.getMax();
+    }
+
+    public long[] getSerializeMicrosHistogram() {
+	return _serialize.getBuckets();
+    }
+
+    public long getDeserializeMeanMicros() {
+	return _deserialize.getMean();
+    }
+
+    public long getDeserialize99Micros() {
+	return _deserialize.getPercentile(99.0);
+    }
+
+    public long getDeserializeMaxMicros() {
+	return _deserialize.getMax();
+    }
+
+    public long[] getDeserializeMicrosHistogram() {
+	return _deserialize.getBuckets();
+    }
+
+    public long getWriteStalls() {
+	return _writeStall.getCount();
+    }
+
+    public long getWriteStallMeanMicros() {
+	return _writeStall.getMean();
+    }
+
+    public long getWriteStallMaxMicros() {
+	return _writeStall.getMax();
+    }
+
+    public long[] getWriteStallMicrosHistogram() {
+	return _writeStall.getBuckets();
+    }
+
+    public int getReadQueueDepth() {
+	int answer = 0;
+	if (null != _owner) {
+	    answer = _owner.dataRead();
+	}
+	else {
+	    for (Iterator i = children().iterator(); i.hasNext(); ) {
+		answer += ((TrafficStats)i.next()).getReadQueueDepth();
+	    }
+	}
+	return answer;
+    }
+
+    public int getWriteQueueDepth() {
+	int answer = 0;
+	if (null != _owner) {
+	    answer = _owner.dataWrite();
+	}
+	else {
+	    for (Iterator i = children().iterator(); i.hasNext(); ) {
+		answer += ((TrafficStats)i.next()).getWriteQueueDepth();
+	    }
+	}
+	return answer;
+    }
+
+    public long getWriteQueueMaxDepth() {
+	return _writeQueue.getMax();
+    }
+
+    public long[] getWriteQueueDepthHistogram() {
+	return _writeQueue.getBuckets();
+    }
+
+    public int getConnections() {
+	int answer = 0;
+	if (null != _owner) {
+	    answer = isClosed() ? 0 : 1;
+	}
+	else {
+	    for (Iterator i = children().iterator(); i.hasNext(); ) {
+		answer += ((TrafficStats)i.next()).getConnections();
+	    }
+	}
+	return answer;
+    }
+
+    public void reset() {
+	synchronized (this) {
+	    _framesIn = 0;
+	    _bytesIn = 0;
+	    _framesOut = 0;
+	    _bytesOut = 0;
+	}
+	_serialize.reset();
+	_deserialize.reset();
+	_writeStall.reset();
+	_writeQueue.reset();
+    }
+
+    //// life cycle
+
+    /*
+     * PURPOSE: Register this TrafficStats with the platform
+     * MBeanServer.
+     * POSTCONDITION: Unless JMX_PROPERTY is "false", this is the
+     * MBean mil.navy.nrl.cmf.sousa:type=type,id=N,name="name"
+     * until it is closed.  A failure is logged.
+     */
+    void register(String type, String name) {
+	if (!_jmx) return;
+
+	int id;
+	synchronized (TrafficStats.class) {
+	    id = _nextId++;
+	}
+	try {
+	    ObjectName on = new ObjectName(DOMAIN + ":type=" + type +
+					   ",id=" + id +
+					   ",name=" + ObjectName.quote(name));
+	    ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+	    synchronized (this) {
+		_name = on;
+	    }
+	}
+	catch (JMException ex) {
+	    _LOG.error(new Strings(new Object[] {name, ": ", ex}));
+	}
+    }
+
+    /*
+     * PURPOSE: Stop counting a connection that has been closed.
+     * POSTCONDITION: This is no longer an MBean and no longer part
+     * of its parent.  What it recorded stays in the parent.  Closing
+     * it again does nothing.
+     */
+    void close() {
+	ObjectName on;
+	synchronized (this) {
+	    if (_closed) return;
+	    _closed = true;
+	    on = _name;
+	    _name = null;
+	}
+
+	if (null != on) {
+	    try {
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean(on);
+	    }
+	    catch (JMException ex) {
+		_LOG.error(new Strings(new Object[] {on, ": ", ex}));
+	    }
+	}
+
+	if (null != _parent) {
+	    _parent.removeChild(this);
+	}
+    }
+
+    synchronized boolean isClosed() {
+	return _closed;
+    }
+
+    public String toString() {
+	return "TrafficStats[in " + getFramesIn() + " objects " +
+	    getBytesIn() + " bytes, out " + getFramesOut() + " objects " +
+	    getBytesOut() + " bytes, serialize us " + _serialize +
+	    ", deserialize us " + _deserialize + ", write stalls us " +
+	    _writeStall + ", write queue " + _writeQueue + "]";
+    }
+
+    private void addChild(TrafficStats child) {
+	synchronized (_children) {
+	    _children.add(child);
+	}
+    }
+
+    private void removeChild(TrafficStats child) {
+	synchronized (_children) {
+	    _children.remove(child);
+	}
+    }
+
+    // a copy of _children, so that no lock of this is held while
+    // the children's connections are asked about their queues
+    private ArrayList children() {
+	synchronized (_children) {
+	    return new ArrayList(_children);
+	}
+    }
+}
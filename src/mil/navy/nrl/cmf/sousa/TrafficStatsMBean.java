@@ -0,0 +1,82 @@
+package mil.navy.nrl.cmf.sousa;
+
+/**
+ * The management interface of a {@link TrafficStats}: the traffic of
+ * one connection, such as a P2PChannel or a SelectableNormSession,
+ * or of all the connections of an Entity.  Times are in
+ * microseconds.  The histograms count values in buckets whose bounds
+ * are powers of two; see {@link mil.navy.nrl.cmf.sousa.util.Histogram}.
+ */
+public interface TrafficStatsMBean {
+    /** @return the objects received */
+    long getFramesIn();
+
+    /** @return the bytes received, framing included */
+    long getBytesIn();
+
+    /** @return the objects sent */
+    long getFramesOut();
+
+    /** @return the bytes sent, framing included */
+    long getBytesOut();
+
+    /** @return the mean time to serialize an object */
+    long getSerializeMeanMicros();
+
+    /** @return the 99th percentile time to serialize an object */
+    long getSerialize99Micros();
+
+    /** @return the longest time to serialize an object */
+    long getSerializeMaxMicros();
+
+    /** @return the histogram of the times to serialize an object */
+    long[] getSerializeMicrosHistogram();
+
+    /** @return the mean time to deserialize an object */
+    long getDeserializeMeanMicros();
+
+    /** @return the 99th percentile time to deserialize an object */
+    long getDeserialize99Micros();
+
+    /** @return the longest time to deserialize an object */
+    long getDeserializeMaxMicros();
+
+    /** @return the histogram of the times to deserialize an object */
+    long[] getDeserializeMicrosHistogram();
+
+    /**
+     * @return how many times the transport stopped taking bytes
+     * while there were more to send
+     */
+    long getWriteStalls();
+
+    /** @return the mean time that the transport stopped taking bytes */
+    long getWriteStallMeanMicros();
+
+    /** @return the longest time that the transport stopped taking bytes */
+    long getWriteStallMaxMicros();
+
+    /** @return the histogram of the times that the transport stopped taking bytes */
+    long[] getWriteStallMicrosHistogram();
+
+    /** @return the objects waiting in the read queues now */
+    int getReadQueueDepth();
+
+    /** @return the objects waiting in the write queues now */
+    int getWriteQueueDepth();
+
+    /** @return the largest write queue depth seen when an object was sent */
+    long getWriteQueueMaxDepth();
+
+    /**
+     * @return the histogram of the write queue depths seen when an
+     * object was sent
+     */
+    long[] getWriteQueueDepthHistogram();
+
+    /** @return the connections counted here that are open */
+    int getConnections();
+
+    /** Forget the traffic so far, but not the queues or connections. */
+    void reset();
+}
@@ -19,10 +19,13 @@ import java.io.ObjectOutputStream;
 public class XORSerializer implements Serializer
 {
 	private final int _key;
-	private final byte key0;
-	private final byte key1;
-	private final byte key2;
-	private final byte key3;
+
+	// the length of _pad, a multiple of four
+	private static final int PAD_LENGTH = 1024;
+
+	// _key over and over.  XORing with it a run of bytes at a time
+	// lets the JIT XOR many bytes per instruction.
+	private final byte[] _pad = new byte[PAD_LENGTH];
 
 	/**
 	 * Class constructor that uses an integer symmetric key.
@@ -33,10 +36,12 @@ public class XORSerializer implements Serializer
 	public XORSerializer(int key)
 	{
 		_key = key;
-		key0 = (byte)((_key & 0xFF000000) >> 24);
-		key1 = (byte)((_key & 0x00FF0000) >> 16);
-		key2 = (byte)((_key & 0x0000FF00) >> 8);
-		key3 = (byte)(_key & 0x000000FF);
+		for (int i=0; i < PAD_LENGTH; i+=4) {
+			_pad[i] = (byte)((_key & 0xFF000000) >> 24);
+			_pad[i+1] = (byte)((_key & 0x00FF0000) >> 16);
+			_pad[i+2] = (byte)((_key & 0x0000FF00) >> 8);
+			_pad[i+3] = (byte)(_key & 0x000000FF);
+		}
 	}
 
 	/**
@@ -91,28 +96,16 @@ public class XORSerializer implements Serializer
 
 	};
 
-	// Apply the symmetric key to data.
+	// Apply the symmetric key to data, PAD_LENGTH bytes at a time.
 	//
 	// WARNING: applyKey changes the values in data.
 	//
 	private void applyKey(byte[] data) {
-		for (int i=0; i < data.length; i+=4) {
-
-			data[i] = (byte)(data[i] ^ key0);
-
-			if (data.length > i+1) {
+		for (int start=0; start < data.length; start+=PAD_LENGTH) {
+			int n = Math.min(PAD_LENGTH, data.length - start);
 
-				data[i+1] = (byte)(data[i+1] ^ key1);
-
-				if (data.length > i+2) {
-
-					data[i+2] = (byte)(data[i+2] ^ key2);
-
-					if (data.length > i+3) {
-
-						data[i+3] = (byte)(data[i+3] ^ key3);
-					}
-				}
+			for (int i=0; i < n; i++) {
+				data[start+i] = (byte)(data[start+i] ^ _pad[i]);
 			}
 		}
 	}
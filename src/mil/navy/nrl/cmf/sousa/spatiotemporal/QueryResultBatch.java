@@ -0,0 +1,361 @@
+// File: QueryResultBatch.java
+
+package mil.navy.nrl.cmf.sousa.spatiotemporal;
+
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+
+/**
+   An unmodifiable <CODE>Set</CODE> of {@link QueryResultHandle}s
+   stored by column: an array of the ids and, for each field name, one
+   array of the values of that field.  A column whose values are all
+   Integers, Longs, Doubles, Strings or {@link Vector3d}s is an array
+   of primitives or of Strings, with each distinct String stored once.
+   Any other column is an array of Serializables.
+   <P>
+   Serialized, a <CODE>QueryResultBatch</CODE> writes each field name
+   once instead of once per handle, and most values without their
+   class, so a large set of results is much smaller than a
+   <CODE>HashSet</CODE> of <CODE>QueryResultHandle</CODE>s.  The
+   columns are built once, when the batch is made, however many
+   clients it is sent to.  The <CODE>QueryResultHandle</CODE>s are made
+   one at a time as the batch is iterated.  Renderers may instead read
+   the columns with {@link #getId(int)} and {@link
+   #getFieldValue(int, String)}.
+*/
+public class QueryResultBatch extends AbstractSet implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	//// column types
+
+	static final int OBJECT = 0;
+	static final int INT = 1;
+	static final int LONG = 2;
+	static final int DOUBLE = 3;
+	static final int STRING = 4;
+	static final int VECTOR3D = 5;
+
+	/** The values of one field. */
+	static final class Column implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		final String _name;
+		final int _type;
+
+		// int[], long[], double[], int[] indexes into _strings,
+		// double[3][] for Vector3ds, or Serializable[]
+		final Object _values;
+
+		// the distinct Strings of a STRING column
+		final String[] _strings;
+
+		// which rows have the field, or null if all of them do
+		final BitSet _present;
+
+		Column(String name, int type, Object values, String[] strings,
+			   BitSet present) {
+			_name = name;
+			_type = type;
+			_values = values;
+			_strings = strings;
+			_present = present;
+		}
+
+		boolean has(int row) {
+			return (null == _present) || _present.get(row);
+		}
+
+		Serializable get(int row) {
+			Serializable answer = null;
+
+			switch (_type) {
+			case INT:
+				answer = new Integer(((int[])_values)[row]);
+				break;
+			case LONG:
+				answer = new Long(((long[])_values)[row]);
+				break;
+			case DOUBLE:
+				answer = new Double(((double[])_values)[row]);
+				break;
+			case STRING:
+				answer = _strings[((int[])_values)[row]];
+				break;
+			case VECTOR3D: {
+				double[][] xyz = (double[][])_values;
+				answer = new Vector3d(xyz[0][row], xyz[1][row], xyz[2][row]);
+				break;
+			}
+			default:
+				answer = ((Serializable[])_values)[row];
+			}
+
+			return answer;
+		}
+	}
+
+	final int[] _ids;
+	final Column[] _columns;
+
+	// the ids as Integers, for contains().  Made on first use.
+	private transient HashSet _idSet = null;
+
+	/**
+	   Class constructor that copies <CODE>handles</CODE> into columns.
+
+	   @param handles a <CODE>Collection</CODE> of
+	   <CODE>QueryResultHandle</CODE>s with distinct ids
+	 */
+	public QueryResultBatch(Collection handles)
+	{
+		QueryResultHandle[] rows = (QueryResultHandle[])
+			handles.toArray(new QueryResultHandle[handles.size()]);
+
+		_ids = new int[rows.length];
+		TreeSet names = new TreeSet();
+		for (int row = 0; row < rows.length; row++) {
+			_ids[row] = rows[row].hashCode();
+			for (Iterator i = rows[row].fieldNameIterator(); i.hasNext(); ) {
+				names.add(i.next());
+			}
+		}
+
+		_columns = new Column[names.size()];
+		int c = 0;
+		for (Iterator i = names.iterator(); i.hasNext(); c++) {
+			_columns[c] = column((String)i.next(), rows);
+		}
+	}
+
+	// Rebuilds a batch from its columns, for SpatiotemporalSerializer.
+	QueryResultBatch(int[] ids, Column[] columns)
+	{
+		_ids = ids;
+		_columns = columns;
+	}
+
+	// The column of the values of the field called name in rows.
+	private static Column column(String name, QueryResultHandle[] rows)
+	{
+		Serializable[] values = new Serializable[rows.length];
+		BitSet present = new BitSet(rows.length);
+		Class type = null;
+		boolean mixed = false;
+
+		for (int row = 0; row < rows.length; row++) {
+			// getFieldValue() can't tell a missing field from a null
+			// one.
+			boolean has = false;
+			for (Iterator i = rows[row].fieldNameIterator(); !has && i.hasNext(); ) {
+				has = name.equals(i.next());
+			}
+			if (has) {
+				present.set(row);
+				values[row] = rows[row].getFieldValue(name);
+				Class c = (null == values[row]) ? null : values[row].getClass();
+				if (null == c) {
+					mixed = true;
+				}
+				else if (null == type) {
+					type = c;
+				}
+				else if (type != c) {
+					mixed = true;
+				}
+			}
+		}
+
+		if (present.cardinality() == rows.length) {
+			present = null;
+		}
+
+		Column answer;
+		if (mixed || (null == type)) {
+			answer = new Column(name, OBJECT, values, null, present);
+		}
+		else if (Integer.class == type) {
+			int[] a = new int[rows.length];
+			for (int row = 0; row < rows.length; row++) {
+				if (null != values[row]) {
+					a[row] = ((Integer)values[row]).intValue();
+				}
+			}
+			answer = new Column(name, INT, a, null, present);
+		}
+		else if (Long.class == type) {
+			long[] a = new long[rows.length];
+			for (int row = 0; row < rows.length; row++) {
+				if (null != values[row]) {
+					a[row] = ((Long)values[row]).longValue();
+				}
+			}
+			answer = new Column(name, LONG, a, null, present);
+		}
+		else if (Double.class == type) {
+			double[] a = new double[rows.length];
+			for (int row = 0; row < rows.length; row++) {
+				if (null != values[row]) {
+					a[row] = ((Double)values[row]).doubleValue();
+				}
+			}
+			answer = new Column(name, DOUBLE, a, null, present);
+		}
+		else if (String.class == type) {
+			HashMap indexes = new HashMap();
+			int[] a = new int[rows.length];
+			for (int row = 0; row < rows.length; row++) {
+				if (null != values[row]) {
+					Integer index = (Integer)indexes.get(values[row]);
+					if (null == index) {
+						index = new Integer(indexes.size());
+						indexes.put(values[row], index);
+					}
+					a[row] = index.intValue();
+				}
+			}
+			String[] strings = new String[indexes.size()];
+			for (Iterator i = indexes.keySet().iterator(); i.hasNext(); ) {
+				String s = (String)i.next();
+				strings[((Integer)indexes.get(s)).intValue()] = s;
+			}
+			answer = new Column(name, STRING, a, strings, present);
+		}
+		else if (Vector3d.class == type) {
+			double[][] xyz = new double[3][rows.length];
+			for (int row = 0; row < rows.length; row++) {
+				if (null != values[row]) {
+					Vector3d v = (Vector3d)values[row];
+					xyz[0][row] = v.x;
+					xyz[1][row] = v.y;
+					xyz[2][row] = v.z;
+				}
+			}
+			answer = new Column(name, VECTOR3D, xyz, null, present);
+		}
+		else {
+			answer = new Column(name, OBJECT, values, null, present);
+		}
+
+		return answer;
+	}
+
+	//// columns
+
+	/**
+	   Returns the id of the <CODE>QueryResultHandle</CODE> in a row.
+
+	   @param row from 0 to <CODE>size() - 1</CODE>
+	   @return the id
+	 */
+	public int getId(int row)
+	{
+		return _ids[row];
+	}
+
+	/**
+	   Returns the value of a field of the
+	   <CODE>QueryResultHandle</CODE> in a row, without making the
+	   <CODE>QueryResultHandle</CODE>.
+
+	   @param row from 0 to <CODE>size() - 1</CODE>
+	   @param name the name of the field
+	   @return the value, or <CODE>null</CODE> if the row hasn't the
+	   field
+	 */
+	public Serializable getFieldValue(int row, String name)
+	{
+		Serializable answer = null;
+
+		for (int c = 0; c < _columns.length; c++) {
+			if (_columns[c]._name.equals(name)) {
+				if (_columns[c].has(row)) {
+					answer = _columns[c].get(row);
+				}
+				break;
+			}
+		}
+
+		return answer;
+	}
+
+	/**
+	   Makes the <CODE>QueryResultHandle</CODE> in a row.
+
+	   @param row from 0 to <CODE>size() - 1</CODE>
+	   @return a new <CODE>QueryResultHandle</CODE>
+	 */
+	public QueryResultHandle getHandle(int row)
+	{
+		HashMap fields = new HashMap();
+
+		for (int c = 0; c < _columns.length; c++) {
+			if (_columns[c].has(row)) {
+				fields.put(_columns[c]._name, _columns[c].get(row));
+			}
+		}
+
+		return new QueryResultHandle(_ids[row], fields);
+	}
+
+	//// java.util.Set
+
+	public int size()
+	{
+		return _ids.length;
+	}
+
+	/**
+	   Returns an <CODE>Iterator</CODE> that makes each
+	   <CODE>QueryResultHandle</CODE> as it is reached.  It doesn't
+	   support <CODE>remove()</CODE>.
+	 */
+	public Iterator iterator()
+	{
+		return new Iterator() {
+				private int _row = 0;
+
+				public boolean hasNext() {
+					return _row < _ids.length;
+				}
+
+				public Object next() {
+					if (_row >= _ids.length) {
+						throw new NoSuchElementException();
+					}
+					return getHandle(_row++);
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+	}
+
+	/**
+	   Answers whether a <CODE>QueryResultHandle</CODE> with the
+	   same id as <CODE>o</CODE> is in this batch.
+	 */
+	public synchronized boolean contains(Object o)
+	{
+		if (null == _idSet) {
+			_idSet = new HashSet();
+			for (int row = 0; row < _ids.length; row++) {
+				_idSet.add(new Integer(_ids[row]));
+			}
+		}
+
+		return (o instanceof QueryResultHandle) &&
+			_idSet.contains(new Integer(o.hashCode()));
+	}
+}
+
+// File: QueryResultBatch.java
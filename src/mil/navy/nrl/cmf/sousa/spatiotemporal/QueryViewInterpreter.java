@@ -393,17 +393,19 @@ public class QueryViewInterpreter
 
 					if ((added.size() > 0 ) || (removed.size() > 0) ||
 						(changed.size() > 0)) {
+						// Sent as columns, which are much smaller than
+						// Sets of QueryResultHandles.
 						Field.ChangeMessage fcm = 
 							new Field.ChangeMessage(QueryFields.RESULTS_ADDED, 
-													(Serializable)added);
+													new QueryResultBatch(added));
 						answer.addFieldChangeMessage(fcm);
 
 						fcm = new Field.ChangeMessage(QueryFields.RESULTS_REMOVED, 
-													  (Serializable)removed);
+													  new QueryResultBatch(removed));
 						answer.addFieldChangeMessage(fcm);
 
 						fcm = new Field.ChangeMessage(QueryFields.RESULTS_CHANGED, 
-													  (Serializable)changed);
+													  new QueryResultBatch(changed));
 						answer.addFieldChangeMessage(fcm);
 					} 
 
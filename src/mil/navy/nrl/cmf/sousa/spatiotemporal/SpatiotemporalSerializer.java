@@ -0,0 +1,544 @@
+// File: SpatiotemporalSerializer.java
+
+package mil.navy.nrl.cmf.sousa.spatiotemporal;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import mil.navy.nrl.cmf.sousa.ByteArray;
+import mil.navy.nrl.cmf.sousa.CompactSerializer;
+import mil.navy.nrl.cmf.sousa.Field;
+import mil.navy.nrl.cmf.sousa.Serializer;
+import mil.navy.nrl.cmf.sousa.State;
+
+/**
+ * SpatiotemporalSerializer is a {@link CompactSerializer} that also
+ * writes {@link Vector3d}s as their three coordinates, {@link
+ * Vector3dDelta}s as their precision and steps, and {@link
+ * QueryResultHandle}s as their id and fields, and {@link
+ * QueryResultBatch}es column by column, with no class descriptors.
+ * The values of a QueryResultHandle's fields are written the way
+ * CompactSerializer writes any value.
+ */
+public class SpatiotemporalSerializer extends CompactSerializer
+{
+	/** a Vector3d: x, y, z */
+	protected static final int VECTOR3D = FIRST_EXTENSION_TAG;
+	/** a QueryResultHandle: id, count, then each field name and value */
+	protected static final int QUERY_RESULT_HANDLE = FIRST_EXTENSION_TAG + 1;
+	/** a Vector3dDelta: precision, then the steps in x, y and z */
+	protected static final int VECTOR3D_DELTA = FIRST_EXTENSION_TAG + 2;
+	/** a QueryResultBatch: size, ids, count, then each column */
+	protected static final int QUERY_RESULT_BATCH = FIRST_EXTENSION_TAG + 3;
+
+	public SpatiotemporalSerializer() {}
+
+	protected boolean writeExtension(DataOutput out, Object value)
+		throws IOException
+	{
+		boolean answer = true;
+
+		// Subclasses may have state of their own, so they are left
+		// to Java serialization.
+		if (Vector3d.class == value.getClass()) {
+			Vector3d v = (Vector3d)value;
+			out.writeByte(VECTOR3D);
+			out.writeDouble(v.x);
+			out.writeDouble(v.y);
+			out.writeDouble(v.z);
+		}
+		else if (QueryResultHandle.class == value.getClass()) {
+			QueryResultHandle qrh = (QueryResultHandle)value;
+			HashMap fields = new HashMap();
+			for (Iterator i = qrh.fieldNameIterator(); i.hasNext(); ) {
+				String name = (String)i.next();
+				fields.put(name, qrh.getFieldValue(name));
+			}
+			out.writeByte(QUERY_RESULT_HANDLE);
+			writeVarLong(out, qrh.hashCode());
+			writeVarInt(out, fields.size());
+			for (Iterator i = fields.entrySet().iterator(); i.hasNext(); ) {
+				Map.Entry e = (Map.Entry)i.next();
+				writeString(out, (String)e.getKey());
+				writeValue(out, e.getValue());
+			}
+		}
+		else if (value instanceof Vector3dDelta) {
+			Vector3dDelta d = (Vector3dDelta)value;
+			out.writeByte(VECTOR3D_DELTA);
+			out.writeFloat(d._precision);
+			writeVarLong(out, d._dx);
+			writeVarLong(out, d._dy);
+			writeVarLong(out, d._dz);
+		}
+		else if (QueryResultBatch.class == value.getClass()) {
+			out.writeByte(QUERY_RESULT_BATCH);
+			writeBatch(out, (QueryResultBatch)value);
+		}
+		else {
+			answer = false;
+		}
+
+		return answer;
+	}
+
+	protected Object readExtension(int tag, DataInput in)
+		throws IOException, ClassNotFoundException
+	{
+		Object answer = null;
+
+		switch (tag) {
+		case VECTOR3D: {
+			double x = in.readDouble();
+			double y = in.readDouble();
+			answer = new Vector3d(x, y, in.readDouble());
+			break;
+		}
+		case QUERY_RESULT_HANDLE: {
+			int id = (int)readVarLong(in);
+			HashMap fields = new HashMap();
+			for (int n = readVarInt(in); n > 0; n--) {
+				String name = readString(in);
+				fields.put(name, readValue(in));
+			}
+			answer = new QueryResultHandle(id, fields);
+			break;
+		}
+		case VECTOR3D_DELTA: {
+			float precision = in.readFloat();
+			int dx = (int)readVarLong(in);
+			int dy = (int)readVarLong(in);
+			answer = new Vector3dDelta(precision, dx, dy, (int)readVarLong(in));
+			break;
+		}
+		case QUERY_RESULT_BATCH:
+			answer = readBatch(in);
+			break;
+		default:
+			answer = super.readExtension(tag, in);
+		}
+
+		return answer;
+	}
+
+	//// QueryResultBatch
+
+	// The ids are written as differences from the one before, which
+	// are short when a Queryable numbers its results in order.  Each
+	// column is its name, its type, the rows that have it, and its
+	// values.  The rows that have it are written as their number plus
+	// one, 0 meaning all, then as differences from the one before.
+	private void writeBatch(DataOutput out, QueryResultBatch batch)
+		throws IOException
+	{
+		int rows = batch._ids.length;
+		writeVarInt(out, rows);
+		int previous = 0;
+		for (int row = 0; row < rows; row++) {
+			writeVarLong(out, (long)batch._ids[row] - previous);
+			previous = batch._ids[row];
+		}
+
+		writeVarInt(out, batch._columns.length);
+		for (int c = 0; c < batch._columns.length; c++) {
+			QueryResultBatch.Column column = batch._columns[c];
+			writeString(out, column._name);
+			out.writeByte(column._type);
+
+			if (null == column._present) {
+				writeVarInt(out, 0);
+			}
+			else {
+				writeVarInt(out, column._present.cardinality() + 1);
+				int last = 0;
+				for (int row = column._present.nextSetBit(0); row >= 0;
+					 row = column._present.nextSetBit(row + 1)) {
+					writeVarInt(out, row - last);
+					last = row;
+				}
+			}
+
+			switch (column._type) {
+			case QueryResultBatch.INT:
+			case QueryResultBatch.STRING: {
+				if (QueryResultBatch.STRING == column._type) {
+					writeVarInt(out, column._strings.length);
+					for (int i = 0; i < column._strings.length; i++) {
+						writeString(out, column._strings[i]);
+					}
+				}
+				int[] values = (int[])column._values;
+				for (int row = 0; row < rows; row++) {
+					writeVarLong(out, values[row]);
+				}
+				break;
+			}
+			case QueryResultBatch.LONG: {
+				long[] values = (long[])column._values;
+				for (int row = 0; row < rows; row++) {
+					writeVarLong(out, values[row]);
+				}
+				break;
+			}
+			case QueryResultBatch.DOUBLE: {
+				double[] values = (double[])column._values;
+				for (int row = 0; row < rows; row++) {
+					out.writeDouble(values[row]);
+				}
+				break;
+			}
+			case QueryResultBatch.VECTOR3D: {
+				double[][] xyz = (double[][])column._values;
+				for (int axis = 0; axis < 3; axis++) {
+					for (int row = 0; row < rows; row++) {
+						out.writeDouble(xyz[axis][row]);
+					}
+				}
+				break;
+			}
+			default: {
+				Object[] values = (Object[])column._values;
+				for (int row = 0; row < rows; row++) {
+					writeValue(out, values[row]);
+				}
+			}
+			}
+		}
+	}
+
+	private QueryResultBatch readBatch(DataInput in)
+		throws IOException, ClassNotFoundException
+	{
+		int rows = readVarInt(in);
+		int[] ids = new int[rows];
+		int previous = 0;
+		for (int row = 0; row < rows; row++) {
+			ids[row] = (int)(previous + readVarLong(in));
+			previous = ids[row];
+		}
+
+		QueryResultBatch.Column[] columns =
+			new QueryResultBatch.Column[readVarInt(in)];
+		for (int c = 0; c < columns.length; c++) {
+			String name = readString(in);
+			int type = in.readUnsignedByte();
+
+			BitSet present = null;
+			int count = readVarInt(in) - 1;
+			if (count >= 0) {
+				present = new BitSet(rows);
+				int row = 0;
+				for (; count > 0; count--) {
+					row += readVarInt(in);
+					if ((row < 0) || (row >= rows)) {
+						throw new StreamCorruptedException("Row " + row +
+														   " of " + rows);
+					}
+					present.set(row);
+				}
+			}
+
+			Object values = null;
+			String[] strings = null;
+			switch (type) {
+			case QueryResultBatch.INT:
+			case QueryResultBatch.STRING: {
+				if (QueryResultBatch.STRING == type) {
+					strings = new String[readVarInt(in)];
+					for (int i = 0; i < strings.length; i++) {
+						strings[i] = readString(in);
+					}
+				}
+				int[] a = new int[rows];
+				for (int row = 0; row < rows; row++) {
+					a[row] = (int)readVarLong(in);
+					if ((null != strings) &&
+						((a[row] < 0) || (a[row] >= strings.length))) {
+						throw new StreamCorruptedException("String " + a[row] +
+														   " of " +
+														   strings.length);
+					}
+				}
+				values = a;
+				break;
+			}
+			case QueryResultBatch.LONG: {
+				long[] a = new long[rows];
+				for (int row = 0; row < rows; row++) {
+					a[row] = readVarLong(in);
+				}
+				values = a;
+				break;
+			}
+			case QueryResultBatch.DOUBLE: {
+				double[] a = new double[rows];
+				for (int row = 0; row < rows; row++) {
+					a[row] = in.readDouble();
+				}
+				values = a;
+				break;
+			}
+			case QueryResultBatch.VECTOR3D: {
+				double[][] xyz = new double[3][rows];
+				for (int axis = 0; axis < 3; axis++) {
+					for (int row = 0; row < rows; row++) {
+						xyz[axis][row] = in.readDouble();
+					}
+				}
+				values = xyz;
+				break;
+			}
+			case QueryResultBatch.OBJECT: {
+				Serializable[] a = new Serializable[rows];
+				for (int row = 0; row < rows; row++) {
+					a[row] = (Serializable)readValue(in);
+				}
+				values = a;
+				break;
+			}
+			default:
+				throw new StreamCorruptedException("Unknown column type " + type);
+			}
+
+			columns[c] = new QueryResultBatch.Column(name, type, values,
+													 strings, present);
+		}
+
+		return new QueryResultBatch(ids, columns);
+	}
+
+	//// round trips and comparison with ByteArray
+
+	// True iff b is a faithful copy of a.  ChangeMessages,
+	// QueryResultHandles and QueryResultBatches are compared field
+	// by field because their equals() doesn't.
+	private static boolean same(Object a, Object b) {
+		if ((null == a) || (null == b)) {
+			return a == b;
+		}
+		if (a.getClass() != b.getClass()) {
+			return false;
+		}
+		if (a instanceof State.ChangeMessage) {
+			List la = ((State.ChangeMessage)a).getMessages();
+			List lb = ((State.ChangeMessage)b).getMessages();
+			if (la.size() != lb.size()) {
+				return false;
+			}
+			for (Iterator i = la.iterator(), j = lb.iterator(); i.hasNext(); ) {
+				if (!same(i.next(), j.next())) {
+					return false;
+				}
+			}
+			return true;
+		}
+		if (a instanceof Field.ChangeMessage) {
+			Field.ChangeMessage fa = (Field.ChangeMessage)a;
+			Field.ChangeMessage fb = (Field.ChangeMessage)b;
+			return fa._fname.equals(fb._fname) && same(fa._value, fb._value);
+		}
+		if (a instanceof QueryResultHandle) {
+			QueryResultHandle qa = (QueryResultHandle)a;
+			QueryResultHandle qb = (QueryResultHandle)b;
+			int n = 0;
+			for (Iterator i = qa.fieldNameIterator(); i.hasNext(); n++) {
+				String name = (String)i.next();
+				if (!same(qa.getFieldValue(name), qb.getFieldValue(name))) {
+					return false;
+				}
+			}
+			for (Iterator i = qb.fieldNameIterator(); i.hasNext(); n--) {
+				i.next();
+			}
+			return (0 == n) && qa.equals(qb);
+		}
+		if (a instanceof QueryResultBatch) {
+			QueryResultBatch ba = (QueryResultBatch)a;
+			QueryResultBatch bb = (QueryResultBatch)b;
+			if (ba.size() != bb.size()) {
+				return false;
+			}
+			for (int row = 0; row < ba.size(); row++) {
+				if (!same(ba.getHandle(row), bb.getHandle(row))) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return a.equals(b);
+	}
+
+	// A State.ChangeMessage like the ones a moving Entity sends.
+	private static State.ChangeMessage sample(int i) {
+		Calendar time = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+		time.setTimeInMillis(1150000000000L + i * 100L);
+
+		HashMap fields = new HashMap();
+		fields.put("name", "track " + i);
+		fields.put("position", new Vector3d(-77.0 + i * 1e-5, 38.8, 120.0));
+		fields.put("time", time);
+
+		State.ChangeMessage answer = new State.ChangeMessage();
+		answer.addFieldChangeMessage(new Field.ChangeMessage("position",
+			new Vector3d(-77.0 + i * 1e-5, 38.8 + i * 1e-5, 120.0)));
+		answer.addFieldChangeMessage(new Field.ChangeMessage("velocity",
+			new Vector3d(1.5, -0.25, 0.0)));
+		answer.addFieldChangeMessage(new Field.ChangeMessage("time", time));
+		answer.addFieldChangeMessage(new Field.ChangeMessage("heading",
+			new Double(271.5)));
+		answer.addFieldChangeMessage(new Field.ChangeMessage("sequence",
+			new Integer(i)));
+		answer.addFieldChangeMessage(new Field.ChangeMessage("result",
+			new QueryResultHandle(i, fields)));
+		return answer;
+	}
+
+	// count results of a query, like the ones a Queryable answers.
+	// Every fifth has no "label" and every seventh has a "note" of
+	// mixed kinds.
+	private static HashSet results(int count) {
+		String[] kinds = { "ship", "aircraft", "vehicle", "person" };
+		HashSet answer = new HashSet();
+
+		for (int i = 0; i < count; i++) {
+			HashMap fields = new HashMap();
+			fields.put("position",
+					   new Vector3d(-77.0 + i * 1e-5, 38.8 - i * 1e-5, 10.0));
+			fields.put("kind", kinds[i % kinds.length]);
+			fields.put("speed", new Double(i * 0.25));
+			fields.put("updated", new Long(1150000000000L + i));
+			if (0 != i % 5) {
+				fields.put("label", new Integer(i));
+			}
+			if (0 == i % 7) {
+				fields.put("note", (0 == i % 2) ? (Object)"even" : new Integer(i));
+			}
+			answer.add(new QueryResultHandle(1000 + i, fields));
+		}
+
+		return answer;
+	}
+
+	// Round trips value through s and reports a difference.
+	private static boolean roundTrip(Serializer s, Object value)
+		throws IOException, ClassNotFoundException
+	{
+		boolean answer = same(value, s.toObject(s.toByteArray(value)));
+		if (!answer) {
+			System.err.println("FAILED: " + value);
+		}
+		return answer;
+	}
+
+	// Encodes and decodes the messages and returns the messages per
+	// second.
+	private static long throughput(Serializer s, Object[] messages)
+		throws IOException, ClassNotFoundException
+	{
+		long start = System.nanoTime();
+		for (int i = 0; i < messages.length; i++) {
+			s.toObject(s.toByteArray(messages[i]));
+		}
+		long nanos = Math.max(1, System.nanoTime() - start);
+		return messages.length * 1000000000L / nanos;
+	}
+
+	/*
+	 * Usage: SpatiotemporalSerializer [messages]
+	 *
+	 * Round trips a State.ChangeMessage, each kind of value, and a
+	 * value that falls back to Java serialization, compares the size
+	 * of a QueryResultBatch to that of the HashSet it was made from,
+	 * then compares the size and the encode+decode rate of the
+	 * State.ChangeMessages to those of ByteArray.  messages defaults to 100000.
+	 */
+	public static void main(String[] args)
+		throws IOException, ClassNotFoundException
+	{
+		int count = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+		Serializer compact = new SpatiotemporalSerializer();
+		Serializer java = new ByteArray();
+
+		HashSet other = new HashSet();
+		other.add("a");
+		other.add(new Vector3d(1, 2, 3));
+
+		Object[] values = {
+			null, "", "\u00e9t\u00e9", Boolean.TRUE, Boolean.FALSE,
+			new Byte((byte)-7), new Short(Short.MIN_VALUE),
+			new Character('\u263a'), new Integer(0),
+			new Integer(Integer.MIN_VALUE), new Long(Long.MAX_VALUE),
+			new Float(Float.NaN), new Double(-0.0),
+			new GregorianCalendar(), new Vector3d(1e-300, -2, 3),
+			Vector3dDelta.between(new Vector3d(-77.0, 38.8, 120.0),
+								  new Vector3d(-77.00002, 38.80001, 121.5),
+								  1e-6),
+			new QueryResultHandle(-1, new HashMap()),
+			new Field.ChangeMessage("f", null), new State.ChangeMessage(),
+			other, sample(42), new QueryResultBatch(new HashSet()),
+			new QueryResultBatch(results(100))
+		};
+
+		boolean ok = true;
+		for (int i = 0; i < values.length; i++) {
+			ok &= roundTrip(compact, values[i]);
+		}
+		System.out.println("Round trips: " + (ok ? "passed" : "FAILED"));
+
+		Vector3d from = new Vector3d(-77.0, 38.8, 120.0);
+		Vector3d to = new Vector3d(-77.00002, 38.80001, 121.5);
+		System.out.println("Position bytes: Vector3d " +
+						   compact.toByteArray(to).length +
+						   ", Vector3dDelta at 1e-6 " +
+						   compact.toByteArray(to.deltaFrom(from, 1e-6)).length +
+						   " (Java serialization " + java.toByteArray(to).length +
+						   ", " + java.toByteArray(to.deltaFrom(from, 1e-6)).length +
+						   ")");
+
+		HashSet handles = results(10000);
+		QueryResultBatch batch = new QueryResultBatch(handles);
+		System.out.println("Bytes of 10000 results: QueryResultBatch compact " +
+						   compact.toByteArray(batch).length +
+						   ", Java serialization " +
+						   java.toByteArray(batch).length +
+						   " (HashSet of QueryResultHandles compact " +
+						   compact.toByteArray(handles).length +
+						   ", Java serialization " +
+						   java.toByteArray(handles).length + ")");
+
+		Object[] messages = new Object[count];
+		for (int i = 0; i < count; i++) {
+			messages[i] = sample(i);
+		}
+
+		System.out.println("State.ChangeMessage bytes: compact " +
+						   compact.toByteArray(messages[0]).length +
+						   ", Java serialization " +
+						   java.toByteArray(messages[0]).length);
+
+		// The first pass warms up the JIT.
+		throughput(compact, messages);
+		throughput(java, messages);
+		System.out.println("State.ChangeMessages per second: compact " +
+						   throughput(compact, messages) +
+						   ", Java serialization " +
+						   throughput(java, messages));
+
+		if (!ok) {
+			System.exit(1);
+		}
+	}
+};
+
+// File: SpatiotemporalSerializer.java
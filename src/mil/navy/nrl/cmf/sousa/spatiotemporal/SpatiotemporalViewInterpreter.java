@@ -20,6 +20,15 @@ public class SpatiotemporalViewInterpreter
 	// that SpatiotemporalViewInterpreter copies into the Projector
 	// State.
 
+	// The slots of those Fields in the authoritative State, found
+	// once by the constructor.  State.NO_SLOT if a Field is missing,
+	// which getCurrentFieldValues() reports.
+	private final int _positionSlot;
+	private final int _widthSlot;
+	private final int _timeLowerBoundSlot;
+	private final int _timeUpperBoundSlot;
+	private final int _fieldsSlot;
+
 
     public SpatiotemporalViewInterpreter(State s) 
     {
@@ -35,8 +44,27 @@ public class SpatiotemporalViewInterpreter
 
 		// Tell s to notify us whenver one of the Fields changes.
 		s.attachFieldListener(fields, this);
+
+		_positionSlot = slotOf(QueryClientFields.POSITION_FIELDNAME);
+		_widthSlot = slotOf(QueryClientFields.WIDTH_FIELDNAME);
+		_timeLowerBoundSlot = slotOf(QueryClientFields.TIMELOWERBOUND_FIELDNAME);
+		_timeUpperBoundSlot = slotOf(QueryClientFields.TIMEUPPERBOUND_FIELDNAME);
+		_fieldsSlot = slotOf(QueryClientFields.FIELDS_FIELDNAME);
     }
 
+	// The slot of a Field that we listen to, or State.NO_SLOT.
+	private int slotOf(String name) {
+		int answer = State.NO_SLOT;
+
+		try {
+			answer = getSlot(name);
+		} catch (NoSuchFieldException ex) {
+			_LOG.error(ex);
+		}
+
+		return answer;
+	}
+
 	public boolean isDirty(State parameters){
 		return isDirty();
 	}
@@ -84,7 +112,7 @@ public class SpatiotemporalViewInterpreter
 		// (2) not be part of State.
 		try {
 			if (needPosition) {
-				Vector3d v = (Vector3d)getField(QueryClientFields.POSITION_FIELDNAME);
+				Vector3d v = (Vector3d)getField(_positionSlot);
 				Field.ChangeMessage m = 
 					new Field.ChangeMessage(QueryClientFields.POSITION_FIELDNAME, v);
 
@@ -92,7 +120,7 @@ public class SpatiotemporalViewInterpreter
 			}
 
 			if (needWidth) {
-				Vector3d v = (Vector3d)getField(QueryClientFields.WIDTH_FIELDNAME);
+				Vector3d v = (Vector3d)getField(_widthSlot);
 				Field.ChangeMessage m = 
 					new Field.ChangeMessage(QueryClientFields.WIDTH_FIELDNAME, v);
 
@@ -100,7 +128,7 @@ public class SpatiotemporalViewInterpreter
 			}
 
 			if (needTimeLowerBound) {
-				Calendar v = (Calendar)getField(QueryClientFields.TIMELOWERBOUND_FIELDNAME);
+				Calendar v = (Calendar)getField(_timeLowerBoundSlot);
 				Field.ChangeMessage m = 
 					new Field.ChangeMessage(QueryClientFields.TIMELOWERBOUND_FIELDNAME, v);
 
@@ -108,7 +136,7 @@ public class SpatiotemporalViewInterpreter
 			}
 
 			if (needTimeUpperBound) {
-				Calendar v = (Calendar)getField(QueryClientFields.TIMEUPPERBOUND_FIELDNAME);
+				Calendar v = (Calendar)getField(_timeUpperBoundSlot);
 				Field.ChangeMessage m = 
 					new Field.ChangeMessage(QueryClientFields.TIMEUPPERBOUND_FIELDNAME, v);
 
@@ -116,7 +144,7 @@ public class SpatiotemporalViewInterpreter
 			}
 
 			if (needFields) {
-				Set v = (Set)getField(QueryClientFields.FIELDS_FIELDNAME);
+				Set v = (Set)getField(_fieldsSlot);
 				Field.ChangeMessage m = new Field.ChangeMessage(QueryClientFields.FIELDS_FIELDNAME,
 																(Serializable)v);
 				changes.addFieldChangeMessage(m);
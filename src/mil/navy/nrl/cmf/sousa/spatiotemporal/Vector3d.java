@@ -1,6 +1,8 @@
 package mil.navy.nrl.cmf.sousa.spatiotemporal;
 
 import java.io.Serializable;
+import mil.navy.nrl.cmf.sousa.Delta;
+import mil.navy.nrl.cmf.sousa.DeltaEncodable;
 import mil.navy.nrl.cmf.sousa.util.HashCodeUtil;
 import mil.navy.nrl.cmf.stk.XYZd;
 
@@ -11,7 +13,7 @@ import mil.navy.nrl.cmf.stk.XYZd;
    requiring Java3D.
  */
 public class Vector3d 
-    implements Serializable, XYZd
+    implements Serializable, XYZd, DeltaEncodable
 {
 	private static final long serialVersionUID = 1L;
 	public double x = 0.0;
@@ -228,6 +230,26 @@ public class Vector3d
 				(z == ((Vector3d)obj).z));
 	}
 
+	//// mil.navy.nrl.cmf.sousa.DeltaEncodable
+
+	/**
+	   Describes this <CODE>Vector3d</CODE> as a {@link Vector3dDelta}
+	   from <CODE>keyframe</CODE>, which must also be a
+	   <CODE>Vector3d</CODE>.
+
+	   @param keyframe an earlier value of the same field
+	   @param precision the largest error allowed in x, y, or z
+
+	   @return the <CODE>Vector3dDelta</CODE>, or <CODE>null</CODE>
+	   if <CODE>keyframe</CODE> isn't a <CODE>Vector3d</CODE> or is too
+	   far away
+	 */
+	public Delta deltaFrom(Serializable keyframe, double precision) {
+		return (keyframe instanceof Vector3d) ?
+			Vector3dDelta.between((Vector3d)keyframe, this, precision) :
+			null;
+	}
+
 	/**
 	   Constructs a String representation of this <CODE>Vector3d</CODE>.
 	   The string has the form &lt;x, y, z&gt;.
@@ -0,0 +1,116 @@
+package mil.navy.nrl.cmf.sousa.spatiotemporal;
+
+import java.io.Serializable;
+import mil.navy.nrl.cmf.sousa.Delta;
+import mil.navy.nrl.cmf.sousa.util.HashCodeUtil;
+
+/**
+   <CODE>Vector3dDelta</CODE> describes a {@link Vector3d} as the
+   difference from a keyframe, in whole multiples of a precision.
+   Applied to the keyframe, it gives a <CODE>Vector3d</CODE> within
+   half the precision of the one it describes in x, y, and z.
+ */
+public final class Vector3dDelta
+	implements Delta
+{
+	private static final long serialVersionUID = 1L;
+
+	// the size of one step
+	final float _precision;
+
+	// the difference from the keyframe, in steps
+	final int _dx;
+	final int _dy;
+	final int _dz;
+
+	Vector3dDelta(float precision, int dx, int dy, int dz) {
+		_precision = precision;
+		_dx = dx;
+		_dy = dy;
+		_dz = dz;
+	}
+
+	/**
+	   Makes the <CODE>Vector3dDelta</CODE> that gives
+	   <CODE>v</CODE>, to within half of <CODE>precision</CODE>, when
+	   applied to <CODE>keyframe</CODE>.
+
+	   @param keyframe the earlier value
+	   @param v the value to describe
+	   @param precision the size of one step, greater than zero.  It
+	   is rounded to a float.
+
+	   @return the <CODE>Vector3dDelta</CODE>, or <CODE>null</CODE>
+	   if a difference is too many steps or not a number
+	 */
+	public static Vector3dDelta between(Vector3d keyframe, Vector3d v,
+										double precision) {
+		Vector3dDelta answer = null;
+		float p = (float)precision;
+		double dx = (v.x - keyframe.x) / p;
+		double dy = (v.y - keyframe.y) / p;
+		double dz = (v.z - keyframe.z) / p;
+
+		// false for NaN, too
+		if ((p > 0.0f) &&
+			(Math.abs(dx) < Integer.MAX_VALUE) &&
+			(Math.abs(dy) < Integer.MAX_VALUE) &&
+			(Math.abs(dz) < Integer.MAX_VALUE)) {
+			answer = new Vector3dDelta(p, (int)Math.round(dx),
+									   (int)Math.round(dy),
+									   (int)Math.round(dz));
+		}
+
+		return answer;
+	}
+
+	//// mil.navy.nrl.cmf.sousa.Delta
+
+	/**
+	   Computes the <CODE>Vector3d</CODE> that this
+	   <CODE>Vector3dDelta</CODE> describes.
+
+	   @param keyframe a <CODE>Vector3d</CODE>
+
+	   @return a new <CODE>Vector3d</CODE>
+	   @throws IllegalArgumentException if <CODE>keyframe</CODE> isn't
+	   a <CODE>Vector3d</CODE>
+	 */
+	public Serializable applyTo(Serializable keyframe) {
+		if (!(keyframe instanceof Vector3d)) {
+			throw new IllegalArgumentException("Not a Vector3d: " + keyframe);
+		}
+
+		Vector3d k = (Vector3d)keyframe;
+		return new Vector3d(k.x + _dx * (double)_precision,
+							k.y + _dy * (double)_precision,
+							k.z + _dz * (double)_precision);
+	}
+
+	public int hashCode() {
+		int answer = HashCodeUtil.SEED;
+		answer = HashCodeUtil.hash(answer, _precision);
+		answer = HashCodeUtil.hash(answer, _dx);
+		answer = HashCodeUtil.hash(answer, _dy);
+		answer = HashCodeUtil.hash(answer, _dz);
+
+		return answer;
+	}
+
+	public boolean equals(Object obj) {
+		boolean answer = false;
+
+		if (obj instanceof Vector3dDelta) {
+			Vector3dDelta d = (Vector3dDelta)obj;
+			answer = (_precision == d._precision) && (_dx == d._dx) &&
+				(_dy == d._dy) && (_dz == d._dz);
+		}
+
+		return answer;
+	}
+
+	public String toString() {
+		return "Vector3dDelta<" + _dx + ", " + _dy + ", " + _dz + "> * " +
+			_precision;
+	}
+}
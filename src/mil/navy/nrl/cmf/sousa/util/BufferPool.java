@@ -0,0 +1,201 @@
+package mil.navy.nrl.cmf.sousa.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A pool of direct ByteBuffers in size classes.  Each class holds
+ * buffers of one power-of-two capacity, from the smallest class to
+ * the largest.  {@link #acquire(int)} hands out a buffer from the
+ * smallest class that fits, allocating one if the class is empty.
+ * {@link #release(ByteBuffer)} gives it back.  A request larger than
+ * the largest class gets a buffer of its own that is not pooled.
+ *
+ * The pool keeps counts of its traffic: how many buffers were
+ * acquired, how many of those came from the pool, and how many are
+ * out.  A buffer that is never released is simply left to the
+ * garbage collector, but it still counts as outstanding.
+ *
+ * BufferPool is synchronized.
+ */
+public final class BufferPool
+{
+	// log2 of the capacity of the smallest class
+	private final int _minShift;
+
+	// log2 of the capacity of the largest class
+	private final int _maxShift;
+
+	// the most buffers that each class holds
+	private final int _maxPerClass;
+
+	// the free buffers of each class.  _free[i] holds buffers of
+	// capacity (1 << (_minShift + i)).
+	private final ByteBuffer[][] _free;
+
+	// the number of free buffers in each class
+	private final int[] _freeCount;
+
+	// statistics
+	private long _acquires = 0;
+	private long _hits = 0;
+	private long _releases = 0;
+	private int _outstanding = 0;
+	private long _outstandingBytes = 0;
+	private long _pooledBytes = 0;
+
+	/**
+	 * Make an empty BufferPool.
+	 *
+	 * @param minCapacity the capacity of the smallest class.  It is
+	 * rounded up to a power of two.
+	 * @param maxCapacity the capacity of the largest class.  It is
+	 * rounded up to a power of two.
+	 * @param maxPerClass the most free buffers to keep in each class
+	 * @throws IllegalArgumentException if minCapacity or maxPerClass
+	 * is not positive or if maxCapacity < minCapacity
+	 */
+	public BufferPool(int minCapacity, int maxCapacity, int maxPerClass) {
+		if (minCapacity <= 0 || maxCapacity < minCapacity ||
+			maxPerClass <= 0) {
+			throw new IllegalArgumentException("BufferPool(" + minCapacity +
+											   ", " + maxCapacity + ", " +
+											   maxPerClass + ")");
+		}
+		_minShift = shift(minCapacity);
+		_maxShift = shift(maxCapacity);
+		_maxPerClass = maxPerClass;
+		_free = new ByteBuffer[_maxShift - _minShift + 1][maxPerClass];
+		_freeCount = new int[_free.length];
+	}
+
+	/**
+	 * Get a direct ByteBuffer with room for <CODE>size</CODE> bytes.
+	 * Its position is zero and its limit is <CODE>size</CODE>.  Its
+	 * capacity may be larger.
+	 *
+	 * @param size the number of bytes needed
+	 * @return a direct ByteBuffer
+	 */
+	public synchronized ByteBuffer acquire(int size) {
+		int s = (size <= 1) ? 0 : shift(size);
+		if (s < _minShift) {
+			s = _minShift;
+		}
+
+		ByteBuffer answer = null;
+		_acquires++;
+
+		if (s <= _maxShift) {
+			int c = s - _minShift;
+			if (_freeCount[c] > 0) {
+				answer = _free[c][--_freeCount[c]];
+				_free[c][_freeCount[c]] = null;
+				_pooledBytes -= answer.capacity();
+				_hits++;
+			} else {
+				answer = ByteBuffer.allocateDirect(1 << s);
+			}
+		} else {
+			answer = ByteBuffer.allocateDirect(size);
+		}
+
+		_outstanding++;
+		_outstandingBytes += answer.capacity();
+
+		answer.clear();
+		answer.limit(size);
+		return answer;
+	}
+
+	/**
+	 * Give back a buffer that came from {@link #acquire(int)}.  The
+	 * caller must not use it again.
+	 *
+	 * @param b the buffer, or null
+	 */
+	public synchronized void release(ByteBuffer b) {
+		if (null == b) {
+			return;
+		}
+
+		_releases++;
+		_outstanding--;
+		_outstandingBytes -= b.capacity();
+
+		int capacity = b.capacity();
+		int s = shift(capacity);
+		if (b.isDirect() && (1 << s) == capacity &&
+			s >= _minShift && s <= _maxShift) {
+			int c = s - _minShift;
+			if (_freeCount[c] < _maxPerClass) {
+				_free[c][_freeCount[c]++] = b;
+				_pooledBytes += capacity;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of calls to acquire()
+	 */
+	public synchronized long getAcquires() {
+		return _acquires;
+	}
+
+	/**
+	 * @return the number of calls to acquire() that were satisfied
+	 * from the pool
+	 */
+	public synchronized long getHits() {
+		return _hits;
+	}
+
+	/**
+	 * @return the fraction of calls to acquire() that were satisfied
+	 * from the pool, or 0 if there were none
+	 */
+	public synchronized double getHitRate() {
+		return (0 == _acquires) ? 0.0 : ((double)_hits / _acquires);
+	}
+
+	/**
+	 * @return the number of calls to release()
+	 */
+	public synchronized long getReleases() {
+		return _releases;
+	}
+
+	/**
+	 * @return the number of buffers acquired and not yet released
+	 */
+	public synchronized int getOutstanding() {
+		return _outstanding;
+	}
+
+	/**
+	 * @return the total capacity of the buffers acquired and not yet
+	 * released
+	 */
+	public synchronized long getOutstandingBytes() {
+		return _outstandingBytes;
+	}
+
+	/**
+	 * @return the total capacity of the free buffers in the pool
+	 */
+	public synchronized long getPooledBytes() {
+		return _pooledBytes;
+	}
+
+	public synchronized String toString() {
+		return "BufferPool{acquires:" + _acquires + " hits:" + _hits +
+			" hitRate:" + getHitRate() + " releases:" + _releases +
+			" outstanding:" + _outstanding +
+			" outstandingBytes:" + _outstandingBytes +
+			" pooledBytes:" + _pooledBytes + "}";
+	}
+
+	// the least s such that (1 << s) >= n, for n > 0
+	private static int shift(int n) {
+		return 32 - Integer.numberOfLeadingZeros(n - 1);
+	}
+}
@@ -0,0 +1,58 @@
+package mil.navy.nrl.cmf.sousa.util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream that reads the bytes between the position and the
+ * limit of a ByteBuffer.  Reading advances the ByteBuffer's
+ * position.  Nothing is copied, so a direct ByteBuffer can be read
+ * without first moving its contents onto the heap.
+ */
+public final class ByteBufferInputStream extends InputStream
+{
+	// the source of the bytes
+	private final ByteBuffer _buf;
+
+	/**
+	 * Make a ByteBufferInputStream.
+	 *
+	 * @param buf the ByteBuffer to read, from its position to its
+	 * limit
+	 */
+	public ByteBufferInputStream(ByteBuffer buf) {
+		_buf = buf;
+	}
+
+	public int read() {
+		return _buf.hasRemaining() ? (_buf.get() & 0xff) : -1;
+	}
+
+	public int read(byte[] b, int off, int len) {
+		if (0 == len) {
+			return 0;
+		}
+		int n = _buf.remaining();
+		if (0 == n) {
+			return -1;
+		}
+		if (len < n) {
+			n = len;
+		}
+		_buf.get(b, off, n);
+		return n;
+	}
+
+	public long skip(long n) {
+		int skipped = (n < _buf.remaining()) ? (int)n : _buf.remaining();
+		if (skipped <= 0) {
+			return 0;
+		}
+		_buf.position(_buf.position() + skipped);
+		return skipped;
+	}
+
+	public int available() {
+		return _buf.remaining();
+	}
+}
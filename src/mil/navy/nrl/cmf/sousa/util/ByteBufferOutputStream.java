@@ -0,0 +1,93 @@
+package mil.navy.nrl.cmf.sousa.util;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An OutputStream that writes into a ByteBuffer from a {@link
+ * BufferPool}.  When the ByteBuffer fills, its contents move to a
+ * ByteBuffer twice as large and the old one goes back to the pool.
+ *
+ * A ByteBufferOutputStream may be reused: {@link #begin(int)} starts
+ * a new ByteBuffer and {@link #detach()} hands it to the caller, who
+ * releases it to the pool when done with it.
+ */
+public final class ByteBufferOutputStream extends OutputStream
+{
+	// where the ByteBuffers come from
+	private final BufferPool _pool;
+
+	// the ByteBuffer being written, or null
+	private ByteBuffer _buf = null;
+
+	/**
+	 * Make a ByteBufferOutputStream.  Call {@link #begin(int)} before
+	 * writing.
+	 *
+	 * @param pool the source of ByteBuffers
+	 */
+	public ByteBufferOutputStream(BufferPool pool) {
+		_pool = pool;
+	}
+
+	/**
+	 * Start writing into a new ByteBuffer.  A ByteBuffer that wasn't
+	 * detached goes back to the pool.
+	 *
+	 * @param size the expected number of bytes
+	 */
+	public void begin(int size) {
+		_pool.release(_buf);
+		_buf = _pool.acquire(size);
+		_buf.limit(_buf.capacity());
+	}
+
+	/**
+	 * @return the ByteBuffer being written.  Its position is the
+	 * number of bytes written.
+	 */
+	public ByteBuffer buffer() {
+		return _buf;
+	}
+
+	/**
+	 * Stop writing and hand over the ByteBuffer.  Its position is
+	 * the number of bytes written.
+	 *
+	 * @return the ByteBuffer, which the caller must release to the
+	 * BufferPool
+	 */
+	public ByteBuffer detach() {
+		ByteBuffer answer = _buf;
+		_buf = null;
+		return answer;
+	}
+
+	public void write(int b) {
+		ensure(1);
+		_buf.put((byte)b);
+	}
+
+	public void write(byte[] b, int off, int len) {
+		ensure(len);
+		_buf.put(b, off, len);
+	}
+
+	// Make room for n more bytes.
+	private void ensure(int n) {
+		if (_buf.remaining() < n) {
+			int needed = _buf.position() + n;
+			int size = _buf.capacity() * 2;
+			if (size < needed) {
+				size = needed;
+			}
+
+			ByteBuffer bigger = _pool.acquire(size);
+			bigger.limit(bigger.capacity());
+			_buf.flip();
+			bigger.put(_buf);
+			_pool.release(_buf);
+			_buf = bigger;
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package mil.navy.nrl.cmf.sousa.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * An ObjectInputStream that reads what a {@link
+ * ClassCachingObjectOutputStream} writes.  It keeps every class
+ * descriptor it reads, and the class it resolves each one to, for as
+ * long as it lives.
+ */
+public final class ClassCachingObjectInputStream extends ObjectInputStream
+{
+	// the descriptors read so far, in order
+	private final ArrayList _descriptors = new ArrayList();
+
+	// ObjectStreamClass -> Class
+	private final HashMap _classes = new HashMap();
+
+	/**
+	 * Make a ClassCachingObjectInputStream.  The stream header is read
+	 * from in at once.
+	 *
+	 * @param in where to read
+	 * @throws IOException if in fails or doesn't begin with a stream
+	 * header
+	 */
+	public ClassCachingObjectInputStream(InputStream in)
+		throws IOException
+	{
+		super(in);
+	}
+
+	protected ObjectStreamClass readClassDescriptor()
+		throws IOException, ClassNotFoundException
+	{
+		ObjectStreamClass answer;
+		int id = readNumber();
+		if (0 == id) {
+			answer = super.readClassDescriptor();
+			_descriptors.add(answer);
+		}
+		else if (id <= _descriptors.size()) {
+			answer = (ObjectStreamClass)_descriptors.get(id - 1);
+		}
+		else {
+			throw new StreamCorruptedException("Unknown class descriptor " + id);
+		}
+		return answer;
+	}
+
+	protected Class resolveClass(ObjectStreamClass desc)
+		throws IOException, ClassNotFoundException
+	{
+		Class answer = (Class)_classes.get(desc);
+		if (null == answer) {
+			answer = super.resolveClass(desc);
+			_classes.put(desc, answer);
+		}
+		return answer;
+	}
+
+	private int readNumber()
+		throws IOException
+	{
+		int answer = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = readUnsignedByte();
+			answer |= (b & 0x7F) << shift;
+			if (0 == (b & 0x80)) {
+				return answer;
+			}
+		}
+		throw new StreamCorruptedException("Malformed class descriptor number");
+	}
+}
@@ -0,0 +1,64 @@
+package mil.navy.nrl.cmf.sousa.util;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+/**
+ * An ObjectOutputStream that writes each class descriptor in full
+ * only the first time.  Afterwards, even after {@link #reset()}, a
+ * class is written as a number.  A long-lived
+ * ClassCachingObjectOutputStream can therefore be reset after every
+ * object, so that no object refers to one written before, and still
+ * not repeat the descriptors.
+ *
+ * Only a {@link ClassCachingObjectInputStream} can read it.
+ */
+public final class ClassCachingObjectOutputStream extends ObjectOutputStream
+{
+	// ObjectStreamClass -> Integer, the number of each descriptor
+	// written so far, counting from 1
+	private final HashMap _ids = new HashMap();
+
+	/**
+	 * Make a ClassCachingObjectOutputStream.  The stream header is
+	 * written to out at once.
+	 *
+	 * @param out where to write
+	 * @throws IOException if out fails
+	 */
+	public ClassCachingObjectOutputStream(OutputStream out)
+		throws IOException
+	{
+		super(out);
+	}
+
+	// A class written before is its number.  A new one is 0 and then
+	// the descriptor.
+	protected void writeClassDescriptor(ObjectStreamClass desc)
+		throws IOException
+	{
+		Integer id = (Integer)_ids.get(desc);
+		if (null != id) {
+			writeNumber(id.intValue());
+		}
+		else {
+			writeNumber(0);
+			super.writeClassDescriptor(desc);
+			_ids.put(desc, new Integer(_ids.size() + 1));
+		}
+	}
+
+	// seven bits at a time, least significant first
+	private void writeNumber(int n)
+		throws IOException
+	{
+		while ((n & ~0x7F) != 0) {
+			write((n & 0x7F) | 0x80);
+			n >>>= 7;
+		}
+		write(n);
+	}
+}
@@ -0,0 +1,43 @@
+package mil.navy.nrl.cmf.sousa.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream that reads one frame at a time from whatever stream
+ * holds it.  It lets a long-lived reader, such as an
+ * ObjectInputStream, read a stream that arrives in frames.  Between
+ * frames, it is at end of file.
+ */
+public final class FrameInputStream extends InputStream
+{
+	// the frame being read, or null
+	private InputStream _frame = null;
+
+	/**
+	 * Read from another frame.
+	 *
+	 * @param frame the frame, or null for none
+	 */
+	public void setFrame(InputStream frame) {
+		_frame = frame;
+	}
+
+	public int read()
+		throws IOException
+	{
+		return (null == _frame) ? -1 : _frame.read();
+	}
+
+	public int read(byte[] b, int off, int len)
+		throws IOException
+	{
+		return (null == _frame) ? -1 : _frame.read(b, off, len);
+	}
+
+	public int available()
+		throws IOException
+	{
+		return (null == _frame) ? 0 : _frame.available();
+	}
+}
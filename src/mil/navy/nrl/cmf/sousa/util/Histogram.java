@@ -0,0 +1,126 @@
+package mil.navy.nrl.cmf.sousa.util;
+
+/**
+ * A Histogram counts non-negative values in buckets whose bounds are
+ * powers of two.  Bucket 0 counts the zeros and bucket
+ * <CODE>i</CODE> &gt; 0 counts the values from <CODE>2<SUP>i-1</SUP></CODE>
+ * up to but not including <CODE>2<SUP>i</SUP></CODE>.  It also keeps
+ * the number, the total and the largest of the values.
+ *
+ * Recording a value costs a few instructions and no allocation, so a
+ * Histogram may be fed from an I/O thread for every frame.
+ *
+ * Histogram is synchronized.
+ */
+public final class Histogram
+{
+	// one bucket for zero and one for each bit of a long
+	private static final int BUCKETS = 64;
+
+	private final long[] _buckets = new long[BUCKETS];
+	private long _count = 0;
+	private long _total = 0;
+	private long _max = 0;
+
+	/**
+	 * Count a value.  A negative value counts as zero.
+	 *
+	 * @param value the value
+	 */
+	public synchronized void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		_buckets[bucket(value)]++;
+		_count++;
+		_total += value;
+		if (value > _max) {
+			_max = value;
+		}
+	}
+
+	/**
+	 * @return how many values have been counted
+	 */
+	public synchronized long getCount() {
+		return _count;
+	}
+
+	/**
+	 * @return the sum of the values counted
+	 */
+	public synchronized long getTotal() {
+		return _total;
+	}
+
+	/**
+	 * @return the largest value counted, or zero if there are none
+	 */
+	public synchronized long getMax() {
+		return _max;
+	}
+
+	/**
+	 * @return the mean of the values counted, or zero if there are
+	 * none
+	 */
+	public synchronized long getMean() {
+		return (0 == _count) ? 0 : _total / _count;
+	}
+
+	/**
+	 * Estimate a percentile from the buckets.
+	 *
+	 * @param percent from 0 to 100
+	 * @return the upper bound of the bucket holding the value below
+	 * which <CODE>percent</CODE> of the values fall, but no more
+	 * than the largest value.  Zero if there are no values.
+	 */
+	public synchronized long getPercentile(double percent) {
+		long answer = 0;
+		long rank = (long)Math.ceil(_count * percent / 100.0);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += _buckets[i];
+			if ((seen >= rank) && (seen > 0)) {
+				answer = (0 == i) ? 0 : Math.min(_max, (1L << i) - 1);
+				break;
+			}
+		}
+		return answer;
+	}
+
+	/**
+	 * @return the counts of the buckets up to the last one that
+	 * isn't empty
+	 */
+	public synchronized long[] getBuckets() {
+		int n = BUCKETS;
+		while ((n > 0) && (0 == _buckets[n - 1])) {
+			n--;
+		}
+		long[] answer = new long[n];
+		System.arraycopy(_buckets, 0, answer, 0, n);
+		return answer;
+	}
+
+	/**
+	 * Forget every value counted so far.
+	 */
+	public synchronized void reset() {
+		java.util.Arrays.fill(_buckets, 0);
+		_count = 0;
+		_total = 0;
+		_max = 0;
+	}
+
+	public synchronized String toString() {
+		return "n=" + _count + " mean=" + getMean() +
+			" p99=" + getPercentile(99.0) + " max=" + _max;
+	}
+
+	// the bucket of a non-negative value
+	private static int bucket(long value) {
+		return BUCKETS - Long.numberOfLeadingZeros(value);
+	}
+}
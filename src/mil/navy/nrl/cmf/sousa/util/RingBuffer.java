@@ -0,0 +1,132 @@
+package mil.navy.nrl.cmf.sousa.util;
+
+/**
+ * A first-in, first-out queue of Objects kept in an array that wraps
+ * around.  A RingBuffer has a nominal capacity.  {@link
+ * #offer(Object)} refuses to exceed it; {@link #add(Object)} doubles
+ * the array instead.
+ *
+ * RingBuffer is not synchronized.  Callers must provide their own
+ * mutual exclusion.
+ */
+public final class RingBuffer
+{
+	// the elements.  _items.length >= _capacity.
+	private Object[] _items;
+
+	// the index of the oldest element
+	private int _head = 0;
+
+	// the number of elements
+	private int _size = 0;
+
+	// the nominal capacity
+	private final int _capacity;
+
+	/**
+	 * Make an empty RingBuffer that holds <CODE>capacity</CODE>
+	 * elements.
+	 *
+	 * @param capacity the nominal capacity; must be positive
+	 * @throws IllegalArgumentException if capacity is not positive
+	 */
+	public RingBuffer(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("RingBuffer capacity " +
+											   capacity + " <= 0");
+		}
+		_capacity = capacity;
+		_items = new Object[capacity];
+	}
+
+	/**
+	 * Append <CODE>o</CODE> if there is room for it.
+	 *
+	 * @param o the Object to append
+	 * @return true if o was appended; false if the RingBuffer is full
+	 */
+	public boolean offer(Object o) {
+		if (_size >= _capacity) {
+			return false;
+		}
+		add(o);
+		return true;
+	}
+
+	/**
+	 * Append <CODE>o</CODE>, growing beyond the nominal capacity if
+	 * necessary.
+	 *
+	 * @param o the Object to append
+	 */
+	public void add(Object o) {
+		if (_size == _items.length) {
+			Object[] items = new Object[_items.length * 2];
+			for (int i = 0; i < _size; i++) {
+				items[i] = _items[(_head + i) % _items.length];
+			}
+			_items = items;
+			_head = 0;
+		}
+		_items[(_head + _size) % _items.length] = o;
+		_size++;
+	}
+
+	/**
+	 * Remove and return the oldest element.
+	 *
+	 * @return the oldest element or null if the RingBuffer is empty
+	 */
+	public Object poll() {
+		if (0 == _size) {
+			return null;
+		}
+		Object answer = _items[_head];
+		_items[_head] = null;
+		_head = (_head + 1) % _items.length;
+		_size--;
+		return answer;
+	}
+
+	/**
+	 * Return the oldest element without removing it.
+	 *
+	 * @return the oldest element or null if the RingBuffer is empty
+	 */
+	public Object peek() {
+		return (0 == _size) ? null : _items[_head];
+	}
+
+	/**
+	 * @return the number of elements
+	 */
+	public int size() {
+		return _size;
+	}
+
+	/**
+	 * @return the nominal capacity
+	 */
+	public int capacity() {
+		return _capacity;
+	}
+
+	/**
+	 * @return true if there are no elements
+	 */
+	public boolean isEmpty() {
+		return (0 == _size);
+	}
+
+	public String toString() {
+		StringBuffer buf = new StringBuffer("[");
+		for (int i = 0; i < _size; i++) {
+			if (i > 0) {
+				buf.append(", ");
+			}
+			buf.append(_items[(_head + i) % _items.length]);
+		}
+		buf.append("]");
+		return buf.toString();
+	}
+}